@@ -39,7 +39,11 @@
 #include "hello_ar_application.h"
 
 #include <android/asset_manager.h>
+#include <algorithm>
 #include <array>
+#include <atomic>
+#include <chrono>
+#include <ctime>
 #include <mutex>
 #include <EGL/egl.h>
 
@@ -101,7 +105,6 @@ namespace hello_ar {
 
     class HelloArApplication::CloudXRClient : public oboe::AudioStreamDataCallback {
     public:
-//        std::vector<float> head_pose = {};
         ~CloudXRClient() {
             Teardown();
         }
@@ -115,19 +118,14 @@ namespace hello_ar {
             state->hmd.pose.poseIsValid = cxrTrue;
             state->hmd.pose.deviceIsConnected = cxrTrue;
             state->hmd.pose.trackingResult = cxrTrackingResult_Running_OK;
-            {
-                std::lock_guard<std::mutex> lock(state_mutex_);
-                const int idx = current_idx_ == 0 ?
-                                kQueueLen - 1 : (current_idx_ - 1) % kQueueLen;
-                cxrMatrixToVecQuat(pose_matrix_ + idx, &(state->hmd.pose.position),
-                                   &(state->hmd.pose.rotation));
-
-//                head_pose.clear();
-//                head_pose.push_back(state->hmd.pose.rotation.w);
-//                head_pose.push_back(state->hmd.pose.rotation.x);
-//                head_pose.push_back(state->hmd.pose.rotation.y);
-//                head_pose.push_back(state->hmd.pose.rotation.z);
-            }
+            GetLatestPose(&(state->hmd.pose.position), &(state->hmd.pose.rotation));
+        }
+
+        void GetLatestPose(cxrVector3 *position, cxrQuaternion *rotation) {
+            std::lock_guard<std::mutex> lock(state_mutex_);
+            const int idx = current_idx_ == 0 ?
+                            kQueueLen - 1 : (current_idx_ - 1) % kQueueLen;
+            cxrMatrixToVecQuat(pose_matrix_ + idx, position, rotation);
         }
 
         cxrBool RenderAudio(const cxrAudioFrame *audioFrame) {
@@ -163,7 +161,13 @@ namespace hello_ar {
             device_desc_.width = stream_width_;
             device_desc_.height = stream_height_;
             device_desc_.maxResFactor = 1.0f; // leave alone, don't extra oversample on server.
-            device_desc_.fps = static_cast<float>(fps_);
+            // A requested refresh rate below the camera's, e.g. from the Java QualityGovernor,
+            // caps what the server renders at.
+            uint32_t fps = static_cast<uint32_t>(fps_);
+            if (launch_options_.mRequestedRefreshRate > 0) {
+                fps = std::min(fps, launch_options_.mRequestedRefreshRate);
+            }
+            device_desc_.fps = static_cast<float>(fps);
             device_desc_.ipd = 0.064f;
             device_desc_.predOffset = 0.02f;
             device_desc_.receiveAudio = launch_options_.mReceiveAudio;
@@ -179,6 +183,8 @@ namespace hello_ar {
             if (cloudxr_receiver_)
                 return cxrError_Success; // already connected, no error? TODO
 
+            create_failed_ = false;
+
             LOGI("Connecting to CloudXR at %s...", launch_options_.mServerIP.c_str());
 
             cxrGraphicsContext context{cxrGraphicsContext_GLES};
@@ -295,6 +301,9 @@ namespace hello_ar {
             cxrError err = cxrCreateReceiver(&desc, &cloudxr_receiver_);
             if (err != cxrError_Success) {
                 LOGE("Failed to create CloudXR receiver. Error %d, %s.", err, cxrErrorString(err));
+                // Nothing on the network is involved yet, so a retry fails the same way.
+                create_failed_ = true;
+                Teardown();
                 return err;
             }
 
@@ -343,6 +352,11 @@ namespace hello_ar {
             return cloudxr_receiver_;
         }
 
+        // True if the last Connect failed before reaching the server.
+        bool CreateFailed() const {
+            return create_failed_;
+        }
+
         void SetPoseMatrix(const glm::mat4 &pose_mat) {
             std::lock_guard<std::mutex> lock(state_mutex_);
 
@@ -466,6 +480,8 @@ namespace hello_ar {
         }
 
         void Stats() {
+            SampleStats();
+
             // Log connection stats every 3 seconds
             const int STATS_INTERVAL_SEC = 3;
             frames_until_stats_--;
@@ -513,6 +529,47 @@ namespace hello_ar {
             }
         }
 
+        // Keeps the latest stats for readers on other threads, at most once per
+        // stats_interval_ms_.
+        void SampleStats() {
+            const int64_t now_ms = std::chrono::duration_cast<std::chrono::milliseconds>(
+                    std::chrono::steady_clock::now().time_since_epoch()).count();
+            if (now_ms - last_sample_ms_ < stats_interval_ms_.load(std::memory_order_relaxed)) {
+                return;
+            }
+            cxrConnectionStats stats = {};
+            if (cxrGetConnectionStats(cloudxr_receiver_, &stats) != cxrError_Success) {
+                return;
+            }
+            last_sample_ms_ = now_ms;
+
+            std::lock_guard<std::mutex> lock(stats_mutex_);
+            sampled_stats_ = stats;
+            sampled_stats_ms_ = now_ms;
+            stats_sequence_++;
+        }
+
+        int64_t CopyStats(double *dst) {
+            std::lock_guard<std::mutex> lock(stats_mutex_);
+            if (stats_sequence_ == 0) {
+                return 0;
+            }
+            dst[kStatsTimestampMs] = sampled_stats_ms_;
+            dst[kStatsFramesPerSecond] = sampled_stats_.framesPerSecond;
+            dst[kStatsBandwidthAvailableKbps] = sampled_stats_.bandwidthAvailableKbps;
+            dst[kStatsBandwidthUtilizationKbps] = sampled_stats_.bandwidthUtilizationKbps;
+            dst[kStatsRoundTripDelayMs] = sampled_stats_.roundTripDelayMs;
+            dst[kStatsPacketsReceived] = sampled_stats_.totalPacketsReceived;
+            dst[kStatsPacketsLost] = sampled_stats_.totalPacketsLost;
+            dst[kStatsQuality] = sampled_stats_.quality;
+            dst[kStatsQualityReasons] = sampled_stats_.qualityReasons;
+            return stats_sequence_;
+        }
+
+        void SetStatsInterval(int32_t interval_ms) {
+            stats_interval_ms_.store(interval_ms, std::memory_order_relaxed);
+        }
+
         void UpdateLightProps(const float primaryDirection[3], const float primaryIntensity[3],
                               const float ambient_spherical_harmonics[27]) {
             cxrLightProperties lightProperties;
@@ -548,9 +605,14 @@ namespace hello_ar {
             return true;
         }
 
+        // Args take effect on the next Connect; the stream res is worked out again right away
+        // in case the res factor changed.
         void SetArgs(const std::string &args) {
             LOGI("App args: %s.", args.c_str());
             launch_options_.ParseString(args);
+            if (display_width_ > 0 && display_height_ > 0) {
+                SetStreamRes(display_width_, display_height_, display_orientation_);
+            }
         }
 
         std::string GetServerAddr() {
@@ -565,6 +627,9 @@ namespace hello_ar {
         // here, we can apply a factor to reduce what we tell the server our desired
         // video resolution should be.
         void SetStreamRes(uint32_t w, uint32_t h, uint32_t orientation) {
+            display_width_ = w;
+            display_height_ = h;
+            display_orientation_ = orientation;
             // in portrait modes we want width to be smaller dimension
             if (w > h && (orientation == 0 || orientation == 2)) {
                 std::swap(w, h);
@@ -598,11 +663,16 @@ namespace hello_ar {
         static constexpr int kQueueLen = BackgroundRenderer::kQueueLen;
 
         cxrReceiverHandle cloudxr_receiver_ = nullptr;
+        bool create_failed_ = false;
 
         ARLaunchOptions launch_options_;
 
         uint32_t stream_width_ = 720;
         uint32_t stream_height_ = 1440;
+        // As last passed to SetStreamRes.
+        uint32_t display_width_ = 0;
+        uint32_t display_height_ = 0;
+        uint32_t display_orientation_ = 0;
 
         cxrFramesLatched framesLatched_ = {};
         bool latched_ = false;
@@ -619,6 +689,14 @@ namespace hello_ar {
 
         cxrConnectionStats stats_ = {};
         int frames_until_stats_ = 60;
+
+        // Latest sample for GetConnectionStats, written on the OpenGL thread.
+        std::mutex stats_mutex_;
+        cxrConnectionStats sampled_stats_ = {};
+        int64_t sampled_stats_ms_ = 0;
+        int64_t stats_sequence_ = 0;
+        int64_t last_sample_ms_ = 0;
+        std::atomic<int32_t> stats_interval_ms_{1000};
     };
 
 // need to decl our static variable.
@@ -681,122 +759,154 @@ namespace hello_ar {
         cloudxr_client_->Teardown();
     }
 
-    void HelloArApplication::OnResume(void *env, void *context, void *activity) {
-        ArStatus stat;
+    int HelloArApplication::Reconnect() {
+        if (exiting_) return (0);
 
-        LOGI("OnResume()");
+        LOGI("Reconnect()");
+        cloudxr_client_->Teardown();
+        connect_suspended_ = false;
+        if (!base_frame_calibrated_) {
+            return (0);
+        }
 
-        if (ar_session_ == nullptr) {
-            ArInstallStatus install_status;
-            // If install was not yet requested, that means that we are resuming the
-            // activity first time because of explicit user interaction (such as
-            // launching the application)
-            bool user_requested_install = !install_requested_;
-
-            // === ATTENTION!  ATTENTION!  ATTENTION! ===
-            // This method can and will fail in user-facing situations.  Your
-            // application must handle these cases at least somewhat gracefully.  See
-            // HelloAR Java sample code for reasonable behavior.
-            stat = ArCoreApk_requestInstall(env, activity, user_requested_install,
-                                            &install_status);
-            CHECK_NOTIFY_STATUS(stat, true);
-
-            switch (install_status) {
-                case AR_INSTALL_STATUS_INSTALLED:
-                    break;
-                case AR_INSTALL_STATUS_INSTALL_REQUESTED:
-                    install_requested_ = true;
-                    return;
-            }
+        cxrError status = cloudxr_client_->Connect();
+        if (status != cxrError_Success) {
+            connect_suspended_ = true;
+            exiting_ = cloudxr_client_->CreateFailed();
+            return ((int) status);
+        }
+        return (0);
+    }
 
-            // === ATTENTION!  ATTENTION!  ATTENTION! ===
-            // This method can and will fail in user-facing situations.  Your
-            // application must handle these cases at least somewhat gracefully.  See
-            // HelloAR Java sample code for reasonable behavior.
-            stat = ArSession_create(env, context, &ar_session_);
-            CHECK_NOTIFY_STATUS(stat, true);
-            CHECK(ar_session_);
-
-            ArFrame_create(ar_session_, &ar_frame_);
-            CHECK(ar_frame_);
-
-            ArSession_setDisplayGeometry(ar_session_, display_rotation_, display_width_,
-                                         display_height_);
-
-            // Retrieve supported camera configs.
-            ArCameraConfigList *all_camera_configs = nullptr;
-            int32_t num_configs = 0;
-            ArCameraConfigList_create(ar_session_, &all_camera_configs);
-            // Create filter first to get both 30 and 60 fps.
-            ArCameraConfigFilter *camera_config_filter = nullptr;
-            ArCameraConfigFilter_create(ar_session_, &camera_config_filter);
-            ArCameraConfigFilter_setTargetFps(
-                    ar_session_, camera_config_filter,
-                    AR_CAMERA_CONFIG_TARGET_FPS_60);
-            ArSession_getSupportedCameraConfigsWithFilter(
-                    ar_session_, camera_config_filter, all_camera_configs);
-            ArCameraConfigList_getSize(ar_session_, all_camera_configs, &num_configs);
-
-            if (num_configs < 1) {
-                LOGE("No 60Hz camera available!  Setting to 30fps.");
-                cloudxr_client_->SetFps(30);
-            } else {
-                ArCameraConfig *camera_config;
-                ArCameraConfig_create(ar_session_, &camera_config);
-                ArCameraConfigList_getItem(ar_session_, all_camera_configs, 0,
-                                           camera_config);
+    bool HelloArApplication::PrepareSession(void *env, void *context, void *activity) {
+        if (ar_session_ != nullptr) {
+            return true;
+        }
+        LOGI("PrepareSession()");
+        ArStatus stat;
+        ArInstallStatus install_status;
+        // If install was not yet requested, that means that we are resuming the
+        // activity first time because of explicit user interaction (such as
+        // launching the application)
+        bool user_requested_install = !install_requested_;
+
+        // === ATTENTION!  ATTENTION!  ATTENTION! ===
+        // This method can and will fail in user-facing situations.  Your
+        // application must handle these cases at least somewhat gracefully.  See
+        // HelloAR Java sample code for reasonable behavior.
+        stat = ArCoreApk_requestInstall(env, activity, user_requested_install,
+                                        &install_status);
+        CHECK_NOTIFY_STATUS(stat, true);
 
-                ArSession_setCameraConfig(ar_session_, camera_config);
-                cloudxr_client_->SetFps(60);
-            }
+        switch (install_status) {
+            case AR_INSTALL_STATUS_INSTALLED:
+                break;
+            case AR_INSTALL_STATUS_INSTALL_REQUESTED:
+                install_requested_ = true;
+                return false;
+        }
 
-            ArCameraConfigList_destroy(all_camera_configs);
+        // === ATTENTION!  ATTENTION!  ATTENTION! ===
+        // This method can and will fail in user-facing situations.  Your
+        // application must handle these cases at least somewhat gracefully.  See
+        // HelloAR Java sample code for reasonable behavior.
+        stat = ArSession_create(env, context, &ar_session_);
+        CHECK_NOTIFY_STATUS(stat, true);
+        CHECK(ar_session_);
+
+        ArFrame_create(ar_session_, &ar_frame_);
+        CHECK(ar_frame_);
+
+        ArSession_setDisplayGeometry(ar_session_, display_rotation_, display_width_,
+                                     display_height_);
+
+        // Retrieve supported camera configs.
+        ArCameraConfigList *all_camera_configs = nullptr;
+        int32_t num_configs = 0;
+        ArCameraConfigList_create(ar_session_, &all_camera_configs);
+        // Create filter first to get both 30 and 60 fps.
+        ArCameraConfigFilter *camera_config_filter = nullptr;
+        ArCameraConfigFilter_create(ar_session_, &camera_config_filter);
+        ArCameraConfigFilter_setTargetFps(
+                ar_session_, camera_config_filter,
+                AR_CAMERA_CONFIG_TARGET_FPS_60);
+        ArSession_getSupportedCameraConfigsWithFilter(
+                ar_session_, camera_config_filter, all_camera_configs);
+        ArCameraConfigList_getSize(ar_session_, all_camera_configs, &num_configs);
+
+        if (num_configs < 1) {
+            LOGE("No 60Hz camera available!  Setting to 30fps.");
+            cloudxr_client_->SetFps(30);
+        } else {
+            ArCameraConfig *camera_config;
+            ArCameraConfig_create(ar_session_, &camera_config);
+            ArCameraConfigList_getItem(ar_session_, all_camera_configs, 0,
+                                       camera_config);
+
+            ArSession_setCameraConfig(ar_session_, camera_config);
+            cloudxr_client_->SetFps(60);
+        }
 
-            ArAugmentedImageDatabase *ar_augmented_image_database = nullptr;
+        ArCameraConfigList_destroy(all_camera_configs);
 
-            if (FILE * f = fopen("/sdcard/image_anchors.imgdb", "rb")) {
-                LOGI("Image anchors DB found.");
+        ArAugmentedImageDatabase *ar_augmented_image_database = nullptr;
 
-                fseek(f, 0, SEEK_END);
-                size_t db_size = ftell(f);
-                fseek(f, 0, SEEK_SET);
+        if (FILE * f = fopen("/sdcard/image_anchors.imgdb", "rb")) {
+            LOGI("Image anchors DB found.");
 
-                uint8_t *raw_buffer = new uint8_t[db_size];
-                fread(raw_buffer, 1, db_size, f);
-                fclose(f);
+            fseek(f, 0, SEEK_END);
+            size_t db_size = ftell(f);
+            fseek(f, 0, SEEK_SET);
 
-                const ArStatus status = ArAugmentedImageDatabase_deserialize(
-                        ar_session_, raw_buffer, db_size, &ar_augmented_image_database);
+            uint8_t *raw_buffer = new uint8_t[db_size];
+            fread(raw_buffer, 1, db_size, f);
+            fclose(f);
 
-                if (status != AR_SUCCESS) {
-                    LOGI("Unable to deserialize image anchors DB!");
-                }
+            const ArStatus status = ArAugmentedImageDatabase_deserialize(
+                    ar_session_, raw_buffer, db_size, &ar_augmented_image_database);
 
-                delete[] raw_buffer;
+            if (status != AR_SUCCESS) {
+                LOGI("Unable to deserialize image anchors DB!");
             }
 
-            ArConfig *config = nullptr;
-            ArConfig_create(ar_session_, &config);
-            ArSession_getConfig(ar_session_, config);
+            delete[] raw_buffer;
+        }
 
-            if (cloudxr_client_->GetUseEnvLighting()) {
-                ArConfig_setLightEstimationMode(ar_session_, config,
-                                                AR_LIGHT_ESTIMATION_MODE_ENVIRONMENTAL_HDR);
-            }
+        ArConfig *config = nullptr;
+        ArConfig_create(ar_session_, &config);
+        ArSession_getConfig(ar_session_, config);
 
-            if (ar_augmented_image_database) {
-                ArConfig_setAugmentedImageDatabase(ar_session_, config,
-                                                   ar_augmented_image_database);
-                using_image_anchors_ = true;
-                LOGI("AR Anchors: Tracking using IMAGE ANCHOR DB.");
+        if (cloudxr_client_->GetUseEnvLighting()) {
+            ArConfig_setLightEstimationMode(ar_session_, config,
+                                            AR_LIGHT_ESTIMATION_MODE_ENVIRONMENTAL_HDR);
+        }
 
-                ArAugmentedImageDatabase_destroy(ar_augmented_image_database);
-            } else {
-                LOGI("AR Anchors: Tracking using environment detail.");
-            }
+        if (ar_augmented_image_database) {
+            ArConfig_setAugmentedImageDatabase(ar_session_, config,
+                                               ar_augmented_image_database);
+            using_image_anchors_ = true;
+            LOGI("AR Anchors: Tracking using IMAGE ANCHOR DB.");
 
-            ArSession_configure(ar_session_, config);
-            ArConfig_destroy(config);
+            ArAugmentedImageDatabase_destroy(ar_augmented_image_database);
+        } else {
+            LOGI("AR Anchors: Tracking using environment detail.");
+        }
+
+        ArSession_configure(ar_session_, config);
+        ArConfig_destroy(config);
+        return true;
+    }
+
+    void HelloArApplication::OnResume(void *env, void *context, void *activity) {
+        ArStatus stat;
+
+        LOGI("OnResume()");
+
+        // Resuming is an explicit request to connect, whatever failed before.
+        connect_suspended_ = false;
+
+        if (!PrepareSession(env, context, activity)) {
+            return;
         }
 
         ArCameraIntrinsics_create(ar_session_, &ar_camera_intrinsics_);
@@ -912,7 +1022,49 @@ namespace hello_ar {
 
 // Render the scene.
 // return value 0 means that Java should finish and clean up.
+    namespace {
+        // Touches older than this were queued across a pause or a stall; the
+        // scene they were aimed at is gone.
+        constexpr int64_t kMaxTouchAgeNs = 500000000;
+
+        int64_t BootTimeNs() {
+            timespec now;
+            clock_gettime(CLOCK_BOOTTIME, &now);
+            return static_cast<int64_t>(now.tv_sec) * 1000000000 + now.tv_nsec;
+        }
+    }  // namespace
+
     int HelloArApplication::OnDrawFrame() {
+        const int status = DrawFrame();
+        PublishTrackingState();
+        frame_presented_ns_ = BootTimeNs();
+        return status;
+    }
+
+    void HelloArApplication::PublishTrackingState() {
+        int32_t state = 0;
+        if (HasDetectedPlanes()) {
+            state |= kTrackingPlanes;
+        }
+        if (HasCloudXrAnchor()) {
+            state |= kTrackingCloudXrAnchor;
+        }
+        if (camera_tracking_) {
+            state |= kTrackingCamera;
+        }
+        if (tracking_state_.exchange(state, std::memory_order_relaxed) != state) {
+            tracking_state_changed_.store(true, std::memory_order_release);
+        }
+    }
+
+    int32_t HelloArApplication::PollTrackingState() {
+        if (!tracking_state_changed_.exchange(false, std::memory_order_acquire)) {
+            return -1;
+        }
+        return tracking_state_.load(std::memory_order_relaxed);
+    }
+
+    int HelloArApplication::DrawFrame() {
 
         // clearing to dark red to start, so it is obvious if we fail out early or don't render anything
         // but if exiting, just render black on the way out...
@@ -954,6 +1106,7 @@ namespace hello_ar {
 
         ArTrackingState camera_tracking_state;
         ArCamera_getTrackingState(ar_session_, ar_camera, &camera_tracking_state);
+        camera_tracking_ = camera_tracking_state == AR_TRACKING_STATE_TRACKING;
         ArCamera_release(ar_camera);
 
         // Draw to camera queue
@@ -1028,13 +1181,18 @@ namespace hello_ar {
                 }
             }
 
+            // Waiting for Reconnect; the camera image is already on screen.
+            if (connect_suspended_) return (0);
+
             if (!cloudxr_client_->IsRunning()) {
                 cloudxr_client_->SetProjectionMatrix(projection_mat);
                 cxrError status = cloudxr_client_->Connect();
                 // for sync connection, this will do for now to error check..
                 if (status != cxrError_Success) {
-                    exiting_ = true;
-                    return ((int) status); // TODO: real error codes?
+                    // Reported once; Java decides when to call Reconnect.
+                    connect_suspended_ = true;
+                    exiting_ = cloudxr_client_->CreateFailed();
+                    return ((int) status);
                 }
             }
 
@@ -1042,7 +1200,9 @@ namespace hello_ar {
             if (status != cxrError_Success) {
                 LOGE("Latch failed, %s", cxrErrorString(status));
                 if (status == cxrError_Receiver_Not_Running) {
-                    exiting_ = true;
+                    // The server went away; the ARCore session and base frame stay as they are.
+                    cloudxr_client_->Teardown();
+                    connect_suspended_ = true;
                     return status;
                 } else if (status == cxrError_Frame_Not_Ready) {
                     // TODO: if fixed framerate, should cache and re-render prior frame.
@@ -1062,6 +1222,7 @@ namespace hello_ar {
             // Setup pose matrix with our base frame
             const glm::mat4 cloudxr_pose_mat = base_frame_ * glm::inverse(view_mat);
             cloudxr_client_->SetPoseMatrix(cloudxr_pose_mat);
+            WritePoseSample();
 
             // Set light intensity to default. Intensity value ranges from 0.0f to 1.0f.
             // The first three components are color scaling factors.
@@ -1215,12 +1376,11 @@ namespace hello_ar {
             ArImage_getWidth(ar_session_, image, &width);
             ArImage_getHeight(ar_session_, image, &height);
 
-            auto *yuv420 = new uint8_t[yLength + uLength + vLength];
-            memcpy(yuv420, y, yLength);
-            memcpy(yuv420 + yLength, u, uLength);
-            memcpy(yuv420 + yLength + uLength, v, vLength);
+            pixels.reserve(yLength + uLength + vLength + 32);
+            pixels.insert(pixels.end(), y, y + yLength);
+            pixels.insert(pixels.end(), u, u + uLength);
+            pixels.insert(pixels.end(), v, v + vLength);
 
-            copy(&yuv420[0], &yuv420[yLength + uLength + vLength], back_inserter(pixels));
             auto bigWidth = (uint32_t) width;
             pixels.push_back((bigWidth >> 24) & 0xFF);
             pixels.push_back((bigWidth >> 16) & 0xFF);
@@ -1268,6 +1428,126 @@ namespace hello_ar {
         return pixels;
     }
 
+    int32_t HelloArApplication::FillCameraFrame(uint8_t *dst, int64_t capacity,
+                                                  int32_t downscale) {
+        ArImage *image = AcquireCameraImage();
+        if (image == nullptr) {
+            return 0;
+        }
+        const int32_t written = CopyCameraImage(image, dst, capacity, downscale);
+        ReleaseCameraImage(image);
+        return written;
+    }
+
+    ArImage *HelloArApplication::AcquireCameraImage() {
+        if (ar_session_ == nullptr || ar_frame_ == nullptr) {
+            return nullptr;
+        }
+
+        ArImage *image = nullptr;
+        if (ArFrame_acquireCameraImage(ar_session_, ar_frame_, &image) != AR_SUCCESS) {
+            return nullptr;
+        }
+        return image;
+    }
+
+    void HelloArApplication::ReleaseCameraImage(ArImage *image) {
+        if (image != nullptr) {
+            ArImage_release(image);
+        }
+    }
+
+    int32_t HelloArApplication::CopyCameraImage(ArImage *image, uint8_t *dst, int64_t capacity,
+                                                  int32_t downscale) {
+        if (ar_session_ == nullptr || image == nullptr) {
+            return 0;
+        }
+
+        CameraFrameHeader header = {};
+        const uint8_t *y;
+        const uint8_t *u;
+        const uint8_t *v;
+        ArImage_getPlaneData(ar_session_, image, 0, &y, &header.y_length);
+        ArImage_getPlaneData(ar_session_, image, 1, &u, &header.u_length);
+        ArImage_getPlaneData(ar_session_, image, 2, &v, &header.v_length);
+
+        ArImage_getPlaneRowStride(ar_session_, image, 0, &header.y_stride);
+        ArImage_getPlaneRowStride(ar_session_, image, 1, &header.uv_stride);
+        ArImage_getPlanePixelStride(ar_session_, image, 1, &header.uv_pixel_stride);
+
+        ArImage_getWidth(ar_session_, image, &header.width);
+        ArImage_getHeight(ar_session_, image, &header.height);
+        ArImage_getTimestamp(ar_session_, image, &header.timestamp_ns);
+
+        const int32_t src_width = header.width;
+        const int32_t src_height = header.height;
+        const int32_t src_y_stride = header.y_stride;
+        const int32_t src_uv_stride = header.uv_stride;
+        const int32_t src_uv_pixel_stride = header.uv_pixel_stride;
+        if (downscale > 1) {
+            // Decimated output is packed planar: tight Y rows, U and V with a pixel stride of 1.
+            header.width = (src_width / downscale) & ~1;
+            header.height = (src_height / downscale) & ~1;
+            header.y_stride = header.width;
+            header.uv_stride = header.width / 2;
+            header.uv_pixel_stride = 1;
+            header.y_length = header.width * header.height;
+            header.u_length = header.uv_stride * (header.height / 2);
+            header.v_length = header.u_length;
+        }
+
+        const int64_t required = static_cast<int64_t>(sizeof(header)) +
+                                 header.y_length + header.u_length + header.v_length;
+        int32_t written;
+        if (required > capacity) {
+            // Tell Java how big the buffer has to be.
+            written = -static_cast<int32_t>(required);
+        } else if (downscale > 1) {
+            uint8_t *out_y = dst + sizeof(header);
+            uint8_t *out_u = out_y + header.y_length;
+            uint8_t *out_v = out_u + header.u_length;
+            memcpy(dst, &header, sizeof(header));
+            for (int32_t row = 0; row < header.height; ++row) {
+                const uint8_t *src = y + row * downscale * src_y_stride;
+                for (int32_t col = 0; col < header.width; ++col) {
+                    *out_y++ = src[col * downscale];
+                }
+            }
+            for (int32_t row = 0; row < header.height / 2; ++row) {
+                const int32_t src_row = row * downscale * src_uv_stride;
+                for (int32_t col = 0; col < header.uv_stride; ++col) {
+                    const int32_t src_index = src_row + col * downscale * src_uv_pixel_stride;
+                    *out_u++ = u[src_index];
+                    *out_v++ = v[src_index];
+                }
+            }
+            written = static_cast<int32_t>(required);
+        } else {
+            // Planes go straight from the ArImage into the caller's buffer, no staging copy.
+            uint8_t *out = dst;
+            memcpy(out, &header, sizeof(header));
+            out += sizeof(header);
+            memcpy(out, y, header.y_length);
+            out += header.y_length;
+            memcpy(out, u, header.u_length);
+            out += header.u_length;
+            memcpy(out, v, header.v_length);
+            written = static_cast<int32_t>(required);
+        }
+        return written;
+    }
+
+    int64_t HelloArApplication::GetConnectionStats(double *dst, int32_t length) {
+        if (length < kStatsSlotCount) {
+            return 0;
+        }
+        return cloudxr_client_->CopyStats(dst);
+    }
+
+    void HelloArApplication::SetConnectionStatsInterval(int32_t interval_ms) {
+        cloudxr_client_->SetStatsInterval(interval_ms > 0 ? interval_ms : 1);
+    }
+
     void HelloArApplication::OnTouched(float x, float y, bool longPress) {
         // if base frame is calibrated and user is not asking to reset, pass touches to server
         if (base_frame_calibrated_ && !longPress) {
@@ -1392,15 +1672,62 @@ namespace hello_ar {
         }
     }
 
-//    std::vector<float> HelloArApplication::GetHeadPose() {
-//        if (!cloudxr_client_->IsRunning()) {
-//            return {};
-//        }
-//        const cxrError status = cloudxr_client_->Latch();
-//        if (status == cxrError_Success) {
-//            return cloudxr_client_->head_pose;
-//        } else {
-//            return {};
-//        }
-//    }
+    void HelloArApplication::OnTouchBatch(const TouchSample *touches, int32_t count) {
+        const int64_t now_ns = BootTimeNs();
+        for (int32_t i = 0; i < count; ++i) {
+            const TouchSample &touch = touches[i];
+            if (now_ns - touch.timestamp_ns > kMaxTouchAgeNs) {
+                LOGI("HelloArApplication::OnTouchBatch dropping touch from %lld ms ago",
+                     static_cast<long long>((now_ns - touch.timestamp_ns) / 1000000));
+                continue;
+            }
+            // Landed while the frame before ar_frame_ was on screen. ARCore can
+            // only hit test the latest frame, which is one frame newer.
+            if (touch.timestamp_ns < frame_presented_ns_) {
+                ++late_touches_;
+                LOGI("HelloArApplication::OnTouchBatch %lld touches hit tested late",
+                     static_cast<long long>(late_touches_));
+            }
+            OnTouched(touch.x, touch.y, touch.action == kTouchLongPress);
+        }
+    }
+
+    void HelloArApplication::SetPoseRing(uint8_t *ring, int64_t capacity) {
+        const int64_t slots = (capacity - static_cast<int64_t>(sizeof(PoseRingHeader))) /
+                              static_cast<int64_t>(sizeof(PoseSample));
+        if (ring == nullptr || slots <= 0) {
+            pose_ring_ = nullptr;
+            pose_samples_ = nullptr;
+            return;
+        }
+        pose_ring_ = reinterpret_cast<PoseRingHeader *>(ring);
+        pose_samples_ = reinterpret_cast<PoseSample *>(ring + sizeof(PoseRingHeader));
+        pose_ring_->capacity = static_cast<int32_t>(slots);
+        __atomic_store_n(&pose_ring_->write_count, 0, __ATOMIC_RELEASE);
+    }
+
+    void HelloArApplication::WritePoseSample() {
+        if (pose_ring_ == nullptr) {
+            return;
+        }
+        cxrVector3 position;
+        cxrQuaternion rotation;
+        cloudxr_client_->GetLatestPose(&position, &rotation);
+
+        int64_t timestamp_ns = 0;
+        ArFrame_getTimestamp(ar_session_, ar_frame_, &timestamp_ns);
+
+        const int64_t count = pose_ring_->write_count;
+        PoseSample &sample = pose_samples_[count % pose_ring_->capacity];
+        sample.timestamp_ns = timestamp_ns;
+        sample.position[0] = position.v[0];
+        sample.position[1] = position.v[1];
+        sample.position[2] = position.v[2];
+        sample.orientation[0] = rotation.x;
+        sample.orientation[1] = rotation.y;
+        sample.orientation[2] = rotation.z;
+        sample.orientation[3] = rotation.w;
+        // Publish after the sample is complete.
+        __atomic_store_n(&pose_ring_->write_count, count + 1, __ATOMIC_RELEASE);
+    }
 }  // namespace hello_ar
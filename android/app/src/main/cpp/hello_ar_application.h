@@ -42,6 +42,7 @@
 #include <GLES2/gl2.h>
 #include <GLES2/gl2ext.h>
 #include <android/asset_manager.h>
+#include <atomic>
 #include <jni.h>
 #include <memory>
 #include <set>
@@ -56,6 +57,67 @@
 
 namespace hello_ar {
 
+// Fixed header written in front of the Y/U/V planes by FillCameraFrame.
+// Fields are in native byte order; keep in sync with CameraFramePool.java.
+    struct CameraFrameHeader {
+        int32_t width;
+        int32_t height;
+        int32_t y_stride;
+        int32_t uv_stride;
+        int32_t uv_pixel_stride;
+        int32_t y_length;
+        int32_t u_length;
+        int32_t v_length;
+        int64_t timestamp_ns;
+    };
+    static_assert(sizeof(CameraFrameHeader) == 40, "CameraFrameHeader layout changed");
+
+// Head pose ring shared with PoseStreamer.java: a PoseRingHeader followed by
+// |capacity| PoseSamples, in native byte order. The OpenGL thread is the only
+// writer and publishes each sample by bumping write_count.
+    struct PoseRingHeader {
+        int64_t write_count;
+        int32_t capacity;
+        int32_t reserved;
+    };
+    static_assert(sizeof(PoseRingHeader) == 16, "PoseRingHeader layout changed");
+
+    struct PoseSample {
+        int64_t timestamp_ns;
+        float position[3];
+        // Quaternion x, y, z, w.
+        float orientation[4];
+        int32_t reserved;
+    };
+    static_assert(sizeof(PoseSample) == 40, "PoseSample layout changed");
+
+// Touch batch handed over by FrameLoop.java once per frame, in native byte
+// order; keep in sync with TouchQueue.java. timestamp_ns is the event time on
+// the CLOCK_BOOTTIME clock, the one camera frames are stamped with.
+    struct TouchSample {
+        int64_t timestamp_ns;
+        float x;
+        float y;
+        int32_t action;
+        int32_t reserved;
+    };
+    static_assert(sizeof(TouchSample) == 24, "TouchSample layout changed");
+
+// Slots of the buffer filled by GetConnectionStats; keep in sync with
+// ConnectionStatsMonitor.java.
+    enum ConnectionStatsSlot {
+        kStatsTimestampMs = 0,
+        kStatsFramesPerSecond,
+        kStatsBandwidthAvailableKbps,
+        kStatsBandwidthUtilizationKbps,
+        kStatsRoundTripDelayMs,
+        kStatsPacketsReceived,
+        kStatsPacketsLost,
+        kStatsQuality,
+        kStatsQualityReasons,
+        kStatsSlotCount
+    };
+
 // HelloArApplication handles all application logics.
     class HelloArApplication {
     public:
@@ -79,6 +141,11 @@ namespace hello_ar {
         // OnPause is called on the UI thread from the Activity's onPause method.
         void OnPause();
 
+        // PrepareSession is called on the UI thread ahead of the first OnResume, while the user is
+        // still choosing a server. It checks the ARCore install and creates and configures the
+        // session without resuming it. Returns false while ARCore is being installed.
+        bool PrepareSession(void *env, void *context, void *activity);
+
         // OnResume is called on the UI thread from the Activity's onResume method.
         void OnResume(void *env, void *context, void *activity);
 
@@ -98,15 +165,65 @@ namespace hello_ar {
         // @return int: error status.
         int OnDrawFrame();
 
+        // Reconnect is called on the OpenGL thread to tear down the CloudXR
+        // connection and connect again, keeping the ARCore session and the base
+        // frame. Until the base frame is calibrated the connection is left to
+        // OnDrawFrame.
+        // @return int: error status, 0 if connected or deferred.
+        int Reconnect();
+
+        // IsSessionRecoverable returns false once an error was reported that
+        // Reconnect cannot fix; OnDrawFrame renders nothing from then on.
+        bool IsSessionRecoverable() const {
+            return !exiting_;
+        }
+
         // OnDrawFrame is called to get camera's yuv data.
         std::vector<uint8_t> getCameraFrame();
 
+        // FillCameraFrame copies the current camera image into |dst| as a
+        // CameraFrameHeader followed by the Y, U and V planes. A |downscale|
+        // above 1 decimates the image by that factor into packed planar YUV.
+        // @return int32_t: bytes written, 0 if no image is available, or the
+        // negated required size if |capacity| is too small.
+        int32_t FillCameraFrame(uint8_t *dst, int64_t capacity, int32_t downscale);
+
+        // AcquireCameraImage is called on the OpenGL thread to take the current
+        // camera image. The image stays valid until ReleaseCameraImage, so the
+        // copy can run on another thread with CopyCameraImage.
+        ArImage *AcquireCameraImage();
+
+        void ReleaseCameraImage(ArImage *image);
+
+        // CopyCameraImage copies an acquired image like FillCameraFrame does.
+        int32_t CopyCameraImage(ArImage *image, uint8_t *dst, int64_t capacity,
+                                int32_t downscale);
+
+        // GetConnectionStats copies the latest CloudXR connection stats into
+        // |dst| (see ConnectionStatsSlot). Safe to call from any thread.
+        // @return int64_t: sequence number of the sample, 0 if none is available
+        // or |length| is below kStatsSlotCount.
+        int64_t GetConnectionStats(double *dst, int32_t length);
+
+        // SetConnectionStatsInterval sets how often the OpenGL thread samples
+        // the connection stats while streaming.
+        void SetConnectionStatsInterval(int32_t interval_ms);
+
         // OnTouched is called on the OpenGL thread after the user touches the screen.
         // @param x: x position on the screen (pixels).
         // @param y: y position on the screen (pixels).
         // @param longPress: a long press occured.
         void OnTouched(float x, float y, bool longPress);
 
+        // Actions of a TouchSample.
+        static constexpr int32_t kTouchTap = 0;
+        static constexpr int32_t kTouchLongPress = 1;
+
+        // OnTouchBatch is called on the OpenGL thread before OnDrawFrame with
+        // the touches since the previous frame, oldest first. They are handled
+        // before ARCore moves on, against the frame that was on screen.
+        void OnTouchBatch(const TouchSample *touches, int32_t count);
+
         // Returns true if any planes have been detected.  Used for hiding the
         // "searching for planes" snackbar.
         bool HasDetectedPlanes() const {
@@ -117,11 +234,29 @@ namespace hello_ar {
             return anchor_ && base_frame_calibrated_;
         }
 
-//        std::vector<float> GetHeadPose();
+        // Bits of the tracking state returned by PollTrackingState.
+        static constexpr int32_t kTrackingPlanes = 1;
+        static constexpr int32_t kTrackingCloudXrAnchor = 2;
+        static constexpr int32_t kTrackingCamera = 4;
+
+        // PollTrackingState returns the tracking state bits if they changed
+        // since the previous poll, or -1 if not. OnDrawFrame updates them, so
+        // callers can check once per frame instead of polling each source.
+        int32_t PollTrackingState();
+
+        // SetPoseRing is called on the OpenGL thread to start writing head
+        // poses into |ring| (|capacity| bytes), or to stop with nullptr.
+        void SetPoseRing(uint8_t *ring, int64_t capacity);
 
     private:
+        int DrawFrame();
+
         void UpdateImageAnchors();
 
+        void PublishTrackingState();
+
+        void WritePoseSample();
+
         static bool exiting_;
 
         ArSession *ar_session_ = nullptr;
@@ -140,6 +275,10 @@ namespace hello_ar {
         std::unordered_map<int32_t, std::pair<ArAugmentedImage *, ArAnchor *>>
                 augmented_image_map;
 
+        // Set when the CloudXR connection failed or was lost; OnDrawFrame keeps
+        // rendering the camera but does not connect again until Reconnect.
+        std::atomic<bool> connect_suspended_{false};
+
         bool using_dynamic_base_frame_ = true;
         bool base_frame_calibrated_ = false;
         glm::mat4 base_frame_;
@@ -150,6 +289,20 @@ namespace hello_ar {
         PlaneRenderer plane_renderer_;
 
         int32_t plane_count_ = 0;
+        bool camera_tracking_ = false;
+
+        std::atomic<int32_t> tracking_state_{0};
+        // Starts set so the first poll reports the initial state.
+        std::atomic<bool> tracking_state_changed_{true};
+
+        // CLOCK_BOOTTIME when OnDrawFrame last returned, roughly when ar_frame_
+        // went on screen. OpenGL thread only.
+        int64_t frame_presented_ns_ = 0;
+        int64_t late_touches_ = 0;
+
+        // Only touched on the OpenGL thread, see SetPoseRing.
+        PoseRingHeader *pose_ring_ = nullptr;
+        PoseSample *pose_samples_ = nullptr;
 
         // CloudXR client interface class
         class CloudXRClient;
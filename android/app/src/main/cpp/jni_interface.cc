@@ -121,6 +121,13 @@ JNI_METHOD(jstring, getServerIp)
   return env->NewStringUTF(ip.c_str());
 }
 
+JNI_METHOD(jboolean, prepareSession)
+(JNIEnv *env, jclass, jlong native_application, jobject context,
+ jobject activity) {
+  return native(native_application)->PrepareSession(env, context, activity) ? JNI_TRUE
+                                                                            : JNI_FALSE;
+}
+
 JNI_METHOD(void, onResume)
 (JNIEnv *env, jclass, jlong native_application, jobject context,
  jobject activity) {
@@ -144,6 +151,17 @@ JNI_METHOD(jint, onGlSurfaceDrawFrame)
     return static_cast<jint>(native(native_application)->OnDrawFrame());
 }
 
+JNI_METHOD(jint, reconnect)
+(JNIEnv *, jclass, jlong native_application) {
+    return static_cast<jint>(native(native_application)->Reconnect());
+}
+
+JNI_METHOD(jboolean, isSessionRecoverable)
+(JNIEnv *, jclass, jlong native_application) {
+    return static_cast<jboolean>(
+            native(native_application)->IsSessionRecoverable() ? JNI_TRUE : JNI_FALSE);
+}
+
 JNI_METHOD(jbyteArray, getCameraFrame)
 (JNIEnv *env, jclass, jlong native_application) {
     std::vector<uint8_t> pixels = native(native_application)->getCameraFrame();
@@ -152,10 +170,66 @@ JNI_METHOD(jbyteArray, getCameraFrame)
     return arr;
 }
 
-JNI_METHOD(void, onTouched)
-(JNIEnv *, jclass, jlong native_application, jfloat x, jfloat y,
-    jboolean longPress) {
-  native(native_application)->OnTouched(x, y, longPress);
+JNI_METHOD(jint, fillCameraFrame)
+(JNIEnv *env, jclass, jlong native_application, jobject buffer, jint downscale) {
+    auto *dst = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer));
+    const jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (dst == nullptr || capacity <= 0) {
+        return 0;
+    }
+    return native(native_application)->FillCameraFrame(dst, capacity, downscale);
+}
+
+JNI_METHOD(jlong, acquireCameraImage)
+(JNIEnv *, jclass, jlong native_application) {
+    return reinterpret_cast<intptr_t>(native(native_application)->AcquireCameraImage());
+}
+
+JNI_METHOD(jint, copyCameraImage)
+(JNIEnv *env, jclass, jlong native_application, jlong image, jobject buffer, jint downscale) {
+    auto *dst = static_cast<uint8_t *>(env->GetDirectBufferAddress(buffer));
+    const jlong capacity = env->GetDirectBufferCapacity(buffer);
+    if (dst == nullptr || capacity <= 0) {
+        return 0;
+    }
+    return native(native_application)->CopyCameraImage(
+            reinterpret_cast<ArImage *>(image), dst, capacity, downscale);
+}
+
+JNI_METHOD(void, releaseCameraImage)
+(JNIEnv *, jclass, jlong native_application, jlong image) {
+    native(native_application)->ReleaseCameraImage(reinterpret_cast<ArImage *>(image));
+}
+
+JNI_METHOD(jlong, getConnectionStats)
+(JNIEnv *env, jclass, jlong native_application, jdoubleArray stats) {
+    const jsize length = env->GetArrayLength(stats);
+    auto *dst = static_cast<jdouble *>(env->GetPrimitiveArrayCritical(stats, nullptr));
+    if (dst == nullptr) {
+        return 0;
+    }
+    const int64_t sequence = native(native_application)->GetConnectionStats(dst, length);
+    // Only write back when a sample was copied.
+    env->ReleasePrimitiveArrayCritical(stats, dst, sequence > 0 ? 0 : JNI_ABORT);
+    return sequence;
+}
+
+JNI_METHOD(void, setConnectionStatsInterval)
+(JNIEnv *, jclass, jlong native_application, jint interval_ms) {
+    native(native_application)->SetConnectionStatsInterval(interval_ms);
+}
+
+JNI_METHOD(void, onTouchBatch)
+(JNIEnv *env, jclass, jlong native_application, jobject batch, jint count) {
+    const auto *touches =
+            static_cast<const hello_ar::TouchSample *>(env->GetDirectBufferAddress(batch));
+    if (touches == nullptr || count <= 0) {
+        return;
+    }
+    const jlong capacity =
+            env->GetDirectBufferCapacity(batch) / static_cast<jlong>(sizeof(hello_ar::TouchSample));
+    native(native_application)->OnTouchBatch(
+            touches, static_cast<int32_t>(count < capacity ? count : capacity));
 }
 
 JNI_METHOD(jboolean, hasDetectedPlanes)
@@ -170,24 +244,31 @@ JNI_METHOD(jboolean, hasCloudXrAnchor)
             native(native_application)->HasCloudXrAnchor() ? JNI_TRUE : JNI_FALSE);
 }
 
-//JNI_METHOD(jobject, getHeadPose)
-//(JNIEnv *env, jclass, jlong native_application) {
-//    jclass vectorClass = env->FindClass("java/util/Vector");
-//    jclass floatClass = env->FindClass("java/lang/Float");
-//
-//    jmethodID mid = env->GetMethodID(vectorClass, "<init>", "()V");
-//    jobject vector = env->NewObject(vectorClass, mid);
-//    jmethodID addMethodID = env->GetMethodID(vectorClass, "add", "(Ljava/lang/Object;)Z");
-//
-//    std::vector<float> vec = native(native_application)->GetHeadPose();
-//    for(float f : vec) {
-//        jmethodID floatConstructorID = env->GetMethodID(floatClass, "<init>", "(F)V");
-//        // Now, we have object created by Float(f)
-//        jobject floatValue = env->NewObject(floatClass, floatConstructorID, f);
-//        env->CallBooleanMethod(vector, addMethodID, floatValue);
-//    }
-//    return vector;
-//}
+JNI_METHOD(jint, pollTrackingState)
+(JNIEnv *, jclass, jlong native_application) {
+    return native(native_application)->PollTrackingState();
+}
+
+JNI_METHOD(void, setPoseRing)
+(JNIEnv *env, jclass, jlong native_application, jobject ring) {
+    if (ring == nullptr) {
+        native(native_application)->SetPoseRing(nullptr, 0);
+        return;
+    }
+    native(native_application)->SetPoseRing(
+            static_cast<uint8_t *>(env->GetDirectBufferAddress(ring)),
+            env->GetDirectBufferCapacity(ring));
+}
+
+JNI_METHOD(jlong, getPoseWriteCount)
+(JNIEnv *env, jclass, jobject ring) {
+    auto *header = static_cast<hello_ar::PoseRingHeader *>(env->GetDirectBufferAddress(ring));
+    if (header == nullptr) {
+        return 0;
+    }
+    // Pairs with the release store in WritePoseSample.
+    return __atomic_load_n(&header->write_count, __ATOMIC_ACQUIRE);
+}
 
 JNIEnv *GetJniEnv() {
   JNIEnv *env;
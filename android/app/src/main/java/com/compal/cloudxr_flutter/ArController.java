@@ -1,27 +1,46 @@
 package com.compal.cloudxr_flutter;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.hardware.display.DisplayManager;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.view.Choreographer;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 
 import com.google.android.material.snackbar.Snackbar;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.Executors;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
 import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodChannel;
 
@@ -33,71 +52,305 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
     private WeakReference<Activity> view;
     private GLSurfaceView surfaceView;
 
-    private static final int SNACKBAR_UPDATE_INTERVAL_MILLIS = 1000; // In milliseconds.
-
     private static final String MESSAGES_CHANNEL = "com.compal.cloudxr/messages";
     private static final String EVENTS_CHANNEL = "com.compal.cloudxr/events";
+    private static final String CAMERA_FRAMES_CHANNEL = "com.compal.cloudxr/camera_frames";
+    private static final String TRACES_DIRECTORY = "traces";
+    private static final String TELEMETRY_DIRECTORY = "telemetry";
+    // Read by native code in handleLaunchOptions before the intent args.
+    private static final String LAUNCH_OPTIONS_FILE = "/sdcard/CloudXRLaunchOptions.txt";
 
     private String cmdlineFromIntent = "";
 
-    private boolean wasResumed = false;
-    private boolean viewportChanged = false;
-    private boolean lastCloudXrStatus = false;
-    private int viewportWidth;
-    private int viewportHeight;
-
     private MethodChannel methodChannel;
+    private ControlChannel controlChannel;
     private EventChannel eventChannel;
-    private EventChannel.EventSink eventSink;
+    private BasicMessageChannel<ByteBuffer> cameraFramesChannel;
 
-    // Opaque native pointer to the native application instance.
-    private long nativeApplication;
+    private final NativeBridge bridge = new JniNativeBridge();
+    // Opaque native pointer to the native application instance, with its lifecycle state.
+    private NativeHandle nativeHandle;
+    // Everything done on the GL thread.
+    private FrameLoop frameLoop;
 
     private Snackbar loadingMessageSnackbar;
-    private Handler planeStatusCheckingHandler;
 
-    public ArController(ArModel model, Activity view) {
-        this.model = model;
-        this.view = new WeakReference<>(view);
-    }
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Delayed tasks on the main thread, shared by SessionRecovery and the like.
+    private final Scheduler mainScheduler = new HandlerScheduler(mainHandler);
+    private final CameraFrameExporter cameraFrameExporter =
+            new CameraFrameExporter(bridge, mainHandler::post);
+    // Everything sent on the events channel goes through here, batched once per vsync.
+    private final EventBus eventBus =
+            new EventBus(new ChoreographerScheduler(), this::deliverEvents);
+    private EventChannel.EventSink eventSink;
+    // Draws only as often as there is something new to show.
+    private final RenderScheduler renderScheduler = new RenderScheduler(
+            new RenderScheduler.Surface() {
+                @Override
+                public void setContinuous(boolean continuous) {
+                    surfaceView.setRenderMode(continuous ? GLSurfaceView.RENDERMODE_CONTINUOUSLY
+                            : GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+                }
 
-    private final Runnable planeStatusCheckingRunnable =
-            new Runnable() {
                 @Override
-                public void run() {
-                    // The runnable is executed on main UI thread.
-                    try {
-                        if (JniInterface.hasDetectedPlanes(nativeApplication)) {
-                            if (loadingMessageSnackbar != null) {
-                                loadingMessageSnackbar.dismiss();
-                            }
-                            loadingMessageSnackbar = null;
-                        } else {
-                            planeStatusCheckingHandler.postDelayed(
-                                    planeStatusCheckingRunnable, SNACKBAR_UPDATE_INTERVAL_MILLIS);
+                public void requestRender() {
+                    surfaceView.requestRender();
+                }
+            },
+            new RenderScheduler.Vsync() {
+                @Override
+                public void postFrameCallback() {
+                    Choreographer.getInstance().postFrameCallback(vsyncCallback);
+                }
+
+                @Override
+                public void removeFrameCallback() {
+                    Choreographer.getInstance().removeFrameCallback(vsyncCallback);
+                }
+            },
+            (mode, frameRate) -> surfaceView.queueEvent(() -> frameLoop.setFrameRate(
+                    mode == RenderScheduler.MODE_PACED ? frameRate : 0)));
+    private final Choreographer.FrameCallback vsyncCallback = renderScheduler::onVsync;
+    // Whether the CloudXR anchor is up and the stream showing, main thread only.
+    private boolean streaming = false;
+    // Lowers the stream quality while the device is hot, the battery low or the connection poor.
+    private final QualityGovernor qualityGovernor = new QualityGovernor(mainScheduler,
+            new QualityGovernor.Host() {
+                @Override
+                public void apply(QualityGovernor.Level level) {
+                    renderScheduler.setMaxFrameRate(level.frameRate);
+                    String args = level.toArgs();
+                    // A running stream only picks the settings up when it connects again.
+                    boolean reconnect = streaming
+                            && sessionRecovery.getState() == SessionRecovery.STATE_CONNECTED;
+                    surfaceView.queueEvent(() -> {
+                        frameLoop.setArgs(args);
+                        if (!reconnect) {
+                            return;
                         }
-                    } catch (Exception e) {
-                        LogUtils.e(TAG, e.getMessage());
-                    }
+                        int status = frameLoop.reconnect();
+                        if (status != 0) {
+                            boolean recoverable = frameLoop.isSessionRecoverable();
+                            mainHandler.post(
+                                    () -> sessionRecovery.onFrameError(status, recoverable));
+                        }
+                    });
+                }
+            },
+            eventBus);
+    // Null below API 29.
+    private ThermalWatch thermalWatch;
+    private final BroadcastReceiver batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBatteryChanged(intent);
+        }
+    };
+    private final ConnectionStatsMonitor connectionStatsMonitor = new ConnectionStatsMonitor(
+            bridge,
+            aggregates -> {
+                Object fps = aggregates.get("fps");
+                renderScheduler.setStreamFrameRate(
+                        fps instanceof Number ? ((Number) fps).doubleValue() : 0);
+                Object reasons = aggregates.get("quality_reasons");
+                qualityGovernor.onQualityReasons(
+                        reasons instanceof Number ? ((Number) reasons).intValue() : 0);
+                eventBus.postState(EventBus.STATE_CONNECTION_STATS, aggregates);
+            });
+    // Reconnects after frame errors instead of restarting the activity.
+    private final SessionRecovery sessionRecovery = new SessionRecovery(mainScheduler,
+            new SessionRecovery.Host() {
+                @Override
+                public void reconnect() {
+                    surfaceView.queueEvent(() -> {
+                        int status = frameLoop.reconnect();
+                        boolean recoverable = frameLoop.isSessionRecoverable();
+                        mainHandler.post(() -> {
+                            if (status == 0 || !fallBackToNextEdge(status, recoverable)) {
+                                sessionRecovery.onReconnectResult(status, recoverable);
+                            }
+                        });
+                    });
+                }
+
+                @Override
+                public void onUnrecoverable(int status) {
+                    Toast.makeText(view.get().getApplicationContext(), "CloudXR ARCore Client: Error [" + status + "], see logs for detail.  Exiting.", Toast.LENGTH_LONG).show();
+                    triggerRebirth();
+                }
+            },
+            eventBus);
+    // Creates the native application off the main thread and probes the last server.
+    private final SessionWarmup sessionWarmup =
+            new SessionWarmup(bridge, EdgeSelector.TCP_PROBER, eventBus);
+    // Set while the warm-up has not created the native application yet, main thread only.
+    private boolean launchCheckPending = false;
+    private boolean resumePending = false;
+    // When the last connect started, until the stream shows; 0 otherwise.
+    private long connectStartNanos = 0;
+    // Ranks candidate edge servers by round trip time, see connectBest.
+    private final EdgeSelector edgeSelector = new EdgeSelector(EdgeSelector.TCP_PROBER, eventBus);
+    // Main thread only: the server passed to native code on resume, empty to keep the launch
+    // options'; the ranking to fall back along until it streams; bumped on every connect, so a
+    // selection finishing late is dropped.
+    private String server = "";
+    private EdgeSelector.Selection edgeSelection;
+    private int connectGeneration = 0;
+    private boolean webRtcFollowsEdge = false;
+    // Moves the running session to another edge server, see switchServer.
+    private final ServerSwitcher serverSwitcher = new ServerSwitcher(mainScheduler,
+            new ServerSwitcher.Host() {
+                @Override
+                public boolean isSessionRunning() {
+                    return nativeHandle.isResumed();
+                }
+
+                @Override
+                public void preconnect(String server) {
+                    // Resolves the name and opens TCP connections while the old stream goes on.
+                    new Thread(() -> {
+                        boolean reachable = edgeSelector.probeNow(server);
+                        mainHandler.post(() -> serverSwitcher.onPreconnected(server, reachable));
+                    }, "ServerSwitch").start();
+                }
+
+                @Override
+                public void switchTo(String server) {
+                    String args = "-s " + EdgeSelector.hostOf(server);
+                    surfaceView.queueEvent(() -> {
+                        frameLoop.setArgs(args);
+                        long start = SystemClock.elapsedRealtimeNanos();
+                        int status = frameLoop.reconnect();
+                        long gapMs = (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000;
+                        boolean recoverable = frameLoop.isSessionRecoverable();
+                        mainHandler.post(
+                                () -> serverSwitcher.onSwitchResult(status, recoverable, gapMs));
+                    });
+                }
+
+                @Override
+                public void onSwitched(String switched) {
+                    server = EdgeSelector.hostOf(switched);
+                    ProfileStore.Profile profile = model.getProfile();
+                    model.setParams(switched, profile.anchor,
+                            webRtcFollowsEdge ? server : profile.webRtcIp, profile.roomId, false,
+                            profile.mediaPipe);
                 }
-            };
+
+                @Override
+                public void onFailed(int status, boolean recoverable) {
+                    // Left on the previous server's settings; recovery takes it from here.
+                    sessionRecovery.onFrameError(status, recoverable);
+                }
+            },
+            eventBus);
+    // Spools the events for upload while nothing streams, created in onCreate.
+    private TelemetrySpool telemetrySpool;
+    private final PoseStreamer poseStreamer = new PoseStreamer(bridge,
+            (timestamps, poses, count) -> {
+                if (null != controlChannel) {
+                    controlChannel.sendPoses(timestamps, poses, count);
+                }
+            });
+
+    public ArController(ArModel model, Activity view) {
+        this.model = model;
+        this.view = new WeakReference<>(view);
+    }
 
     public void onCreate() {
+        LogUtils.setLevel(BuildConfig.DEBUG ? LogUtils.VERBOSE : LogUtils.INFO);
+        LogUtils.openLogFile(new File(view.get().getFilesDir(), "logs"));
+
         surfaceView = new GLSurfaceView(view.get());
         // Set up renderer.
         surfaceView.setPreserveEGLContextOnPause(true);
         surfaceView.setEGLContextClientVersion(3);
         surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
         surfaceView.setRenderer(this);
-        surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
         surfaceView.setWillNotDraw(false);
+        // Draws on demand until a session starts.
+        renderScheduler.setDisplayRefreshRate(
+                view.get().getWindowManager().getDefaultDisplay().getRefreshRate());
+        renderScheduler.setActive(false);
+
+        telemetrySpool = new TelemetrySpool(
+                new File(view.get().getFilesDir(), TELEMETRY_DIRECTORY), mainScheduler,
+                // Nothing streams nor is being recovered, and Dart is there to upload.
+                () -> !streaming
+                        && sessionRecovery.getState() == SessionRecovery.STATE_CONNECTED
+                        && controlChannel != null && controlChannel.isOpen(),
+                // Dart reads the batch file and posts it, see lib/telemetry.dart.
+                batch -> eventBus.post(batch.toEvent()),
+                Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "TelemetryWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                }));
+        telemetrySpool.setStreaming(false);
 
         // check for any data passed to our activity that we want to handle
         cmdlineFromIntent = view.get().getIntent().getStringExtra("args");
 
-        JniInterface.assetManager = view.get().getAssets();
-        nativeApplication = JniInterface.createNativeApplication(view.get().getAssets());
-        planeStatusCheckingHandler = new Handler();
+        // Loading the native libraries and creating the native application take a while, the
+        // warm-up does it while Flutter shows its first pages. Until then acquire returns 0.
+        nativeHandle = new NativeHandle(bridge, cameraFrameExporter::shutdown);
+        frameLoop = new FrameLoop(bridge, nativeHandle, eventBus, cameraFrameExporter,
+                frameLoopHost);
+        sessionWarmup.start(view.get().getAssets(), model.getCloudIpAddr(), nativeApplication ->
+                mainHandler.post(() -> onNativeApplication(nativeApplication)));
+        // Probe the edge servers picked from last time, so picking again is a cache hit.
+        List<String> candidates = model.getServerCandidates();
+        if (candidates.size() > 1) {
+            new Thread(() -> edgeSelector.rank(candidates), "EdgeSelect").start();
+        }
+
+        // Thermal status needs API 29, below that only the battery is watched.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalWatch = new ThermalWatch(view.get().getSystemService(PowerManager.class),
+                    qualityGovernor);
+        }
+        // The battery broadcast is sticky, registering returns the current state.
+        Intent battery = view.get().registerReceiver(batteryReceiver,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            onBatteryChanged(battery);
+        }
+    }
+
+    private void onNativeApplication(long nativeApplication) {
+        if (!nativeHandle.attach(nativeApplication)) {
+            if (nativeApplication == 0) {
+                Toast.makeText(view.get().getApplicationContext(),
+                        "CloudXR ARCore Client: native library failed to load, see logs for "
+                                + "detail.  Exiting.", Toast.LENGTH_LONG).show();
+                view.get().finish();
+            }
+            return;
+        }
+        // Sets up the GL content, the surface was most likely created before.
+        surfaceView.requestRender();
+        if (launchCheckPending) {
+            launchCheckPending = false;
+            checkLaunchOptions();
+        }
+        if (resumePending) {
+            resumePending = false;
+            if (!nativeHandle.isResumed()) {
+                doResume();
+            }
+        }
+    }
+
+    private void onBatteryChanged(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level < 0 || scale <= 0) {
+            return;
+        }
+        qualityGovernor.setBattery(level * 100 / scale,
+                intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0);
     }
 
     public void onResume() {
@@ -114,19 +367,317 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
 
     public void onPause() {
         LogUtils.v(TAG, "onPause");
-        if (wasResumed) {
+        if (nativeHandle.markPaused()) {
             doPause();
-            wasResumed = false;
         }
+        telemetrySpool.flush();
+        LogUtils.flush();
     }
 
     public void onDestroy() {
-        // Synchronized to avoid racing onDrawFrame.
-        synchronized (this) {
-            JniInterface.destroyNativeApplication(nativeApplication);
-            nativeApplication = 0;
-            wasResumed = false;
+        commands.stopTrace();
+        launchCheckPending = false;
+        resumePending = false;
+        renderScheduler.setActive(false);
+        sessionRecovery.reset();
+        serverSwitcher.reset();
+        qualityGovernor.stop();
+        connectGeneration++;
+        edgeSelector.shutdown();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && thermalWatch != null) {
+            thermalWatch.stop();
         }
+        view.get().unregisterReceiver(batteryReceiver);
+        connectionStatsMonitor.stop();
+        poseStreamer.stop();
+        telemetrySpool.close();
+        // Never blocks: if a frame is in flight the GL thread deletes the native application when
+        // it is done with it.
+        nativeHandle.destroy();
+    }
+
+    // Shared by the binary control channel and the legacy method channel, main thread only.
+    private final ControlProtocol.Commands commands = new ControlProtocol.Commands() {
+        @Override
+        public void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                            boolean hostCloudAnchor, boolean mediaPipe) {
+            LogUtils.d(TAG, "edge ip = {}", cloudIp);
+            connectGeneration++;
+            serverSwitcher.reset();
+            edgeSelection = null;
+            connectTo(cloudIp, anchorId, webRtcIp, roomId, hostCloudAnchor, mediaPipe);
+        }
+
+        @Override
+        public void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                                String roomId, boolean hostCloudAnchor, boolean mediaPipe) {
+            if (candidates.isEmpty()) {
+                LogUtils.w(TAG, "No edge servers to pick from");
+                return;
+            }
+            LogUtils.d(TAG, "Picking from {} edge servers", candidates.size());
+            model.setServerCandidates(candidates);
+            int generation = ++connectGeneration;
+            serverSwitcher.reset();
+            edgeSelection = null;
+            new Thread(() -> {
+                EdgeSelector.Selection selection = edgeSelector.select(candidates);
+                mainHandler.post(() -> {
+                    if (generation != connectGeneration) {
+                        return;
+                    }
+                    String best = selection.getServer();
+                    if (best == null) {
+                        // Probes may be filtered on the way, try the first server anyway.
+                        best = candidates.get(0);
+                        LogUtils.w(TAG, "No edge server answered, trying {}", best);
+                    } else {
+                        edgeSelection = selection;
+                    }
+                    webRtcFollowsEdge = webRtcIp.isEmpty();
+                    connectTo(best, anchorId,
+                            webRtcFollowsEdge ? EdgeSelector.hostOf(best) : webRtcIp, roomId,
+                            hostCloudAnchor, mediaPipe);
+                });
+            }, "EdgeSelect").start();
+        }
+
+        @Override
+        public void disconnect() {
+            connectGeneration++;
+            edgeSelection = null;
+            // Paused as by onPause, so a switch asked for afterwards connects instead of
+            // reconnecting the session torn down here.
+            if (nativeHandle.markPaused()) {
+                doPause();
+            }
+        }
+
+        @Override
+        public void stop() {
+            surfaceView.postDelayed(() -> frameLoop.postTouch(0, 0, TouchQueue.ACTION_LONG_PRESS,
+                    SystemClock.elapsedRealtimeNanos()), 200);
+        }
+
+        @Override
+        public void startConnectionStats(int intervalMs, int windowSize) {
+            connectionStatsMonitor.start(nativeHandle, intervalMs, windowSize);
+        }
+
+        @Override
+        public void stopConnectionStats() {
+            connectionStatsMonitor.stop();
+        }
+
+        @Override
+        public void subscribeCameraFrames(int maxFps, int downscale, int queueDepth,
+                                          int format) {
+            cameraFrameExporter.subscribe(maxFps, downscale, queueDepth, format);
+        }
+
+        @Override
+        public void unsubscribeCameraFrames() {
+            cameraFrameExporter.unsubscribe();
+        }
+
+        @Override
+        public void startPoseStream(int rateHz, boolean batch) {
+            poseStreamer.start(nativeHandle, surfaceView, rateHz, batch);
+        }
+
+        @Override
+        public void stopPoseStream() {
+            poseStreamer.stop();
+        }
+
+        @Override
+        public void setLogLevel(int level) {
+            LogUtils.setLevel(level);
+        }
+
+        @Override
+        public void setTargetFrameRate(int frameRate) {
+            renderScheduler.setTargetFrameRate(frameRate);
+        }
+
+        @Override
+        public void startTrace(int capacityKb) {
+            stopRecording();
+            File file = new File(new File(view.get().getFilesDir(), TRACES_DIRECTORY),
+                    "session-" + System.currentTimeMillis() + TraceRecorder.FILE_SUFFIX);
+            try {
+                traceRecorder = new TraceRecorder(file, capacityKb * 1024);
+            } catch (IOException e) {
+                LogUtils.e(TAG, "Cannot record trace", e);
+                return;
+            }
+            LogUtils.i(TAG, "Recording trace to {}", file);
+            tracingCommands.setRecorder(traceRecorder);
+            frameLoop.setTraceRecorder(traceRecorder);
+        }
+
+        @Override
+        public void stopTrace() {
+            stopRecording();
+            if (traceReplayer != null) {
+                traceReplayer.cancel();
+                traceReplayer = null;
+            }
+        }
+
+        @Override
+        public void replayTrace(String name, int speedPercent) {
+            if (traceReplayer != null) {
+                traceReplayer.cancel();
+                traceReplayer = null;
+            }
+            File file = findTrace(name);
+            if (file == null) {
+                LogUtils.w(TAG, "No trace named {}", name);
+                return;
+            }
+            TraceReplayer replayer;
+            try {
+                replayer = new TraceReplayer(file);
+            } catch (IOException e) {
+                LogUtils.e(TAG, "Cannot replay trace", e);
+                return;
+            }
+            traceReplayer = replayer;
+            LogUtils.i(TAG, "Replaying {} at {}%", file, speedPercent);
+            new Thread(() -> {
+                long records = replayer.replay(replayTarget, speedPercent / 100.0);
+                LogUtils.i(TAG, "Replayed {} records", records);
+                try {
+                    replayer.close();
+                } catch (IOException e) {
+                    LogUtils.w(TAG, "Closing trace failed", e);
+                }
+            }, "TraceReplay").start();
+        }
+
+        @Override
+        public void telemetryUploaded(String name, boolean ok) {
+            telemetrySpool.onUploaded(name, ok);
+        }
+
+        @Override
+        public void switchServer(String target) {
+            ProfileStore.Profile profile = model.getProfile();
+            if (serverSwitcher.switchServer(profile.cloudIp, target)) {
+                // No edge selection to fall back along, and no pending reconnect to the old
+                // server.
+                connectGeneration++;
+                edgeSelection = null;
+                sessionRecovery.reset();
+                return;
+            }
+            // Nothing to keep alive, connect as usual.
+            connect(target, profile.anchor,
+                    webRtcFollowsEdge ? EdgeSelector.hostOf(target) : profile.webRtcIp,
+                    profile.roomId, false, profile.mediaPipe);
+        }
+
+        @Override
+        public void listProfiles() {
+            eventBus.post(ProfileStore.toEvent(model.getProfiles()));
+        }
+
+        @Override
+        public void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                                String roomId, boolean mediaPipe) {
+            model.saveProfile(new ProfileStore.Profile(name, cloudIp, anchorId, webRtcIp, roomId,
+                    mediaPipe));
+            listProfiles();
+        }
+
+        @Override
+        public void useProfile(String name) {
+            if (model.useProfile(name) == null) {
+                LogUtils.w(TAG, "No profile {}", name);
+            }
+            listProfiles();
+        }
+
+        @Override
+        public void removeProfile(String name) {
+            model.removeProfile(name);
+            listProfiles();
+        }
+    };
+
+    // What the channels dispatch to, records commands while a trace is being recorded.
+    private final TracingCommands tracingCommands = new TracingCommands(commands);
+
+    // Main thread only.
+    private TraceRecorder traceRecorder;
+    private TraceReplayer traceReplayer;
+
+    // Feeds a trace back into this session from the replay thread. Geometry follows the real
+    // surface, and tracking and frame statuses are what the session reports, not inputs.
+    private final TraceReplayer.Target replayTarget = new TraceReplayer.Target() {
+        @Override
+        public void onGeometry(int rotation, int width, int height) {
+            LogUtils.d(TAG, "Recorded geometry {}x{}", width, height);
+        }
+
+        @Override
+        public void onTouch(float x, float y, int action) {
+            mainHandler.post(() -> frameLoop.postTouch(x, y, action,
+                    SystemClock.elapsedRealtimeNanos()));
+        }
+
+        @Override
+        public void onCommand(ByteBuffer message) {
+            ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+            copy.put(message);
+            copy.flip();
+            mainHandler.post(() -> ControlProtocol.dispatch(copy, commands));
+        }
+
+        @Override
+        public void onTracking(int state) {
+        }
+
+        @Override
+        public void onFrame(int status) {
+        }
+    };
+
+    private void stopRecording() {
+        if (traceRecorder == null) {
+            return;
+        }
+        tracingCommands.setRecorder(null);
+        frameLoop.setTraceRecorder(null);
+        try {
+            traceRecorder.close();
+            LogUtils.i(TAG, "Recorded {} records, dropped {}", traceRecorder.getRecords(),
+                    traceRecorder.getDropped());
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Closing trace failed", e);
+        }
+        traceRecorder = null;
+    }
+
+    // The trace with that name, or the latest one if name is empty.
+    private File findTrace(String name) {
+        File directory = new File(view.get().getFilesDir(), TRACES_DIRECTORY);
+        if (!name.isEmpty()) {
+            File file = new File(directory, name);
+            return file.isFile() ? file : null;
+        }
+        File latest = null;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(TraceRecorder.FILE_SUFFIX)
+                        && (latest == null || file.lastModified() > latest.lastModified())) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
     }
 
     public void configureFlutterEngine(@NonNull FlutterEngine flutterEngine) {
@@ -137,25 +688,19 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
         methodChannel.setMethodCallHandler(
                 (call, result) -> {
                     // Note: this method is invoked on the main thread.
-                    if (call.method.equals("stop_cloudxr")) {
-                        result.success("1");
-                        surfaceView.postDelayed(() ->
-                                JniInterface.onTouched(nativeApplication, 0, 0, true), 200);
-                    } else if (call.method.equals("disconnect_to_cloudxr")) {
-                        result.success("1");
-                        surfaceView.onPause();
-                        JniInterface.onPause(nativeApplication);
-                    } else if (call.method.contains("connect_to_cloudxr")) {
+                    // Kept for older Dart code; new commands go through controlChannel.
+                    if (ControlProtocol.dispatchMethodCall(call.method, call::argument,
+                            tracingCommands)) {
                         result.success("1");
-                        String ip = call.method.replaceAll("connect_to_cloudxr", "");
-                        LogUtils.d(TAG, "edge ip = " + ip);
-                        model.setParams(ip, "", ip, "", false, false);
-                        doResume();
                     } else {
                         result.notImplemented();
                     }
                 }
         );
+        if (null == controlChannel) {
+            controlChannel = new ControlChannel(
+                    flutterEngine.getDartExecutor().getBinaryMessenger(), tracingCommands);
+        }
         if (null == eventChannel) {
             eventChannel = new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger()
                     , EVENTS_CHANNEL);
@@ -171,6 +716,26 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
                 eventSink = null;
             }
         });
+        if (null == cameraFramesChannel) {
+            cameraFramesChannel = new BasicMessageChannel<>(
+                    flutterEngine.getDartExecutor().getBinaryMessenger(), CAMERA_FRAMES_CHANNEL,
+                    BinaryCodec.INSTANCE_DIRECT);
+        }
+        BasicMessageChannel<ByteBuffer> frames = cameraFramesChannel;
+        cameraFrameExporter.setChannel(
+                (frame, onDelivered) -> frames.send(frame, reply -> onDelivered.run()));
+    }
+
+    // Runs on the main thread once per vsync with everything posted to the EventBus.
+    private void deliverEvents(List<Object> batch) {
+        telemetrySpool.append(batch);
+        if (controlChannel != null && controlChannel.isOpen()) {
+            controlChannel.sendEvents(batch);
+        } else if (eventSink != null) {
+            eventSink.success(batch);
+        } else {
+            LogUtils.v(TAG, "No listener, dropping {} events", batch.size());
+        }
     }
 
     public void cleanUpFlutterEngine(@NonNull FlutterEngine flutterEngine) {
@@ -178,72 +743,146 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
         methodChannel = null;
         eventChannel.setStreamHandler(null);
         eventChannel = null;
+        eventSink = null;
+        controlChannel.close();
+        controlChannel = null;
+        cameraFrameExporter.setChannel(null);
+        cameraFramesChannel = null;
+        connectionStatsMonitor.stop();
+        poseStreamer.stop();
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
         GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
-        JniInterface.onGlSurfaceCreated(nativeApplication);
+        frameLoop.onSurfaceCreated();
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
-        viewportWidth = width;
-        viewportHeight = height;
-        viewportChanged = true;
+        frameLoop.onSurfaceChanged(width, height,
+                view.get().getWindowManager().getDefaultDisplay().getRefreshRate());
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        // Synchronized to avoid racing onDestroy.
-        synchronized (this) {
-            if (nativeApplication == 0) {
-                return;
-            }
+        frameLoop.onDrawFrame();
+    }
 
-            boolean cloudXrStatus = JniInterface.hasCloudXrAnchor(nativeApplication);
-            if (lastCloudXrStatus != cloudXrStatus) {
-                lastCloudXrStatus = cloudXrStatus;
-                view.get().runOnUiThread(() -> {
-                    if (null != eventSink) {
-                        eventSink.success(cloudXrStatus ? "start_cloudxr" : "stop_cloudxr");
-                    }
-                });
-            }
+    private final FrameLoop.Host frameLoopHost = new FrameLoop.Host() {
+        @Override
+        public int getDisplayRotation() {
+            return view.get().getWindowManager().getDefaultDisplay().getRotation();
+        }
 
-//            Vector<Float> vector = JniInterface.getHeadPose(nativeApplication);
-//            if (!vector.isEmpty()) {
-//                runOnUiThread(() -> {
-//                    if (null != eventSink) {
-//                        eventSink.success("Rot," + -vector.get(0) + "," + vector.get(1) + "," + vector.get(2) + "," + vector.get(3));
-//                    }
-//                });
-//            }
-
-            if (viewportChanged) {
-                int displayRotation = view.get().getWindowManager().getDefaultDisplay().getRotation();
-                JniInterface.onDisplayGeometryChanged(
-                        nativeApplication, displayRotation, viewportWidth, viewportHeight);
-                viewportChanged = false;
-            }
+        @Override
+        public void onPlanesDetected() {
+            view.get().runOnUiThread(ArController.this::dismissLoadingMessage);
+        }
 
-            int status = JniInterface.onGlSurfaceDrawFrame(nativeApplication);
-            if (status != 0) {
-                LogUtils.e(TAG, "Error [" + status + "] reported during frame update. Finishing activity and exiting.");
-                // need to shut down.
-                view.get().runOnUiThread(() -> {
-                    Toast.makeText(view.get().getApplicationContext(), "CloudXR ARCore Client: Error [" + status + "], see logs for detail.  Exiting.", Toast.LENGTH_LONG).show();
-                    triggerRebirth();
-                });
-            } else {
-                JniInterface.getCameraFrame(nativeApplication);
-            }
+        @Override
+        public void onTrackingStateChanged(int state) {
+            mainHandler.post(() -> {
+                streaming = (state & NativeBridge.TRACKING_CLOUDXR_ANCHOR) != 0;
+                telemetrySpool.setStreaming(streaming);
+                if (streaming) {
+                    // Staying on this edge server from now on.
+                    edgeSelection = null;
+                }
+                if (streaming && connectStartNanos != 0) {
+                    LogUtils.i(TAG, "First streamed frame {} ms after connect",
+                            (SystemClock.elapsedRealtimeNanos() - connectStartNanos) / 1_000_000);
+                    connectStartNanos = 0;
+                }
+                renderScheduler.setTrackingState(state);
+            });
+        }
+
+        @Override
+        public void onFrameError(int status, boolean recoverable) {
+            mainHandler.post(() -> {
+                if (!fallBackToNextEdge(status, recoverable)) {
+                    sessionRecovery.onFrameError(status, recoverable);
+                }
+            });
+        }
+    };
+
+    private void connectTo(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                           boolean hostCloudAnchor, boolean mediaPipe) {
+        model.setParams(cloudIp, anchorId, webRtcIp, roomId, hostCloudAnchor, mediaPipe);
+        server = EdgeSelector.hostOf(cloudIp);
+        doResume();
+    }
+
+    // Connecting to the edge server picked by connectBest failed before it ever streamed: switch
+    // to the next best one and reconnect, with a fresh backoff. Returns false if there is none
+    // left, or the error is not the server's.
+    private boolean fallBackToNextEdge(int status, boolean recoverable) {
+        if (edgeSelection == null || !recoverable || connectStartNanos == 0) {
+            return false;
+        }
+        String next = edgeSelection.fallBack();
+        if (next == null) {
+            edgeSelection = null;
+            return false;
+        }
+        server = EdgeSelector.hostOf(next);
+        ProfileStore.Profile profile = model.getProfile();
+        model.setParams(next, profile.anchor, webRtcFollowsEdge ? server : profile.webRtcIp,
+                profile.roomId, false, profile.mediaPipe);
+        String args = "-s " + server;
+        surfaceView.queueEvent(() -> frameLoop.setArgs(args));
+        sessionRecovery.reset();
+        sessionRecovery.onFrameError(status, true);
+        return true;
+    }
+
+    private void dismissLoadingMessage() {
+        if (loadingMessageSnackbar != null) {
+            loadingMessageSnackbar.dismiss();
+        }
+        loadingMessageSnackbar = null;
+    }
+
+    // Contents of the launch options file, null if there is none.
+    private static String readLaunchOptionsFile() {
+        File file = new File(LAUNCH_OPTIONS_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Cannot read {}", LAUNCH_OPTIONS_FILE);
+            return null;
         }
     }
 
     public void doResume() {
-        JniInterface.onResume(nativeApplication, view.get().getApplicationContext(), view.get());
+        if (nativeHandle.isDetached()) {
+            resumePending = true;
+            return;
+        }
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return;
+        }
+        connectStartNanos = SystemClock.elapsedRealtimeNanos();
+        // Resuming connects again anyway.
+        sessionRecovery.reset();
+        // Queued ahead of the first frame, which connects.
+        if (!server.isEmpty()) {
+            String args = "-s " + server;
+            surfaceView.queueEvent(() -> frameLoop.setArgs(args));
+        }
+        qualityGovernor.start();
+        bridge.onResume(nativeApplication, view.get().getApplicationContext(), view.get());
+        nativeHandle.release();
         surfaceView.onResume();
+        renderScheduler.setActive(true);
+        // The time spent paused is not a dropped frame.
+        surfaceView.queueEvent(frameLoop::resetInterval);
 
         loadingMessageSnackbar =
                 Snackbar.make(view.get().findViewById(android.R.id.content),
@@ -252,34 +891,54 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
         // Set the snackbar background to light transparent black color.
         loadingMessageSnackbar.getView().setBackgroundColor(0xbf323232);
         loadingMessageSnackbar.show();
-        planeStatusCheckingHandler.postDelayed(
-                planeStatusCheckingRunnable, SNACKBAR_UPDATE_INTERVAL_MILLIS);
+        frameLoop.setWaitingForPlanes(true);
 
         // Listen to display changed events to detect 180° rotation, which does not cause a config
         // change or view resize.
         view.get().getSystemService(DisplayManager.class).registerDisplayListener(this, null);
-        wasResumed = true;
+        nativeHandle.markResumed();
     }
 
     protected void checkLaunchOptions() {
-        if (wasResumed)
+        if (nativeHandle.isResumed())
             return;
 
+        if (nativeHandle.isDetached()) {
+            launchCheckPending = true;
+            return;
+        }
+
         LogUtils.v(TAG, "Checking launch options..");
 
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return;
+        }
         // we're done with permission checks, so can tell native now is safe to
         // try to load files and such.
-        JniInterface.handleLaunchOptions(nativeApplication, cmdlineFromIntent);
+        bridge.handleLaunchOptions(nativeApplication, cmdlineFromIntent);
+        // The quality levels are fractions of what the user launched with.
+        qualityGovernor.setBaseline(
+                QualityGovernor.Level.parse(readLaunchOptionsFile(), cmdlineFromIntent));
+        // Creating the ARCore session takes a while too, get it done before connect is tapped.
+        long prepareStart = SystemClock.elapsedRealtimeNanos();
+        if (bridge.prepareSession(nativeApplication, view.get().getApplicationContext(),
+                view.get())) {
+            LogUtils.d(TAG, "ARCore session prepared in {} ms",
+                    (SystemClock.elapsedRealtimeNanos() - prepareStart) / 1_000_000);
+        }
 
         // check if the native code already has a server IP, and if so
         // we will skip presenting the IP entry dialog for now...
-        String jniIpAddr = JniInterface.getServerIp(nativeApplication);
+        String jniIpAddr = bridge.getServerIp(nativeApplication);
+        nativeHandle.release();
         if (jniIpAddr.isEmpty()) {
-            String prevCloudIP = model.getCloudIpAddr();
-            String prevCloudAnchor = model.getAnchor();
-            String prevWebRtcIP = model.getWebRtcIpAddr();
-            String prevWebRtcRoom = model.getRoomId();
-            boolean prevEnableMediaPipe = model.getMediaPipeStatus();
+            ProfileStore.Profile prev = model.getProfile();
+            String prevCloudIP = prev.cloudIp;
+            String prevCloudAnchor = prev.anchor;
+            String prevWebRtcIP = prev.webRtcIp;
+            String prevWebRtcRoom = prev.roomId;
+            boolean prevEnableMediaPipe = prev.mediaPipe;
 //            ServerIPDialog.show(this, prevCloudIP, prevCloudAnchor,
 //                    prevWebRtcIP, prevWebRtcRoom, prevEnableMediaPipe);
         } else {
@@ -288,10 +947,20 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
     }
 
     private void doPause() {
+        sessionRecovery.reset();
+        serverSwitcher.reset();
+        qualityGovernor.onDisconnected();
+        streaming = false;
+        telemetrySpool.setStreaming(false);
+        renderScheduler.setActive(false);
         surfaceView.onPause();
-        JniInterface.onPause(nativeApplication);
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication != 0) {
+            bridge.onPause(nativeApplication);
+            nativeHandle.release();
+        }
 
-        planeStatusCheckingHandler.removeCallbacks(planeStatusCheckingRunnable);
+        frameLoop.setWaitingForPlanes(false);
 
         view.get().getSystemService(DisplayManager.class).unregisterDisplayListener(this);
     }
@@ -335,7 +1004,17 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
 
     @Override
     public void onDisplayChanged(int displayId) {
-        viewportChanged = true;
+        frameLoop.onDisplayChanged();
+        renderScheduler.setDisplayRefreshRate(
+                view.get().getWindowManager().getDefaultDisplay().getRefreshRate());
+    }
+
+    // MotionEvent times are uptimeMillis, camera frames are stamped on the elapsedRealtime clock,
+    // which keeps counting in deep sleep.
+    private static long toElapsedRealtimeNanos(long uptimeMillis) {
+        long offsetNanos = SystemClock.elapsedRealtimeNanos()
+                - SystemClock.uptimeMillis() * 1_000_000L;
+        return uptimeMillis * 1_000_000L + offsetNanos;
     }
 
     public GestureDetector gestureDetector = new GestureDetector(
@@ -343,20 +1022,16 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
             new GestureDetector.SimpleOnGestureListener() {
                 @Override
                 public boolean onSingleTapUp(final MotionEvent e) {
-                    surfaceView.queueEvent(
-                            () -> JniInterface.onTouched(nativeApplication, e.getX(), e.getY(), false));
-                    view.get().runOnUiThread(() -> {
-                        if (null != eventSink) {
-                            eventSink.success("touch");
-                        }
-                    });
+                    frameLoop.postTouch(e.getX(), e.getY(), TouchQueue.ACTION_TAP,
+                            toElapsedRealtimeNanos(e.getEventTime()));
+                    eventBus.post("touch");
                     return true;
                 }
 
                 @Override
                 public void onLongPress(final MotionEvent e) {
-                    surfaceView.queueEvent(
-                            () -> JniInterface.onTouched(nativeApplication, e.getX(), e.getY(), true));
+                    frameLoop.postTouch(e.getX(), e.getY(), TouchQueue.ACTION_LONG_PRESS,
+                            toElapsedRealtimeNanos(e.getEventTime()));
                 }
 
                 @Override
@@ -364,4 +1039,23 @@ public class ArController implements GLSurfaceView.Renderer, DisplayManager.Disp
                     return true;
                 }
             });
+
+    // Feeds the thermal status to the governor. Its listener type is API 29, so this class is only
+    // loaded there.
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private static final class ThermalWatch {
+        private final PowerManager powerManager;
+        private final PowerManager.OnThermalStatusChangedListener listener;
+
+        ThermalWatch(PowerManager powerManager, QualityGovernor qualityGovernor) {
+            this.powerManager = powerManager;
+            listener = qualityGovernor::setThermalStatus;
+            qualityGovernor.setThermalStatus(powerManager.getCurrentThermalStatus());
+            powerManager.addThermalStatusListener(listener);
+        }
+
+        void stop() {
+            powerManager.removeThermalStatusListener(listener);
+        }
+    }
 }
\ No newline at end of file
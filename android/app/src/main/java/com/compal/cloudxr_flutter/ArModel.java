@@ -2,47 +2,123 @@ package com.compal.cloudxr_flutter;
 
 import android.content.SharedPreferences;
 
-public class ArModel {
-    private SharedPreferences prefs;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-    final String cloudIpAddrPref = "cxr_last_server_ip_addr";
-    final String cloudAnchorPref = "cxr_last_cloud_anchor";
-    final String webrtcIpAddrPref = "webrtc_last_server_ip_addr";
-    final String webrtcRoomIdPref = "webrtc_last_room_id";
-    final String enableMediaPipePref = "mediapipe_last_enable";
+/**
+ * Connection settings, kept in a {@link ProfileStore} over SharedPreferences: read once, then
+ * served from memory, and written on a thread of their own only when they change.
+ */
+public class ArModel {
+    private final ProfileStore store;
 
     public ArModel(SharedPreferences prefs) {
-        this.prefs = prefs;
+        Executor writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "ProfileWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        store = new ProfileStore(new ProfileStore.Storage() {
+            @Override
+            public Map<String, ?> read() {
+                return prefs.getAll();
+            }
+
+            @Override
+            public void write(Map<String, Object> values, Set<String> removed) {
+                SharedPreferences.Editor prefedit = prefs.edit();
+                for (Map.Entry<String, Object> entry : values.entrySet()) {
+                    if (entry.getValue() instanceof Boolean) {
+                        prefedit.putBoolean(entry.getKey(), (Boolean) entry.getValue());
+                    } else {
+                        prefedit.putString(entry.getKey(), (String) entry.getValue());
+                    }
+                }
+                for (String key : removed) {
+                    prefedit.remove(key);
+                }
+                // Already off the main thread.
+                prefedit.commit();
+            }
+        }, writer);
     }
 
+    /**
+     * Save the settings connected with as the most recent profile. It keeps the name of the most
+     * recent one if that is for the same server, e.g. just picked with useProfile, and is named
+     * after the server otherwise.
+     */
     public void setParams(String cloudIp, String cloudAnchorId, String webRtcIp, String webRtcRoomId,
                           boolean hostCloudAnchor, boolean mediaPipe) {
-        SharedPreferences.Editor prefedit = prefs.edit();
-        prefedit.putString("cxr_last_server_ip_addr", cloudIp);
-        prefedit.putString("cxr_last_cloud_anchor", cloudAnchorId);
-        prefedit.putString("webrtc_last_server_ip_addr", webRtcIp);
-        prefedit.putString("webrtc_last_room_id", webRtcRoomId);
-        prefedit.putBoolean("mediapipe_last_enable", mediaPipe);
-        prefedit.apply();
+        ProfileStore.Profile current = getProfile();
+        String name = current.cloudIp.equals(cloudIp) ? current.name : cloudIp;
+        store.save(new ProfileStore.Profile(name, cloudIp, cloudAnchorId, webRtcIp,
+                webRtcRoomId, mediaPipe));
+    }
+
+    /**
+     * The settings connected with last; read this once rather than the getters one by one.
+     */
+    public ProfileStore.Profile getProfile() {
+        return store.getSnapshot().current();
+    }
+
+    /**
+     * Every saved profile, most recently used first.
+     */
+    public List<ProfileStore.Profile> getProfiles() {
+        return store.getSnapshot().profiles;
+    }
+
+    /**
+     * Save profile as the most recent one, replacing the one of the same name.
+     */
+    public void saveProfile(ProfileStore.Profile profile) {
+        store.save(profile);
+    }
+
+    /**
+     * Make the named profile the one connected with last; null if there is none by that name.
+     */
+    public ProfileStore.Profile useProfile(String name) {
+        return store.use(name);
+    }
+
+    public void removeProfile(String name) {
+        store.remove(name);
+    }
+
+    /**
+     * Edge servers last picked from, see EdgeSelector; the one picked is the cloud IP.
+     */
+    public void setServerCandidates(List<String> candidates) {
+        store.setServerCandidates(candidates);
+    }
+
+    public List<String> getServerCandidates() {
+        return store.getSnapshot().serverCandidates;
     }
 
     public String getCloudIpAddr() {
-        return prefs.getString(cloudIpAddrPref, "");
+        return getProfile().cloudIp;
     }
 
     public String getAnchor() {
-        return prefs.getString(cloudAnchorPref, "");
+        return getProfile().anchor;
     }
 
     public String getWebRtcIpAddr() {
-        return prefs.getString(webrtcIpAddrPref, "");
+        return getProfile().webRtcIp;
     }
 
     public String getRoomId() {
-        return prefs.getString(webrtcRoomIdPref, "");
+        return getProfile().roomId;
     }
 
     public boolean getMediaPipeStatus() {
-        return prefs.getBoolean(enableMediaPipePref, false);
+        return getProfile().mediaPipe;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,307 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams camera frames to Dart over a binary channel, but only while someone is subscribed.
+ * <p>
+ * The GL thread only acquires the camera image (at most maxFps per second) and hands it to a
+ * worker thread, which does the copy into a pooled buffer, converted by {@link FrameConverter}
+ * if the subscriber asked for RGB or grayscale. The main thread sends queued frames to
+ * Dart; when the worker or Dart falls behind, the oldest frame is dropped instead of blocking the
+ * render loop.
+ */
+public class CameraFrameExporter {
+    private static final String TAG = "CameraFrameExporter";
+
+    public static final int DEFAULT_MAX_FPS = 15;
+    public static final int DEFAULT_DOWNSCALE = 2;
+    public static final int DEFAULT_QUEUE_DEPTH = 2;
+    private static final int MAX_QUEUE_DEPTH = 8;
+    private static final int MAX_IN_FLIGHT = 1;
+    private static final int HANDOFF_DEPTH = 2;
+
+    private final NativeBridge bridge;
+    private final CameraFramePool pool;
+    private final ArrayBlockingQueue<ByteBuffer> pending = new ArrayBlockingQueue<>(MAX_QUEUE_DEPTH);
+    private final Executor mainThread;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainRunnable = this::drain;
+    private final Runnable deliveredRunnable = this::onDelivered;
+    private final ArrayBlockingQueue<AcquiredImage> freeSlots = new ArrayBlockingQueue<>(HANDOFF_DEPTH);
+    private final ArrayBlockingQueue<AcquiredImage> handoff = new ArrayBlockingQueue<>(HANDOFF_DEPTH);
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final FrameConverter converter = new FrameConverter(ForkJoinPool.commonPool());
+
+    private volatile boolean running = true;
+    private Thread worker;
+
+    private volatile FrameChannel channel;
+    private volatile int subscribers = 0;
+    private volatile long minFrameIntervalNanos = 1_000_000_000L / DEFAULT_MAX_FPS;
+    private volatile int downscale = DEFAULT_DOWNSCALE;
+    private volatile int queueDepth = DEFAULT_QUEUE_DEPTH;
+    private volatile int format = FrameConverter.FORMAT_YUV;
+
+    // Only touched on the GL thread.
+    private long lastCaptureNanos = 0;
+
+    // Only touched on the worker: the full size YUV frame a conversion reads from.
+    private ByteBuffer scratch;
+
+    // Only touched on the main thread.
+    private int inFlight = 0;
+
+    /**
+     * Where frames go, the camera frames message channel in the app.
+     */
+    public interface FrameChannel {
+        /**
+         * Called on the main thread. The frame bytes are [0, position) and must be copied before
+         * returning; onDelivered runs on the main thread once the receiver wants the next frame.
+         */
+        void send(ByteBuffer frame, Runnable onDelivered);
+    }
+
+    /**
+     * An acquired camera image travelling from the GL thread to the worker.
+     */
+    private static class AcquiredImage {
+        long nativeApplication;
+        long image;
+        int downscale;
+        int format;
+    }
+
+    /**
+     * @param mainThread runs the sending side, the main looper in the app.
+     */
+    public CameraFrameExporter(NativeBridge bridge, Executor mainThread) {
+        this.bridge = bridge;
+        this.mainThread = mainThread;
+        pool = new CameraFramePool(bridge, MAX_QUEUE_DEPTH + MAX_IN_FLIGHT + 1,
+                CameraFramePool.HEADER_SIZE);
+        for (int i = 0; i < HANDOFF_DEPTH; i++) {
+            freeSlots.offer(new AcquiredImage());
+        }
+    }
+
+    public void setChannel(FrameChannel channel) {
+        this.channel = channel;
+        if (channel == null) {
+            // Nobody left to deliver to.
+            subscribers = 0;
+        }
+    }
+
+    /**
+     * Register a subscriber. Called on the main thread; the latest subscriber's settings win.
+     * format is one of the FrameConverter.FORMAT_* values.
+     */
+    public void subscribe(int maxFps, int downscale, int queueDepth, int format) {
+        minFrameIntervalNanos = 1_000_000_000L / Math.max(1, maxFps);
+        this.downscale = Math.max(1, downscale);
+        this.queueDepth = Math.min(MAX_QUEUE_DEPTH, Math.max(1, queueDepth));
+        this.format = format >= FrameConverter.FORMAT_RGBA && format <= FrameConverter.FORMAT_GRAY
+                ? format : FrameConverter.FORMAT_YUV;
+        subscribers++;
+        if (worker == null && running) {
+            worker = new Thread(this::runWorker, "CameraFrameWorker");
+            worker.start();
+        }
+        LogUtils.d(TAG, "Subscriber {} at {} fps", subscribers, maxFps);
+        LogUtils.d(TAG, "Frames downscaled by {}, queue of {}", this.downscale, this.queueDepth);
+        LogUtils.d(TAG, "Frame format {}", this.format);
+    }
+
+    /**
+     * Drop a subscriber. Called on the main thread.
+     */
+    public void unsubscribe() {
+        if (subscribers > 0) {
+            subscribers--;
+        }
+        if (subscribers == 0) {
+            ByteBuffer buffer;
+            while ((buffer = pending.poll()) != null) {
+                pool.giveBack(buffer);
+            }
+        }
+        LogUtils.d(TAG, "unsubscribe subscribers={}", subscribers);
+    }
+
+    public boolean hasSubscribers() {
+        return subscribers > 0;
+    }
+
+    /**
+     * Called on the GL thread after a successful frame. Cheap when nobody is subscribed or the
+     * frame falls inside the rate limit; otherwise only acquires the image, the copy happens on
+     * the worker.
+     */
+    public void onFrame(long nativeApplication) {
+        if (subscribers == 0 || channel == null || !running) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastCaptureNanos < minFrameIntervalNanos) {
+            return;
+        }
+
+        AcquiredImage slot = freeSlots.poll();
+        if (slot == null) {
+            // The worker is behind: drop the oldest image it has not picked up yet.
+            slot = handoff.poll();
+            if (slot == null) {
+                return;
+            }
+            bridge.releaseCameraImage(slot.nativeApplication, slot.image);
+            droppedFrames.incrementAndGet();
+        }
+
+        long image = bridge.acquireCameraImage(nativeApplication);
+        if (image == 0) {
+            freeSlots.offer(slot);
+            return;
+        }
+        lastCaptureNanos = now;
+        slot.nativeApplication = nativeApplication;
+        slot.image = image;
+        slot.downscale = downscale;
+        slot.format = format;
+        handoff.offer(slot);
+    }
+
+    /**
+     * Stop the worker and release every image it still owns. Must be called before the native
+     * application is destroyed, with the GL thread kept out of onFrame.
+     */
+    public void shutdown() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                // The copy in progress, if any, is bounded; wait for it so native memory stays valid.
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        AcquiredImage slot;
+        while ((slot = handoff.poll()) != null) {
+            bridge.releaseCameraImage(slot.nativeApplication, slot.image);
+            freeSlots.offer(slot);
+        }
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    private void runWorker() {
+        while (running) {
+            AcquiredImage slot;
+            try {
+                slot = handoff.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                process(slot);
+            } finally {
+                bridge.releaseCameraImage(slot.nativeApplication, slot.image);
+                freeSlots.offer(slot);
+            }
+        }
+        LogUtils.d(TAG, "worker stopped");
+    }
+
+    private void process(AcquiredImage slot) {
+        ByteBuffer buffer = pool.borrow();
+        if (buffer == null) {
+            // Everything is queued or being sent: recycle the oldest queued frame.
+            buffer = pending.poll();
+            if (buffer == null) {
+                return;
+            }
+            buffer.clear();
+            droppedFrames.incrementAndGet();
+        }
+
+        ByteBuffer frame = slot.format == FrameConverter.FORMAT_YUV
+                ? pool.copy(slot.nativeApplication, slot.image, buffer, slot.downscale)
+                : convert(slot, buffer);
+        if (frame == null) {
+            pool.giveBack(buffer);
+            return;
+        }
+
+        while (pending.size() >= queueDepth || !pending.offer(frame)) {
+            ByteBuffer oldest = pending.poll();
+            if (oldest != null) {
+                pool.giveBack(oldest);
+                droppedFrames.incrementAndGet();
+            }
+        }
+
+        if (drainScheduled.compareAndSet(false, true)) {
+            mainThread.execute(drainRunnable);
+        }
+    }
+
+    // Copies the image at full size and converts it into buffer, or a larger replacement; null if
+    // there was no image. Downscaling here rather than in native code saves a pass.
+    private ByteBuffer convert(AcquiredImage slot, ByteBuffer buffer) {
+        if (scratch == null) {
+            scratch = ByteBuffer.allocateDirect(CameraFramePool.HEADER_SIZE)
+                    .order(ByteOrder.nativeOrder());
+        }
+        int written = bridge.copyCameraImage(slot.nativeApplication, slot.image, scratch, 1);
+        if (written < 0) {
+            scratch = ByteBuffer.allocateDirect(-written).order(ByteOrder.nativeOrder());
+            written = bridge.copyCameraImage(slot.nativeApplication, slot.image, scratch, 1);
+        }
+        if (written <= 0) {
+            return null;
+        }
+        written = converter.convert(scratch, 0, 0, 0, 0, slot.downscale, slot.format, buffer);
+        if (written < 0) {
+            buffer = pool.grow(-written);
+            written = converter.convert(scratch, 0, 0, 0, 0, slot.downscale, slot.format, buffer);
+        }
+        return written > 0 ? buffer : null;
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        FrameChannel target = channel;
+        while (inFlight < MAX_IN_FLIGHT) {
+            ByteBuffer frame = pending.poll();
+            if (frame == null) {
+                return;
+            }
+            if (target == null || subscribers == 0) {
+                pool.giveBack(frame);
+                continue;
+            }
+            // The channel copies the message bytes [0, position) during send, so the buffer can go
+            // straight back into the pool; the reply only tells us Dart is ready for more.
+            frame.position(frame.limit());
+            inFlight++;
+            target.send(frame, deliveredRunnable);
+            pool.giveBack(frame);
+        }
+    }
+
+    private void onDelivered() {
+        inFlight--;
+        drain();
+    }
+}
@@ -0,0 +1,126 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Ring of reusable direct buffers filled by {@link NativeBridge#fillCameraFrame}.
+ * <p>
+ * Each filled buffer starts with a fixed header (see the *_OFFSET constants, native byte order)
+ * followed by the Y, U and V planes, or by the pixels once converted by {@link FrameConverter}.
+ * Consumers borrow a buffer, hand it to native code, read it, and give it back; nothing is
+ * allocated per frame once the buffers have grown to the camera size.
+ */
+public class CameraFramePool {
+    private static final String TAG = "CameraFramePool";
+
+    // Header layout, mirrors hello_ar::CameraFrameHeader.
+    public static final int WIDTH_OFFSET = 0;
+    public static final int HEIGHT_OFFSET = 4;
+    public static final int Y_STRIDE_OFFSET = 8;
+    public static final int UV_STRIDE_OFFSET = 12;
+    public static final int UV_PIXEL_STRIDE_OFFSET = 16;
+    public static final int Y_LENGTH_OFFSET = 20;
+    public static final int U_LENGTH_OFFSET = 24;
+    public static final int V_LENGTH_OFFSET = 28;
+    public static final int TIMESTAMP_OFFSET = 32;
+    public static final int HEADER_SIZE = 40;
+
+    private final NativeBridge bridge;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+    private volatile int bufferCapacity;
+
+    public CameraFramePool(NativeBridge bridge, int bufferCount, int initialCapacity) {
+        this.bridge = bridge;
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        bufferCapacity = Math.max(initialCapacity, HEADER_SIZE);
+        for (int i = 0; i < bufferCount; i++) {
+            freeBuffers.offer(allocate(bufferCapacity));
+        }
+    }
+
+    /**
+     * Take a buffer out of the ring, or null if every buffer is currently borrowed.
+     */
+    public ByteBuffer borrow() {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null && buffer.capacity() < bufferCapacity) {
+            // The camera size grew since this buffer was last used.
+            buffer = allocate(bufferCapacity);
+        }
+        return buffer;
+    }
+
+    /**
+     * Put a borrowed buffer back into the ring.
+     */
+    public void giveBack(ByteBuffer buffer) {
+        buffer.clear();
+        if (!freeBuffers.offer(buffer)) {
+            LogUtils.w(TAG, "Buffer returned to a full pool, dropping it");
+        }
+    }
+
+    /**
+     * Fill a borrowed buffer with the current camera image, decimated by downscale if above 1.
+     *
+     * @return the buffer holding the frame (a larger replacement if the given one was too small),
+     * or null if no camera image was available, in which case the caller still owns the buffer it
+     * passed in. The limit of the returned buffer is set to the number of bytes written.
+     */
+    public ByteBuffer fill(long nativeApplication, ByteBuffer buffer, int downscale) {
+        int written = bridge.fillCameraFrame(nativeApplication, buffer, downscale);
+        if (written < 0) {
+            buffer = grow(-written);
+            written = bridge.fillCameraFrame(nativeApplication, buffer, downscale);
+        }
+        if (written <= 0) {
+            return null;
+        }
+        buffer.limit(written);
+        return buffer;
+    }
+
+    /**
+     * Same as {@link #fill}, copying an image handed over by {@link NativeBridge#acquireCameraImage}.
+     */
+    public ByteBuffer copy(long nativeApplication, long image, ByteBuffer buffer, int downscale) {
+        int written = bridge.copyCameraImage(nativeApplication, image, buffer, downscale);
+        if (written < 0) {
+            buffer = grow(-written);
+            written = bridge.copyCameraImage(nativeApplication, image, buffer, downscale);
+        }
+        if (written <= 0) {
+            return null;
+        }
+        buffer.limit(written);
+        return buffer;
+    }
+
+    /**
+     * A replacement for a borrowed buffer that is smaller than required; every buffer borrowed
+     * from now on is at least that large.
+     */
+    public ByteBuffer grow(int required) {
+        LogUtils.i(TAG, "Growing camera frame buffers to {} bytes", required);
+        bufferCapacity = required;
+        return allocate(required);
+    }
+
+    public static int getWidth(ByteBuffer frame) {
+        return frame.getInt(WIDTH_OFFSET);
+    }
+
+    public static int getHeight(ByteBuffer frame) {
+        return frame.getInt(HEIGHT_OFFSET);
+    }
+
+    public static long getTimestamp(ByteBuffer frame) {
+        return frame.getLong(TIMESTAMP_OFFSET);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
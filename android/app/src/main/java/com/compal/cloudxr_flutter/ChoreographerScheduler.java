@@ -0,0 +1,31 @@
+package com.compal.cloudxr_flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Runs EventBus drains on the main thread at the next vsync.
+ */
+public class ChoreographerScheduler implements EventBus.Scheduler, Choreographer.FrameCallback {
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable postFrameCallback =
+            () -> Choreographer.getInstance().postFrameCallback(this);
+    private volatile Runnable drain;
+
+    @Override
+    public void schedule(Runnable drain) {
+        this.drain = drain;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            // Choreographer is per thread, so hop to the main thread first.
+            mainHandler.post(postFrameCallback);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        drain.run();
+    }
+}
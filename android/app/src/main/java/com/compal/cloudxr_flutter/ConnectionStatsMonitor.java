@@ -0,0 +1,207 @@
+package com.compal.cloudxr_flutter;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Samples the CloudXR connection stats at a fixed interval and keeps a sliding window of the
+ * last samples, so callers see trends (latency creeping up, packet loss over the window) instead
+ * of a single noisy reading.
+ * <p>
+ * Sampling runs on the main thread; each sample is one JNI copy into a reused double[]. The
+ * aggregates are handed to the listener after every new sample.
+ */
+public class ConnectionStatsMonitor {
+    private static final String TAG = "ConnectionStatsMonitor";
+
+    public static final String EVENT_TYPE = "connection_stats";
+
+    // Layout of the buffer filled by NativeBridge.getConnectionStats, mirrors
+    // hello_ar::ConnectionStatsSlot.
+    public static final int SLOT_TIMESTAMP_MS = 0;
+    public static final int SLOT_FRAMES_PER_SECOND = 1;
+    public static final int SLOT_BANDWIDTH_AVAILABLE_KBPS = 2;
+    public static final int SLOT_BANDWIDTH_UTILIZATION_KBPS = 3;
+    public static final int SLOT_ROUND_TRIP_DELAY_MS = 4;
+    public static final int SLOT_PACKETS_RECEIVED = 5;
+    public static final int SLOT_PACKETS_LOST = 6;
+    public static final int SLOT_QUALITY = 7;
+    public static final int SLOT_QUALITY_REASONS = 8;
+    public static final int SLOT_COUNT = 9;
+
+    // cxrConnectionQualityReason bits.
+    public static final int REASON_HIGH_LATENCY = 0x1;
+    public static final int REASON_LOW_BANDWIDTH = 0x2;
+    public static final int REASON_HIGH_PACKET_LOSS = 0x4;
+
+    public static final int DEFAULT_INTERVAL_MS = 500;
+    public static final int DEFAULT_WINDOW_SIZE = 10;
+    private static final int MAX_WINDOW_SIZE = 120;
+
+    // Latency this much above the start of the window counts as degrading.
+    private static final double DEGRADING_LATENCY_RATIO = 1.5;
+
+    public interface Listener {
+        void onConnectionStats(Map<String, Object> aggregates);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final double[] sample = new double[SLOT_COUNT];
+    private final double[][] window = new double[MAX_WINDOW_SIZE][SLOT_COUNT];
+    private final NativeBridge bridge;
+    private final Listener listener;
+
+    private NativeHandle nativeHandle;
+    private int intervalMs = DEFAULT_INTERVAL_MS;
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+    private int head = 0;
+    private int count = 0;
+    private long lastSequence = 0;
+    private boolean running = false;
+
+    private final Runnable sampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            sampleOnce();
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    public ConnectionStatsMonitor(NativeBridge bridge, Listener listener) {
+        this.bridge = bridge;
+        this.listener = listener;
+    }
+
+    /**
+     * Start sampling, or apply new settings if already running. Called on the main thread.
+     */
+    public void start(NativeHandle nativeHandle, int intervalMs, int windowSize) {
+        this.nativeHandle = nativeHandle;
+        this.intervalMs = Math.max(50, intervalMs);
+        int size = Math.min(MAX_WINDOW_SIZE, Math.max(2, windowSize));
+        if (size != this.windowSize) {
+            this.windowSize = size;
+            clearWindow();
+        }
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication != 0) {
+            bridge.setConnectionStatsInterval(nativeApplication, this.intervalMs);
+            nativeHandle.release();
+        }
+        handler.removeCallbacks(sampleRunnable);
+        running = true;
+        handler.post(sampleRunnable);
+        LogUtils.d(TAG, "start interval={} window={}", this.intervalMs, this.windowSize);
+    }
+
+    public void stop() {
+        running = false;
+        handler.removeCallbacks(sampleRunnable);
+        clearWindow();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void clearWindow() {
+        head = 0;
+        count = 0;
+    }
+
+    private void sampleOnce() {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            stop();
+            return;
+        }
+        long sequence;
+        try {
+            sequence = bridge.getConnectionStats(nativeApplication, sample);
+        } finally {
+            nativeHandle.release();
+        }
+        if (sequence == 0 || sequence == lastSequence) {
+            // Not streaming, or the GL thread has not taken a new sample yet.
+            return;
+        }
+        if (sequence < lastSequence) {
+            // The native side restarted; old samples describe another connection.
+            clearWindow();
+        }
+        lastSequence = sequence;
+
+        System.arraycopy(sample, 0, window[head], 0, SLOT_COUNT);
+        head = (head + 1) % windowSize;
+        if (count < windowSize) {
+            count++;
+        }
+        listener.onConnectionStats(aggregate());
+    }
+
+    private double[] sampleAt(int age) {
+        // age 0 is the newest sample.
+        return window[(head - 1 - age + windowSize) % windowSize];
+    }
+
+    private Map<String, Object> aggregate() {
+        double[] newest = sampleAt(0);
+        double[] oldest = sampleAt(count - 1);
+
+        double fpsSum = 0;
+        double utilizationSum = 0;
+        double availableMin = Double.MAX_VALUE;
+        double rttSum = 0;
+        double rttMin = Double.MAX_VALUE;
+        double rttMax = 0;
+        double rttJitterSum = 0;
+        double qualityMin = Double.MAX_VALUE;
+        for (int age = 0; age < count; age++) {
+            double[] s = sampleAt(age);
+            fpsSum += s[SLOT_FRAMES_PER_SECOND];
+            utilizationSum += s[SLOT_BANDWIDTH_UTILIZATION_KBPS];
+            availableMin = Math.min(availableMin, s[SLOT_BANDWIDTH_AVAILABLE_KBPS]);
+            double rtt = s[SLOT_ROUND_TRIP_DELAY_MS];
+            rttSum += rtt;
+            rttMin = Math.min(rttMin, rtt);
+            rttMax = Math.max(rttMax, rtt);
+            if (age > 0) {
+                rttJitterSum += Math.abs(rtt - sampleAt(age - 1)[SLOT_ROUND_TRIP_DELAY_MS]);
+            }
+            qualityMin = Math.min(qualityMin, s[SLOT_QUALITY]);
+        }
+
+        double received = newest[SLOT_PACKETS_RECEIVED] - oldest[SLOT_PACKETS_RECEIVED];
+        double lost = newest[SLOT_PACKETS_LOST] - oldest[SLOT_PACKETS_LOST];
+        double lossPercent = received + lost > 0 ? 100.0 * lost / (received + lost) : 0;
+        double rttAvg = rttSum / count;
+        boolean degrading = count > 1
+                && (newest[SLOT_QUALITY] < oldest[SLOT_QUALITY]
+                || newest[SLOT_ROUND_TRIP_DELAY_MS]
+                > oldest[SLOT_ROUND_TRIP_DELAY_MS] * DEGRADING_LATENCY_RATIO);
+
+        Map<String, Object> aggregates = new HashMap<>();
+        aggregates.put("type", EVENT_TYPE);
+        aggregates.put("samples", count);
+        aggregates.put("window_ms", (long) (newest[SLOT_TIMESTAMP_MS] - oldest[SLOT_TIMESTAMP_MS]));
+        aggregates.put("fps", fpsSum / count);
+        aggregates.put("bitrate_kbps", utilizationSum / count);
+        aggregates.put("bandwidth_min_kbps", availableMin);
+        aggregates.put("rtt_ms", rttAvg);
+        aggregates.put("rtt_min_ms", rttMin);
+        aggregates.put("rtt_max_ms", rttMax);
+        aggregates.put("jitter_ms", count > 1 ? rttJitterSum / (count - 1) : 0.0);
+        aggregates.put("packet_loss_percent", lossPercent);
+        aggregates.put("quality", (int) newest[SLOT_QUALITY]);
+        aggregates.put("quality_min", (int) qualityMin);
+        aggregates.put("quality_reasons", (int) newest[SLOT_QUALITY_REASONS]);
+        aggregates.put("degrading", degrading);
+        return aggregates;
+    }
+}
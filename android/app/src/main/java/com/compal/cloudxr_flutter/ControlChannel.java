@@ -0,0 +1,117 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.flutter.plugin.common.BasicMessageChannel;
+import io.flutter.plugin.common.BinaryCodec;
+import io.flutter.plugin.common.BinaryMessenger;
+
+/**
+ * Binary command/event channel, see {@link ControlProtocol} for the wire format.
+ * <p>
+ * Commands are decoded straight from the incoming buffer by {@link ControlProtocol#dispatch}.
+ * Events are only sent once Dart has said hello with a matching version; until then
+ * ArController keeps using the string events channel. Everything runs on the main thread, which
+ * lets the reply and event buffers be reused: Flutter copies a message while sending it.
+ */
+public class ControlChannel implements BasicMessageChannel.MessageHandler<ByteBuffer> {
+    public static final String CHANNEL = "com.compal.cloudxr/control";
+    private static final String TAG = "ControlChannel";
+
+    private static final int EVENT_BUFFER_SIZE = 4096;
+    // Enough for the longest event a 16 bit payload length allows.
+    private static final int MAX_EVENT_BUFFER_SIZE = ControlProtocol.HEADER_SIZE
+            + ControlProtocol.EVENT_HEADER_SIZE + 0xFFFF;
+
+    private final BasicMessageChannel<ByteBuffer> channel;
+    private final ControlProtocol.Commands commands;
+    private final ByteBuffer ackBuffer = ControlProtocol.allocate(ControlProtocol.HEADER_SIZE);
+    private ByteBuffer events = ControlProtocol.allocate(EVENT_BUFFER_SIZE);
+    private long droppedEvents = 0;
+    private boolean open = false;
+
+    public ControlChannel(BinaryMessenger messenger, ControlProtocol.Commands commands) {
+        this.commands = commands;
+        channel = new BasicMessageChannel<>(messenger, CHANNEL, BinaryCodec.INSTANCE_DIRECT);
+        channel.setMessageHandler(this);
+    }
+
+    public void close() {
+        open = false;
+        channel.setMessageHandler(null);
+    }
+
+    /**
+     * True once Dart has opened the channel with a supported protocol version.
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void onMessage(ByteBuffer message, BasicMessageChannel.Reply<ByteBuffer> reply) {
+        int status = ControlProtocol.dispatch(message, commands);
+        if (status == ControlProtocol.STATUS_OK
+                && (message.get(1) & 0xFF) == ControlProtocol.CMD_HELLO) {
+            open = true;
+        }
+        reply.reply(ack(status));
+    }
+
+    private ByteBuffer ack(int status) {
+        // Like send, reply copies [0, position) right away, so one buffer is enough.
+        ackBuffer.clear();
+        ControlProtocol.writeHeader(ackBuffer, ControlProtocol.MSG_ACK, status);
+        return ackBuffer;
+    }
+
+    /**
+     * Send one batch of EventBus entries, as several messages if it does not fit the event
+     * buffer. An event that does not fit on its own grows the buffer, up to the longest event
+     * the format allows.
+     */
+    public void sendEvents(List<Object> batch) {
+        int next = 0;
+        while (next < batch.size()) {
+            events.clear();
+            int end = ControlProtocol.writeBatch(events, batch, next);
+            if (events.position() > ControlProtocol.HEADER_SIZE) {
+                channel.send(events);
+            }
+            if (end == next) {
+                if (events.capacity() < MAX_EVENT_BUFFER_SIZE) {
+                    events = ControlProtocol.allocate(
+                            Math.min(2 * events.capacity(), MAX_EVENT_BUFFER_SIZE));
+                    continue;
+                }
+                droppedEvents++;
+                LogUtils.w(TAG, "Dropped an event longer than {} bytes, {} so far",
+                        MAX_EVENT_BUFFER_SIZE, droppedEvents);
+                end++;
+            }
+            next = end;
+        }
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents;
+    }
+
+    /**
+     * Send poses from PoseStreamer as one batch, outside the EventBus so a high pose rate does
+     * not go through its queue.
+     */
+    public void sendPoses(long[] timestampsNs, float[] poses, int count) {
+        if (!open) {
+            return;
+        }
+        events.clear();
+        ControlProtocol.writeHeader(events, ControlProtocol.MSG_EVENT_BATCH, count);
+        for (int i = 0; i < count; i++) {
+            ControlProtocol.writePoseEvent(events, timestampsNs[i], poses,
+                    i * PoseStreamer.POSE_FLOATS);
+        }
+        channel.send(events);
+    }
+}
@@ -0,0 +1,633 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary messages exchanged with lib/controlProtocol.dart over the control channel.
+ * <p>
+ * Every message starts with a 4 byte header: version, type and a 16 bit argument (the entry
+ * count for an event batch, the status for an ack). Multi-byte fields are little endian, strings
+ * are a 16 bit byte length followed by UTF-8. Commands (Dart to Java) have types below 0x80,
+ * events (Java to Dart) 0x80 and above. A batch carries several events, each prefixed with its
+ * type, a zero byte and a 16 bit payload length so unknown events can be skipped.
+ */
+public final class ControlProtocol {
+    private static final String TAG = "ControlProtocol";
+
+    // Bumped whenever a command or event is added or changes shape; Dart says hello with it.
+    public static final int VERSION = 2;
+    public static final int HEADER_SIZE = 4;
+    public static final int EVENT_HEADER_SIZE = 4;
+
+    // Commands.
+    public static final int CMD_HELLO = 0x00;
+    public static final int CMD_CONNECT = 0x01;
+    public static final int CMD_DISCONNECT = 0x02;
+    public static final int CMD_STOP = 0x03;
+    public static final int CMD_START_CONNECTION_STATS = 0x04;
+    public static final int CMD_STOP_CONNECTION_STATS = 0x05;
+    public static final int CMD_SUBSCRIBE_CAMERA_FRAMES = 0x06;
+    public static final int CMD_UNSUBSCRIBE_CAMERA_FRAMES = 0x07;
+    public static final int CMD_START_POSE_STREAM = 0x08;
+    public static final int CMD_STOP_POSE_STREAM = 0x09;
+    public static final int CMD_SET_LOG_LEVEL = 0x0A;
+    public static final int CMD_START_TRACE = 0x0B;
+    public static final int CMD_STOP_TRACE = 0x0C;
+    public static final int CMD_REPLAY_TRACE = 0x0D;
+    public static final int CMD_SET_TARGET_FRAME_RATE = 0x0E;
+    public static final int CMD_CONNECT_BEST = 0x0F;
+    public static final int CMD_TELEMETRY_UPLOADED = 0x10;
+    public static final int CMD_SWITCH_SERVER = 0x11;
+    public static final int CMD_LIST_PROFILES = 0x12;
+    public static final int CMD_SAVE_PROFILE = 0x13;
+    public static final int CMD_USE_PROFILE = 0x14;
+    public static final int CMD_REMOVE_PROFILE = 0x15;
+
+    // Replies and events.
+    public static final int MSG_ACK = 0x7F;
+    public static final int MSG_EVENT_BATCH = 0x80;
+    public static final int EVT_CLOUDXR_STATE = 0x81;
+    public static final int EVT_TOUCH = 0x82;
+    public static final int EVT_FRAME_STATS = 0x83;
+    public static final int EVT_CONNECTION_STATS = 0x84;
+    public static final int EVT_POSE = 0x85;
+    public static final int EVT_SESSION_RECOVERY = 0x86;
+    public static final int EVT_QUALITY = 0x87;
+    public static final int EVT_WARMUP = 0x88;
+    public static final int EVT_EDGE_SELECTION = 0x89;
+    public static final int EVT_TELEMETRY_UPLOAD = 0x8A;
+    public static final int EVT_SERVER_SWITCH = 0x8B;
+    public static final int EVT_PROFILES = 0x8C;
+
+    // Ack status.
+    public static final int STATUS_OK = 1;
+    public static final int STATUS_UNKNOWN_COMMAND = 2;
+    public static final int STATUS_BAD_VERSION = 3;
+    public static final int STATUS_MALFORMED = 4;
+
+    private static final String[] FRAME_STAGES =
+            {"anchor", "geometry", "draw", "camera", "total", "interval"};
+
+    private static final String CONNECT_PREFIX = "connect_to_cloudxr";
+    private static final String SWITCH_PREFIX = "switch_to_cloudxr";
+
+    /**
+     * What the commands do; implemented by ArController.
+     */
+    public interface Commands {
+        void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                     boolean hostCloudAnchor, boolean mediaPipe);
+
+        void disconnect();
+
+        void stop();
+
+        void startConnectionStats(int intervalMs, int windowSize);
+
+        void stopConnectionStats();
+
+        /**
+         * format is one of the FrameConverter.FORMAT_* values.
+         */
+        void subscribeCameraFrames(int maxFps, int downscale, int queueDepth, int format);
+
+        void unsubscribeCameraFrames();
+
+        void startPoseStream(int rateHz, boolean batch);
+
+        void stopPoseStream();
+
+        /**
+         * Process wide, not tied to a controller; one of the LogUtils levels.
+         */
+        void setLogLevel(int level);
+
+        /**
+         * Record the session to a new trace file of at most capacityKb, see
+         * {@link TraceRecorder}.
+         */
+        void startTrace(int capacityKb);
+
+        /**
+         * Stop recording and any replay in progress.
+         */
+        void stopTrace();
+
+        /**
+         * Feed a recorded trace back in, the latest one if name is empty, at speedPercent of the
+         * recorded pace; 0 replays as fast as possible.
+         */
+        void replayTrace(String name, int speedPercent);
+
+        /**
+         * Frame rate to render at while streaming, 0 to follow the stream, see
+         * {@link RenderScheduler}.
+         */
+        void setTargetFrameRate(int frameRate);
+
+        /**
+         * Like {@link #connect}, to whichever of the candidate edge servers answers fastest,
+         * falling back to the next one if connecting fails, see {@link EdgeSelector}. An empty
+         * webRtcIp means the chosen server.
+         */
+        void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                         String roomId, boolean hostCloudAnchor, boolean mediaPipe);
+
+        /**
+         * Dart is done uploading the telemetry batch named name, see {@link TelemetrySpool}.
+         */
+        void telemetryUploaded(String name, boolean ok);
+
+        /**
+         * Move the running session to another edge server, keeping the ARCore session, anchor
+         * and GL surface, see {@link ServerSwitcher}. Connects as usual if nothing runs.
+         */
+        void switchServer(String server);
+
+        /**
+         * Post the saved profiles, most recently used first, see {@link ProfileStore}.
+         */
+        void listProfiles();
+
+        /**
+         * Save a profile under name as the most recently used, replacing the one of that name,
+         * without connecting.
+         */
+        void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                         String roomId, boolean mediaPipe);
+
+        /**
+         * Make the named profile the most recently used, the one the next connect to its server
+         * saves to.
+         */
+        void useProfile(String name);
+
+        void removeProfile(String name);
+    }
+
+    /**
+     * Integer arguments of a method channel call, e.g. MethodCall::argument.
+     */
+    public interface Arguments {
+        Integer get(String key);
+    }
+
+    private ControlProtocol() {
+    }
+
+    public static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public static void writeHeader(ByteBuffer out, int type, int argument) {
+        out.put((byte) VERSION);
+        out.put((byte) type);
+        out.putShort((short) argument);
+    }
+
+    public static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A 16 bit count followed by that many strings.
+     */
+    public static List<String> readStrings(ByteBuffer in) {
+        int count = in.getShort() & 0xFFFF;
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    public static boolean readBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
+    /**
+     * A 16 bit length followed by the UTF-8 bytes. Throws IllegalArgumentException if the string
+     * is longer than the length field can tell.
+     */
+    public static void writeString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) checkCount(bytes.length));
+        out.put(bytes);
+    }
+
+    /**
+     * A 16 bit count followed by that many strings, see {@link #writeString}.
+     */
+    public static void writeStrings(ByteBuffer out, List<String> values) {
+        out.putShort((short) checkCount(values.size()));
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    public static void writeBoolean(ByteBuffer out, boolean value) {
+        out.put((byte) (value ? 1 : 0));
+    }
+
+    /**
+     * Decode one command message and run it. HELLO only has its header checked, the channel
+     * tracks it. Returns the ack status.
+     */
+    public static int dispatch(ByteBuffer message, Commands commands) {
+        if (message == null || message.remaining() < HEADER_SIZE) {
+            return STATUS_MALFORMED;
+        }
+        message.order(ByteOrder.LITTLE_ENDIAN);
+        int version = message.get() & 0xFF;
+        int type = message.get() & 0xFF;
+        message.getShort();
+        if (version != VERSION) {
+            LogUtils.w(TAG, "Unsupported protocol version {}", version);
+            return STATUS_BAD_VERSION;
+        }
+        try {
+            return dispatch(type, message, commands);
+        } catch (BufferUnderflowException e) {
+            LogUtils.e(TAG, "Truncated command {}", type);
+            return STATUS_MALFORMED;
+        }
+    }
+
+    private static int dispatch(int type, ByteBuffer in, Commands commands) {
+        switch (type) {
+            case CMD_HELLO:
+                break;
+            case CMD_CONNECT:
+                commands.connect(readString(in), readString(in), readString(in), readString(in),
+                        readBoolean(in), readBoolean(in));
+                break;
+            case CMD_DISCONNECT:
+                commands.disconnect();
+                break;
+            case CMD_STOP:
+                commands.stop();
+                break;
+            case CMD_START_CONNECTION_STATS:
+                commands.startConnectionStats(in.getInt(), in.getInt());
+                break;
+            case CMD_STOP_CONNECTION_STATS:
+                commands.stopConnectionStats();
+                break;
+            case CMD_SUBSCRIBE_CAMERA_FRAMES:
+                commands.subscribeCameraFrames(in.getInt(), in.getInt(), in.getInt(),
+                        // Older clients do not send a format.
+                        in.remaining() >= 4 ? in.getInt() : FrameConverter.FORMAT_YUV);
+                break;
+            case CMD_UNSUBSCRIBE_CAMERA_FRAMES:
+                commands.unsubscribeCameraFrames();
+                break;
+            case CMD_START_POSE_STREAM:
+                commands.startPoseStream(in.getInt(), readBoolean(in));
+                break;
+            case CMD_STOP_POSE_STREAM:
+                commands.stopPoseStream();
+                break;
+            case CMD_SET_LOG_LEVEL:
+                commands.setLogLevel(in.getInt());
+                break;
+            case CMD_START_TRACE:
+                commands.startTrace(in.getInt());
+                break;
+            case CMD_STOP_TRACE:
+                commands.stopTrace();
+                break;
+            case CMD_REPLAY_TRACE:
+                commands.replayTrace(readString(in), in.getInt());
+                break;
+            case CMD_SET_TARGET_FRAME_RATE:
+                commands.setTargetFrameRate(in.getInt());
+                break;
+            case CMD_CONNECT_BEST:
+                commands.connectBest(readStrings(in), readString(in), readString(in),
+                        readString(in), readBoolean(in), readBoolean(in));
+                break;
+            case CMD_TELEMETRY_UPLOADED:
+                commands.telemetryUploaded(readString(in), readBoolean(in));
+                break;
+            case CMD_SWITCH_SERVER:
+                commands.switchServer(readString(in));
+                break;
+            case CMD_LIST_PROFILES:
+                commands.listProfiles();
+                break;
+            case CMD_SAVE_PROFILE:
+                commands.saveProfile(readString(in), readString(in), readString(in),
+                        readString(in), readString(in), readBoolean(in));
+                break;
+            case CMD_USE_PROFILE:
+                commands.useProfile(readString(in));
+                break;
+            case CMD_REMOVE_PROFILE:
+                commands.removeProfile(readString(in));
+                break;
+            default:
+                LogUtils.w(TAG, "Unknown command {}", type);
+                return STATUS_UNKNOWN_COMMAND;
+        }
+        return STATUS_OK;
+    }
+
+    /**
+     * Run a command sent as a method name on the older com.compal.cloudxr/messages channel.
+     * Returns false if the method is unknown.
+     */
+    public static boolean dispatchMethodCall(String method, Arguments arguments,
+                                             Commands commands) {
+        if (method.equals("stop_cloudxr")) {
+            commands.stop();
+        } else if (method.equals("subscribe_camera_frames")) {
+            Integer maxFps = arguments.get("maxFps");
+            Integer downscale = arguments.get("downscale");
+            Integer queueDepth = arguments.get("queueDepth");
+            Integer format = arguments.get("format");
+            commands.subscribeCameraFrames(
+                    maxFps != null ? maxFps : CameraFrameExporter.DEFAULT_MAX_FPS,
+                    downscale != null ? downscale : CameraFrameExporter.DEFAULT_DOWNSCALE,
+                    queueDepth != null ? queueDepth : CameraFrameExporter.DEFAULT_QUEUE_DEPTH,
+                    format != null ? format : FrameConverter.FORMAT_YUV);
+        } else if (method.equals("unsubscribe_camera_frames")) {
+            commands.unsubscribeCameraFrames();
+        } else if (method.equals("start_connection_stats")) {
+            Integer intervalMs = arguments.get("intervalMs");
+            Integer windowSize = arguments.get("windowSize");
+            commands.startConnectionStats(
+                    intervalMs != null ? intervalMs : ConnectionStatsMonitor.DEFAULT_INTERVAL_MS,
+                    windowSize != null ? windowSize : ConnectionStatsMonitor.DEFAULT_WINDOW_SIZE);
+        } else if (method.equals("stop_connection_stats")) {
+            commands.stopConnectionStats();
+        } else if (method.equals("disconnect_to_cloudxr")) {
+            commands.disconnect();
+        } else if (method.startsWith(SWITCH_PREFIX)) {
+            commands.switchServer(method.substring(SWITCH_PREFIX.length()));
+        } else if (method.startsWith(CONNECT_PREFIX)) {
+            String ip = method.substring(CONNECT_PREFIX.length());
+            if (ip.indexOf(',') >= 0) {
+                // Several edge servers to pick from.
+                commands.connectBest(Arrays.asList(ip.split(",")), "", "", "", false, false);
+            } else {
+                commands.connect(ip, "", ip, "", false, false);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Append one event from the EventBus as a batch entry. Returns false, leaving the buffer as
+     * it was, if the event has no binary form or does not fit.
+     */
+    public static boolean writeEvent(ByteBuffer out, Object event) {
+        try {
+            return writeEntry(out, event);
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Like writeEvent, but throws BufferOverflowException, still leaving the buffer as it was,
+     * if the event does not fit, so a batch can go on in another buffer.
+     */
+    private static boolean writeEntry(ByteBuffer out, Object event) {
+        int start = out.position();
+        if (out.remaining() < EVENT_HEADER_SIZE) {
+            throw new BufferOverflowException();
+        }
+        try {
+            out.position(start + EVENT_HEADER_SIZE);
+            int type;
+            if ("start_cloudxr".equals(event) || "stop_cloudxr".equals(event)) {
+                type = EVT_CLOUDXR_STATE;
+                out.put((byte) ("start_cloudxr".equals(event) ? 1 : 0));
+            } else if ("touch".equals(event)) {
+                type = EVT_TOUCH;
+            } else if (event instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) event;
+                Object name = map.get("type");
+                if (FrameMetrics.EVENT_TYPE.equals(name)) {
+                    type = EVT_FRAME_STATS;
+                    writeFrameStats(out, map);
+                } else if (ConnectionStatsMonitor.EVENT_TYPE.equals(name)) {
+                    type = EVT_CONNECTION_STATS;
+                    writeConnectionStats(out, map);
+                } else if (SessionRecovery.EVENT_TYPE.equals(name)) {
+                    type = EVT_SESSION_RECOVERY;
+                    out.put((byte) asLong(map.get("state")));
+                    out.putInt((int) asLong(map.get("attempt")));
+                    out.putInt((int) asLong(map.get("delay_ms")));
+                    out.putInt((int) asLong(map.get("status")));
+                } else if (QualityGovernor.EVENT_TYPE.equals(name)) {
+                    type = EVT_QUALITY;
+                    out.put((byte) asLong(map.get("level")));
+                    out.put((byte) asLong(map.get("previous")));
+                    out.put((byte) asLong(map.get("cause")));
+                    out.put((byte) asLong(map.get("thermal_status")));
+                    out.put((byte) asLong(map.get("battery_percent")));
+                    out.put((byte) (Boolean.TRUE.equals(map.get("charging")) ? 1 : 0));
+                    out.put((byte) asLong(map.get("quality_reasons")));
+                    out.putFloat((float) asDouble(map.get("res_factor")));
+                    out.putInt((int) asLong(map.get("fps")));
+                    out.putInt((int) asLong(map.get("bitrate_mbps")));
+                } else if (SessionWarmup.EVENT_TYPE.equals(name)) {
+                    type = EVT_WARMUP;
+                    out.putInt((int) asLong(map.get("native_ms")));
+                    out.putInt((int) asLong(map.get("resolve_ms")));
+                    out.putInt((int) asLong(map.get("probe_ms")));
+                    out.put((byte) (Boolean.TRUE.equals(map.get("reachable")) ? 1 : 0));
+                } else if (EdgeSelector.EVENT_TYPE.equals(name)) {
+                    type = EVT_EDGE_SELECTION;
+                    writeEdgeSelection(out, map);
+                } else if (ServerSwitcher.EVENT_TYPE.equals(name)) {
+                    type = EVT_SERVER_SWITCH;
+                    out.put((byte) asLong(map.get("state")));
+                    writeString(out, String.valueOf(map.get("server")));
+                    writeString(out, String.valueOf(map.get("previous")));
+                    out.putInt((int) asLong(map.get("preconnect_ms")));
+                    out.putInt((int) asLong(map.get("gap_ms")));
+                    out.putInt((int) asLong(map.get("status")));
+                } else if (ProfileStore.EVENT_TYPE.equals(name)) {
+                    type = EVT_PROFILES;
+                    writeProfiles(out, (List<?>) map.get("profiles"));
+                } else if (TelemetrySpool.EVENT_TYPE.equals(name)) {
+                    type = EVT_TELEMETRY_UPLOAD;
+                    writeString(out, String.valueOf(map.get("name")));
+                    writeString(out, String.valueOf(map.get("path")));
+                    out.putShort((short) asLong(map.get("segments")));
+                    out.putInt((int) asLong(map.get("raw_bytes")));
+                    out.putInt((int) asLong(map.get("compressed_bytes")));
+                } else {
+                    out.position(start);
+                    return false;
+                }
+            } else {
+                out.position(start);
+                return false;
+            }
+            int end = out.position();
+            out.put(start, (byte) type);
+            out.put(start + 1, (byte) 0);
+            out.putShort(start + 2, (short) checkCount(end - start - EVENT_HEADER_SIZE));
+            return true;
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            throw e;
+        } catch (IllegalArgumentException e) {
+            // Too long for a 16 bit length or count, whatever the buffer.
+            out.position(start);
+            return false;
+        }
+    }
+
+    /**
+     * Append a pose batch entry: timestamp, position xyz, orientation quaternion xyzw.
+     */
+    public static void writePoseEvent(ByteBuffer out, long timestampNs, float[] poses, int offset) {
+        out.put((byte) EVT_POSE);
+        out.put((byte) 0);
+        out.putShort((short) (8 + PoseStreamer.POSE_FLOATS * 4));
+        out.putLong(timestampNs);
+        for (int i = 0; i < PoseStreamer.POSE_FLOATS; i++) {
+            out.putFloat(poses[offset + i]);
+        }
+    }
+
+    private static void writeFrameStats(ByteBuffer out, Map<?, ?> map) {
+        out.putInt((int) asLong(map.get("period_ms")));
+        out.putInt((int) asLong(map.get("frames")));
+        out.putInt((int) asLong(map.get("dropped")));
+        out.putInt((int) asLong(map.get("errors")));
+        out.putInt((int) asLong(map.get("camera_dropped")));
+        Map<?, ?> stages = (Map<?, ?>) map.get("stages");
+        out.put((byte) FRAME_STAGES.length);
+        for (String stage : FRAME_STAGES) {
+            long[] values = (long[]) stages.get(stage);
+            for (int i = 0; i < 5; i++) {
+                out.putInt(values != null ? (int) values[i] : 0);
+            }
+        }
+    }
+
+    private static void writeConnectionStats(ByteBuffer out, Map<?, ?> map) {
+        out.putInt((int) asLong(map.get("samples")));
+        out.putInt((int) asLong(map.get("window_ms")));
+        out.putFloat((float) asDouble(map.get("fps")));
+        out.putFloat((float) asDouble(map.get("bitrate_kbps")));
+        out.putFloat((float) asDouble(map.get("bandwidth_min_kbps")));
+        out.putFloat((float) asDouble(map.get("rtt_ms")));
+        out.putFloat((float) asDouble(map.get("rtt_min_ms")));
+        out.putFloat((float) asDouble(map.get("rtt_max_ms")));
+        out.putFloat((float) asDouble(map.get("jitter_ms")));
+        out.putFloat((float) asDouble(map.get("packet_loss_percent")));
+        out.put((byte) asLong(map.get("quality")));
+        out.put((byte) asLong(map.get("quality_min")));
+        out.put((byte) asLong(map.get("quality_reasons")));
+        out.put((byte) (Boolean.TRUE.equals(map.get("degrading")) ? 1 : 0));
+    }
+
+    private static void writeEdgeSelection(ByteBuffer out, Map<?, ?> map) {
+        writeString(out, String.valueOf(map.get("selected")));
+        out.put((byte) (Boolean.TRUE.equals(map.get("fallback")) ? 1 : 0));
+        List<?> servers = (List<?>) map.get("servers");
+        out.putShort((short) checkCount(servers.size()));
+        for (Object entry : servers) {
+            Map<?, ?> server = (Map<?, ?>) entry;
+            writeString(out, String.valueOf(server.get("server")));
+            out.putFloat((float) asDouble(server.get("rtt_ms")));
+            out.putFloat((float) asDouble(server.get("jitter_ms")));
+            out.put((byte) asLong(server.get("lost")));
+            out.put((byte) (Boolean.TRUE.equals(server.get("reachable")) ? 1 : 0));
+        }
+    }
+
+    private static void writeProfiles(ByteBuffer out, List<?> profiles) {
+        out.putShort((short) checkCount(profiles.size()));
+        for (Object entry : profiles) {
+            Map<?, ?> profile = (Map<?, ?>) entry;
+            writeString(out, String.valueOf(profile.get("name")));
+            writeString(out, String.valueOf(profile.get("cloud_ip")));
+            writeString(out, String.valueOf(profile.get("anchor")));
+            writeString(out, String.valueOf(profile.get("webrtc_ip")));
+            writeString(out, String.valueOf(profile.get("room_id")));
+            out.put((byte) (Boolean.TRUE.equals(profile.get("mediapipe")) ? 1 : 0));
+        }
+    }
+
+    // Lengths and counts go into 16 bits; rather than cut a list short, refuse to write it.
+    private static int checkCount(int count) {
+        if (count > 0xFFFF) {
+            throw new IllegalArgumentException(count + " entries do not fit a 16 bit count");
+        }
+        return count;
+    }
+
+    private static long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static double asDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    /**
+     * Encode a batch of EventBus entries; entries without a binary form are skipped. Returns the
+     * number of events written.
+     */
+    public static int writeBatch(ByteBuffer out, List<Object> events) {
+        int start = out.position();
+        out.position(start + HEADER_SIZE);
+        int count = 0;
+        for (Object event : events) {
+            if (writeEvent(out, event)) {
+                count++;
+            }
+        }
+        int end = out.position();
+        out.position(start);
+        writeHeader(out, MSG_EVENT_BATCH, count);
+        out.position(end);
+        return count;
+    }
+
+    /**
+     * Encode events from index from on as one batch, up to the first one that does not fit
+     * rather than skipping it. Returns the index of that event, events.size() once every event
+     * is written or has no binary form.
+     */
+    public static int writeBatch(ByteBuffer out, List<Object> events, int from) {
+        int start = out.position();
+        out.position(start + HEADER_SIZE);
+        int count = 0;
+        int next = from;
+        try {
+            for (; next < events.size(); next++) {
+                if (writeEntry(out, events.get(next))) {
+                    count++;
+                }
+            }
+        } catch (BufferOverflowException e) {
+            // events.get(next) starts the next batch.
+        }
+        int end = out.position();
+        out.position(start);
+        writeHeader(out, MSG_EVENT_BATCH, count);
+        out.position(end);
+        return next;
+    }
+}
@@ -0,0 +1,386 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the edge server to connect to out of several candidates by how close they are.
+ * <p>
+ * Every candidate is probed at the same time, each with a few round trips in a row within a
+ * common deadline, so a server that does not answer costs the timeout once rather than once per
+ * candidate. The round trip time is the median of the samples and the jitter the mean difference
+ * between consecutive ones; lost samples count against a server. Results are cached for a while,
+ * so picking again, e.g. to fall back after a failed connect, does not probe again.
+ * <p>
+ * The default probe is a TCP connect to the CloudXR port, about one round trip. Candidates are a
+ * host or host:port, the latter lets local stand-in servers be probed. {@link #rank} blocks, call
+ * it off the main thread; everything else may be called on any thread. Every ranking is posted to
+ * the EventBus.
+ */
+public class EdgeSelector {
+    private static final String TAG = "EdgeSelector";
+
+    public static final String EVENT_TYPE = "edge_selection";
+
+    public static final int DEFAULT_SAMPLES = 4;
+    public static final int DEFAULT_TIMEOUT_MS = 1000;
+    public static final long DEFAULT_TTL_MS = 60_000;
+    // A ms of jitter costs as much as this many ms of round trip time.
+    public static final double JITTER_WEIGHT = 2;
+    // What a lost sample adds to the score.
+    public static final double LOSS_PENALTY_MS = 100;
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * Measures one round trip to a server.
+     */
+    public interface Prober {
+        /**
+         * Returns the round trip time in ns, -1 if the server did not answer within timeoutMs.
+         */
+        long measure(String host, int port, int timeoutMs);
+    }
+
+    /**
+     * Times a TCP connect, the handshake is one round trip.
+     */
+    public static final Prober TCP_PROBER = (host, port, timeoutMs) -> {
+        // Resolved ahead of the timer, the first sample of a host name would include the lookup.
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            return -1;
+        }
+        try (Socket socket = new Socket()) {
+            long start = System.nanoTime();
+            socket.connect(address, timeoutMs);
+            return System.nanoTime() - start;
+        } catch (IOException e) {
+            return -1;
+        }
+    };
+
+    /**
+     * What probing a server found.
+     */
+    public static final class Result {
+        public final String server;
+        // Median round trip time and mean jitter, -1 when unreachable.
+        public final double rttMs;
+        public final double jitterMs;
+        public final int samples;
+        public final int lost;
+        // System.nanoTime of the probe, for the cache.
+        final long probedNanos;
+
+        Result(String server, double rttMs, double jitterMs, int samples, int lost,
+               long probedNanos) {
+            this.server = server;
+            this.rttMs = rttMs;
+            this.jitterMs = jitterMs;
+            this.samples = samples;
+            this.lost = lost;
+            this.probedNanos = probedNanos;
+        }
+
+        public boolean isReachable() {
+            return samples > lost;
+        }
+
+        /**
+         * Lower is better.
+         */
+        public double score() {
+            return rttMs + JITTER_WEIGHT * jitterMs + LOSS_PENALTY_MS * lost;
+        }
+    }
+
+    /**
+     * A ranking being connected down: the best server first, then the next reachable one each
+     * time connecting fails. Not thread safe.
+     */
+    public final class Selection {
+        private final List<Result> ranked;
+        private int index = 0;
+
+        Selection(List<Result> ranked) {
+            this.ranked = ranked;
+        }
+
+        public List<Result> getRanked() {
+            return ranked;
+        }
+
+        /**
+         * The server to connect to, null once none is left that answered.
+         */
+        public String getServer() {
+            return index < ranked.size() && ranked.get(index).isReachable()
+                    ? ranked.get(index).server : null;
+        }
+
+        /**
+         * Connecting to the current server failed: rank it as unreachable until its result
+         * expires and move on. Returns the next server, null if there is none.
+         */
+        public String fallBack() {
+            String failed = getServer();
+            if (failed == null) {
+                return null;
+            }
+            invalidate(failed);
+            index++;
+            String next = getServer();
+            LogUtils.w(TAG, "Connecting to {} failed", failed);
+            LogUtils.i(TAG, "Falling back to {}", next);
+            post(ranked, next, true);
+            return next;
+        }
+    }
+
+    private final Prober prober;
+    private final EventBus eventBus;
+    private final Map<String, Result> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger probes = new AtomicInteger();
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS, task -> {
+        Thread thread = new Thread(task, "EdgeProbe");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile int samples = DEFAULT_SAMPLES;
+    private volatile int timeoutMs = DEFAULT_TIMEOUT_MS;
+    private volatile long ttlNanos = DEFAULT_TTL_MS * 1_000_000L;
+
+    public EdgeSelector(Prober prober, EventBus eventBus) {
+        this.prober = prober;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Round trips per server and the deadline they all have to fit in.
+     */
+    public void setProbe(int samples, int timeoutMs) {
+        this.samples = Math.max(1, samples);
+        this.timeoutMs = Math.max(1, timeoutMs);
+    }
+
+    /**
+     * How long a result is used before the server is probed again.
+     */
+    public void setTtl(long ttlMs) {
+        ttlNanos = Math.max(0, ttlMs) * 1_000_000L;
+    }
+
+    /**
+     * Servers probed so far, not counting cache hits.
+     */
+    public int getProbes() {
+        return probes.get();
+    }
+
+    /**
+     * Rank candidates, best first, probing those without a fresh result. Unreachable servers
+     * come last, in the order given.
+     */
+    public List<Result> rank(List<String> candidates) {
+        long now = System.nanoTime();
+        List<String> stale = new ArrayList<>();
+        for (String server : candidates) {
+            Result cached = cache.get(server);
+            if ((cached == null || now - cached.probedNanos >= ttlNanos)
+                    && !stale.contains(server)) {
+                stale.add(server);
+            }
+        }
+        if (!stale.isEmpty()) {
+            probeAll(stale);
+        }
+
+        List<Result> ranked = new ArrayList<>();
+        for (String server : candidates) {
+            Result result = cache.get(server);
+            if (result != null && !ranked.contains(result)) {
+                ranked.add(result);
+            }
+        }
+        // Stable, ties keep the order given.
+        Collections.sort(ranked, (a, b) -> {
+            if (a.isReachable() != b.isReachable()) {
+                return a.isReachable() ? -1 : 1;
+            }
+            return a.isReachable() ? Double.compare(a.score(), b.score()) : 0;
+        });
+        post(ranked, !ranked.isEmpty() && ranked.get(0).isReachable() ? ranked.get(0).server
+                : null, false);
+        return ranked;
+    }
+
+    /**
+     * {@link #rank} the candidates, to connect to the best one and fall back from there.
+     */
+    public Selection select(List<String> candidates) {
+        return new Selection(rank(candidates));
+    }
+
+    /**
+     * The host part of a candidate, what the CloudXR client connects to.
+     */
+    public static String hostOf(String server) {
+        int colon = server.lastIndexOf(':');
+        return colon > 0 && server.indexOf(':') == colon ? server.substring(0, colon) : server;
+    }
+
+    /**
+     * Probe server whatever the cache holds, e.g. before moving a running session to it: a
+     * server just {@link #invalidate}d would rank as unreachable until that expires. Blocks for
+     * up to the probe timeout.
+     */
+    public boolean probeNow(String server) {
+        probeAll(Collections.singletonList(server));
+        Result result = cache.get(server);
+        return result != null && result.isReachable();
+    }
+
+    /**
+     * Connecting to server failed: rank it as unreachable until the result expires.
+     */
+    public void invalidate(String server) {
+        cache.put(server, unreachable(server, samples, System.nanoTime()));
+    }
+
+    /**
+     * Forget every result.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void probeAll(List<String> servers) {
+        int samples = this.samples;
+        int timeoutMs = this.timeoutMs;
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        List<Callable<Result>> tasks = new ArrayList<>();
+        for (String server : servers) {
+            tasks.add(() -> probe(server, samples, deadline));
+        }
+        List<Future<Result>> futures;
+        try {
+            // A little over the deadline: a probe running into it still returns its samples.
+            futures = executor.invokeAll(tasks, timeoutMs + timeoutMs / 4 + 10,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (RejectedExecutionException e) {
+            // Shut down.
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < futures.size(); i++) {
+            String server = servers.get(i);
+            Result result;
+            try {
+                result = futures.get(i).get();
+            } catch (CancellationException | ExecutionException e) {
+                LogUtils.w(TAG, "Probing {} did not finish", server);
+                result = unreachable(server, samples, now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            cache.put(server, result);
+        }
+    }
+
+    private Result probe(String server, int samples, long deadline) {
+        probes.incrementAndGet();
+        String host = server;
+        int port = SessionWarmup.CLOUDXR_PORT;
+        int colon = server.lastIndexOf(':');
+        if (colon > 0 && server.indexOf(':') == colon) {
+            try {
+                port = Integer.parseInt(server.substring(colon + 1));
+                host = server.substring(0, colon);
+            } catch (NumberFormatException e) {
+                LogUtils.w(TAG, "Bad port in {}", server);
+            }
+        }
+
+        double[] rtts = new double[samples];
+        int count = 0;
+        int lost = 0;
+        for (int i = 0; i < samples; i++) {
+            int remainingMs = (int) ((deadline - System.nanoTime()) / 1_000_000);
+            if (remainingMs <= 0) {
+                lost += samples - i;
+                break;
+            }
+            long rttNanos = prober.measure(host, port, remainingMs);
+            if (rttNanos < 0) {
+                lost++;
+            } else {
+                rtts[count++] = rttNanos / 1e6;
+            }
+        }
+        if (count == 0) {
+            LogUtils.d(TAG, "{} unreachable", server);
+            return unreachable(server, samples, System.nanoTime());
+        }
+
+        double jitter = 0;
+        for (int i = 1; i < count; i++) {
+            jitter += Math.abs(rtts[i] - rtts[i - 1]);
+        }
+        jitter = count > 1 ? jitter / (count - 1) : 0;
+        double[] sorted = Arrays.copyOf(rtts, count);
+        Arrays.sort(sorted);
+        double median = count % 2 == 1 ? sorted[count / 2]
+                : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+        LogUtils.d(TAG, "{} rtt {} us", server, (long) (median * 1000));
+        return new Result(server, median, jitter, samples, lost, System.nanoTime());
+    }
+
+    private static Result unreachable(String server, int samples, long now) {
+        return new Result(server, -1, -1, samples, samples, now);
+    }
+
+    private void post(List<Result> ranked, String selected, boolean fallback) {
+        List<Map<String, Object>> servers = new ArrayList<>();
+        for (Result result : ranked) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("server", result.server);
+            entry.put("rtt_ms", result.rttMs);
+            entry.put("jitter_ms", result.jitterMs);
+            entry.put("lost", result.lost);
+            entry.put("reachable", result.isReachable());
+            servers.add(entry);
+        }
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("servers", servers);
+        event.put("selected", selected != null ? selected : "");
+        event.put("fallback", fallback);
+        eventBus.post(event);
+    }
+}
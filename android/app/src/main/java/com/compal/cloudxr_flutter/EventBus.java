@@ -0,0 +1,101 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects events for Flutter from any thread and delivers them once per vsync as a single
+ * batch.
+ * <p>
+ * One-off events go through a lock-free queue and keep their order. State events only keep the
+ * latest value per slot, so a state that flips several times within a frame costs one entry.
+ * Posting never touches the scheduler unless no drain is pending yet.
+ */
+public class EventBus {
+    // Coalesced state slots; only the latest value posted before a drain is delivered.
+    public static final int STATE_CLOUDXR = 0;
+    public static final int STATE_FRAME_STATS = 1;
+    public static final int STATE_CONNECTION_STATS = 2;
+    public static final int STATE_RECOVERY = 3;
+    private static final int STATE_COUNT = 4;
+
+    /**
+     * Runs a drain on the delivering thread, see {@link ChoreographerScheduler}.
+     */
+    public interface Scheduler {
+        /**
+         * May be called on any thread, at most once until the drain has started.
+         */
+        void schedule(Runnable drain);
+    }
+
+    public interface Listener {
+        /**
+         * Called from the drain with a non-empty batch, which is reused once this returns.
+         */
+        void onEvents(List<Object> batch);
+    }
+
+    private final ConcurrentLinkedQueue<Object> events = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<Object> states = new AtomicReferenceArray<>(STATE_COUNT);
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final Runnable drainRunnable = this::drain;
+    private final Scheduler scheduler;
+    private final Listener listener;
+
+    // Only touched by the drain.
+    private final List<Object> batch = new ArrayList<>();
+
+    public EventBus(Scheduler scheduler, Listener listener) {
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    /**
+     * Queue a one-off event. May be called on any thread.
+     */
+    public void post(Object event) {
+        events.offer(event);
+        scheduleDrain();
+    }
+
+    /**
+     * Replace the pending value of a state slot. May be called on any thread.
+     */
+    public void postState(int slot, Object value) {
+        states.set(slot, value);
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(drainRunnable);
+        }
+    }
+
+    /**
+     * Deliver everything posted so far. Normally run by the scheduler.
+     */
+    public void drain() {
+        // Clear first so anything posted while draining schedules the next frame.
+        drainScheduled.set(false);
+        Object event;
+        while ((event = events.poll()) != null) {
+            batch.add(event);
+        }
+        for (int i = 0; i < STATE_COUNT; i++) {
+            Object state = states.getAndSet(i, null);
+            if (state != null) {
+                batch.add(state);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        listener.onEvents(batch);
+        batch.clear();
+    }
+}
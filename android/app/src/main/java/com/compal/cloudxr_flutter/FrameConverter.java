@@ -0,0 +1,219 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts camera frames as filled by {@link CameraFramePool} (YUV_420_888 planes, any row and
+ * pixel strides) to RGBA, RGB or grayscale, cropping and downscaling in the same pass.
+ * <p>
+ * The output is a camera frame too: the same header, with the pixels as the only plane. Its row
+ * stride is width times {@link #bytesPerPixel}, the U and V planes are empty and the UV pixel
+ * stride is 0, which tells it apart from a YUV frame. Downscaling averages each scale x scale
+ * block of luma and takes the chroma sample at its center; colors are full range BT.601, as the
+ * camera delivers them.
+ * <p>
+ * Output rows are split into stripes converted on a fork-join pool, the calling thread taking
+ * the first one. The stripe tasks are reused, so converting into a reused buffer allocates
+ * nothing. One conversion at a time; concurrent calls wait for each other.
+ */
+public class FrameConverter {
+    private static final String TAG = "FrameConverter";
+
+    // FORMAT_YUV is the frame as native code copied it, the others are converted.
+    public static final int FORMAT_YUV = 0;
+    public static final int FORMAT_RGBA = 1;
+    public static final int FORMAT_RGB = 2;
+    public static final int FORMAT_GRAY = 3;
+
+    // Below this many rows a stripe costs more to hand over than to convert.
+    private static final int MIN_STRIPE_ROWS = 16;
+
+    private final ForkJoinPool pool;
+    private final Stripe[] stripes;
+
+    // The conversion in progress, written before the stripes are forked.
+    private ByteBuffer src;
+    private ByteBuffer dst;
+    private int yBase;
+    private int uBase;
+    private int vBase;
+    private int yStride;
+    private int uvStride;
+    private int uvPixelStride;
+    private int cropX;
+    private int cropY;
+    private int scale;
+    private int format;
+    private int outWidth;
+
+    public FrameConverter(ForkJoinPool pool) {
+        this.pool = pool;
+        stripes = new Stripe[Math.max(1, pool.getParallelism() + 1)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public static int bytesPerPixel(int format) {
+        switch (format) {
+            case FORMAT_RGBA:
+                return 4;
+            case FORMAT_RGB:
+                return 3;
+            case FORMAT_GRAY:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Not a converted format: " + format);
+        }
+    }
+
+    /**
+     * Size of a converted frame, header included.
+     */
+    public static int frameSize(int format, int width, int height) {
+        return CameraFramePool.HEADER_SIZE + width * height * bytesPerPixel(format);
+    }
+
+    /**
+     * Convert the part of frame at (cropX, cropY) of cropWidth x cropHeight, the whole frame if
+     * cropWidth or cropHeight is 0, shrunk by scale, into out from position 0.
+     *
+     * @return the number of bytes written, 0 if nothing is left after cropping, or minus the size
+     * out needs if it is too small.
+     */
+    public synchronized int convert(ByteBuffer frame, int cropX, int cropY, int cropWidth,
+                                    int cropHeight, int scale, int format, ByteBuffer out) {
+        int bytesPerPixel = bytesPerPixel(format);
+        int width = frame.getInt(CameraFramePool.WIDTH_OFFSET);
+        int height = frame.getInt(CameraFramePool.HEIGHT_OFFSET);
+        scale = Math.max(1, scale);
+        cropX = Math.min(Math.max(0, cropX), width);
+        cropY = Math.min(Math.max(0, cropY), height);
+        cropWidth = cropWidth > 0 ? Math.min(cropWidth, width - cropX) : width - cropX;
+        cropHeight = cropHeight > 0 ? Math.min(cropHeight, height - cropY) : height - cropY;
+        int outWidth = cropWidth / scale;
+        int outHeight = cropHeight / scale;
+        if (outWidth == 0 || outHeight == 0) {
+            return 0;
+        }
+        int size = frameSize(format, outWidth, outHeight);
+        if (out.capacity() < size) {
+            return -size;
+        }
+
+        src = frame;
+        dst = out;
+        yBase = CameraFramePool.HEADER_SIZE;
+        uBase = yBase + frame.getInt(CameraFramePool.Y_LENGTH_OFFSET);
+        vBase = uBase + frame.getInt(CameraFramePool.U_LENGTH_OFFSET);
+        yStride = frame.getInt(CameraFramePool.Y_STRIDE_OFFSET);
+        uvStride = frame.getInt(CameraFramePool.UV_STRIDE_OFFSET);
+        uvPixelStride = frame.getInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET);
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.scale = scale;
+        this.format = format;
+        this.outWidth = outWidth;
+
+        int count = Math.min(stripes.length, Math.max(1, outHeight / MIN_STRIPE_ROWS));
+        for (int i = 1; i < count; i++) {
+            Stripe stripe = stripes[i];
+            stripe.reinitialize();
+            stripe.first = outHeight * i / count;
+            stripe.last = outHeight * (i + 1) / count;
+            pool.execute(stripe);
+        }
+        try {
+            convertRows(0, outHeight / count);
+        } finally {
+            // Even if this stripe failed, the others still write into out.
+            for (int i = 1; i < count; i++) {
+                stripes[i].quietlyJoin();
+            }
+            src = null;
+            dst = null;
+        }
+        for (int i = 1; i < count; i++) {
+            // Rethrows what went wrong in the stripe, if anything.
+            stripes[i].join();
+        }
+
+        out.putInt(CameraFramePool.WIDTH_OFFSET, outWidth);
+        out.putInt(CameraFramePool.HEIGHT_OFFSET, outHeight);
+        out.putInt(CameraFramePool.Y_STRIDE_OFFSET, outWidth * bytesPerPixel);
+        out.putInt(CameraFramePool.UV_STRIDE_OFFSET, 0);
+        out.putInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET, 0);
+        out.putInt(CameraFramePool.Y_LENGTH_OFFSET, size - CameraFramePool.HEADER_SIZE);
+        out.putInt(CameraFramePool.U_LENGTH_OFFSET, 0);
+        out.putInt(CameraFramePool.V_LENGTH_OFFSET, 0);
+        out.putLong(CameraFramePool.TIMESTAMP_OFFSET,
+                frame.getLong(CameraFramePool.TIMESTAMP_OFFSET));
+        out.limit(size);
+        return size;
+    }
+
+    private void convertRows(int first, int last) {
+        ByteBuffer src = this.src;
+        ByteBuffer dst = this.dst;
+        int scale = this.scale;
+        int blockPixels = scale * scale;
+        int bytesPerPixel = bytesPerPixel(format);
+        boolean gray = format == FORMAT_GRAY;
+        boolean alpha = format == FORMAT_RGBA;
+        for (int row = first; row < last; row++) {
+            int top = cropY + row * scale;
+            int o = CameraFramePool.HEADER_SIZE + row * outWidth * bytesPerPixel;
+            // Chroma rows and columns are half the luma ones.
+            int uvRow = ((top + scale / 2) >> 1) * uvStride;
+            for (int col = 0; col < outWidth; col++) {
+                int left = cropX + col * scale;
+                int y;
+                if (scale == 1) {
+                    y = src.get(yBase + top * yStride + left) & 0xFF;
+                } else {
+                    int sum = 0;
+                    for (int j = 0; j < scale; j++) {
+                        int line = yBase + (top + j) * yStride + left;
+                        for (int i = 0; i < scale; i++) {
+                            sum += src.get(line + i) & 0xFF;
+                        }
+                    }
+                    y = sum / blockPixels;
+                }
+                if (gray) {
+                    dst.put(o++, (byte) y);
+                    continue;
+                }
+                int uv = uvRow + ((left + scale / 2) >> 1) * uvPixelStride;
+                int u = (src.get(uBase + uv) & 0xFF) - 128;
+                int v = (src.get(vBase + uv) & 0xFF) - 128;
+                // 16.16 fixed point: 1.402, 0.344136, 0.714136 and 1.772.
+                dst.put(o++, clamp(y + ((91881 * v) >> 16)));
+                dst.put(o++, clamp(y - ((22554 * u + 46802 * v) >> 16)));
+                dst.put(o++, clamp(y + ((116130 * u) >> 16)));
+                if (alpha) {
+                    dst.put(o++, (byte) 0xFF);
+                }
+            }
+        }
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    // Output rows [first, last), converted on the pool.
+    private class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int first;
+        int last;
+
+        @Override
+        protected void compute() {
+            convertRows(first, last);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size log-linear histogram of durations in microseconds, in the style of HdrHistogram.
+ * <p>
+ * Values below 32us get their own bucket; above that every power of two is split into 16
+ * buckets, so any recorded value is reported within ~6% of its true value. All storage is
+ * allocated up front, recording never allocates. Not thread safe: record and read on one thread.
+ */
+public class FrameHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // Largest shift keeps the top bucket at ~67 s, far beyond any sane frame.
+    private static final int MAX_SHIFT = 22;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * SUB_BUCKET_HALF;
+    private static final long MAX_VALUE = ((long) SUB_BUCKET_COUNT << MAX_SHIFT) - 1;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long maxValue;
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts[indexOf(value)]++;
+        totalCount++;
+        if (value > maxValue) {
+            maxValue = value;
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return maxValue;
+    }
+
+    /**
+     * The value at the given percentile (0..100), or 0 if nothing was recorded.
+     */
+    public long getPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(totalCount * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        maxValue = 0;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift so the top SUB_BUCKET_BITS bits land in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT).
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF
+                + (int) ((value >> shift) - SUB_BUCKET_HALF);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF + 1;
+        long subBucket = offset % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
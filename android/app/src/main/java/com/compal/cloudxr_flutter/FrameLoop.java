@@ -0,0 +1,313 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+
+/**
+ * The OpenGL thread side of ArController: the per-frame native calls, tracking state
+ * transitions, frame metrics and the camera frame hand-off.
+ * <p>
+ * Nothing here touches Android or Flutter types, so the frame loop can be driven against a
+ * {@link SimulatedNativeBridge} on a plain JVM. ArController forwards the renderer callbacks;
+ * unless noted otherwise every method must be called on the GL thread.
+ */
+public class FrameLoop {
+    private static final String TAG = "FrameLoop";
+
+    private static final int TOUCH_QUEUE_CAPACITY = 32;
+
+    /**
+     * What the frame loop needs from the platform; implemented by ArController.
+     */
+    public interface Host {
+        /**
+         * Current display rotation, asked when the viewport geometry may have changed.
+         */
+        int getDisplayRotation();
+
+        /**
+         * The first plane was detected after {@link #setWaitingForPlanes} was set.
+         */
+        void onPlanesDetected();
+
+        /**
+         * The tracking state bits changed, state is the new value.
+         */
+        void onTrackingStateChanged(int state);
+
+        /**
+         * onGlSurfaceDrawFrame reported an error, once per failing frame. recoverable tells
+         * whether {@link #reconnect} can fix it.
+         */
+        void onFrameError(int status, boolean recoverable);
+    }
+
+    private final NativeBridge bridge;
+    private final NativeHandle nativeHandle;
+    private final EventBus eventBus;
+    private final CameraFrameExporter cameraFrameExporter;
+    private final Host host;
+    private final FrameMetrics frameMetrics = new FrameMetrics();
+    private final TouchQueue touchQueue = new TouchQueue(TOUCH_QUEUE_CAPACITY);
+    // What native code reads the drained touches from, see hello_ar::TouchSample.
+    private final ByteBuffer touchBatch = ByteBuffer.allocateDirect(
+            TOUCH_QUEUE_CAPACITY * TouchQueue.SAMPLE_SIZE).order(ByteOrder.nativeOrder());
+
+    // Written on the main thread.
+    private volatile boolean waitingForPlanes = false;
+    private volatile boolean viewportChanged = false;
+    // Set while the session is being recorded.
+    private volatile TraceRecorder traceRecorder;
+
+    private int viewportWidth;
+    private int viewportHeight;
+    private float displayRefreshRate = 60;
+    // Frame rate drawing is paced to, 0 when following the display.
+    private float frameRate = 0;
+    // Last state from pollTrackingState.
+    private int trackingState = 0;
+    // The surface was created before the native application, see SessionWarmup; its GL content
+    // is set up on the first frame after.
+    private boolean glContentPending = false;
+
+    public FrameLoop(NativeBridge bridge, NativeHandle nativeHandle, EventBus eventBus,
+                     CameraFrameExporter cameraFrameExporter, Host host) {
+        this.bridge = bridge;
+        this.nativeHandle = nativeHandle;
+        this.eventBus = eventBus;
+        this.cameraFrameExporter = cameraFrameExporter;
+        this.host = host;
+    }
+
+    public void onSurfaceCreated() {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            glContentPending = nativeHandle.isDetached();
+            return;
+        }
+        glContentPending = false;
+        bridge.onGlSurfaceCreated(nativeApplication);
+        nativeHandle.release();
+    }
+
+    public void onSurfaceChanged(int width, int height, float refreshRate) {
+        viewportWidth = width;
+        viewportHeight = height;
+        viewportChanged = true;
+        displayRefreshRate = refreshRate;
+        frameMetrics.setRefreshRate(frameRate > 0 ? frameRate : displayRefreshRate);
+    }
+
+    /**
+     * The frame rate {@link RenderScheduler} draws at, 0 for the display's; frame intervals are
+     * judged against it.
+     */
+    public void setFrameRate(float frameRate) {
+        this.frameRate = frameRate;
+        frameMetrics.setRefreshRate(frameRate > 0 ? frameRate : displayRefreshRate);
+        // The switch itself is not a dropped frame.
+        frameMetrics.resetInterval();
+    }
+
+    /**
+     * The display rotated without a resize. May be called on any thread.
+     */
+    public void onDisplayChanged() {
+        viewportChanged = true;
+    }
+
+    /**
+     * Whether the host waits for {@link Host#onPlanesDetected}. May be called on any thread.
+     */
+    public void setWaitingForPlanes(boolean waiting) {
+        waitingForPlanes = waiting;
+    }
+
+    /**
+     * Record geometry changes, touches, tracking transitions and frame statuses to recorder, or
+     * stop with null. May be called on any thread.
+     */
+    public void setTraceRecorder(TraceRecorder recorder) {
+        traceRecorder = recorder;
+    }
+
+    /**
+     * Forget the previous frame after a pause, so the gap is not counted as dropped frames.
+     */
+    public void resetInterval() {
+        frameMetrics.resetInterval();
+    }
+
+    /**
+     * Pass CloudXROptionsParser arguments to native code, see {@link QualityGovernor}. They are
+     * used from the next connect on.
+     */
+    public void setArgs(String args) {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return;
+        }
+        try {
+            bridge.setArgs(nativeApplication, args);
+        } finally {
+            nativeHandle.release();
+        }
+    }
+
+    /**
+     * Replace the CloudXR connection, see {@link SessionRecovery}. Returns the status from
+     * reconnect, 0 if the native application is gone.
+     */
+    public int reconnect() {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return 0;
+        }
+        try {
+            int status = bridge.reconnect(nativeApplication);
+            if (status != 0) {
+                LogUtils.e(TAG, "Error [{}] reported while reconnecting.", status);
+            }
+            return status;
+        } finally {
+            nativeHandle.release();
+        }
+    }
+
+    /**
+     * Whether the last error can be fixed by {@link #reconnect}.
+     */
+    public boolean isSessionRecoverable() {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return false;
+        }
+        try {
+            return bridge.isSessionRecoverable(nativeApplication);
+        } finally {
+            nativeHandle.release();
+        }
+    }
+
+    /**
+     * Queue a touch for the next frame, which hands every touch since the previous one to native
+     * code in a single batch. timestampNs is the event time on the clock camera frames are
+     * stamped with, so native code can tell which frame was on screen. Main thread only; returns
+     * false if the queue was full.
+     */
+    public boolean postTouch(float x, float y, int action, long timestampNs) {
+        if (!touchQueue.offer(x, y, action, timestampNs)) {
+            LogUtils.w(TAG, "Touch queue full, dropped {} touches", touchQueue.getDropped());
+            return false;
+        }
+        return true;
+    }
+
+    public int getTrackingState() {
+        return trackingState;
+    }
+
+    /**
+     * Draw one frame. Returns the status from onGlSurfaceDrawFrame, 0 if the native application
+     * is gone.
+     */
+    public int onDrawFrame() {
+        // The reference keeps onDestroy from deleting the native application under us.
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return 0;
+        }
+        if (glContentPending) {
+            glContentPending = false;
+            bridge.onGlSurfaceCreated(nativeApplication);
+        }
+        long frameStart = frameMetrics.beginFrame(System.nanoTime());
+        TraceRecorder trace = traceRecorder;
+        try {
+            long stageStart = frameStart;
+            // Before the draw moves the session on, while the frame the touches saw is current.
+            int touches = touchQueue.drainTo(touchBatch);
+            if (touches > 0) {
+                if (trace != null) {
+                    recordTouches(trace, touches);
+                }
+                bridge.onTouchBatch(nativeApplication, touchBatch, touches);
+            }
+            // Reports the state left by the previous frame; native only answers when it changed.
+            int tracking = bridge.pollTrackingState(nativeApplication);
+            if (tracking != NativeBridge.TRACKING_UNCHANGED) {
+                if (trace != null) {
+                    trace.recordTracking(tracking);
+                }
+                onTrackingStateChanged(tracking);
+            }
+            if (waitingForPlanes && (trackingState & NativeBridge.TRACKING_PLANES) != 0) {
+                waitingForPlanes = false;
+                host.onPlanesDetected();
+            }
+            stageStart = frameMetrics.record(FrameMetrics.STAGE_ANCHOR, stageStart);
+
+            if (viewportChanged) {
+                viewportChanged = false;
+                int rotation = host.getDisplayRotation();
+                if (trace != null) {
+                    trace.recordGeometry(rotation, viewportWidth, viewportHeight);
+                }
+                bridge.onDisplayGeometryChanged(nativeApplication, rotation, viewportWidth,
+                        viewportHeight);
+                stageStart = frameMetrics.record(FrameMetrics.STAGE_GEOMETRY, stageStart);
+            }
+
+            int status = bridge.onGlSurfaceDrawFrame(nativeApplication);
+            stageStart = frameMetrics.record(FrameMetrics.STAGE_DRAW, stageStart);
+            if (trace != null) {
+                trace.recordFrame(status);
+            }
+            if (status != 0) {
+                LogUtils.e(TAG, "Error [{}] reported during frame update.", status);
+                host.onFrameError(status,
+                        bridge.isSessionRecoverable(nativeApplication));
+            } else if (cameraFrameExporter.hasSubscribers()) {
+                cameraFrameExporter.onFrame(nativeApplication);
+                frameMetrics.record(FrameMetrics.STAGE_CAMERA, stageStart);
+            }
+            frameMetrics.endFrame(frameStart, status != 0);
+            publishFrameMetrics();
+            return status;
+        } finally {
+            nativeHandle.release();
+        }
+    }
+
+    private void recordTouches(TraceRecorder trace, int count) {
+        for (int i = 0; i < count; i++) {
+            int offset = i * TouchQueue.SAMPLE_SIZE;
+            trace.recordTouch(touchBatch.getFloat(offset + TouchQueue.X_OFFSET),
+                    touchBatch.getFloat(offset + TouchQueue.Y_OFFSET),
+                    touchBatch.getInt(offset + TouchQueue.ACTION_OFFSET));
+        }
+    }
+
+    private void onTrackingStateChanged(int state) {
+        int changed = state ^ trackingState;
+        trackingState = state;
+        host.onTrackingStateChanged(state);
+        if ((changed & NativeBridge.TRACKING_CLOUDXR_ANCHOR) != 0) {
+            boolean cloudXrStatus = (state & NativeBridge.TRACKING_CLOUDXR_ANCHOR) != 0;
+            eventBus.postState(EventBus.STATE_CLOUDXR,
+                    cloudXrStatus ? "start_cloudxr" : "stop_cloudxr");
+        }
+        if ((changed & NativeBridge.TRACKING_CAMERA) != 0) {
+            LogUtils.d(TAG, "camera tracking {}", (state & NativeBridge.TRACKING_CAMERA) != 0);
+        }
+    }
+
+    private void publishFrameMetrics() {
+        Map<String, Object> snapshot = frameMetrics.snapshotIfDue(
+                System.nanoTime(), cameraFrameExporter.getDroppedFrames());
+        if (snapshot != null) {
+            eventBus.postState(EventBus.STATE_FRAME_STATS, snapshot);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-stage frame timings for the GL thread.
+ * <p>
+ * onDrawFrame brackets each stage with {@link #record(int, long)}; durations land in
+ * preallocated {@link FrameHistogram}s, so nothing is allocated per frame. Once per publish
+ * period {@link #snapshotIfDue(long, long)} returns a compact map for the events channel and
+ * starts a new window. Every method must be called on the GL thread.
+ */
+public class FrameMetrics {
+    public static final String EVENT_TYPE = "frame_stats";
+
+    public static final int STAGE_ANCHOR = 0;
+    public static final int STAGE_GEOMETRY = 1;
+    public static final int STAGE_DRAW = 2;
+    public static final int STAGE_CAMERA = 3;
+    public static final int STAGE_TOTAL = 4;
+    public static final int STAGE_INTERVAL = 5;
+    private static final String[] STAGE_NAMES =
+            {"anchor", "geometry", "draw", "camera", "total", "interval"};
+
+    public static final long DEFAULT_PUBLISH_PERIOD_NANOS = 2_000_000_000L;
+
+    private final FrameHistogram[] histograms = new FrameHistogram[STAGE_NAMES.length];
+    private final long publishPeriodNanos;
+
+    private long windowStartNanos = 0;
+    private long lastFrameStartNanos = 0;
+    // A frame whose interval is above this counts as dropped, i.e. at least one vsync missed.
+    private long droppedThresholdNanos = 1_000_000_000L / 60 * 3 / 2;
+    private long frames;
+    private long droppedFrames;
+    private long errorFrames;
+    private long lastCameraDroppedFrames;
+
+    public FrameMetrics() {
+        this(DEFAULT_PUBLISH_PERIOD_NANOS);
+    }
+
+    public FrameMetrics(long publishPeriodNanos) {
+        this.publishPeriodNanos = publishPeriodNanos;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new FrameHistogram();
+        }
+    }
+
+    /**
+     * Frame intervals longer than 1.5 display refreshes are counted as dropped frames.
+     */
+    public void setRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            droppedThresholdNanos = (long) (1_000_000_000L / refreshRate * 1.5f);
+        }
+    }
+
+    /**
+     * Start of a frame; returns the timestamp to pass to the first {@link #record}.
+     */
+    public long beginFrame(long nowNanos) {
+        if (windowStartNanos == 0) {
+            windowStartNanos = nowNanos;
+        }
+        if (lastFrameStartNanos != 0) {
+            long interval = nowNanos - lastFrameStartNanos;
+            histograms[STAGE_INTERVAL].recordNanos(interval);
+            if (interval > droppedThresholdNanos) {
+                droppedFrames++;
+            }
+        }
+        lastFrameStartNanos = nowNanos;
+        frames++;
+        return nowNanos;
+    }
+
+    /**
+     * Record a stage that started at startNanos; returns the end timestamp so stages can chain.
+     */
+    public long record(int stage, long startNanos) {
+        long now = System.nanoTime();
+        histograms[stage].recordNanos(now - startNanos);
+        return now;
+    }
+
+    public void endFrame(long frameStartNanos, boolean error) {
+        record(STAGE_TOTAL, frameStartNanos);
+        if (error) {
+            errorFrames++;
+        }
+    }
+
+    /**
+     * Forget the previous frame, e.g. after a pause, so the gap is not counted as dropped frames.
+     */
+    public void resetInterval() {
+        lastFrameStartNanos = 0;
+    }
+
+    /**
+     * Returns the stats gathered since the last snapshot once the publish period has elapsed, and
+     * starts a new window; null otherwise. Durations are in microseconds, each stage reported as
+     * [count, p50, p95, p99, max]. cameraDroppedFrames is the exporter's running total.
+     */
+    public Map<String, Object> snapshotIfDue(long nowNanos, long cameraDroppedFrames) {
+        long elapsed = nowNanos - windowStartNanos;
+        if (windowStartNanos == 0 || elapsed < publishPeriodNanos) {
+            return null;
+        }
+        Map<String, Object> stages = new HashMap<>();
+        for (int i = 0; i < histograms.length; i++) {
+            FrameHistogram histogram = histograms[i];
+            stages.put(STAGE_NAMES[i], new long[]{
+                    histogram.getTotalCount(),
+                    histogram.getPercentile(50),
+                    histogram.getPercentile(95),
+                    histogram.getPercentile(99),
+                    histogram.getMax()});
+            histogram.reset();
+        }
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("type", EVENT_TYPE);
+        snapshot.put("period_ms", elapsed / 1_000_000);
+        snapshot.put("frames", frames);
+        snapshot.put("dropped", droppedFrames);
+        snapshot.put("errors", errorFrames);
+        snapshot.put("camera_dropped", cameraDroppedFrames - lastCameraDroppedFrames);
+        snapshot.put("stages", stages);
+
+        windowStartNanos = nowNanos;
+        frames = 0;
+        droppedFrames = 0;
+        errorFrames = 0;
+        lastCameraDroppedFrames = cameraDroppedFrames;
+        return snapshot;
+    }
+}
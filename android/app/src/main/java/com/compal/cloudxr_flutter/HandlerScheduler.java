@@ -0,0 +1,24 @@
+package com.compal.cloudxr_flutter;
+
+import android.os.Handler;
+
+/**
+ * A {@link Scheduler} posting to a Handler, the main thread's in ArController.
+ */
+public class HandlerScheduler implements Scheduler {
+    private final Handler handler;
+
+    public HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        handler.postDelayed(task, delayMs);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
@@ -0,0 +1,276 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decoded images by asset name and pixel config, so textures uploaded again after the GL surface
+ * is re-created are not decoded again. JniInterface keeps Bitmaps in it; the type is a parameter
+ * so the cache runs without Android.
+ * <p>
+ * The cache holds at most maxBytes, dropping the least recently used images first. Dropped images
+ * go to a pool of at most poolBytes and are decoded into again (BitmapFactory's inBitmap) when a
+ * new image fits, instead of allocating. Two threads asking for the same image decode it once.
+ * <p>
+ * The image handed out by {@link #acquire} is never decoded into until {@link #release}, even if
+ * it is dropped in between, because it is still being uploaded.
+ */
+public class ImageCache<B> {
+    private static final String TAG = "ImageCache";
+
+    /**
+     * Decodes the images, off the cache lock.
+     */
+    public interface Decoder<B> {
+        /**
+         * Bytes the decoded image will take, from its header only.
+         */
+        int measure(String name, String config) throws IOException;
+
+        /**
+         * Decode the image, into reuse if it is not null and the decoder can; null on failure.
+         */
+        B decode(String name, String config, B reuse) throws IOException;
+
+        /**
+         * Bytes allocated for image, which a later image of up to that size can be decoded into.
+         */
+        int sizeOf(B image);
+
+        /**
+         * Free an image the cache no longer wants.
+         */
+        void discard(B image);
+    }
+
+    private static final class Entry<B> {
+        final B image;
+        final int bytes;
+
+        Entry(B image, int bytes) {
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Decoder<B> decoder;
+    private final long maxBytes;
+    private final long poolBytes;
+    // Least recently used first.
+    private final LinkedHashMap<String, Entry<B>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<B>> loading = new HashMap<>();
+    private final List<B> pool = new ArrayList<>();
+
+    // Guarded by this.
+    private long bytes = 0;
+    private long pooledBytes = 0;
+    private B lent;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long reuses = 0;
+
+    public ImageCache(Decoder<B> decoder, long maxBytes, long poolBytes) {
+        this.decoder = decoder;
+        this.maxBytes = maxBytes;
+        this.poolBytes = poolBytes;
+    }
+
+    /**
+     * The decoded image, from the cache if it is there; null if it cannot be decoded. It is not
+     * decoded into again until {@link #release}.
+     */
+    public B acquire(String name, String config) {
+        return get(name, config, true);
+    }
+
+    /**
+     * Done with the image from {@link #acquire}.
+     */
+    public synchronized void release(B image) {
+        if (lent == image) {
+            lent = null;
+        }
+    }
+
+    /**
+     * Decode images on executor ahead of the first {@link #acquire}.
+     */
+    public void prefetch(List<String> names, String config, Executor executor) {
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            for (String name : names) {
+                get(name, config, false);
+            }
+            LogUtils.d(TAG, "Prefetched {} images in {} us", names.size(),
+                    (System.nanoTime() - start) / 1000);
+        });
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Images decoded into a dropped one rather than newly allocated.
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drop every image, into the pool as far as it takes them.
+     */
+    public synchronized void trimAll() {
+        trimTo(0);
+    }
+
+    // The image, lent out if lend is set in the same locked step that finds or stores it, so it
+    // cannot be dropped and decoded into before it is lent.
+    private B get(String name, String config, boolean lend) {
+        String key = config + '/' + name;
+        FutureTask<B> task;
+        boolean decode = false;
+        synchronized (this) {
+            Entry<B> entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                if (lend) {
+                    lent = entry.image;
+                }
+                return entry.image;
+            }
+            task = loading.get(key);
+            if (task == null) {
+                misses++;
+                task = new FutureTask<>(() -> load(key, name, config, lend));
+                loading.put(key, task);
+                decode = true;
+            } else {
+                // Decoded once all the same, by whoever asked first.
+                hits++;
+            }
+        }
+        if (decode) {
+            task.run();
+        }
+        B image;
+        try {
+            image = task.get();
+        } catch (ExecutionException e) {
+            LogUtils.e(TAG, "Cannot decode image {}", name, e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (decode || !lend || image == null) {
+            return image;
+        }
+        synchronized (this) {
+            Entry<B> entry = entries.get(key);
+            if (entry != null && entry.image == image) {
+                lent = image;
+                return image;
+            }
+        }
+        // Someone else's decode, dropped again before it could be lent.
+        return get(name, config, true);
+    }
+
+    private B load(String key, String name, String config, boolean lend) throws IOException {
+        B reuse = null;
+        B image = null;
+        try {
+            reuse = takeReusable(decoder.measure(name, config));
+            image = decoder.decode(name, config, reuse);
+            return image;
+        } finally {
+            synchronized (this) {
+                loading.remove(key);
+                if (reuse != null && image == reuse) {
+                    reuses++;
+                } else if (reuse != null) {
+                    giveBack(reuse);
+                }
+                if (image != null) {
+                    if (lend) {
+                        lent = image;
+                    }
+                    int size = decoder.sizeOf(image);
+                    entries.put(key, new Entry<>(image, size));
+                    bytes += size;
+                    trimTo(maxBytes);
+                }
+            }
+        }
+    }
+
+    // The smallest pooled image at least needed bytes large, taken out of the pool.
+    private synchronized B takeReusable(int needed) {
+        B best = null;
+        int bestSize = Integer.MAX_VALUE;
+        for (B candidate : pool) {
+            int size = decoder.sizeOf(candidate);
+            if (size >= needed && size < bestSize && candidate != lent) {
+                best = candidate;
+                bestSize = size;
+            }
+        }
+        if (best != null) {
+            pool.remove(best);
+            pooledBytes -= bestSize;
+        }
+        return best;
+    }
+
+    private synchronized void giveBack(B image) {
+        int size = decoder.sizeOf(image);
+        pool.add(image);
+        pooledBytes += size;
+        // Oldest first.
+        while (pooledBytes > poolBytes && !pool.isEmpty()) {
+            B dropped = pool.remove(0);
+            pooledBytes -= decoder.sizeOf(dropped);
+            if (dropped != lent) {
+                decoder.discard(dropped);
+            }
+        }
+    }
+
+    private void trimTo(long limit) {
+        int evicted = 0;
+        Iterator<Entry<B>> it = entries.values().iterator();
+        while (bytes > limit && it.hasNext()) {
+            Entry<B> entry = it.next();
+            it.remove();
+            bytes -= entry.bytes;
+            evicted++;
+            giveBack(entry.image);
+        }
+        evictions += evicted;
+        if (evicted > 0) {
+            LogUtils.d(TAG, "Evicted {} images, {} bytes left", evicted, bytes);
+        }
+    }
+}
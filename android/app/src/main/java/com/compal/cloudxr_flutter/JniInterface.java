@@ -45,7 +45,10 @@ import android.graphics.BitmapFactory;
 import android.opengl.GLUtils;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * JNI interface to native layer.
@@ -57,6 +60,10 @@ public class JniInterface {
     }
 
     private static final String TAG = "JniInterface";
+    // Decoded image assets kept for the renderers, and dropped ones kept to decode into.
+    private static final long IMAGE_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final ImageCache<Bitmap> imageCache =
+            new ImageCache<>(new AssetDecoder(), IMAGE_CACHE_BYTES, IMAGE_CACHE_BYTES / 4);
     static AssetManager assetManager;
 
     public static native long createNativeApplication(AssetManager assetManager);
@@ -71,6 +78,13 @@ public class JniInterface {
 
     public static native String getServerIp(long nativeApplication);
 
+    /**
+     * Install check and ARCore session creation, without resuming it; onResume does the same if
+     * this was not called. Returns false while ARCore is being installed. Call on the UI thread.
+     */
+    public static native boolean prepareSession(long nativeApplication, Context context,
+                                                Activity activity);
+
     public static native void onResume(long nativeApplication, Context context, Activity activity);
 
     /**
@@ -86,16 +100,67 @@ public class JniInterface {
             long nativeApplication, int displayRotation, int width, int height);
 
     /**
-     * Main render loop, called on the OpenGL thread.
+     * Main render loop, called on the OpenGL thread. A failed or lost CloudXR connection is
+     * reported once; frames after that show the camera only until reconnect is called.
      */
     public static native int onGlSurfaceDrawFrame(long nativeApplication);
 
+    /**
+     * Tear down the CloudXR connection and connect again, keeping the ARCore session and the base
+     * anchor. Called on the OpenGL thread. Returns the connect status, 0 if connected or if the
+     * base frame is not calibrated yet and the connection is left to onGlSurfaceDrawFrame.
+     */
+    public static native int reconnect(long nativeApplication);
+
+    /**
+     * False once onGlSurfaceDrawFrame or reconnect reported an error reconnecting cannot fix.
+     */
+    public static native boolean isSessionRecoverable(long nativeApplication);
+
     public static native byte[] getCameraFrame(long nativeApplication);
 
     /**
-     * OnTouch event, called on the OpenGL thread.
+     * Copy the current camera image into a direct buffer, see {@link CameraFramePool} for the
+     * layout. A downscale above 1 decimates the image into packed planar YUV. Returns the number
+     * of bytes written, 0 if no image is available, or the negated required size if the buffer is
+     * too small.
+     */
+    public static native int fillCameraFrame(long nativeApplication, ByteBuffer buffer,
+                                             int downscale);
+
+    /**
+     * Take ownership of the current camera image, called on the OpenGL thread. Returns an opaque
+     * image handle, or 0 if no image is available. Every handle must be passed to
+     * releaseCameraImage before the native application is destroyed.
+     */
+    public static native long acquireCameraImage(long nativeApplication);
+
+    /**
+     * Same as fillCameraFrame, for an image taken with acquireCameraImage. May be called on any
+     * thread.
      */
-    public static native void onTouched(long nativeApplication, float x, float y, boolean longPress);
+    public static native int copyCameraImage(long nativeApplication, long image, ByteBuffer buffer,
+                                             int downscale);
+
+    public static native void releaseCameraImage(long nativeApplication, long image);
+
+    /**
+     * Copy the latest CloudXR connection stats into stats, laid out as the
+     * ConnectionStatsMonitor.SLOT_* indices. May be called on any thread. Returns the sample's
+     * sequence number, or 0 if no sample is available yet; stats is left untouched then.
+     */
+    public static native long getConnectionStats(long nativeApplication, double[] stats);
+
+    /**
+     * How often the OpenGL thread samples the connection stats while streaming.
+     */
+    public static native void setConnectionStatsInterval(long nativeApplication, int intervalMs);
+
+    /**
+     * Touches since the previous frame, called on the OpenGL thread before onGlSurfaceDrawFrame.
+     * batch is a direct buffer of count hello_ar::TouchSample, see TouchQueue.
+     */
+    public static native void onTouchBatch(long nativeApplication, ByteBuffer batch, int count);
 
     /**
      * Get plane count in current session. Used to disable the "searching for surfaces" snackbar.
@@ -104,19 +169,119 @@ public class JniInterface {
 
     public static native boolean hasCloudXrAnchor(long nativeApplication);
 
-//    public static native Vector<Float> getHeadPose(long nativeApplication);
+    /**
+     * NativeBridge.TRACKING_* bits if they changed since the previous call, else
+     * NativeBridge.TRACKING_UNCHANGED.
+     * Updated by onGlSurfaceDrawFrame; meant to be called once per frame on the OpenGL thread.
+     */
+    public static native int pollTrackingState(long nativeApplication);
+
+    /**
+     * Start writing one head pose per frame into ring (see PoseStreamer for the layout), or stop
+     * with null. Called on the OpenGL thread; the ring must stay alive until it is replaced.
+     */
+    public static native void setPoseRing(long nativeApplication, ByteBuffer ring);
+
+    /**
+     * Number of poses written to ring so far. May be called on any thread; every sample below the
+     * returned count is complete.
+     */
+    public static native long getPoseWriteCount(ByteBuffer ring);
 
+    /**
+     * Called by native code to get an image asset for loadTexture, decoded once and cached; see
+     * {@link ImageCache}.
+     */
     public static Bitmap loadImage(String imageName) {
+        return imageCache.acquire(imageName, Bitmap.Config.ARGB_8888.name());
+    }
+
+    public static void loadTexture(int target, Bitmap bitmap) {
+        if (bitmap == null) {
+            LogUtils.e(TAG, "No image to load into the texture");
+            return;
+        }
+        try {
+            GLUtils.texImage2D(target, 0, bitmap, 0);
+        } finally {
+            imageCache.release(bitmap);
+        }
+        LogUtils.d(TAG, "Image cache hits {}, misses {}", imageCache.getHits(),
+                imageCache.getMisses());
+    }
 
+    /**
+     * Decode the PNG images under directory in the background, so the renderers find them cached.
+     */
+    public static void prefetchImages(String directory) {
+        List<String> names = new ArrayList<>();
         try {
-            return BitmapFactory.decodeStream(assetManager.open(imageName));
+            String[] files = assetManager.list(directory);
+            if (files != null) {
+                for (String file : files) {
+                    if (file.endsWith(".png")) {
+                        names.add(directory + "/" + file);
+                    }
+                }
+            }
         } catch (IOException e) {
-            LogUtils.e(TAG, "Cannot open image " + imageName);
-            return null;
+            LogUtils.w(TAG, "Cannot list images in {}", directory);
+            return;
         }
+        imageCache.prefetch(names, Bitmap.Config.ARGB_8888.name(),
+                task -> new Thread(task, "ImagePrefetch").start());
     }
 
-    public static void loadTexture(int target, Bitmap bitmap) {
-        GLUtils.texImage2D(target, 0, bitmap, 0);
+    // Decodes image assets for the cache, into a dropped bitmap where one fits.
+    private static class AssetDecoder implements ImageCache.Decoder<Bitmap> {
+        @Override
+        public int measure(String name, String config) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream in = assetManager.open(name)) {
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            int bytesPerPixel;
+            switch (Bitmap.Config.valueOf(config)) {
+                case ALPHA_8:
+                    bytesPerPixel = 1;
+                    break;
+                case RGB_565:
+                    bytesPerPixel = 2;
+                    break;
+                default:
+                    bytesPerPixel = 4;
+                    break;
+            }
+            return options.outWidth * options.outHeight * bytesPerPixel;
+        }
+
+        @Override
+        public Bitmap decode(String name, String config, Bitmap reuse) throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.valueOf(config);
+            // Only mutable bitmaps can be decoded into later.
+            options.inMutable = true;
+            options.inBitmap = reuse;
+            try (InputStream in = assetManager.open(name)) {
+                return BitmapFactory.decodeStream(in, null, options);
+            } catch (IllegalArgumentException e) {
+                // reuse does not fit after all.
+                options.inBitmap = null;
+                try (InputStream in = assetManager.open(name)) {
+                    return BitmapFactory.decodeStream(in, null, options);
+                }
+            }
+        }
+
+        @Override
+        public int sizeOf(Bitmap image) {
+            return image.getAllocationByteCount();
+        }
+
+        @Override
+        public void discard(Bitmap image) {
+            image.recycle();
+        }
     }
 }
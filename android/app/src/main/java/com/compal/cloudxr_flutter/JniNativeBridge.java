@@ -0,0 +1,132 @@
+package com.compal.cloudxr_flutter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link NativeBridge} backed by the native library.
+ */
+public class JniNativeBridge implements NativeBridge {
+    @Override
+    public long createNativeApplication(AssetManager assetManager) {
+        // The first use of JniInterface loads the native libraries, on the calling thread.
+        JniInterface.assetManager = assetManager;
+        JniInterface.prefetchImages("models");
+        return JniInterface.createNativeApplication(assetManager);
+    }
+
+    @Override
+    public void destroyNativeApplication(long nativeApplication) {
+        JniInterface.destroyNativeApplication(nativeApplication);
+    }
+
+    @Override
+    public void onPause(long nativeApplication) {
+        JniInterface.onPause(nativeApplication);
+    }
+
+    @Override
+    public void handleLaunchOptions(long nativeApplication, String cmdline) {
+        JniInterface.handleLaunchOptions(nativeApplication, cmdline);
+    }
+
+    @Override
+    public void setArgs(long nativeApplication, String args) {
+        JniInterface.setArgs(nativeApplication, args);
+    }
+
+    @Override
+    public String getServerIp(long nativeApplication) {
+        return JniInterface.getServerIp(nativeApplication);
+    }
+
+    @Override
+    public boolean prepareSession(long nativeApplication, Context context, Activity activity) {
+        return JniInterface.prepareSession(nativeApplication, context, activity);
+    }
+
+    @Override
+    public void onResume(long nativeApplication, Context context, Activity activity) {
+        JniInterface.onResume(nativeApplication, context, activity);
+    }
+
+    @Override
+    public void onGlSurfaceCreated(long nativeApplication) {
+        JniInterface.onGlSurfaceCreated(nativeApplication);
+    }
+
+    @Override
+    public void onDisplayGeometryChanged(long nativeApplication, int displayRotation, int width,
+                                         int height) {
+        JniInterface.onDisplayGeometryChanged(nativeApplication, displayRotation, width, height);
+    }
+
+    @Override
+    public int onGlSurfaceDrawFrame(long nativeApplication) {
+        return JniInterface.onGlSurfaceDrawFrame(nativeApplication);
+    }
+
+    @Override
+    public int reconnect(long nativeApplication) {
+        return JniInterface.reconnect(nativeApplication);
+    }
+
+    @Override
+    public boolean isSessionRecoverable(long nativeApplication) {
+        return JniInterface.isSessionRecoverable(nativeApplication);
+    }
+
+    @Override
+    public void onTouchBatch(long nativeApplication, ByteBuffer batch, int count) {
+        JniInterface.onTouchBatch(nativeApplication, batch, count);
+    }
+
+    @Override
+    public int pollTrackingState(long nativeApplication) {
+        return JniInterface.pollTrackingState(nativeApplication);
+    }
+
+    @Override
+    public int fillCameraFrame(long nativeApplication, ByteBuffer buffer, int downscale) {
+        return JniInterface.fillCameraFrame(nativeApplication, buffer, downscale);
+    }
+
+    @Override
+    public long acquireCameraImage(long nativeApplication) {
+        return JniInterface.acquireCameraImage(nativeApplication);
+    }
+
+    @Override
+    public int copyCameraImage(long nativeApplication, long image, ByteBuffer buffer,
+                               int downscale) {
+        return JniInterface.copyCameraImage(nativeApplication, image, buffer, downscale);
+    }
+
+    @Override
+    public void releaseCameraImage(long nativeApplication, long image) {
+        JniInterface.releaseCameraImage(nativeApplication, image);
+    }
+
+    @Override
+    public long getConnectionStats(long nativeApplication, double[] stats) {
+        return JniInterface.getConnectionStats(nativeApplication, stats);
+    }
+
+    @Override
+    public void setConnectionStatsInterval(long nativeApplication, int intervalMs) {
+        JniInterface.setConnectionStatsInterval(nativeApplication, intervalMs);
+    }
+
+    @Override
+    public void setPoseRing(long nativeApplication, ByteBuffer ring) {
+        JniInterface.setPoseRing(nativeApplication, ring);
+    }
+
+    @Override
+    public long getPoseWriteCount(ByteBuffer ring) {
+        return JniInterface.getPoseWriteCount(ring);
+    }
+}
@@ -0,0 +1,206 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of log records between any number of logging threads and the log writer thread.
+ * <p>
+ * Slots are preallocated as parallel arrays and claimed with a CAS on the tail; each slot has a
+ * sequence number telling whether it is free for the producer of a given lap or ready for the
+ * consumer, so neither side takes a lock. Arguments are kept raw (primitives unboxed, objects by
+ * reference) and only formatted by the consumer. A full ring drops the record and counts it
+ * rather than blocking the logging thread.
+ */
+class LogRing {
+    static final int KIND_NONE = 0;
+    static final int KIND_LONG = 1;
+    static final int KIND_DOUBLE = 2;
+    static final int KIND_OBJECT = 3;
+
+    /**
+     * One record, filled in by {@link #poll} and reused for the next one.
+     */
+    static class Record {
+        long timeMs;
+        long threadId;
+        int level;
+        String tag;
+        String template;
+        int kindA;
+        long a;
+        Object objectA;
+        int kindB;
+        long b;
+        Object objectB;
+        Throwable throwable;
+
+        /**
+         * Append the template with each {} replaced by the next argument; arguments without a
+         * placeholder are appended at the end.
+         */
+        void formatMessage(StringBuilder out) {
+            int argument = 0;
+            int start = 0;
+            int length = template.length();
+            while (start < length) {
+                int placeholder = template.indexOf("{}", start);
+                if (placeholder < 0 || argument == 2) {
+                    out.append(template, start, length);
+                    break;
+                }
+                out.append(template, start, placeholder);
+                appendArgument(out, argument++);
+                start = placeholder + 2;
+            }
+            for (; argument < 2; argument++) {
+                if ((argument == 0 ? kindA : kindB) != KIND_NONE) {
+                    out.append(' ');
+                    appendArgument(out, argument);
+                }
+            }
+        }
+
+        private void appendArgument(StringBuilder out, int argument) {
+            int kind = argument == 0 ? kindA : kindB;
+            long value = argument == 0 ? a : b;
+            switch (kind) {
+                case KIND_LONG:
+                    out.append(value);
+                    break;
+                case KIND_DOUBLE:
+                    out.append(Double.longBitsToDouble(value));
+                    break;
+                case KIND_OBJECT:
+                    out.append(argument == 0 ? objectA : objectB);
+                    break;
+                default:
+                    out.append("{}");
+                    break;
+            }
+        }
+    }
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Only written by the consumer.
+    private volatile long head = 0;
+
+    private final long[] timesMs;
+    private final long[] threadIds;
+    private final int[] levels;
+    private final String[] tags;
+    private final String[] templates;
+    private final int[] kinds;
+    private final long[] values;
+    private final Object[] objects;
+    private final Throwable[] throwables;
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        timesMs = new long[size];
+        threadIds = new long[size];
+        levels = new int[size];
+        tags = new String[size];
+        templates = new String[size];
+        kinds = new int[size * 2];
+        values = new long[size * 2];
+        objects = new Object[size * 2];
+        throwables = new Throwable[size];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Records waiting for the consumer, approximately.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Queue a record. May be called on any thread; returns false if the ring was full.
+     */
+    boolean offer(int level, String tag, String template, int kindA, long a, Object objectA,
+                  int kindB, long b, Object objectB, Throwable throwable) {
+        long position;
+        int slot;
+        while (true) {
+            position = tail.get();
+            slot = (int) position & mask;
+            long sequence = sequences.get(slot);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // The consumer has not freed this slot from the previous lap yet.
+                dropped.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed it, retry with the new tail.
+        }
+        timesMs[slot] = System.currentTimeMillis();
+        threadIds[slot] = Thread.currentThread().getId();
+        levels[slot] = level;
+        tags[slot] = tag;
+        templates[slot] = template;
+        kinds[slot * 2] = kindA;
+        values[slot * 2] = a;
+        objects[slot * 2] = objectA;
+        kinds[slot * 2 + 1] = kindB;
+        values[slot * 2 + 1] = b;
+        objects[slot * 2 + 1] = objectB;
+        throwables[slot] = throwable;
+        // Publishes the fields above to the consumer.
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest record into record. Consumer thread only; returns false if the ring is
+     * empty or the oldest record is still being written.
+     */
+    boolean poll(Record record) {
+        long position = head;
+        int slot = (int) position & mask;
+        if (sequences.get(slot) != position + 1) {
+            return false;
+        }
+        record.timeMs = timesMs[slot];
+        record.threadId = threadIds[slot];
+        record.level = levels[slot];
+        record.tag = tags[slot];
+        record.template = templates[slot];
+        record.kindA = kinds[slot * 2];
+        record.a = values[slot * 2];
+        record.objectA = objects[slot * 2];
+        record.kindB = kinds[slot * 2 + 1];
+        record.b = values[slot * 2 + 1];
+        record.objectB = objects[slot * 2 + 1];
+        record.throwable = throwables[slot];
+        // Don't keep arguments alive until the slot is reused.
+        objects[slot * 2] = null;
+        objects[slot * 2 + 1] = null;
+        throwables[slot] = null;
+        sequences.lazySet(slot, position + mask + 1);
+        head = position + 1;
+        return true;
+    }
+}
@@ -2,41 +2,330 @@ package com.compal.cloudxr_flutter;
 
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * App wide logging.
+ * <p>
+ * Levels are checked at runtime before anything else, and messages are templates with {}
+ * placeholders filled in from up to two arguments; primitives have their own overloads so
+ * nothing is boxed or concatenated at the call site. A call below the level costs a volatile
+ * read and allocates nothing, so diagnostics can stay on the render thread. Enabled records go
+ * into a {@link LogRing} and a background thread formats them into logcat and, once
+ * {@link #openLogFile} was called, a rotating {@link MappedLogFile}.
+ * <p>
+ * Use isLoggable to guard messages that need more than two arguments.
+ */
 public class LogUtils {
     private static final String APP_TAG = "Compal-CloudXr";
-    private static final boolean DEBUG = true;
+
+    // Same values as android.util.Log.
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int OFF = 8;
+
+    public static final int FILE_SEGMENT_BYTES = 1 << 20;
+    public static final int FILE_SEGMENTS = 4;
+
+    private static final int RING_CAPACITY = 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+    /**
+     * Where log lines end up; logcat unless replaced, e.g. by the benchmarks, which run off
+     * device.
+     */
+    public interface Printer {
+        void println(int priority, String tag, String message, Throwable tr);
+    }
+
+    private static class LogcatPrinter implements Printer {
+        @Override
+        public void println(int priority, String tag, String message, Throwable tr) {
+            if (tr != null) {
+                message = message + '\n' + Log.getStackTraceString(tr);
+            }
+            Log.println(priority, tag, message);
+        }
+    }
+
+    private static volatile int level = INFO;
+    private static volatile Printer printer = new LogcatPrinter();
+    private static volatile File pendingLogDirectory;
+    private static volatile boolean forceRequested;
+
+    private static final LogRing ring = new LogRing(RING_CAPACITY);
+    private static final Thread writer = new Thread(LogUtils::runWriter, "LogWriter");
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static void setPrinter(Printer printer) {
+        LogUtils.printer = printer;
+    }
+
+    /**
+     * Lowest level that is logged, OFF for none. May be changed at any time.
+     */
+    public static void setLevel(int level) {
+        LogUtils.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= LogUtils.level;
+    }
+
+    /**
+     * Also write to cloudxr.log in directory, opened on the writer thread.
+     */
+    public static void openLogFile(File directory) {
+        pendingLogDirectory = directory;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Ask the writer to drain and push the log file to storage, e.g. when going to the
+     * background. Does not wait.
+     */
+    public static void flush() {
+        forceRequested = true;
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Records lost because the ring was full.
+     */
+    public static long getDroppedRecords() {
+        return ring.getDropped();
+    }
 
     public static void v(String tag, String message) {
-        if (DEBUG) {
-            Log.v(APP_TAG + " > " + tag, message);
+        if (VERBOSE >= level) {
+            log(VERBOSE, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, null);
         }
     }
 
-    public static void i(String tag, String message) {
-        if (DEBUG) {
-            Log.i(APP_TAG + " > " + tag, message);
+    public static void v(String tag, String template, Object a) {
+        if (VERBOSE >= level) {
+            log(VERBOSE, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void v(String tag, String template, long a) {
+        if (VERBOSE >= level) {
+            log(VERBOSE, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_NONE, 0, null, null);
         }
     }
 
     public static void d(String tag, String message) {
-        if (DEBUG) {
-            Log.d(APP_TAG + " > " + tag, message);
+        if (DEBUG >= level) {
+            log(DEBUG, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, Object a) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, long a) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, double a) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_DOUBLE, Double.doubleToRawLongBits(a), null,
+                    LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, long a, long b) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_LONG, b, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, Object a, long b) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_LONG, b, null, null);
+        }
+    }
+
+    public static void d(String tag, String template, Object a, Object b) {
+        if (DEBUG >= level) {
+            log(DEBUG, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_OBJECT, 0, b, null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= level) {
+            log(INFO, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void i(String tag, String template, Object a) {
+        if (INFO >= level) {
+            log(INFO, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void i(String tag, String template, long a) {
+        if (INFO >= level) {
+            log(INFO, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void i(String tag, String template, long a, long b) {
+        if (INFO >= level) {
+            log(INFO, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_LONG, b, null, null);
+        }
+    }
+
+    public static void i(String tag, String template, Object a, long b) {
+        if (INFO >= level) {
+            log(INFO, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_LONG, b, null, null);
         }
     }
 
     public static void w(String tag, String message) {
-        Log.w(APP_TAG + " > " + tag, message);
+        if (WARN >= level) {
+            log(WARN, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable tr) {
+        if (WARN >= level) {
+            log(WARN, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, tr);
+        }
     }
 
-    public static void w(String tag, String message, Exception e) {
-        Log.w(APP_TAG + " > " + tag, message, e);
+    public static void w(String tag, String template, Object a) {
+        if (WARN >= level) {
+            log(WARN, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void w(String tag, String template, long a) {
+        if (WARN >= level) {
+            log(WARN, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void w(String tag, String template, long a, long b) {
+        if (WARN >= level) {
+            log(WARN, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_LONG, b, null, null);
+        }
+    }
+
+    public static void w(String tag, String template, Object a, long b) {
+        if (WARN >= level) {
+            log(WARN, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_LONG, b, null, null);
+        }
     }
 
     public static void e(String tag, String message) {
-        Log.e(APP_TAG + " > " + tag, message);
+        if (ERROR >= level) {
+            log(ERROR, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void e(String tag, String message, Throwable tr) {
+        if (ERROR >= level) {
+            log(ERROR, tag, message, LogRing.KIND_NONE, 0, null, LogRing.KIND_NONE, 0, null, tr);
+        }
+    }
+
+    public static void e(String tag, String template, Object a) {
+        if (ERROR >= level) {
+            log(ERROR, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void e(String tag, String template, long a) {
+        if (ERROR >= level) {
+            log(ERROR, tag, template, LogRing.KIND_LONG, a, null, LogRing.KIND_NONE, 0, null, null);
+        }
+    }
+
+    public static void e(String tag, String template, Object a, Throwable tr) {
+        if (ERROR >= level) {
+            log(ERROR, tag, template, LogRing.KIND_OBJECT, 0, a, LogRing.KIND_NONE, 0, null, tr);
+        }
+    }
+
+    private static void log(int level, String tag, String template, int kindA, long a,
+                            Object objectA, int kindB, long b, Object objectB, Throwable tr) {
+        boolean queued = ring.offer(level, tag, template, kindA, a, objectA, kindB, b, objectB,
+                tr);
+        // Otherwise the writer picks it up on its next idle wakeup.
+        if (!queued || level >= WARN || ring.size() > ring.capacity() / 2) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void runWriter() {
+        LogRing.Record record = new LogRing.Record();
+        StringBuilder message = new StringBuilder(256);
+        MappedLogFile file = null;
+        while (true) {
+            File directory = pendingLogDirectory;
+            if (directory != null) {
+                pendingLogDirectory = null;
+                file = openFile(file, directory);
+            }
+            boolean drained = false;
+            while (ring.poll(record)) {
+                drained = true;
+                message.setLength(0);
+                record.formatMessage(message);
+                String text = message.toString();
+                printer.println(record.level, APP_TAG + " > " + record.tag, text,
+                        record.throwable);
+                if (file != null) {
+                    try {
+                        file.append(record.timeMs, record.threadId, record.level, record.tag,
+                                text, record.throwable);
+                    } catch (IOException e) {
+                        printer.println(ERROR, APP_TAG + " > LogUtils", "Log file failed", e);
+                        file = null;
+                    }
+                }
+            }
+            if (forceRequested) {
+                forceRequested = false;
+                if (file != null) {
+                    file.force();
+                }
+            }
+            if (!drained) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
     }
 
-    public static void e(String tag, String message, Exception e) {
-        Log.e(APP_TAG + " > " + tag, message, e);
+    private static MappedLogFile openFile(MappedLogFile current, File directory) {
+        try {
+            if (current != null) {
+                current.close();
+            }
+            return new MappedLogFile(directory, "cloudxr.log", FILE_SEGMENT_BYTES,
+                    FILE_SEGMENTS);
+        } catch (IOException e) {
+            printer.println(ERROR, APP_TAG + " > LogUtils", "Cannot open log file", e);
+            return null;
+        }
     }
 }
@@ -0,0 +1,155 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Log lines written through a memory-mapped file, rotated across a fixed number of segments.
+ * <p>
+ * The current segment is name, older ones name.1 up to name.(segments - 1). Each segment is
+ * mapped at its full size up front, so a write is a copy into the mapping and survives a crash
+ * of the process without a flush; on rotation and close the file is cut to what was written.
+ * After a crash the current segment ends in zero bytes, readers should stop at the first one.
+ * Opening rotates an existing segment away, so the previous run stays as name.1.
+ * <p>
+ * Lines are tab separated: wall clock ms, thread id, level letter, tag, message. Not thread
+ * safe, only the log writer thread uses it.
+ */
+public class MappedLogFile implements Closeable {
+    private static final String LEVELS = "??VDIWEA";
+
+    private final File directory;
+    private final String name;
+    private final int segmentBytes;
+    private final int segments;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final StringBuilder line = new StringBuilder(256);
+    private final CharBuffer chars = CharBuffer.allocate(4096);
+
+    private RandomAccessFile file;
+    private MappedByteBuffer mapped;
+
+    public MappedLogFile(File directory, String name, int segmentBytes, int segments)
+            throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.segmentBytes = segmentBytes;
+        this.segments = Math.max(1, segments);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        if (new File(directory, name).length() > 0) {
+            shiftSegments();
+        }
+        open();
+    }
+
+    public void append(long timeMs, long threadId, int level, String tag, CharSequence message,
+                       Throwable throwable) throws IOException {
+        line.setLength(0);
+        line.append(timeMs).append('\t')
+                .append(threadId).append('\t')
+                .append(LEVELS.charAt(Math.min(level, LEVELS.length() - 1))).append('\t')
+                .append(tag).append('\t')
+                .append(message);
+        if (throwable != null) {
+            StringWriter trace = new StringWriter();
+            throwable.printStackTrace(new PrintWriter(trace));
+            line.append('\n').append(trace);
+        }
+        line.append('\n');
+        write(line);
+    }
+
+    /**
+     * Push written lines to storage; they already survive the process without this.
+     */
+    public void force() {
+        if (mapped != null) {
+            mapped.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        mapped.force();
+        file.setLength(mapped.position());
+        file.close();
+        file = null;
+        mapped = null;
+    }
+
+    // Lines are kept whole: one that does not fit goes to a fresh segment, and only a line
+    // longer than a whole segment is cut.
+    private void write(CharSequence text) throws IOException {
+        int lineStart = mapped.position();
+        int start = 0;
+        while (start < text.length()) {
+            chars.clear();
+            int end = Math.min(text.length(), start + chars.capacity());
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            chars.append(text, start, end);
+            chars.flip();
+            CoderResult result = encoder.encode(chars, mapped, end == text.length());
+            if (result.isOverflow()) {
+                encoder.reset();
+                if (lineStart == 0) {
+                    rotate();
+                    return;
+                }
+                mapped.position(lineStart);
+                rotate();
+                lineStart = 0;
+                start = 0;
+                continue;
+            }
+            start = end;
+        }
+        encoder.reset();
+    }
+
+    private void open() throws IOException {
+        file = new RandomAccessFile(new File(directory, name), "rw");
+        file.setLength(segmentBytes);
+        mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+
+    private void rotate() throws IOException {
+        close();
+        shiftSegments();
+        open();
+    }
+
+    private void shiftSegments() {
+        File oldest = segment(segments - 1);
+        if (segments == 1 || (oldest.exists() && !oldest.delete())) {
+            new File(directory, name).delete();
+            return;
+        }
+        for (int i = segments - 2; i >= 0; i--) {
+            File from = segment(i);
+            if (from.exists()) {
+                from.renameTo(segment(i + 1));
+            }
+        }
+    }
+
+    private File segment(int index) {
+        return new File(directory, index == 0 ? name : name + "." + index);
+    }
+}
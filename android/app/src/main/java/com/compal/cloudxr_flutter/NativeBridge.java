@@ -0,0 +1,73 @@
+package com.compal.cloudxr_flutter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Every native call the Java side makes. {@link JniNativeBridge} forwards to
+ * {@link JniInterface}, see there for what each call does; {@link SimulatedNativeBridge} stands in
+ * for it off device, e.g. in the benchmark module.
+ */
+public interface NativeBridge {
+    // Bits returned by pollTrackingState, mirror HelloArApplication::kTracking*.
+    int TRACKING_PLANES = 1;
+    int TRACKING_CLOUDXR_ANCHOR = 2;
+    int TRACKING_CAMERA = 4;
+    int TRACKING_UNCHANGED = -1;
+
+    long createNativeApplication(AssetManager assetManager);
+
+    void destroyNativeApplication(long nativeApplication);
+
+    void onPause(long nativeApplication);
+
+    void handleLaunchOptions(long nativeApplication, String cmdline);
+
+    void setArgs(long nativeApplication, String args);
+
+    String getServerIp(long nativeApplication);
+
+    /**
+     * Create the ARCore session ahead of onResume. Returns false while ARCore is being installed.
+     */
+    boolean prepareSession(long nativeApplication, Context context, Activity activity);
+
+    void onResume(long nativeApplication, Context context, Activity activity);
+
+    void onGlSurfaceCreated(long nativeApplication);
+
+    void onDisplayGeometryChanged(long nativeApplication, int displayRotation, int width,
+                                  int height);
+
+    int onGlSurfaceDrawFrame(long nativeApplication);
+
+    int reconnect(long nativeApplication);
+
+    boolean isSessionRecoverable(long nativeApplication);
+
+    /**
+     * Hand count touches from batch, laid out as hello_ar::TouchSample, to native code.
+     */
+    void onTouchBatch(long nativeApplication, ByteBuffer batch, int count);
+
+    int pollTrackingState(long nativeApplication);
+
+    int fillCameraFrame(long nativeApplication, ByteBuffer buffer, int downscale);
+
+    long acquireCameraImage(long nativeApplication);
+
+    int copyCameraImage(long nativeApplication, long image, ByteBuffer buffer, int downscale);
+
+    void releaseCameraImage(long nativeApplication, long image);
+
+    long getConnectionStats(long nativeApplication, double[] stats);
+
+    void setConnectionStatsInterval(long nativeApplication, int intervalMs);
+
+    void setPoseRing(long nativeApplication, ByteBuffer ring);
+
+    long getPoseWriteCount(ByteBuffer ring);
+}
@@ -0,0 +1,175 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lifecycle of the native application pointer, shared by the GL, UI and worker threads without a
+ * global lock.
+ * <p>
+ * Every native call is bracketed by {@link #acquire()} / {@link #release()}. Once
+ * {@link #destroy()} has been called no new acquire succeeds, and the native application is
+ * deleted by whichever thread drops the last reference, so a teardown never waits on a frame
+ * that is still in flight.
+ * <p>
+ * A handle can also be created before the native application exists, see {@link SessionWarmup}:
+ * acquire fails until {@link #attach} hands the pointer over. If the handle is destroyed first,
+ * attach deletes the late native application right away.
+ */
+public class NativeHandle {
+    private static final String TAG = "NativeHandle";
+
+    public static final int STATE_CREATED = 0;
+    public static final int STATE_RESUMED = 1;
+    public static final int STATE_PAUSED = 2;
+    public static final int STATE_DESTROYED = 3;
+
+    // Set in refs once destroy() has been called; the low bits count in-flight calls.
+    private static final int DESTROY_PENDING = 1 << 30;
+    // Set in refs, along with DESTROY_PENDING, until attach(); destroy() clears it.
+    private static final int DETACHED = 1 << 29;
+
+    private final NativeBridge bridge;
+    // Only read after a successful acquire, which orders it after attach().
+    private volatile long nativeApplication;
+    private final Runnable beforeDestroy;
+    private final AtomicInteger state = new AtomicInteger(STATE_CREATED);
+    private final AtomicInteger refs = new AtomicInteger(0);
+
+    /**
+     * @param beforeDestroy run on the thread that deletes the native application, right before it
+     *                      does; may be null.
+     */
+    public NativeHandle(NativeBridge bridge, long nativeApplication, Runnable beforeDestroy) {
+        this.bridge = bridge;
+        this.nativeApplication = nativeApplication;
+        this.beforeDestroy = beforeDestroy;
+        if (nativeApplication == 0) {
+            state.set(STATE_DESTROYED);
+            refs.set(DESTROY_PENDING);
+        }
+    }
+
+    /**
+     * A handle whose native application is still being created; acquire returns 0 until
+     * {@link #attach}.
+     */
+    public NativeHandle(NativeBridge bridge, Runnable beforeDestroy) {
+        this.bridge = bridge;
+        this.nativeApplication = 0;
+        this.beforeDestroy = beforeDestroy;
+        refs.set(DESTROY_PENDING | DETACHED);
+    }
+
+    /**
+     * Hand over the native application of a handle created without one, 0 if creating it
+     * failed. Returns false if the handle was destroyed in the meantime, the native application
+     * is deleted then.
+     */
+    public boolean attach(long nativeApplication) {
+        if (nativeApplication == 0) {
+            state.set(STATE_DESTROYED);
+            refs.compareAndSet(DESTROY_PENDING | DETACHED, DESTROY_PENDING);
+            return false;
+        }
+        this.nativeApplication = nativeApplication;
+        if (refs.compareAndSet(DESTROY_PENDING | DETACHED, 0)) {
+            return true;
+        }
+        destroyNow();
+        return false;
+    }
+
+    /**
+     * Whether the native application is still being created.
+     */
+    public boolean isDetached() {
+        return (refs.get() & DETACHED) != 0;
+    }
+
+    /**
+     * Take a reference for one native call. Returns the native pointer, or 0 if the application is
+     * being destroyed; in that case release() must not be called.
+     */
+    public long acquire() {
+        while (true) {
+            int current = refs.get();
+            if ((current & DESTROY_PENDING) != 0) {
+                return 0;
+            }
+            if (refs.compareAndSet(current, current + 1)) {
+                return nativeApplication;
+            }
+        }
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == DESTROY_PENDING) {
+            destroyNow();
+        }
+    }
+
+    /**
+     * Move to STATE_RESUMED. Returns false if the handle is destroyed or already resumed.
+     */
+    public boolean markResumed() {
+        while (true) {
+            int current = state.get();
+            if (current == STATE_DESTROYED || current == STATE_RESUMED) {
+                return false;
+            }
+            if (state.compareAndSet(current, STATE_RESUMED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Move from STATE_RESUMED to STATE_PAUSED. Returns false if the handle was not resumed.
+     */
+    public boolean markPaused() {
+        return state.compareAndSet(STATE_RESUMED, STATE_PAUSED);
+    }
+
+    public int getState() {
+        return state.get();
+    }
+
+    public boolean isResumed() {
+        return state.get() == STATE_RESUMED;
+    }
+
+    /**
+     * Stop handing out the pointer. The native application is deleted now if no call is in
+     * flight, otherwise by the last release().
+     */
+    public void destroy() {
+        state.set(STATE_DESTROYED);
+        while (true) {
+            int current = refs.get();
+            if ((current & DETACHED) != 0) {
+                // Not created yet, attach deletes it.
+                if (refs.compareAndSet(current, DESTROY_PENDING)) {
+                    return;
+                }
+                continue;
+            }
+            if ((current & DESTROY_PENDING) != 0) {
+                return;
+            }
+            if (refs.compareAndSet(current, current | DESTROY_PENDING)) {
+                if (current == 0) {
+                    destroyNow();
+                }
+                return;
+            }
+        }
+    }
+
+    private void destroyNow() {
+        LogUtils.d(TAG, "destroying native application on {}", Thread.currentThread());
+        if (beforeDestroy != null) {
+            beforeDestroy.run();
+        }
+        bridge.destroyNativeApplication(nativeApplication);
+    }
+}
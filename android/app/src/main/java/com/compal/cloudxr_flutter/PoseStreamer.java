@@ -0,0 +1,150 @@
+package com.compal.cloudxr_flutter;
+
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Forwards head poses written by native code into a shared direct ring.
+ * <p>
+ * The OpenGL thread appends one timestamped pose per frame (see hello_ar::PoseSample); this class
+ * reads the ring on the main thread at the configured rate, without allocating, and hands either
+ * the newest pose or every pose since the last tick to the sink.
+ */
+public class PoseStreamer {
+    private static final String TAG = "PoseStreamer";
+
+    // Layout, mirrors hello_ar::PoseRingHeader and hello_ar::PoseSample.
+    private static final int HEADER_SIZE = 16;
+    private static final int SAMPLE_SIZE = 40;
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int POSE_OFFSET = 8;
+    public static final int POSE_FLOATS = 7;
+
+    private static final int RING_CAPACITY = 64;
+    // Never read the slots right behind the writer, it may be filling them.
+    private static final int READ_MARGIN = 2;
+    public static final int MAX_BATCH = 16;
+    public static final int DEFAULT_RATE_HZ = 30;
+
+    public interface Sink {
+        /**
+         * Called on the main thread. poses holds count samples of POSE_FLOATS floats (position
+         * xyz, orientation xyzw); both arrays are reused after the call returns.
+         */
+        void onPoses(long[] timestampsNs, float[] poses, int count);
+    }
+
+    private final ByteBuffer ring = ByteBuffer.allocateDirect(HEADER_SIZE + RING_CAPACITY * SAMPLE_SIZE)
+            .order(ByteOrder.nativeOrder());
+    private final FloatBuffer ringFloats = ring.asFloatBuffer();
+    private final long[] timestamps = new long[MAX_BATCH];
+    private final float[] poses = new float[MAX_BATCH * POSE_FLOATS];
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final NativeBridge bridge;
+    private final Sink sink;
+
+    private NativeHandle nativeHandle;
+    private GLSurfaceView surfaceView;
+    private long intervalMs = 1000 / DEFAULT_RATE_HZ;
+    private boolean batch = false;
+    private boolean running = false;
+    private long lastRead = 0;
+    private long droppedPoses = 0;
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            drain();
+            handler.postDelayed(this, intervalMs);
+        }
+    };
+
+    public PoseStreamer(NativeBridge bridge, Sink sink) {
+        this.bridge = bridge;
+        this.sink = sink;
+    }
+
+    /**
+     * Start streaming, or apply new settings if already running. Called on the main thread.
+     *
+     * @param batch send every pose since the previous tick (up to MAX_BATCH) instead of only the
+     *              newest one.
+     */
+    public void start(NativeHandle nativeHandle, GLSurfaceView surfaceView, int rateHz,
+                      boolean batch) {
+        this.intervalMs = 1000 / Math.max(1, Math.min(rateHz, 120));
+        this.batch = batch;
+        handler.removeCallbacks(drainRunnable);
+        if (!running) {
+            this.nativeHandle = nativeHandle;
+            this.surfaceView = surfaceView;
+            lastRead = 0;
+            surfaceView.queueEvent(() -> setRing(ring));
+            running = true;
+        }
+        handler.post(drainRunnable);
+        LogUtils.d(TAG, "start interval={} batch={}", intervalMs, batch);
+    }
+
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        handler.removeCallbacks(drainRunnable);
+        surfaceView.queueEvent(() -> setRing(null));
+        LogUtils.d(TAG, "stop, dropped {} poses", droppedPoses);
+    }
+
+    public long getDroppedPoses() {
+        return droppedPoses;
+    }
+
+    // Runs on the OpenGL thread, the only thread that writes the ring.
+    private void setRing(ByteBuffer buffer) {
+        long nativeApplication = nativeHandle.acquire();
+        if (nativeApplication == 0) {
+            return;
+        }
+        bridge.setPoseRing(nativeApplication, buffer);
+        nativeHandle.release();
+    }
+
+    private void drain() {
+        long written = bridge.getPoseWriteCount(ring);
+        if (written < lastRead) {
+            // The ring was registered again and restarted from zero.
+            lastRead = 0;
+        }
+        long oldest = written - (RING_CAPACITY - READ_MARGIN);
+        if (lastRead < oldest) {
+            droppedPoses += oldest - lastRead;
+            lastRead = oldest;
+        }
+        long available = written - lastRead;
+        if (available <= 0) {
+            return;
+        }
+        int count = (int) Math.min(available, batch ? MAX_BATCH : 1);
+        // Always send the newest poses; older ones beyond the batch are skipped.
+        long first = written - count;
+        for (int i = 0; i < count; i++) {
+            int slot = HEADER_SIZE + (int) ((first + i) % RING_CAPACITY) * SAMPLE_SIZE;
+            timestamps[i] = ring.getLong(slot + TIMESTAMP_OFFSET);
+            int floatIndex = (slot + POSE_OFFSET) / 4;
+            for (int j = 0; j < POSE_FLOATS; j++) {
+                poses[i * POSE_FLOATS + j] = ringFloats.get(floatIndex + j);
+            }
+        }
+        lastRead = written;
+        sink.onPoses(timestamps, poses, count);
+    }
+}
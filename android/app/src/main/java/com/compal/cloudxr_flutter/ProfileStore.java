@@ -0,0 +1,337 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saved connection profiles, most recently used first, read once from storage and kept in memory.
+ * <p>
+ * Everything is in an immutable {@link Snapshot}: reads are a volatile load and never touch
+ * storage or take a lock, so the main thread can read as often as it likes. Changes replace the
+ * snapshot and schedule a write on the writer executor; a change to what is already there is
+ * dropped. The writer compares the newest snapshot with what it wrote last and only writes the
+ * keys that differ, so a burst of changes ends up as one write.
+ * <p>
+ * The most recent profile is also written under the keys ArModel always used, so the last
+ * connection survives going back to a version without profiles, and those keys become the first
+ * profile when there are no profiles yet.
+ */
+public class ProfileStore {
+    private static final String TAG = "ProfileStore";
+
+    public static final String EVENT_TYPE = "profiles";
+
+    public static final int MAX_PROFILES = 16;
+
+    // The keys of the most recent profile, as ArModel wrote them before there were profiles.
+    static final String CLOUD_IP_KEY = "cxr_last_server_ip_addr";
+    static final String ANCHOR_KEY = "cxr_last_cloud_anchor";
+    static final String WEBRTC_IP_KEY = "webrtc_last_server_ip_addr";
+    static final String ROOM_ID_KEY = "webrtc_last_room_id";
+    static final String MEDIAPIPE_KEY = "mediapipe_last_enable";
+    static final String CANDIDATES_KEY = "cxr_last_server_candidates";
+    // Profile names, most recent first, one per line; each profile's fields are under
+    // PROFILE_PREFIX + name + '/' + field.
+    static final String PROFILES_KEY = "cxr_profiles";
+    static final String PROFILE_PREFIX = "cxr_profile/";
+
+    /**
+     * Where profiles are kept, SharedPreferences on the device.
+     */
+    public interface Storage {
+        /**
+         * Every key and value stored, read once when the store is created.
+         */
+        Map<String, ?> read();
+
+        /**
+         * Store values (String or Boolean) and remove keys, on the writer executor.
+         */
+        void write(Map<String, Object> values, Set<String> removed);
+    }
+
+    /**
+     * What to connect to, saved under a name.
+     */
+    public static final class Profile {
+        public final String name;
+        public final String cloudIp;
+        public final String anchor;
+        public final String webRtcIp;
+        public final String roomId;
+        public final boolean mediaPipe;
+
+        public Profile(String name, String cloudIp, String anchor, String webRtcIp, String roomId,
+                       boolean mediaPipe) {
+            this.name = clean(name);
+            this.cloudIp = cloudIp != null ? cloudIp : "";
+            this.anchor = anchor != null ? anchor : "";
+            this.webRtcIp = webRtcIp != null ? webRtcIp : "";
+            this.roomId = roomId != null ? roomId : "";
+            this.mediaPipe = mediaPipe;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Profile)) {
+                return false;
+            }
+            Profile other = (Profile) o;
+            return mediaPipe == other.mediaPipe && name.equals(other.name)
+                    && cloudIp.equals(other.cloudIp) && anchor.equals(other.anchor)
+                    && webRtcIp.equals(other.webRtcIp) && roomId.equals(other.roomId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, cloudIp, anchor, webRtcIp, roomId, mediaPipe);
+        }
+
+        // Names are separated by newlines in storage.
+        private static String clean(String name) {
+            return name != null ? name.replace('\n', ' ') : "";
+        }
+    }
+
+    /**
+     * Every profile, most recently used first, and the edge servers last picked from.
+     */
+    public static final class Snapshot {
+        private static final Profile NONE = new Profile("", "", "", "", "", false);
+
+        public final List<Profile> profiles;
+        public final List<String> serverCandidates;
+
+        Snapshot(List<Profile> profiles, List<String> serverCandidates) {
+            this.profiles = Collections.unmodifiableList(profiles);
+            this.serverCandidates = Collections.unmodifiableList(serverCandidates);
+        }
+
+        /**
+         * The most recently used profile, one with every field empty if there is none.
+         */
+        public Profile current() {
+            return profiles.isEmpty() ? NONE : profiles.get(0);
+        }
+
+        public Profile get(String name) {
+            for (Profile profile : profiles) {
+                if (profile.name.equals(name)) {
+                    return profile;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Storage storage;
+    private final Executor writer;
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private volatile Snapshot snapshot;
+    // Only touched on the writer: what storage holds, as far as this store is concerned.
+    private Map<String, Object> written;
+
+    public ProfileStore(Storage storage, Executor writer) {
+        this.storage = storage;
+        this.writer = writer;
+        Map<String, ?> stored = storage.read();
+        written = new HashMap<>(stored);
+        snapshot = decode(stored);
+        if (!stored.containsKey(PROFILES_KEY) && !snapshot.profiles.isEmpty()) {
+            LogUtils.i(TAG, "Moving the last connection to profile {}", snapshot.current().name);
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * The profiles as an EventBus event, most recently used first.
+     */
+    public static Map<String, Object> toEvent(List<Profile> profiles) {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (Profile profile : profiles) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("name", profile.name);
+            entry.put("cloud_ip", profile.cloudIp);
+            entry.put("anchor", profile.anchor);
+            entry.put("webrtc_ip", profile.webRtcIp);
+            entry.put("room_id", profile.roomId);
+            entry.put("mediapipe", profile.mediaPipe);
+            entries.add(entry);
+        }
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("profiles", entries);
+        return event;
+    }
+
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Times storage was written to.
+     */
+    public int getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * Save profile, replacing the one of the same name, as the most recently used.
+     */
+    public synchronized void save(Profile profile) {
+        Snapshot current = snapshot;
+        if (!current.profiles.isEmpty() && current.profiles.get(0).equals(profile)) {
+            return;
+        }
+        List<Profile> profiles = new ArrayList<>(current.profiles.size() + 1);
+        profiles.add(profile);
+        for (Profile other : current.profiles) {
+            if (!other.name.equals(profile.name) && profiles.size() < MAX_PROFILES) {
+                profiles.add(other);
+            }
+        }
+        replace(new Snapshot(profiles, current.serverCandidates));
+    }
+
+    /**
+     * Make the named profile the most recently used. Returns it, null if there is none.
+     */
+    public synchronized Profile use(String name) {
+        Profile profile = snapshot.get(name);
+        if (profile != null) {
+            save(profile);
+        }
+        return profile;
+    }
+
+    public synchronized void remove(String name) {
+        Snapshot current = snapshot;
+        Profile profile = current.get(name);
+        if (profile == null) {
+            return;
+        }
+        List<Profile> profiles = new ArrayList<>(current.profiles);
+        profiles.remove(profile);
+        replace(new Snapshot(profiles, current.serverCandidates));
+    }
+
+    public synchronized void setServerCandidates(List<String> candidates) {
+        Snapshot current = snapshot;
+        if (current.serverCandidates.equals(candidates)) {
+            return;
+        }
+        replace(new Snapshot(current.profiles, new ArrayList<>(candidates)));
+    }
+
+    private void replace(Snapshot next) {
+        snapshot = next;
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (writeScheduled.compareAndSet(false, true)) {
+            writer.execute(this::write);
+        }
+    }
+
+    private void write() {
+        writeScheduled.set(false);
+        Map<String, Object> encoded = encode(snapshot);
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Object> entry : encoded.entrySet()) {
+            if (!entry.getValue().equals(written.get(entry.getKey()))) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+        Set<String> removed = new HashSet<>();
+        for (String key : written.keySet()) {
+            if (key.startsWith(PROFILE_PREFIX) && !encoded.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+        if (values.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        try {
+            storage.write(values, removed);
+        } catch (RuntimeException e) {
+            LogUtils.e(TAG, "Writing profiles failed", e);
+            return;
+        }
+        written.putAll(values);
+        written.keySet().removeAll(removed);
+        writes.incrementAndGet();
+        LogUtils.d(TAG, "Wrote {} keys, removed {}", values.size(), removed.size());
+    }
+
+    static Map<String, Object> encode(Snapshot snapshot) {
+        Map<String, Object> values = new HashMap<>();
+        StringBuilder names = new StringBuilder();
+        for (Profile profile : snapshot.profiles) {
+            if (names.length() > 0) {
+                names.append('\n');
+            }
+            names.append(profile.name);
+            String prefix = PROFILE_PREFIX + profile.name + '/';
+            values.put(prefix + "cloud_ip", profile.cloudIp);
+            values.put(prefix + "anchor", profile.anchor);
+            values.put(prefix + "webrtc_ip", profile.webRtcIp);
+            values.put(prefix + "room_id", profile.roomId);
+            values.put(prefix + "mediapipe", profile.mediaPipe);
+        }
+        values.put(PROFILES_KEY, names.toString());
+        Profile current = snapshot.current();
+        values.put(CLOUD_IP_KEY, current.cloudIp);
+        values.put(ANCHOR_KEY, current.anchor);
+        values.put(WEBRTC_IP_KEY, current.webRtcIp);
+        values.put(ROOM_ID_KEY, current.roomId);
+        values.put(MEDIAPIPE_KEY, current.mediaPipe);
+        values.put(CANDIDATES_KEY, String.join(",", snapshot.serverCandidates));
+        return values;
+    }
+
+    static Snapshot decode(Map<String, ?> stored) {
+        List<Profile> profiles = new ArrayList<>();
+        Object names = stored.get(PROFILES_KEY);
+        if (names instanceof String) {
+            for (String name : ((String) names).split("\n", -1)) {
+                String prefix = PROFILE_PREFIX + name + '/';
+                if (stored.containsKey(prefix + "cloud_ip") && profiles.size() < MAX_PROFILES) {
+                    profiles.add(new Profile(name, string(stored, prefix + "cloud_ip"),
+                            string(stored, prefix + "anchor"), string(stored, prefix + "webrtc_ip"),
+                            string(stored, prefix + "room_id"),
+                            Boolean.TRUE.equals(stored.get(prefix + "mediapipe"))));
+                }
+            }
+        } else if (!string(stored, CLOUD_IP_KEY).isEmpty()) {
+            // Saved before there were profiles: the last connection, named after its server.
+            String cloudIp = string(stored, CLOUD_IP_KEY);
+            profiles.add(new Profile(cloudIp, cloudIp, string(stored, ANCHOR_KEY),
+                    string(stored, WEBRTC_IP_KEY), string(stored, ROOM_ID_KEY),
+                    Boolean.TRUE.equals(stored.get(MEDIAPIPE_KEY))));
+        }
+        String candidates = string(stored, CANDIDATES_KEY);
+        return new Snapshot(profiles, candidates.isEmpty() ? Collections.emptyList()
+                : Arrays.asList(candidates.split(",")));
+    }
+
+    private static String string(Map<String, ?> stored, String key) {
+        Object value = stored.get(key);
+        return value instanceof String ? (String) value : "";
+    }
+}
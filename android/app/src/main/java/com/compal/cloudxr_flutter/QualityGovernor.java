@@ -0,0 +1,360 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Steps the stream resolution, frame rate and bitrate down when the device runs hot, the battery
+ * runs low or CloudXR reports a poor connection, and back up once that has passed.
+ * <p>
+ * Each input asks for a level: the thermal status and battery level map to one directly, the
+ * connection quality reasons raise or lower it by one after a run of samples. The highest level
+ * asked for wins. Stepping down happens at once, straight to that level; stepping up happens one
+ * level at a time, and only after the lower level has been asked for without a break for
+ * {@link #DEFAULT_UP_HOLD_MS}, so a status flapping at a boundary does not bounce the stream.
+ * <p>
+ * Level 0 is the baseline the user launched with (intent args and launch options file, see
+ * {@link Level#parse}); the governor applies nothing there and every other level is a fraction of
+ * it. A level is applied as CloudXROptionsParser arguments, the same ones launch options take,
+ * and every decision is posted to the EventBus. Not thread safe, call on the main thread.
+ */
+public class QualityGovernor {
+    private static final String TAG = "QualityGovernor";
+
+    public static final String EVENT_TYPE = "quality";
+
+    // What caused a decision.
+    public static final int CAUSE_RECOVERED = 0;
+    public static final int CAUSE_THERMAL = 1;
+    public static final int CAUSE_BATTERY = 2;
+    public static final int CAUSE_CONNECTION = 3;
+
+    // PowerManager.THERMAL_STATUS_*.
+    public static final int THERMAL_MODERATE = 2;
+    public static final int THERMAL_SEVERE = 3;
+    public static final int THERMAL_CRITICAL = 4;
+
+    public static final int BATTERY_LOW_PERCENT = 30;
+    public static final int BATTERY_CRITICAL_PERCENT = 15;
+
+    // Consecutive connection stats samples with, or without, quality reasons before the
+    // connection level moves by one.
+    public static final int DEGRADED_SAMPLES = 4;
+    public static final int CLEAN_SAMPLES = 20;
+
+    public static final long DEFAULT_UP_HOLD_MS = 30_000;
+
+    /**
+     * Stream settings of a level.
+     */
+    public static final class Level {
+        // What CloudXROptionsParser and ARLaunchOptions default to.
+        public static final Level DEFAULT = new Level(1.0f, 0, 100);
+
+        // Factor of the display resolution, "-rf"; the parser takes 0.5 to 1.
+        public final float resFactor;
+        // Frame rate asked of the server and rendered at, "-rrr"; 0 for the camera's.
+        public final int frameRate;
+        // Maximum video bitrate, "-mb".
+        public final int bitrateMbps;
+
+        public Level(float resFactor, int frameRate, int bitrateMbps) {
+            this.resFactor = resFactor;
+            this.frameRate = frameRate;
+            this.bitrateMbps = bitrateMbps;
+        }
+
+        /**
+         * The settings the command lines give, in order, parsed as CloudXROptionsParser does:
+         * later options win, unknown options and bad values are skipped.
+         */
+        public static Level parse(String... cmdlines) {
+            float resFactor = DEFAULT.resFactor;
+            int frameRate = DEFAULT.frameRate;
+            int bitrateMbps = DEFAULT.bitrateMbps;
+            for (String cmdline : cmdlines) {
+                if (cmdline == null) {
+                    continue;
+                }
+                String[] tokens = cmdline.trim().split("\\s+");
+                for (int i = 0; i + 1 < tokens.length; i++) {
+                    String option = tokens[i].startsWith("-") ? tokens[i].substring(1)
+                            : tokens[i];
+                    String value = tokens[i + 1];
+                    try {
+                        switch (option) {
+                            case "rf":
+                            case "res-factor":
+                                float factor = Float.parseFloat(value);
+                                if (factor >= 0.5f && factor <= 1.0f) {
+                                    resFactor = factor;
+                                }
+                                break;
+                            case "rrr":
+                            case "requested-refresh-rate":
+                                frameRate = Math.max(0, Integer.parseInt(value));
+                                break;
+                            case "mb":
+                            case "max-video-bitrate":
+                                bitrateMbps = Math.max(0, Integer.parseInt(value));
+                                break;
+                            default:
+                                continue;
+                        }
+                        i++;
+                    } catch (NumberFormatException e) {
+                        LogUtils.w(TAG, "Bad launch option value {}", value);
+                        i++;
+                    }
+                }
+            }
+            return new Level(resFactor, frameRate, bitrateMbps);
+        }
+
+        public String toArgs() {
+            return String.format(Locale.US, "-rf %.2f -rrr %d -mb %d", resFactor, frameRate,
+                    bitrateMbps);
+        }
+    }
+
+    // Resolution factor, frame rate and bitrate of each level as a fraction of the baseline's.
+    private static final float[][] SCALES = {
+            {1.0f, 1.0f, 1.0f},
+            {0.85f, 1.0f, 0.6f},
+            {0.75f, 0.5f, 0.4f},
+            {0.5f, 0.5f, 0.2f},
+    };
+
+    public static final int LEVEL_COUNT = SCALES.length;
+
+    // A baseline without "-rrr" streams at the camera's rate, at most this on ARCore devices.
+    private static final int CAMERA_FRAME_RATE = 60;
+
+    public interface Host {
+        /**
+         * Apply the settings of level; called at {@link #start} unless at level 0, and on every
+         * change.
+         */
+        void apply(Level level);
+    }
+
+    private final Scheduler scheduler;
+    private final Host host;
+    private final EventBus eventBus;
+    private final Runnable stepUpRunnable = this::stepUp;
+
+    private long upHoldMs = DEFAULT_UP_HOLD_MS;
+
+    private int thermalStatus = 0;
+    private int batteryPercent = 100;
+    private boolean charging = true;
+    private int qualityReasons = 0;
+    private int connectionLevel = 0;
+    private int degradedSamples = 0;
+    private int cleanSamples = 0;
+
+    private Level baseline = Level.DEFAULT;
+    private int level = 0;
+    private boolean stepUpPending = false;
+
+    public QualityGovernor(Scheduler scheduler, Host host, EventBus eventBus) {
+        this.scheduler = scheduler;
+        this.host = host;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * How long a lower level has to be asked for before stepping up to it.
+     */
+    public void setUpHold(long upHoldMs) {
+        this.upHoldMs = Math.max(0, upHoldMs);
+    }
+
+    /**
+     * The settings the user launched with, which level 0 leaves as they are and the other
+     * levels are fractions of.
+     */
+    public void setBaseline(Level baseline) {
+        this.baseline = baseline;
+        if (level > 0) {
+            host.apply(settingsOf(level));
+        }
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * The settings of level, worked out from the baseline.
+     */
+    public Level settingsOf(int level) {
+        if (level == 0) {
+            return baseline;
+        }
+        float[] scale = SCALES[level];
+        float resFactor = Math.max(0.5f, Math.round(baseline.resFactor * scale[0] * 100) / 100f);
+        int frameRate = baseline.frameRate;
+        if (scale[1] < 1.0f) {
+            int from = baseline.frameRate > 0 ? baseline.frameRate : CAMERA_FRAME_RATE;
+            frameRate = Math.max(1, Math.round(from * scale[1]));
+        }
+        int bitrateMbps = Math.max(1, Math.round(baseline.bitrateMbps * scale[2]));
+        return new Level(resFactor, frameRate, bitrateMbps);
+    }
+
+    /**
+     * Apply the level the inputs so far ask for, e.g. before connecting. Nothing is applied at
+     * level 0, the native side already runs with the baseline.
+     */
+    public void start() {
+        level = Math.max(level, target());
+        if (level > 0) {
+            host.apply(settingsOf(level));
+        }
+        update(CAUSE_RECOVERED);
+    }
+
+    /**
+     * Forget the connection quality, e.g. on disconnect; the next connection may go elsewhere.
+     * The device inputs stay as they were.
+     */
+    public void onDisconnected() {
+        connectionLevel = 0;
+        degradedSamples = 0;
+        cleanSamples = 0;
+        qualityReasons = 0;
+        update(CAUSE_RECOVERED);
+    }
+
+    /**
+     * Cancel a pending step up, e.g. on destroy.
+     */
+    public void stop() {
+        cancelStepUp();
+    }
+
+    /**
+     * A PowerManager.THERMAL_STATUS_* value.
+     */
+    public void setThermalStatus(int status) {
+        if (status != thermalStatus) {
+            thermalStatus = status;
+            update(CAUSE_THERMAL);
+        }
+    }
+
+    public void setBattery(int percent, boolean charging) {
+        if (percent != batteryPercent || charging != this.charging) {
+            batteryPercent = percent;
+            this.charging = charging;
+            update(CAUSE_BATTERY);
+        }
+    }
+
+    /**
+     * cxrConnectionQualityReason bits of a new connection stats sample, see
+     * {@link ConnectionStatsMonitor}.
+     */
+    public void onQualityReasons(int reasons) {
+        qualityReasons = reasons;
+        if (reasons != 0) {
+            cleanSamples = 0;
+            if (++degradedSamples >= DEGRADED_SAMPLES && connectionLevel < LEVEL_COUNT - 1) {
+                connectionLevel++;
+                degradedSamples = 0;
+                LogUtils.d(TAG, "Connection level up to {}, reasons {}", connectionLevel, reasons);
+            }
+        } else {
+            degradedSamples = 0;
+            if (++cleanSamples >= CLEAN_SAMPLES && connectionLevel > 0) {
+                connectionLevel--;
+                cleanSamples = 0;
+            }
+        }
+        update(CAUSE_CONNECTION);
+    }
+
+    private int thermalLevel() {
+        if (thermalStatus >= THERMAL_CRITICAL) {
+            return 3;
+        } else if (thermalStatus >= THERMAL_SEVERE) {
+            return 2;
+        } else if (thermalStatus >= THERMAL_MODERATE) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private int batteryLevel() {
+        if (charging) {
+            return 0;
+        } else if (batteryPercent <= BATTERY_CRITICAL_PERCENT) {
+            return 2;
+        } else if (batteryPercent <= BATTERY_LOW_PERCENT) {
+            return 1;
+        }
+        return 0;
+    }
+
+    private int target() {
+        return Math.max(thermalLevel(), Math.max(batteryLevel(), connectionLevel));
+    }
+
+    private void update(int cause) {
+        int target = target();
+        if (target > level) {
+            cancelStepUp();
+            change(target, cause);
+        } else if (target < level) {
+            if (!stepUpPending) {
+                stepUpPending = true;
+                scheduler.schedule(stepUpRunnable, upHoldMs);
+            }
+        } else {
+            // Back at the current level before the hold ran out, start over next time.
+            cancelStepUp();
+        }
+    }
+
+    private void stepUp() {
+        stepUpPending = false;
+        if (target() < level) {
+            change(level - 1, CAUSE_RECOVERED);
+            // Keep going while a lower level is still asked for.
+            update(CAUSE_RECOVERED);
+        }
+    }
+
+    private void cancelStepUp() {
+        if (stepUpPending) {
+            scheduler.cancel(stepUpRunnable);
+            stepUpPending = false;
+        }
+    }
+
+    private void change(int newLevel, int cause) {
+        int previous = level;
+        level = newLevel;
+        // Back at 0 the baseline is applied again, over what the level before set.
+        Level settings = settingsOf(newLevel);
+        LogUtils.i(TAG, "Quality level {} to {}", previous, newLevel);
+        host.apply(settings);
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("level", newLevel);
+        event.put("previous", previous);
+        event.put("cause", cause);
+        event.put("thermal_status", thermalStatus);
+        event.put("battery_percent", batteryPercent);
+        event.put("charging", charging);
+        event.put("quality_reasons", qualityReasons);
+        event.put("res_factor", (double) settings.resFactor);
+        event.put("fps", settings.frameRate);
+        event.put("bitrate_mbps", settings.bitrateMbps);
+        // A one-off event, every decision is delivered.
+        eventBus.post(event);
+    }
+}
@@ -0,0 +1,219 @@
+package com.compal.cloudxr_flutter;
+
+/**
+ * Decides how often the GL thread draws, instead of rendering continuously from onCreate on.
+ * <p>
+ * Without a session (waiting for permissions or a server, disconnected) frames are only drawn on
+ * demand. While ARCore searches for the anchor the camera is the only thing changing, so frames
+ * are paced to the camera rate from vsync callbacks. Once CloudXR streams, rendering is
+ * continuous, or paced when the target frame rate, the cap or the stream's frame rate is known
+ * and clearly below the display's, so the GPU does not redraw frames with nothing new in them.
+ * <p>
+ * Not thread safe, call on the main thread.
+ */
+public class RenderScheduler {
+    private static final String TAG = "RenderScheduler";
+
+    public static final int MODE_ON_DEMAND = 0;
+    public static final int MODE_PACED = 1;
+    public static final int MODE_CONTINUOUS = 2;
+
+    // ARCore delivers camera frames at 30 fps.
+    public static final int CAMERA_FRAME_RATE = 30;
+    // Pacing this close to the display refresh gains nothing over continuous rendering.
+    private static final float CONTINUOUS_RATIO = 0.9f;
+
+    /**
+     * The view frames are drawn into, e.g. a GLSurfaceView.
+     */
+    public interface Surface {
+        /**
+         * Draw continuously, or only on {@link #requestRender}.
+         */
+        void setContinuous(boolean continuous);
+
+        void requestRender();
+    }
+
+    /**
+     * Calls {@link #onVsync} once at the next display vsync, e.g. through Choreographer.
+     */
+    public interface Vsync {
+        void postFrameCallback();
+
+        void removeFrameCallback();
+    }
+
+    /**
+     * Told about the mode and the frame rate the GL thread will draw at, 0 when on demand.
+     */
+    public interface Listener {
+        void onModeChanged(int mode, float frameRate);
+    }
+
+    private final Surface surface;
+    private final Vsync vsync;
+    private final Listener listener;
+
+    private boolean active = false;
+    private boolean streaming = false;
+    private float displayRefreshRate = 60;
+    private int targetFrameRate = 0;
+    private int maxFrameRate = 0;
+    private double streamFrameRate = 0;
+
+    private int mode = -1;
+    private float frameRate = 0;
+    private long periodNanos = 0;
+    private long nextFrameNanos = 0;
+    private boolean callbackPosted = false;
+
+    public RenderScheduler(Surface surface, Vsync vsync, Listener listener) {
+        this.surface = surface;
+        this.vsync = vsync;
+        this.listener = listener;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Frames per second drawn in the current mode, the display's when continuous and 0 on demand.
+     */
+    public float getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Whether a session is running, i.e. resumed and connecting or connected.
+     */
+    public void setActive(boolean active) {
+        this.active = active;
+        if (!active) {
+            streaming = false;
+        }
+        update();
+    }
+
+    /**
+     * Tracking state bits from {@link NativeBridge#pollTrackingState}.
+     */
+    public void setTrackingState(int state) {
+        streaming = (state & NativeBridge.TRACKING_CLOUDXR_ANCHOR) != 0;
+        update();
+    }
+
+    public void setDisplayRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            displayRefreshRate = refreshRate;
+            update();
+        }
+    }
+
+    /**
+     * Frame rate to draw at while streaming, 0 to follow the stream.
+     */
+    public void setTargetFrameRate(int frameRate) {
+        targetFrameRate = Math.max(0, frameRate);
+        update();
+    }
+
+    /**
+     * Upper bound on the frame rate while streaming, e.g. from the {@link QualityGovernor}; 0 for
+     * none.
+     */
+    public void setMaxFrameRate(int frameRate) {
+        maxFrameRate = Math.max(0, frameRate);
+        update();
+    }
+
+    /**
+     * Frame rate the stream arrives at, from the connection stats; 0 if unknown.
+     */
+    public void setStreamFrameRate(double frameRate) {
+        // Only re-plan on a whole frame of difference, the measured rate jitters.
+        if (Math.abs(Math.ceil(frameRate) - Math.ceil(streamFrameRate)) >= 1) {
+            streamFrameRate = frameRate;
+            update();
+        }
+    }
+
+    /**
+     * Vsync callback requested through {@link Vsync}, frameTimeNanos as from Choreographer.
+     */
+    public void onVsync(long frameTimeNanos) {
+        callbackPosted = false;
+        if (mode != MODE_PACED) {
+            return;
+        }
+        // Render on the vsync closest to the due time rather than the first one after it.
+        long halfVsyncNanos = (long) (500_000_000L / displayRefreshRate);
+        if (frameTimeNanos + halfVsyncNanos >= nextFrameNanos) {
+            surface.requestRender();
+            nextFrameNanos += periodNanos;
+            if (nextFrameNanos + halfVsyncNanos < frameTimeNanos) {
+                // Vsyncs were missed, e.g. the main thread was busy; don't catch up in a burst.
+                nextFrameNanos = frameTimeNanos + periodNanos;
+            }
+        }
+        postFrameCallback();
+    }
+
+    private void update() {
+        int newMode;
+        float newFrameRate;
+        if (!active) {
+            newMode = MODE_ON_DEMAND;
+            newFrameRate = 0;
+        } else if (!streaming) {
+            newMode = MODE_PACED;
+            newFrameRate = Math.min(CAMERA_FRAME_RATE, displayRefreshRate);
+        } else {
+            float rate = targetFrameRate > 0 ? targetFrameRate : (float) Math.ceil(streamFrameRate);
+            if (maxFrameRate > 0) {
+                rate = rate > 0 ? Math.min(rate, maxFrameRate) : maxFrameRate;
+            }
+            if (rate <= 0 || rate >= displayRefreshRate * CONTINUOUS_RATIO) {
+                newMode = MODE_CONTINUOUS;
+                newFrameRate = displayRefreshRate;
+            } else {
+                newMode = MODE_PACED;
+                newFrameRate = rate;
+            }
+        }
+        if (newMode == mode && newFrameRate == frameRate) {
+            return;
+        }
+        LogUtils.i(TAG, "Render mode {} at {} fps", newMode, (long) newFrameRate);
+        int previousMode = mode;
+        mode = newMode;
+        frameRate = newFrameRate;
+        if (newMode != previousMode) {
+            surface.setContinuous(newMode == MODE_CONTINUOUS);
+        }
+        if (newMode == MODE_PACED) {
+            periodNanos = (long) (1_000_000_000L / newFrameRate);
+            // Due at the next vsync.
+            nextFrameNanos = 0;
+            postFrameCallback();
+        } else {
+            if (callbackPosted) {
+                vsync.removeFrameCallback();
+                callbackPosted = false;
+            }
+            if (newMode == MODE_ON_DEMAND) {
+                // One more frame, so the surface shows the current state.
+                surface.requestRender();
+            }
+        }
+        listener.onModeChanged(newMode, newFrameRate);
+    }
+
+    private void postFrameCallback() {
+        if (!callbackPosted) {
+            callbackPosted = true;
+            vsync.postFrameCallback();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.compal.cloudxr_flutter;
+
+/**
+ * Runs delayed tasks on the main thread, e.g. {@link HandlerScheduler}. Shared by the classes
+ * that retry or debounce on the main thread, so a check can drive them all on simulated time.
+ */
+public interface Scheduler {
+    void schedule(Runnable task, long delayMs);
+
+    /**
+     * Drop task if it has not run yet.
+     */
+    void cancel(Runnable task);
+}
@@ -0,0 +1,259 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Moves a running session to another edge server without pausing it.
+ * <p>
+ * Disconnecting and connecting again pauses the GL surface and the native application, so ARCore
+ * loses tracking and the base anchor. A switch instead only replaces the CloudXR receiver, as
+ * {@link SessionRecovery} does: the ARCore session, base anchor and GL resources stay. Before
+ * that, the new server is pre-connected (resolved and probed) while the old stream keeps
+ * showing, so the visible gap is only the receiver connecting, and a server that does not answer
+ * is never switched to. If connecting to the new server fails, the session switches back to the
+ * previous one; if that fails too, the error is left to {@link Host#onFailed}.
+ * <p>
+ * A switch asked for while another one is connecting runs once that is done; one asked for
+ * while pre-connecting replaces it. Every transition is posted to the EventBus. Not thread safe,
+ * call on the main thread.
+ */
+public class ServerSwitcher {
+    private static final String TAG = "ServerSwitcher";
+
+    public static final String EVENT_TYPE = "server_switch";
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_PRECONNECTING = 1;
+    public static final int STATE_SWITCHING = 2;
+    public static final int STATE_SWITCHED = 3;
+    public static final int STATE_REVERTING = 4;
+    public static final int STATE_FAILED = 5;
+
+    // Status of a switch given up before connecting.
+    public static final int STATUS_UNREACHABLE = -1;
+    public static final int STATUS_TIMEOUT = -2;
+
+    public static final long DEFAULT_PRECONNECT_TIMEOUT_MS = 5_000;
+
+    public interface Host {
+        /**
+         * Whether there is a session to move, i.e. resumed and not disconnected.
+         */
+        boolean isSessionRunning();
+
+        /**
+         * Resolve server and probe it off the main thread while the current stream goes on, then
+         * report back with {@link #onPreconnected}.
+         */
+        void preconnect(String server);
+
+        /**
+         * Point the CloudXR receiver at server and reconnect on the GL thread, keeping the
+         * ARCore session, anchor and GL surface, then report back with {@link #onSwitchResult}.
+         */
+        void switchTo(String server);
+
+        /**
+         * The session streams from server now.
+         */
+        void onSwitched(String server);
+
+        /**
+         * Neither the new server nor the previous one could be connected to.
+         */
+        void onFailed(int status, boolean recoverable);
+    }
+
+    private final Scheduler scheduler;
+    private final Host host;
+    private final EventBus eventBus;
+    private final Runnable timeoutRunnable = this::onPreconnectTimeout;
+
+    private long preconnectTimeoutMs = DEFAULT_PRECONNECT_TIMEOUT_MS;
+
+    private int state = STATE_IDLE;
+    private String previous = "";
+    private String target = "";
+    // Asked for while connecting, started once that is done; null if none.
+    private String nextTarget;
+    private long startNanos;
+    private long preconnectMs = 0;
+    private long gapMs = 0;
+    private int status = 0;
+    private long switches = 0;
+    private long reverts = 0;
+
+    public ServerSwitcher(Scheduler scheduler, Host host, EventBus eventBus) {
+        this.scheduler = scheduler;
+        this.host = host;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * How long the new server has to answer the pre-connect before the switch is given up.
+     */
+    public void setPreconnectTimeout(long timeoutMs) {
+        preconnectTimeoutMs = Math.max(1, timeoutMs);
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Whether a switch is under way, so the receiver is about to be replaced.
+     */
+    public boolean isBusy() {
+        return state == STATE_PRECONNECTING || state == STATE_SWITCHING
+                || state == STATE_REVERTING;
+    }
+
+    public long getSwitches() {
+        return switches;
+    }
+
+    public long getReverts() {
+        return reverts;
+    }
+
+    /**
+     * Move the session from the server it streams from to target. Returns false, doing nothing,
+     * if there is no session to keep alive, e.g. after a disconnect: connect instead.
+     */
+    public boolean switchServer(String from, String target) {
+        if (!host.isSessionRunning()) {
+            return false;
+        }
+        if (state == STATE_SWITCHING || state == STATE_REVERTING) {
+            // The GL thread is connecting; the latest request goes next, from wherever that
+            // leaves the session.
+            nextTarget = target;
+            return true;
+        }
+        scheduler.cancel(timeoutRunnable);
+        if (target.equals(from)) {
+            LogUtils.d(TAG, "Already on {}", target);
+            return true;
+        }
+        previous = from;
+        this.target = target;
+        startNanos = System.nanoTime();
+        preconnectMs = 0;
+        gapMs = 0;
+        status = 0;
+        LogUtils.i(TAG, "Switching to {}", target);
+        setState(STATE_PRECONNECTING);
+        scheduler.schedule(timeoutRunnable, preconnectTimeoutMs);
+        host.preconnect(target);
+        return true;
+    }
+
+    /**
+     * Result of {@link Host#preconnect}; ignored if the switch was replaced or given up since.
+     */
+    public void onPreconnected(String server, boolean reachable) {
+        if (state != STATE_PRECONNECTING || !server.equals(target)) {
+            return;
+        }
+        scheduler.cancel(timeoutRunnable);
+        preconnectMs = (System.nanoTime() - startNanos) / 1_000_000;
+        if (!reachable) {
+            LogUtils.w(TAG, "{} does not answer, staying", server);
+            status = STATUS_UNREACHABLE;
+            setState(STATE_FAILED);
+            return;
+        }
+        setState(STATE_SWITCHING);
+        host.switchTo(target);
+    }
+
+    /**
+     * Result of {@link Host#switchTo}: the status from reconnecting, and how long the GL thread
+     * spent on it, i.e. how long the stream stood still.
+     */
+    public void onSwitchResult(int status, boolean recoverable, long gapMs) {
+        if (state != STATE_SWITCHING && state != STATE_REVERTING) {
+            // Reset in the meantime.
+            return;
+        }
+        this.gapMs = gapMs;
+        if (state == STATE_SWITCHING) {
+            if (status == 0) {
+                switches++;
+                LogUtils.i(TAG, "Switched in {} ms, stream stood still {} ms",
+                        (System.nanoTime() - startNanos) / 1_000_000, gapMs);
+                setState(STATE_SWITCHED);
+                host.onSwitched(target);
+            } else if (recoverable) {
+                this.status = status;
+                reverts++;
+                LogUtils.w(TAG, "Error [{}] on the new server, back to the previous one", status);
+                setState(STATE_REVERTING);
+                host.switchTo(previous);
+                return;
+            } else {
+                this.status = status;
+                setState(STATE_FAILED);
+                host.onFailed(status, false);
+            }
+        } else {
+            if (status != 0) {
+                LogUtils.e(TAG, "Error [{}] switching back", status);
+                this.status = status;
+            }
+            setState(STATE_FAILED);
+            if (status != 0) {
+                host.onFailed(status, recoverable);
+            }
+        }
+        startNext();
+    }
+
+    /**
+     * Give up a switch that has not reached the GL thread yet and forget queued ones, e.g. on an
+     * explicit connect, disconnect or destroy. A reconnect already queued still reports back,
+     * which is then ignored.
+     */
+    public void reset() {
+        scheduler.cancel(timeoutRunnable);
+        nextTarget = null;
+        if (state != STATE_IDLE) {
+            setState(STATE_IDLE);
+        }
+    }
+
+    private void onPreconnectTimeout() {
+        if (state != STATE_PRECONNECTING) {
+            return;
+        }
+        LogUtils.w(TAG, "{} did not answer in time, staying", target);
+        preconnectMs = (System.nanoTime() - startNanos) / 1_000_000;
+        status = STATUS_TIMEOUT;
+        setState(STATE_FAILED);
+    }
+
+    private void startNext() {
+        if (nextTarget == null) {
+            return;
+        }
+        // Where the session is now, not where it was when the switch was asked for.
+        String from = state == STATE_SWITCHED ? target : previous;
+        String to = nextTarget;
+        nextTarget = null;
+        switchServer(from, to);
+    }
+
+    private void setState(int newState) {
+        state = newState;
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("state", newState);
+        event.put("server", target);
+        event.put("previous", previous);
+        event.put("preconnect_ms", preconnectMs);
+        event.put("gap_ms", gapMs);
+        event.put("status", status);
+        eventBus.post(event);
+    }
+}
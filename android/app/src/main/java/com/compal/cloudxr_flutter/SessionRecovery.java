@@ -0,0 +1,221 @@
+package com.compal.cloudxr_flutter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Brings the CloudXR connection back after a frame error without restarting the activity.
+ * <p>
+ * Native code stops connecting once a connection fails or drops, and reports the status once.
+ * For an error it can recover from, this schedules a reconnect with exponential backoff and
+ * jitter; the reconnect only replaces the CloudXR receiver, the GL surface, ARCore session and
+ * base anchor stay. Too many failures within a window open the circuit: no reconnects for a
+ * cool-down, then a single trial that either closes it again or reopens it. Only errors native
+ * code cannot recover from are handed to {@link Host#onUnrecoverable}.
+ * <p>
+ * Every transition is posted to the EventBus. Not thread safe, call on the main thread.
+ */
+public class SessionRecovery {
+    private static final String TAG = "SessionRecovery";
+
+    public static final String EVENT_TYPE = "session_recovery";
+
+    public static final int STATE_CONNECTED = 0;
+    public static final int STATE_BACKOFF = 1;
+    public static final int STATE_RECONNECTING = 2;
+    public static final int STATE_CIRCUIT_OPEN = 3;
+    public static final int STATE_FAILED = 4;
+
+    public static final long DEFAULT_BASE_DELAY_MS = 250;
+    public static final long DEFAULT_MAX_DELAY_MS = 8_000;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_FAILURE_WINDOW_MS = 60_000;
+    public static final long DEFAULT_OPEN_MS = 30_000;
+
+    public interface Host {
+        /**
+         * Reconnect on the GL thread, then report back with {@link #onReconnectResult}.
+         */
+        void reconnect();
+
+        /**
+         * Reconnecting cannot help, the session has to be restarted.
+         */
+        void onUnrecoverable(int status);
+    }
+
+    private final Scheduler scheduler;
+    private final Host host;
+    private final EventBus eventBus;
+    private final Random random = new Random();
+    private final Runnable attemptRunnable = this::attempt;
+
+    private long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private long failureWindowMs = DEFAULT_FAILURE_WINDOW_MS;
+    private long openMs = DEFAULT_OPEN_MS;
+
+    private int state = STATE_CONNECTED;
+    // Reconnects since the connection was last up, drives the backoff.
+    private int attempt = 0;
+    // Whether the reconnect in flight is the trial after the circuit was open.
+    private boolean trial = false;
+    private int lastStatus = 0;
+    private long lastDelayMs = 0;
+    // Times of the latest failures, oldest at failureIndex once full.
+    private long[] failureTimes = new long[DEFAULT_FAILURE_THRESHOLD];
+    private int failureCount = 0;
+    private int failureIndex = 0;
+
+    public SessionRecovery(Scheduler scheduler, Host host, EventBus eventBus) {
+        this.scheduler = scheduler;
+        this.host = host;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Backoff doubles from baseDelayMs up to maxDelayMs, with up to half of it as jitter.
+     */
+    public void setBackoff(long baseDelayMs, long maxDelayMs) {
+        this.baseDelayMs = Math.max(1, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+    }
+
+    /**
+     * Open the circuit for openMs once threshold failures happen within windowMs.
+     */
+    public void setCircuitBreaker(int threshold, long windowMs, long openMs) {
+        failureTimes = new long[Math.max(1, threshold)];
+        failureCount = 0;
+        failureIndex = 0;
+        failureWindowMs = windowMs;
+        this.openMs = openMs;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * A frame failed with status. Ignored while a reconnect is already pending.
+     */
+    public void onFrameError(int status, boolean recoverable) {
+        if (state != STATE_CONNECTED) {
+            return;
+        }
+        onFailure(status, recoverable);
+    }
+
+    /**
+     * Result of {@link Host#reconnect}: 0 once connected, or connecting is left to the next
+     * frames because the base frame is not calibrated yet.
+     */
+    public void onReconnectResult(int status, boolean recoverable) {
+        if (state != STATE_RECONNECTING) {
+            // Reset in the meantime.
+            return;
+        }
+        if (status != 0) {
+            onFailure(status, recoverable);
+            return;
+        }
+        LogUtils.i(TAG, "Reconnected after {} attempts", attempt);
+        if (trial) {
+            clearFailures();
+        }
+        attempt = 0;
+        trial = false;
+        lastDelayMs = 0;
+        setState(STATE_CONNECTED);
+    }
+
+    /**
+     * Forget past failures and cancel a pending reconnect, e.g. on an explicit connect,
+     * disconnect or destroy.
+     */
+    public void reset() {
+        scheduler.cancel(attemptRunnable);
+        attempt = 0;
+        trial = false;
+        lastStatus = 0;
+        lastDelayMs = 0;
+        clearFailures();
+        if (state != STATE_CONNECTED) {
+            setState(STATE_CONNECTED);
+        }
+    }
+
+    private void onFailure(int status, boolean recoverable) {
+        if (state == STATE_FAILED) {
+            return;
+        }
+        lastStatus = status;
+        if (!recoverable) {
+            LogUtils.e(TAG, "Unrecoverable error [{}]", status);
+            scheduler.cancel(attemptRunnable);
+            lastDelayMs = 0;
+            setState(STATE_FAILED);
+            host.onUnrecoverable(status);
+            return;
+        }
+        if (recordFailure(System.nanoTime() / 1_000_000) || trial) {
+            LogUtils.w(TAG, "Error [{}], circuit open for {} ms", status, openMs);
+            trial = false;
+            schedule(STATE_CIRCUIT_OPEN, openMs);
+            return;
+        }
+        long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 20));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+        LogUtils.w(TAG, "Error [{}], reconnecting in {} ms", status, delay);
+        schedule(STATE_BACKOFF, delay);
+    }
+
+    private void schedule(int newState, long delayMs) {
+        lastDelayMs = delayMs;
+        setState(newState);
+        scheduler.schedule(attemptRunnable, delayMs);
+    }
+
+    private void attempt() {
+        if (state != STATE_BACKOFF && state != STATE_CIRCUIT_OPEN) {
+            return;
+        }
+        trial = state == STATE_CIRCUIT_OPEN;
+        attempt++;
+        setState(STATE_RECONNECTING);
+        host.reconnect();
+    }
+
+    // Returns true if the failures within the window reached the threshold.
+    private boolean recordFailure(long nowMs) {
+        failureTimes[failureIndex] = nowMs;
+        failureIndex = (failureIndex + 1) % failureTimes.length;
+        failureCount = Math.min(failureCount + 1, failureTimes.length);
+        if (failureCount < failureTimes.length) {
+            return false;
+        }
+        // Full, so failureIndex is the oldest of the last threshold failures.
+        if (nowMs - failureTimes[failureIndex] > failureWindowMs) {
+            return false;
+        }
+        clearFailures();
+        return true;
+    }
+
+    private void clearFailures() {
+        failureCount = 0;
+        failureIndex = 0;
+    }
+
+    private void setState(int newState) {
+        state = newState;
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("state", newState);
+        event.put("attempt", attempt);
+        event.put("delay_ms", lastDelayMs);
+        event.put("status", lastStatus);
+        eventBus.postState(EventBus.STATE_RECOVERY, event);
+    }
+}
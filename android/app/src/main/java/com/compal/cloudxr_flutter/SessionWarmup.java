@@ -0,0 +1,92 @@
+package com.compal.cloudxr_flutter;
+
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gets the cold part of a session out of the way while Flutter still shows its first pages, so
+ * the time to the first streamed frame is spent on the network rather than on initialization.
+ * <p>
+ * On a thread of its own it loads the native libraries and creates the native application, which
+ * the caller attaches to a {@link NativeHandle} created without one. It then resolves the server
+ * used last time and probes its CloudXR port like {@link EdgeSelector} does, which warms the DNS cache and
+ * tells how far away the server is before the user picks it again. The timings are posted to
+ * the EventBus once done.
+ */
+public class SessionWarmup {
+    private static final String TAG = "SessionWarmup";
+
+    public static final String EVENT_TYPE = "warmup";
+
+    // The CloudXR server's RTSP port, the first one a connection opens.
+    public static final int CLOUDXR_PORT = 48010;
+
+    public interface Listener {
+        /**
+         * Called on the warm-up thread with the new native application, 0 if creating it failed.
+         */
+        void onNativeApplication(long nativeApplication);
+    }
+
+    private final NativeBridge bridge;
+    private final EdgeSelector.Prober prober;
+    private final EventBus eventBus;
+
+    public SessionWarmup(NativeBridge bridge, EdgeSelector.Prober prober, EventBus eventBus) {
+        this.bridge = bridge;
+        this.prober = prober;
+        this.eventBus = eventBus;
+    }
+
+    /**
+     * Start warming up; server is the address used last time, empty to skip probing.
+     */
+    public void start(AssetManager assetManager, String server, Listener listener) {
+        new Thread(() -> run(assetManager, server, listener), "Warmup").start();
+    }
+
+    private void run(AssetManager assetManager, String server, Listener listener) {
+        long start = System.nanoTime();
+        long nativeApplication = 0;
+        try {
+            nativeApplication = bridge.createNativeApplication(assetManager);
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            LogUtils.e(TAG, "Creating the native application failed", e);
+        }
+        long nativeMs = (System.nanoTime() - start) / 1_000_000;
+        LogUtils.i(TAG, "Native application ready in {} ms", nativeMs);
+        listener.onNativeApplication(nativeApplication);
+
+        long resolveMs = -1;
+        long probeMs = -1;
+        if (!server.isEmpty()) {
+            start = System.nanoTime();
+            InetAddress address = null;
+            try {
+                address = InetAddress.getByName(server);
+                resolveMs = (System.nanoTime() - start) / 1_000_000;
+                LogUtils.i(TAG, "Resolved {} in {} ms", server, resolveMs);
+            } catch (IOException e) {
+                LogUtils.w(TAG, "Cannot resolve {}", server);
+            }
+            if (address != null) {
+                long rttNs = prober.measure(address.getHostAddress(), CLOUDXR_PORT,
+                        EdgeSelector.DEFAULT_TIMEOUT_MS);
+                probeMs = rttNs < 0 ? -1 : rttNs / 1_000_000;
+                LogUtils.i(TAG, "Server probe took {} ms", probeMs);
+            }
+        }
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("type", EVENT_TYPE);
+        event.put("native_ms", nativeMs);
+        event.put("resolve_ms", resolveMs);
+        event.put("probe_ms", probeMs);
+        event.put("reachable", probeMs >= 0);
+        eventBus.post(event);
+    }
+}
@@ -0,0 +1,535 @@
+package com.compal.cloudxr_flutter;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.res.AssetManager;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link NativeBridge} without ARCore, CloudXR or the native library, to load-test the Java side
+ * on a plain JVM.
+ * <p>
+ * Each native application is a small state machine: after a resume, camera tracking, planes and
+ * the CloudXR anchor come up after a configurable number of frames, and the anchor can be lost
+ * periodically. Draws and reconnects can be made to fail with a status code; like native code, a
+ * failed draw suspends the connection until reconnect or the next resume. Every call can be given
+ * a latency, and camera images, stats and poses are synthetic but laid out like the native ones. Calls on a
+ * destroyed application and camera images leaked past destroy throw, so lifecycle bugs surface
+ * in a soak test instead of as native crashes.
+ * <p>
+ * Configure before handing the bridge out; the setters are not synchronized with the calls.
+ */
+public class SimulatedNativeBridge implements NativeBridge {
+    /**
+     * Calls that can be given a latency.
+     */
+    public enum Call {
+        CREATE, DESTROY, RESUME, PAUSE, SURFACE_CREATED, GEOMETRY_CHANGED, DRAW_FRAME, TOUCH,
+        POLL_TRACKING, ACQUIRE_CAMERA_IMAGE, COPY_CAMERA_IMAGE, CONNECTION_STATS, RECONNECT
+    }
+
+    // Below this a latency is spun rather than parked, parking overshoots by tens of us.
+    private static final long SPIN_THRESHOLD_NANOS = 100_000;
+
+    // Layout, mirrors hello_ar::PoseRingHeader and hello_ar::PoseSample.
+    private static final int POSE_HEADER_SIZE = 16;
+    private static final int POSE_SAMPLE_SIZE = 40;
+
+    private final long[] latencyNanos = new long[Call.values().length];
+    private final ConcurrentHashMap<Long, App> apps = new ConcurrentHashMap<>();
+    private final AtomicLong nextHandle = new AtomicLong();
+    private final AtomicLong nextImage = new AtomicLong();
+    private final Random random;
+
+    private int cameraWidth = 1440;
+    private int cameraHeight = 1080;
+    private int cameraTrackingFrames = 1;
+    private int planeFrames = 30;
+    private int anchorFrames = 60;
+    private int anchorLossPeriodFrames = 0;
+    private int anchorLossFrames = 0;
+    private int drawErrorStatus = 0;
+    private int drawErrorPeriodFrames = 0;
+    private int reconnectErrorStatus = 0;
+    private int reconnectErrorPeriod = 0;
+    private int fatalStatus = 0;
+    private boolean failCreate = false;
+    private String serverIp = "";
+
+    private final AtomicLong drawnFrames = new AtomicLong();
+    private final AtomicLong failedFrames = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong failedReconnects = new AtomicLong();
+    private final AtomicLong createdApps = new AtomicLong();
+    private final AtomicLong destroyedApps = new AtomicLong();
+    private final AtomicLong touches = new AtomicLong();
+    private volatile String args = "";
+
+    /**
+     * Per native application state. Frame and tracking fields are only touched on the GL thread,
+     * like in native code.
+     */
+    private static class App {
+        volatile boolean resumed;
+        // Set by a failed draw or reconnect, as connect_suspended_ and exiting_ in native code.
+        volatile boolean suspended;
+        volatile boolean fatal;
+        volatile int intervalMs = ConnectionStatsMonitor.DEFAULT_INTERVAL_MS;
+        volatile ByteBuffer poseRing;
+        final AtomicLong poseWrites = new AtomicLong();
+        final AtomicLong outstandingImages = new AtomicLong();
+        final AtomicLong statsSequence = new AtomicLong();
+        long framesSinceResume;
+        int trackingState;
+        int publishedState = -1;
+        long packetsReceived;
+    }
+
+    public SimulatedNativeBridge() {
+        this(0);
+    }
+
+    /**
+     * @param seed seeds the jitter in stats and poses, so runs can be repeated.
+     */
+    public SimulatedNativeBridge(long seed) {
+        random = new Random(seed);
+    }
+
+    public void setLatencyNanos(Call call, long nanos) {
+        latencyNanos[call.ordinal()] = Math.max(0, nanos);
+    }
+
+    public void setCameraSize(int width, int height) {
+        cameraWidth = width;
+        cameraHeight = height;
+    }
+
+    /**
+     * Frames after a resume until camera tracking, the first plane and the CloudXR anchor are
+     * reported.
+     */
+    public void setTrackingTimeline(int cameraTrackingFrames, int planeFrames, int anchorFrames) {
+        this.cameraTrackingFrames = cameraTrackingFrames;
+        this.planeFrames = planeFrames;
+        this.anchorFrames = anchorFrames;
+    }
+
+    /**
+     * Once established, lose the anchor for lengthFrames every periodFrames; 0 disables.
+     */
+    public void setAnchorLoss(int periodFrames, int lengthFrames) {
+        anchorLossPeriodFrames = periodFrames;
+        anchorLossFrames = lengthFrames;
+    }
+
+    /**
+     * Make every periodFrames-th draw, counted over all native applications, return status; 0
+     * disables.
+     */
+    public void setDrawError(int status, int periodFrames) {
+        drawErrorStatus = status;
+        drawErrorPeriodFrames = periodFrames;
+    }
+
+    /**
+     * Make every periodth reconnect, counted over all native applications, return status; 0
+     * disables.
+     */
+    public void setReconnectError(int status, int period) {
+        reconnectErrorStatus = status;
+        reconnectErrorPeriod = period;
+    }
+
+    /**
+     * Draw or reconnect errors with this status cannot be recovered from; 0 for none.
+     */
+    public void setFatalStatus(int status) {
+        fatalStatus = status;
+    }
+
+    /**
+     * Make createNativeApplication return 0, as when the native side fails to start.
+     */
+    public void setFailCreate(boolean failCreate) {
+        this.failCreate = failCreate;
+    }
+
+    /**
+     * What getServerIp reports, as if passed in the launch options.
+     */
+    public void setServerIp(String serverIp) {
+        this.serverIp = serverIp;
+    }
+
+    public long getDrawnFrames() {
+        return drawnFrames.get();
+    }
+
+    public long getFailedFrames() {
+        return failedFrames.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getFailedReconnects() {
+        return failedReconnects.get();
+    }
+
+    public long getTouches() {
+        return touches.get();
+    }
+
+    /**
+     * The arguments last passed to setArgs.
+     */
+    public String getArgs() {
+        return args;
+    }
+
+    public long getCreatedApps() {
+        return createdApps.get();
+    }
+
+    public long getDestroyedApps() {
+        return destroyedApps.get();
+    }
+
+    public int getLiveApps() {
+        return apps.size();
+    }
+
+    public long getOutstandingImages() {
+        long total = 0;
+        for (App app : apps.values()) {
+            total += app.outstandingImages.get();
+        }
+        return total;
+    }
+
+    private App app(long nativeApplication) {
+        App app = apps.get(nativeApplication);
+        if (app == null) {
+            throw new IllegalStateException(
+                    "native application " + nativeApplication + " used after destroy");
+        }
+        return app;
+    }
+
+    private void simulateLatency(Call call) {
+        long nanos = latencyNanos[call.ordinal()];
+        if (nanos == 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        if (nanos > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(nanos - SPIN_THRESHOLD_NANOS);
+        }
+        while (System.nanoTime() < deadline) {
+            // Spin out the rest.
+        }
+    }
+
+    @Override
+    public long createNativeApplication(AssetManager assetManager) {
+        simulateLatency(Call.CREATE);
+        if (failCreate) {
+            return 0;
+        }
+        long handle = nextHandle.incrementAndGet();
+        apps.put(handle, new App());
+        createdApps.incrementAndGet();
+        return handle;
+    }
+
+    @Override
+    public void destroyNativeApplication(long nativeApplication) {
+        simulateLatency(Call.DESTROY);
+        App app = app(nativeApplication);
+        apps.remove(nativeApplication);
+        destroyedApps.incrementAndGet();
+        long leaked = app.outstandingImages.get();
+        if (leaked != 0) {
+            throw new IllegalStateException(leaked + " camera images still acquired on destroy");
+        }
+    }
+
+    @Override
+    public void onPause(long nativeApplication) {
+        simulateLatency(Call.PAUSE);
+        app(nativeApplication).resumed = false;
+    }
+
+    @Override
+    public void handleLaunchOptions(long nativeApplication, String cmdline) {
+        app(nativeApplication);
+    }
+
+    @Override
+    public void setArgs(long nativeApplication, String args) {
+        app(nativeApplication);
+        this.args = args;
+    }
+
+    @Override
+    public String getServerIp(long nativeApplication) {
+        app(nativeApplication);
+        return serverIp;
+    }
+
+    @Override
+    public boolean prepareSession(long nativeApplication, Context context, Activity activity) {
+        app(nativeApplication);
+        return true;
+    }
+
+    @Override
+    public void onResume(long nativeApplication, Context context, Activity activity) {
+        simulateLatency(Call.RESUME);
+        App app = app(nativeApplication);
+        // Tracking restarts from scratch, picked up by the next draw.
+        app.framesSinceResume = -1;
+        app.suspended = false;
+        app.resumed = true;
+    }
+
+    @Override
+    public void onGlSurfaceCreated(long nativeApplication) {
+        simulateLatency(Call.SURFACE_CREATED);
+        app(nativeApplication);
+    }
+
+    @Override
+    public void onDisplayGeometryChanged(long nativeApplication, int displayRotation, int width,
+                                         int height) {
+        simulateLatency(Call.GEOMETRY_CHANGED);
+        app(nativeApplication);
+    }
+
+    @Override
+    public int onGlSurfaceDrawFrame(long nativeApplication) {
+        simulateLatency(Call.DRAW_FRAME);
+        App app = app(nativeApplication);
+        if (!app.resumed || app.fatal) {
+            app.trackingState = 0;
+            return 0;
+        }
+        long frame = ++app.framesSinceResume;
+        app.trackingState = trackingStateAt(frame);
+        long drawn = drawnFrames.incrementAndGet();
+        if (!app.suspended && drawErrorPeriodFrames > 0 && drawn % drawErrorPeriodFrames == 0) {
+            failedFrames.incrementAndGet();
+            fail(app, drawErrorStatus);
+            return drawErrorStatus;
+        }
+        if ((app.trackingState & TRACKING_CAMERA) != 0) {
+            writePose(app, frame);
+        }
+        return 0;
+    }
+
+    @Override
+    public int reconnect(long nativeApplication) {
+        simulateLatency(Call.RECONNECT);
+        App app = app(nativeApplication);
+        if (app.fatal) {
+            return 0;
+        }
+        app.suspended = false;
+        long count = reconnects.incrementAndGet();
+        if (reconnectErrorPeriod > 0 && count % reconnectErrorPeriod == 0) {
+            failedReconnects.incrementAndGet();
+            fail(app, reconnectErrorStatus);
+            return reconnectErrorStatus;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isSessionRecoverable(long nativeApplication) {
+        return !app(nativeApplication).fatal;
+    }
+
+    private void fail(App app, int status) {
+        app.suspended = true;
+        app.fatal = fatalStatus != 0 && status == fatalStatus;
+    }
+
+    private int trackingStateAt(long frame) {
+        int state = 0;
+        if (frame >= cameraTrackingFrames) {
+            state |= TRACKING_CAMERA;
+        }
+        if (frame >= planeFrames) {
+            state |= TRACKING_PLANES;
+        }
+        if (frame >= anchorFrames) {
+            boolean lost = anchorLossPeriodFrames > 0
+                    && (frame - anchorFrames) % anchorLossPeriodFrames
+                    >= anchorLossPeriodFrames - anchorLossFrames;
+            if (!lost) {
+                state |= TRACKING_CLOUDXR_ANCHOR;
+            }
+        }
+        return state;
+    }
+
+    @Override
+    public void onTouchBatch(long nativeApplication, ByteBuffer batch, int count) {
+        simulateLatency(Call.TOUCH);
+        app(nativeApplication);
+        touches.addAndGet(count);
+    }
+
+    @Override
+    public int pollTrackingState(long nativeApplication) {
+        simulateLatency(Call.POLL_TRACKING);
+        App app = app(nativeApplication);
+        if (app.trackingState == app.publishedState) {
+            return TRACKING_UNCHANGED;
+        }
+        app.publishedState = app.trackingState;
+        return app.trackingState;
+    }
+
+    @Override
+    public int fillCameraFrame(long nativeApplication, ByteBuffer buffer, int downscale) {
+        simulateLatency(Call.COPY_CAMERA_IMAGE);
+        return app(nativeApplication).resumed ? writeCameraFrame(buffer, downscale) : 0;
+    }
+
+    @Override
+    public long acquireCameraImage(long nativeApplication) {
+        simulateLatency(Call.ACQUIRE_CAMERA_IMAGE);
+        App app = app(nativeApplication);
+        if (!app.resumed) {
+            return 0;
+        }
+        app.outstandingImages.incrementAndGet();
+        return nextImage.incrementAndGet();
+    }
+
+    @Override
+    public int copyCameraImage(long nativeApplication, long image, ByteBuffer buffer,
+                               int downscale) {
+        simulateLatency(Call.COPY_CAMERA_IMAGE);
+        app(nativeApplication);
+        return writeCameraFrame(buffer, downscale);
+    }
+
+    @Override
+    public void releaseCameraImage(long nativeApplication, long image) {
+        if (app(nativeApplication).outstandingImages.decrementAndGet() < 0) {
+            throw new IllegalStateException("camera image " + image + " released twice");
+        }
+    }
+
+    // Same result as the packed planar path in native code: header, Y, then quarter size U, V.
+    private int writeCameraFrame(ByteBuffer buffer, int downscale) {
+        int scale = Math.max(1, downscale);
+        int width = cameraWidth / scale;
+        int height = cameraHeight / scale;
+        int yLength = width * height;
+        int uvLength = yLength / 4;
+        int size = CameraFramePool.HEADER_SIZE + yLength + 2 * uvLength;
+        if (buffer.capacity() < size) {
+            return -size;
+        }
+        buffer.putInt(CameraFramePool.WIDTH_OFFSET, width);
+        buffer.putInt(CameraFramePool.HEIGHT_OFFSET, height);
+        buffer.putInt(CameraFramePool.Y_STRIDE_OFFSET, width);
+        buffer.putInt(CameraFramePool.UV_STRIDE_OFFSET, width / 2);
+        buffer.putInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET, 1);
+        buffer.putInt(CameraFramePool.Y_LENGTH_OFFSET, yLength);
+        buffer.putInt(CameraFramePool.U_LENGTH_OFFSET, uvLength);
+        buffer.putInt(CameraFramePool.V_LENGTH_OFFSET, uvLength);
+        buffer.putLong(CameraFramePool.TIMESTAMP_OFFSET, System.nanoTime());
+        // Touch every plane byte like the native copy does.
+        for (int i = CameraFramePool.HEADER_SIZE; i < size; i++) {
+            buffer.put(i, (byte) i);
+        }
+        return size;
+    }
+
+    @Override
+    public long getConnectionStats(long nativeApplication, double[] stats) {
+        simulateLatency(Call.CONNECTION_STATS);
+        App app = app(nativeApplication);
+        if (!app.resumed) {
+            return 0;
+        }
+        double rtt = 20 + random.nextGaussian() * 3;
+        long received = app.packetsReceived += 60L * app.intervalMs / 1000 * 8;
+        stats[ConnectionStatsMonitor.SLOT_TIMESTAMP_MS] = System.currentTimeMillis();
+        stats[ConnectionStatsMonitor.SLOT_FRAMES_PER_SECOND] =
+                60 - Math.abs(random.nextGaussian());
+        stats[ConnectionStatsMonitor.SLOT_BANDWIDTH_AVAILABLE_KBPS] = 50_000;
+        stats[ConnectionStatsMonitor.SLOT_BANDWIDTH_UTILIZATION_KBPS] =
+                20_000 + random.nextGaussian() * 2_000;
+        stats[ConnectionStatsMonitor.SLOT_ROUND_TRIP_DELAY_MS] = Math.max(1, rtt);
+        stats[ConnectionStatsMonitor.SLOT_PACKETS_RECEIVED] = received;
+        stats[ConnectionStatsMonitor.SLOT_PACKETS_LOST] = received / 2_000;
+        stats[ConnectionStatsMonitor.SLOT_QUALITY] = rtt > 30 ? 3 : 4;
+        stats[ConnectionStatsMonitor.SLOT_QUALITY_REASONS] =
+                rtt > 30 ? ConnectionStatsMonitor.REASON_HIGH_LATENCY : 0;
+        return app.statsSequence.incrementAndGet();
+    }
+
+    @Override
+    public void setConnectionStatsInterval(long nativeApplication, int intervalMs) {
+        app(nativeApplication).intervalMs = intervalMs;
+    }
+
+    @Override
+    public void setPoseRing(long nativeApplication, ByteBuffer ring) {
+        App app = app(nativeApplication);
+        if (ring != null) {
+            ring.order(ByteOrder.nativeOrder());
+            ring.putLong(0, 0);
+            ring.putInt(8, (ring.capacity() - POSE_HEADER_SIZE) / POSE_SAMPLE_SIZE);
+        }
+        app.poseWrites.set(0);
+        app.poseRing = ring;
+    }
+
+    @Override
+    public long getPoseWriteCount(ByteBuffer ring) {
+        for (App app : apps.values()) {
+            if (app.poseRing == ring) {
+                return app.poseWrites.get();
+            }
+        }
+        return 0;
+    }
+
+    // A slow orbit around the origin, written like HelloArApplication::WritePoseSample.
+    private void writePose(App app, long frame) {
+        ByteBuffer ring = app.poseRing;
+        if (ring == null) {
+            return;
+        }
+        int capacity = (ring.capacity() - POSE_HEADER_SIZE) / POSE_SAMPLE_SIZE;
+        long count = app.poseWrites.get();
+        int slot = POSE_HEADER_SIZE + (int) (count % capacity) * POSE_SAMPLE_SIZE;
+        double angle = frame * 0.01;
+        ring.putLong(slot, System.nanoTime());
+        ring.putFloat(slot + 8, (float) Math.sin(angle));
+        ring.putFloat(slot + 12, 1.6f);
+        ring.putFloat(slot + 16, (float) Math.cos(angle));
+        ring.putFloat(slot + 20, 0);
+        ring.putFloat(slot + 24, (float) Math.sin(angle / 2));
+        ring.putFloat(slot + 28, 0);
+        ring.putFloat(slot + 32, (float) Math.cos(angle / 2));
+        ring.putLong(0, count + 1);
+        // The atomic publishes the slot to readers, like the release store in native code.
+        app.poseWrites.set(count + 1);
+    }
+}
@@ -0,0 +1,531 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps what the EventBus carries (frame stats, connection stats, recovery and quality changes,
+ * edge selections) in a local spool and uploads it in compressed batches while nothing streams.
+ * <p>
+ * Records are the events in their control channel encoding ({@link ControlProtocol#writeEvent})
+ * after the wall clock time in ms, appended to segment files of about segmentBytes, each starting
+ * with a header of magic, version and creation time. Appending only copies into a buffer on the
+ * calling thread; the io executor writes it out, rotates segments and deletes the oldest ones
+ * once the spool takes more than maxBytes.
+ * <p>
+ * Once streaming has ended for idleDelayMs and the host is idle, the closed segments, up to
+ * batchBytes of them, are gzipped into a batch file, each segment after its length, and handed to
+ * the uploader. The segments are deleted when the upload is acknowledged with
+ * {@link #onUploaded}; a failed or unanswered upload is retried later, backing off. Streaming
+ * again stops further uploads.
+ * <p>
+ * Call everything but the constructor on the scheduler's (main) thread.
+ */
+public class TelemetrySpool {
+    private static final String TAG = "TelemetrySpool";
+
+    public static final String EVENT_TYPE = "telemetry_upload";
+
+    public static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+    public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    public static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+    public static final long DEFAULT_IDLE_DELAY_MS = 30_000;
+    public static final long DEFAULT_ACK_TIMEOUT_MS = 60_000;
+    public static final long MIN_RETRY_MS = 60_000;
+    public static final long MAX_RETRY_MS = 30 * 60_000;
+
+    // "CXRT" little endian, then version u16, reserved u16, creation time ms i64.
+    public static final int MAGIC = 0x54525843;
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 16;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".bin";
+    static final String BATCH_PREFIX = "batch-";
+    static final String BATCH_SUFFIX = ".gz";
+
+    // Appends go to a buffer this large, written out once flushBytes are in it.
+    private static final int PENDING_BYTES = 32 * 1024;
+    private static final int FLUSH_BYTES = 16 * 1024;
+    // How far the io executor may fall behind before appended buffers are dropped.
+    private static final long MAX_QUEUED_BYTES = 8 * PENDING_BYTES;
+
+    public interface Host {
+        /**
+         * True while uploading would not compete with anything, e.g. nothing streams.
+         */
+        boolean isIdle();
+    }
+
+    public interface Uploader {
+        /**
+         * Upload batch.file, then call {@link TelemetrySpool#onUploaded} with batch.name.
+         */
+        void upload(Batch batch);
+    }
+
+    /**
+     * Closed segments gzipped into one file for upload.
+     */
+    public static final class Batch {
+        public final String name;
+        public final File file;
+        public final int segments;
+        public final long rawBytes;
+        public final long compressedBytes;
+        final List<File> sources;
+
+        Batch(File file, List<File> sources, long rawBytes) {
+            this.name = file.getName();
+            this.file = file;
+            this.segments = sources.size();
+            this.rawBytes = rawBytes;
+            this.compressedBytes = file.length();
+            this.sources = sources;
+        }
+
+        /**
+         * The batch as an EventBus event, for the uploader to hand to Dart.
+         */
+        public Map<String, Object> toEvent() {
+            Map<String, Object> event = new HashMap<>();
+            event.put("type", EVENT_TYPE);
+            event.put("name", name);
+            event.put("path", file.getPath());
+            event.put("segments", segments);
+            event.put("raw_bytes", rawBytes);
+            event.put("compressed_bytes", compressedBytes);
+            return event;
+        }
+    }
+
+    private final File directory;
+    private final Scheduler scheduler;
+    private final Host host;
+    private final Uploader uploader;
+    private final Executor io;
+    private final Runnable uploadRunnable = this::upload;
+    private final Runnable ackTimeoutRunnable = this::onAckTimeout;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    private int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    // Several to a segment, so segments end up about as large as asked for.
+    private int flushBytes = FLUSH_BYTES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int batchBytes = DEFAULT_BATCH_BYTES;
+    private long idleDelayMs = DEFAULT_IDLE_DELAY_MS;
+    private long ackTimeoutMs = DEFAULT_ACK_TIMEOUT_MS;
+
+    // Main thread only.
+    private ByteBuffer pending = newPending();
+    // Not known to be idle until told otherwise.
+    private boolean streaming = true;
+    private boolean preparing = false;
+    private Batch inFlight;
+    private long retryMs = MIN_RETRY_MS;
+    private long records = 0;
+    private long uploads = 0;
+    private long failures = 0;
+
+    // io executor only.
+    private RandomAccessFile current;
+    private long currentBytes;
+    private int sequence;
+
+    public TelemetrySpool(File directory, Scheduler scheduler, Host host, Uploader uploader,
+                          Executor io) {
+        this.directory = directory;
+        this.scheduler = scheduler;
+        this.host = host;
+        this.uploader = uploader;
+        this.io = io;
+        io.execute(this::openSpool);
+    }
+
+    /**
+     * Segment size, spool cap and how much to batch into one upload, in bytes.
+     */
+    public void setLimits(int segmentBytes, long maxBytes, int batchBytes) {
+        this.segmentBytes = Math.max(SEGMENT_HEADER_SIZE + 1, segmentBytes);
+        this.flushBytes = Math.max(1, Math.min(FLUSH_BYTES, segmentBytes / 4));
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        this.batchBytes = Math.max(1, batchBytes);
+    }
+
+    /**
+     * How long the host has to be idle before uploading, and to wait for an upload to be
+     * acknowledged.
+     */
+    public void setTimeouts(long idleDelayMs, long ackTimeoutMs) {
+        this.idleDelayMs = Math.max(0, idleDelayMs);
+        this.ackTimeoutMs = Math.max(1, ackTimeoutMs);
+    }
+
+    /**
+     * Spool the events of a batch from the EventBus that have a binary form; touches and this
+     * spool's own uploads are left out.
+     */
+    public void append(List<Object> events) {
+        long now = System.currentTimeMillis();
+        for (Object event : events) {
+            if ("touch".equals(event) || event instanceof Map
+                    && EVENT_TYPE.equals(((Map<?, ?>) event).get("type"))) {
+                continue;
+            }
+            if (!appendRecord(now, event) && pending.position() > 0) {
+                // Possibly too large for what is left, try again in an empty buffer.
+                flush();
+                appendRecord(now, event);
+            }
+        }
+        if (pending.position() >= flushBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Hand what was appended to the io executor, e.g. when the app goes to the background.
+     */
+    public void flush() {
+        if (pending.position() == 0) {
+            return;
+        }
+        ByteBuffer chunk = pending;
+        pending = newPending();
+        chunk.flip();
+        if (queuedBytes.addAndGet(chunk.remaining()) > MAX_QUEUED_BYTES) {
+            queuedBytes.addAndGet(-chunk.remaining());
+            dropped.incrementAndGet();
+            LogUtils.w(TAG, "Spool writer behind, dropping {} bytes", chunk.remaining());
+            return;
+        }
+        io.execute(() -> write(chunk));
+    }
+
+    /**
+     * Streaming stops uploads; once it ends, uploading starts after the idle delay.
+     */
+    public void setStreaming(boolean streaming) {
+        if (streaming == this.streaming) {
+            return;
+        }
+        this.streaming = streaming;
+        scheduler.cancel(uploadRunnable);
+        if (!streaming) {
+            scheduler.schedule(uploadRunnable, idleDelayMs);
+        }
+    }
+
+    /**
+     * The uploader is done with the batch named name.
+     */
+    public void onUploaded(String name, boolean ok) {
+        Batch batch = inFlight;
+        if (batch == null || !batch.name.equals(name)) {
+            LogUtils.w(TAG, "Unexpected upload result for {}", name);
+            return;
+        }
+        scheduler.cancel(ackTimeoutRunnable);
+        inFlight = null;
+        if (ok) {
+            uploads++;
+            retryMs = MIN_RETRY_MS;
+            LogUtils.i(TAG, "Uploaded {} segments, {} bytes", batch.segments,
+                    batch.compressedBytes);
+            io.execute(() -> {
+                delete(batch.file);
+                for (File segment : batch.sources) {
+                    delete(segment);
+                }
+            });
+            // On with the rest, if any.
+            retryLater(0);
+        } else {
+            failures++;
+            LogUtils.w(TAG, "Uploading {} failed, retrying in {} ms", name, retryMs);
+            io.execute(() -> delete(batch.file));
+            retryLater(retryMs);
+            retryMs = Math.min(MAX_RETRY_MS, retryMs * 2);
+        }
+    }
+
+    /**
+     * Write out what is pending and stop uploading; the spool is picked up by the next instance.
+     */
+    public void close() {
+        flush();
+        scheduler.cancel(uploadRunnable);
+        scheduler.cancel(ackTimeoutRunnable);
+        inFlight = null;
+        io.execute(this::closeSegment);
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Appended buffers dropped because the writer fell behind or could not write them.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Segments deleted unsent to keep the spool under its cap.
+     */
+    public long getDroppedSegments() {
+        return droppedSegments.get();
+    }
+
+    public long getUploads() {
+        return uploads;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    private boolean appendRecord(long timeMs, Object event) {
+        int start = pending.position();
+        if (pending.remaining() < 8 + ControlProtocol.EVENT_HEADER_SIZE) {
+            return false;
+        }
+        pending.putLong(timeMs);
+        if (!ControlProtocol.writeEvent(pending, event)) {
+            pending.position(start);
+            return false;
+        }
+        records++;
+        return true;
+    }
+
+    private void upload() {
+        if (streaming || preparing || inFlight != null) {
+            return;
+        }
+        if (!host.isIdle()) {
+            retryLater(idleDelayMs);
+            return;
+        }
+        preparing = true;
+        flush();
+        io.execute(() -> {
+            Batch batch = prepareBatch();
+            scheduler.schedule(() -> onBatchReady(batch), 0);
+        });
+    }
+
+    private void onBatchReady(Batch batch) {
+        preparing = false;
+        if (batch == null) {
+            return;
+        }
+        if (streaming || !host.isIdle()) {
+            // Busy again; batched anew next time.
+            io.execute(() -> delete(batch.file));
+            retryLater(idleDelayMs);
+            return;
+        }
+        inFlight = batch;
+        LogUtils.d(TAG, "Uploading {} segments as {}", batch.segments, batch.name);
+        scheduler.schedule(ackTimeoutRunnable, ackTimeoutMs);
+        uploader.upload(batch);
+    }
+
+    private void retryLater(long delayMs) {
+        scheduler.cancel(uploadRunnable);
+        if (!streaming) {
+            scheduler.schedule(uploadRunnable, delayMs);
+        }
+    }
+
+    private void onAckTimeout() {
+        Batch batch = inFlight;
+        if (batch != null) {
+            LogUtils.w(TAG, "No answer uploading {}", batch.name);
+            onUploaded(batch.name, false);
+        }
+    }
+
+    // io executor from here on.
+
+    private void openSpool() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LogUtils.e(TAG, "Cannot create {}", directory);
+            return;
+        }
+        for (File file : list(BATCH_PREFIX, BATCH_SUFFIX)) {
+            // Left over from an upload that never finished, its segments are still there.
+            delete(file);
+        }
+        List<File> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        if (!segments.isEmpty()) {
+            sequence = sequenceOf(segments.get(segments.size() - 1));
+            LogUtils.i(TAG, "{} segments spooled", segments.size());
+        }
+    }
+
+    private void write(ByteBuffer chunk) {
+        queuedBytes.addAndGet(-chunk.remaining());
+        try {
+            if (current != null && currentBytes + chunk.remaining() > segmentBytes
+                    && currentBytes > SEGMENT_HEADER_SIZE) {
+                closeSegment();
+            }
+            if (current == null) {
+                openSegment();
+            }
+            current.getChannel().write(chunk, currentBytes);
+            currentBytes += chunk.limit();
+        } catch (IOException e) {
+            LogUtils.e(TAG, "Writing the spool failed", e);
+            dropped.incrementAndGet();
+            closeSegment();
+        }
+        trim();
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(directory, String.format(Locale.US, "%s%08d%s", SEGMENT_PREFIX,
+                ++sequence, SEGMENT_SUFFIX));
+        current = new RandomAccessFile(file, "rw");
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) 0);
+        header.putLong(System.currentTimeMillis());
+        header.flip();
+        current.setLength(0);
+        current.getChannel().write(header, 0);
+        currentBytes = SEGMENT_HEADER_SIZE;
+    }
+
+    private void closeSegment() {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException e) {
+            LogUtils.w(TAG, "Closing a segment failed", e);
+        }
+        current = null;
+    }
+
+    // Deletes the oldest closed segments while the spool is over its cap.
+    private void trim() {
+        List<File> segments = closedSegments();
+        long total = currentBytes;
+        for (File file : segments) {
+            total += file.length();
+        }
+        for (File file : list(BATCH_PREFIX, BATCH_SUFFIX)) {
+            total += file.length();
+        }
+        for (int i = 0; total > maxBytes && i < segments.size(); i++) {
+            total -= segments.get(i).length();
+            delete(segments.get(i));
+            droppedSegments.incrementAndGet();
+        }
+    }
+
+    private Batch prepareBatch() {
+        if (current != null && currentBytes > SEGMENT_HEADER_SIZE) {
+            // Upload what there is so far rather than wait for the segment to fill.
+            closeSegment();
+        }
+        List<File> sources = new ArrayList<>();
+        long rawBytes = 0;
+        for (File segment : closedSegments()) {
+            if (!sources.isEmpty() && rawBytes + segment.length() > batchBytes) {
+                break;
+            }
+            sources.add(segment);
+            rawBytes += segment.length();
+        }
+        if (sources.isEmpty()) {
+            return null;
+        }
+        File file = new File(directory, String.format(Locale.US, "%s%08d%s", BATCH_PREFIX,
+                sequenceOf(sources.get(0)), BATCH_SUFFIX));
+        byte[] copy = new byte[8192];
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            for (File segment : sources) {
+                int length = (int) segment.length();
+                out.write(new byte[]{(byte) length, (byte) (length >> 8), (byte) (length >> 16),
+                        (byte) (length >> 24)});
+                try (InputStream in = new FileInputStream(segment)) {
+                    int copied = 0;
+                    for (int n = in.read(copy); n > 0 && copied < length; n = in.read(copy)) {
+                        n = Math.min(n, length - copied);
+                        out.write(copy, 0, n);
+                        copied += n;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LogUtils.e(TAG, "Batching the spool failed", e);
+            delete(file);
+            return null;
+        }
+        return new Batch(file, sources, rawBytes);
+    }
+
+    // Segments no longer written to, oldest first.
+    private List<File> closedSegments() {
+        List<File> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        if (current != null && !segments.isEmpty()
+                && sequenceOf(segments.get(segments.size() - 1)) == sequence) {
+            segments.remove(segments.size() - 1);
+        }
+        return segments;
+    }
+
+    private List<File> list(String prefix, String suffix) {
+        File[] files = directory.listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // Zero padded, so by name is by age.
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static int sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            LogUtils.w(TAG, "Cannot delete {}", file);
+        }
+    }
+
+    private static ByteBuffer newPending() {
+        return ByteBuffer.allocate(PENDING_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,95 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Touches on their way from the main thread to the GL thread.
+ * <p>
+ * A single producer, single consumer ring of preallocated primitive slots, so a gesture costs a
+ * few array stores and no allocation or queued Runnable. The GL thread drains it once per frame
+ * straight into the batch layout native code reads (see hello_ar::TouchSample). A full queue
+ * drops the touch and counts it.
+ */
+public class TouchQueue {
+    public static final int ACTION_TAP = 0;
+    public static final int ACTION_LONG_PRESS = 1;
+
+    // Layout, mirrors hello_ar::TouchSample.
+    public static final int SAMPLE_SIZE = 24;
+    public static final int TIMESTAMP_OFFSET = 0;
+    public static final int X_OFFSET = 8;
+    public static final int Y_OFFSET = 12;
+    public static final int ACTION_OFFSET = 16;
+
+    private final int mask;
+    private final long[] timestampsNs;
+    private final float[] xs;
+    private final float[] ys;
+    private final int[] actions;
+    // Only written by the producer, publishes the slots below it.
+    private volatile long tail = 0;
+    // Only written by the consumer, frees the slots below it.
+    private volatile long head = 0;
+    private long dropped = 0;
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    public TouchQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        timestampsNs = new long[size];
+        xs = new float[size];
+        ys = new float[size];
+        actions = new int[size];
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Touches dropped because the queue was full. Producer thread only.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Queue a touch. Producer thread only; returns false if the queue was full.
+     */
+    public boolean offer(float x, float y, int action, long timestampNs) {
+        long position = tail;
+        if (position - head > mask) {
+            dropped++;
+            return false;
+        }
+        int slot = (int) position & mask;
+        timestampsNs[slot] = timestampNs;
+        xs[slot] = x;
+        ys[slot] = y;
+        actions[slot] = action;
+        tail = position + 1;
+        return true;
+    }
+
+    /**
+     * Move the queued touches, oldest first, into batch as TouchSamples from index 0, as many as
+     * fit. Consumer thread only; returns how many were written.
+     */
+    public int drainTo(ByteBuffer batch) {
+        long position = head;
+        int count = (int) Math.min(tail - position, batch.capacity() / SAMPLE_SIZE);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (position + i) & mask;
+            int offset = i * SAMPLE_SIZE;
+            batch.putLong(offset + TIMESTAMP_OFFSET, timestampsNs[slot]);
+            batch.putFloat(offset + X_OFFSET, xs[slot]);
+            batch.putFloat(offset + Y_OFFSET, ys[slot]);
+            batch.putInt(offset + ACTION_OFFSET, actions[slot]);
+            batch.putInt(offset + ACTION_OFFSET + 4, 0);
+        }
+        head = position + count;
+        return count;
+    }
+}
@@ -0,0 +1,215 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what drives a session, and what it reported per frame, to a memory-mapped trace file
+ * that {@link TraceReplayer} can feed back in.
+ * <p>
+ * The file starts with a 16 byte header: magic "CXRT", version, a zero short and the wall clock
+ * ms at the start. Records follow back to back, little endian: type, a zero byte, a 16 bit
+ * payload length and the ns since the start, then the payload. Commands are stored as the
+ * {@link ControlProtocol} message that runs them, whichever channel they came in on.
+ * <p>
+ * The file is mapped at its full capacity up front. A record claims its bytes with one atomic
+ * add and is copied straight into the mapping, its type byte last, so threads never wait for
+ * each other and a crash leaves a readable trace that ends at the first zero type. Once the
+ * capacity is used up further records are dropped and counted rather than wrapping, a replay has
+ * to start from the beginning. close cuts the file to what was written.
+ * <p>
+ * The record methods may be called on any thread.
+ */
+public class TraceRecorder implements Closeable {
+    public static final int MAGIC = 0x54525843; // "CXRT"
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 12;
+
+    public static final int TYPE_END = 0;
+    public static final int TYPE_GEOMETRY = 1;
+    public static final int TYPE_TOUCH = 2;
+    public static final int TYPE_COMMAND = 3;
+    public static final int TYPE_TRACKING = 4;
+    public static final int TYPE_FRAME = 5;
+
+    public static final String FILE_SUFFIX = ".cxrt";
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer mapped;
+    private final int capacity;
+    private final long startNanos;
+    private final AtomicLong position = new AtomicLong(FILE_HEADER_SIZE);
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Records being copied, close waits for them.
+    private final AtomicInteger writers = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public TraceRecorder(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = Math.max(FILE_HEADER_SIZE, capacity);
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        randomAccessFile.setLength(this.capacity);
+        mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                this.capacity);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mapped.putInt(0, MAGIC);
+        mapped.putShort(4, (short) VERSION);
+        mapped.putShort(6, (short) 0);
+        mapped.putLong(8, System.currentTimeMillis());
+        startNanos = System.nanoTime();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecords() {
+        return records.get();
+    }
+
+    /**
+     * Records lost because the file was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Bytes written so far, header included.
+     */
+    public long getSize() {
+        return Math.min(position.get(), capacity);
+    }
+
+    public void recordGeometry(int rotation, int width, int height) {
+        int at = begin(12);
+        if (at < 0) {
+            return;
+        }
+        mapped.putInt(at, rotation);
+        mapped.putInt(at + 4, width);
+        mapped.putInt(at + 8, height);
+        commit(at, TYPE_GEOMETRY);
+    }
+
+    /**
+     * A touch was handed to native code, action is one of the TouchQueue actions.
+     */
+    public void recordTouch(float x, float y, int action) {
+        int at = begin(9);
+        if (at < 0) {
+            return;
+        }
+        mapped.putFloat(at, x);
+        mapped.putFloat(at + 4, y);
+        mapped.put(at + 8, (byte) action);
+        commit(at, TYPE_TOUCH);
+    }
+
+    /**
+     * Record a ControlProtocol command message, the bytes from its position to its limit; the
+     * buffer itself is left as it was.
+     */
+    public void recordCommand(ByteBuffer message) {
+        int length = message.remaining();
+        if (length > 0xFFFF) {
+            dropped.incrementAndGet();
+            return;
+        }
+        int at = begin(length);
+        if (at < 0) {
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            mapped.put(at + i, message.get(message.position() + i));
+        }
+        commit(at, TYPE_COMMAND);
+    }
+
+    /**
+     * The tracking state bits from {@link NativeBridge#pollTrackingState} changed.
+     */
+    public void recordTracking(int state) {
+        int at = begin(4);
+        if (at < 0) {
+            return;
+        }
+        mapped.putInt(at, state);
+        commit(at, TYPE_TRACKING);
+    }
+
+    /**
+     * A frame was drawn with status from onGlSurfaceDrawFrame.
+     */
+    public void recordFrame(int status) {
+        int at = begin(4);
+        if (at < 0) {
+            return;
+        }
+        mapped.putInt(at, status);
+        commit(at, TYPE_FRAME);
+    }
+
+    // Claims room for a record with payloadLength bytes and writes all of its header but the type.
+    // Returns where the payload goes, or -1 if the record is dropped; otherwise commit must follow.
+    private int begin(int payloadLength) {
+        writers.incrementAndGet();
+        if (closed) {
+            writers.decrementAndGet();
+            return -1;
+        }
+        long size = RECORD_HEADER_SIZE + payloadLength;
+        long start = position.getAndAdd(size);
+        if (start + size > capacity) {
+            writers.decrementAndGet();
+            dropped.incrementAndGet();
+            return -1;
+        }
+        int at = (int) start;
+        mapped.put(at + 1, (byte) 0);
+        mapped.putShort(at + 2, (short) payloadLength);
+        mapped.putLong(at + 4, System.nanoTime() - startNanos);
+        return at + RECORD_HEADER_SIZE;
+    }
+
+    private void commit(int payload, int type) {
+        mapped.put(payload - RECORD_HEADER_SIZE, (byte) type);
+        records.incrementAndGet();
+        writers.decrementAndGet();
+    }
+
+    /**
+     * Stop recording and cut the file to the records written. Waits for records that are being
+     * copied on other threads, which takes at most a few microseconds.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        while (writers.get() != 0) {
+            Thread.yield();
+        }
+        long size = getSize();
+        mapped.force();
+        randomAccessFile.setLength(size);
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,149 @@
+package com.compal.cloudxr_flutter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a trace written by {@link TraceRecorder} and hands its records to a {@link Target}, paced
+ * like the recording or faster.
+ * <p>
+ * What the Target does with a record is up to the caller: ArController feeds touches and
+ * commands back into the running session, the benchmarks drive a FrameLoop frame by frame and
+ * compare the tracking and frame records with what they see. replay blocks, run it on a thread
+ * of its own when pacing; {@link #cancel} may be called from any thread.
+ */
+public class TraceReplayer implements Closeable {
+    private static final String TAG = "TraceReplayer";
+
+    /**
+     * Receives the records in order, on the thread calling {@link #replay}.
+     */
+    public interface Target {
+        void onGeometry(int rotation, int width, int height);
+
+        /**
+         * action is one of the TouchQueue actions.
+         */
+        void onTouch(float x, float y, int action);
+
+        /**
+         * A ControlProtocol command message, only valid during the call.
+         */
+        void onCommand(ByteBuffer message);
+
+        void onTracking(int state);
+
+        void onFrame(int status);
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer mapped;
+    private final long startTimeMs;
+    private volatile boolean cancelled = false;
+
+    public TraceReplayer(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            long length = this.file.length();
+            if (length < TraceRecorder.FILE_HEADER_SIZE || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a trace: " + file);
+            }
+            mapped = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(0) != TraceRecorder.MAGIC) {
+                throw new IOException("Not a trace: " + file);
+            }
+            int version = mapped.getShort(4) & 0xFFFF;
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            startTimeMs = mapped.getLong(8);
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wall clock ms when the trace was started.
+     */
+    public long getStartTimeMs() {
+        return startTimeMs;
+    }
+
+    /**
+     * Stop a replay in progress after the current record.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Hand every record to target, at speed times the recorded pace; 0 or less replays without
+     * waiting. Returns the number of records replayed.
+     */
+    public long replay(Target target, double speed) {
+        ByteBuffer command = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        long replayStart = System.nanoTime();
+        long count = 0;
+        int at = TraceRecorder.FILE_HEADER_SIZE;
+        int end = mapped.limit();
+        while (!cancelled && at + TraceRecorder.RECORD_HEADER_SIZE <= end) {
+            int type = mapped.get(at) & 0xFF;
+            int length = mapped.getShort(at + 2) & 0xFFFF;
+            long timeNs = mapped.getLong(at + 4);
+            int payload = at + TraceRecorder.RECORD_HEADER_SIZE;
+            if (type == TraceRecorder.TYPE_END || payload + length > end) {
+                break;
+            }
+            if (speed > 0) {
+                waitUntil(replayStart + (long) (timeNs / speed));
+            }
+            switch (type) {
+                case TraceRecorder.TYPE_GEOMETRY:
+                    target.onGeometry(mapped.getInt(payload), mapped.getInt(payload + 4),
+                            mapped.getInt(payload + 8));
+                    break;
+                case TraceRecorder.TYPE_TOUCH:
+                    target.onTouch(mapped.getFloat(payload), mapped.getFloat(payload + 4),
+                            mapped.get(payload + 8) & 0xFF);
+                    break;
+                case TraceRecorder.TYPE_COMMAND:
+                    command.limit(payload + length).position(payload);
+                    target.onCommand(command);
+                    break;
+                case TraceRecorder.TYPE_TRACKING:
+                    target.onTracking(mapped.getInt(payload));
+                    break;
+                case TraceRecorder.TYPE_FRAME:
+                    target.onFrame(mapped.getInt(payload));
+                    break;
+                default:
+                    LogUtils.w(TAG, "Skipping unknown record type {}", type);
+                    break;
+            }
+            count++;
+            at = payload + length;
+        }
+        return count;
+    }
+
+    private void waitUntil(long deadlineNanos) {
+        long remaining;
+        while (!cancelled && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,231 @@
+package com.compal.cloudxr_flutter;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Runs commands on a delegate and, while a {@link TraceRecorder} is set, records each one as the
+ * ControlProtocol message that would run it. Placed in front of both the control channel and the
+ * legacy method channel, so a replay sees the same commands whichever one Dart used. The trace
+ * commands themselves are not recorded, nor are the profile commands: profiles belong to the
+ * device rather than the session. Main thread only, like the channels.
+ */
+public class TracingCommands implements ControlProtocol.Commands {
+    private static final String TAG = "TracingCommands";
+
+    private static final int MESSAGE_BUFFER_SIZE = 1024;
+
+    private final ControlProtocol.Commands delegate;
+    private final ByteBuffer message = ControlProtocol.allocate(MESSAGE_BUFFER_SIZE);
+    private TraceRecorder recorder;
+
+    public TracingCommands(ControlProtocol.Commands delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Start recording to recorder, or stop with null.
+     */
+    public void setRecorder(TraceRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    @Override
+    public void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                        boolean hostCloudAnchor, boolean mediaPipe) {
+        if (begin(ControlProtocol.CMD_CONNECT)) {
+            try {
+                ControlProtocol.writeString(message, cloudIp);
+                ControlProtocol.writeString(message, anchorId);
+                ControlProtocol.writeString(message, webRtcIp);
+                ControlProtocol.writeString(message, roomId);
+                ControlProtocol.writeBoolean(message, hostCloudAnchor);
+                ControlProtocol.writeBoolean(message, mediaPipe);
+                record();
+            } catch (BufferOverflowException | IllegalArgumentException e) {
+                LogUtils.w(TAG, "connect too long to record");
+            }
+        }
+        delegate.connect(cloudIp, anchorId, webRtcIp, roomId, hostCloudAnchor, mediaPipe);
+    }
+
+    @Override
+    public void disconnect() {
+        if (begin(ControlProtocol.CMD_DISCONNECT)) {
+            record();
+        }
+        delegate.disconnect();
+    }
+
+    @Override
+    public void stop() {
+        if (begin(ControlProtocol.CMD_STOP)) {
+            record();
+        }
+        delegate.stop();
+    }
+
+    @Override
+    public void startConnectionStats(int intervalMs, int windowSize) {
+        if (begin(ControlProtocol.CMD_START_CONNECTION_STATS)) {
+            message.putInt(intervalMs);
+            message.putInt(windowSize);
+            record();
+        }
+        delegate.startConnectionStats(intervalMs, windowSize);
+    }
+
+    @Override
+    public void stopConnectionStats() {
+        if (begin(ControlProtocol.CMD_STOP_CONNECTION_STATS)) {
+            record();
+        }
+        delegate.stopConnectionStats();
+    }
+
+    @Override
+    public void subscribeCameraFrames(int maxFps, int downscale, int queueDepth, int format) {
+        if (begin(ControlProtocol.CMD_SUBSCRIBE_CAMERA_FRAMES)) {
+            message.putInt(maxFps);
+            message.putInt(downscale);
+            message.putInt(queueDepth);
+            message.putInt(format);
+            record();
+        }
+        delegate.subscribeCameraFrames(maxFps, downscale, queueDepth, format);
+    }
+
+    @Override
+    public void unsubscribeCameraFrames() {
+        if (begin(ControlProtocol.CMD_UNSUBSCRIBE_CAMERA_FRAMES)) {
+            record();
+        }
+        delegate.unsubscribeCameraFrames();
+    }
+
+    @Override
+    public void startPoseStream(int rateHz, boolean batch) {
+        if (begin(ControlProtocol.CMD_START_POSE_STREAM)) {
+            message.putInt(rateHz);
+            ControlProtocol.writeBoolean(message, batch);
+            record();
+        }
+        delegate.startPoseStream(rateHz, batch);
+    }
+
+    @Override
+    public void stopPoseStream() {
+        if (begin(ControlProtocol.CMD_STOP_POSE_STREAM)) {
+            record();
+        }
+        delegate.stopPoseStream();
+    }
+
+    @Override
+    public void setLogLevel(int level) {
+        if (begin(ControlProtocol.CMD_SET_LOG_LEVEL)) {
+            message.putInt(level);
+            record();
+        }
+        delegate.setLogLevel(level);
+    }
+
+    @Override
+    public void setTargetFrameRate(int frameRate) {
+        if (begin(ControlProtocol.CMD_SET_TARGET_FRAME_RATE)) {
+            message.putInt(frameRate);
+            record();
+        }
+        delegate.setTargetFrameRate(frameRate);
+    }
+
+    @Override
+    public void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                            String roomId, boolean hostCloudAnchor, boolean mediaPipe) {
+        if (begin(ControlProtocol.CMD_CONNECT_BEST)) {
+            try {
+                ControlProtocol.writeStrings(message, candidates);
+                ControlProtocol.writeString(message, anchorId);
+                ControlProtocol.writeString(message, webRtcIp);
+                ControlProtocol.writeString(message, roomId);
+                ControlProtocol.writeBoolean(message, hostCloudAnchor);
+                ControlProtocol.writeBoolean(message, mediaPipe);
+                record();
+            } catch (BufferOverflowException | IllegalArgumentException e) {
+                LogUtils.w(TAG, "connectBest too long to record");
+            }
+        }
+        delegate.connectBest(candidates, anchorId, webRtcIp, roomId, hostCloudAnchor, mediaPipe);
+    }
+
+    @Override
+    public void switchServer(String server) {
+        if (begin(ControlProtocol.CMD_SWITCH_SERVER)) {
+            try {
+                ControlProtocol.writeString(message, server);
+                record();
+            } catch (BufferOverflowException | IllegalArgumentException e) {
+                LogUtils.w(TAG, "switchServer too long to record");
+            }
+        }
+        delegate.switchServer(server);
+    }
+
+    @Override
+    public void listProfiles() {
+        delegate.listProfiles();
+    }
+
+    @Override
+    public void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                            String roomId, boolean mediaPipe) {
+        delegate.saveProfile(name, cloudIp, anchorId, webRtcIp, roomId, mediaPipe);
+    }
+
+    @Override
+    public void useProfile(String name) {
+        delegate.useProfile(name);
+    }
+
+    @Override
+    public void removeProfile(String name) {
+        delegate.removeProfile(name);
+    }
+
+    @Override
+    public void startTrace(int capacityKb) {
+        delegate.startTrace(capacityKb);
+    }
+
+    @Override
+    public void stopTrace() {
+        delegate.stopTrace();
+    }
+
+    @Override
+    public void replayTrace(String name, int speedPercent) {
+        delegate.replayTrace(name, speedPercent);
+    }
+
+    @Override
+    public void telemetryUploaded(String name, boolean ok) {
+        // Not part of the session; replaying it would answer an upload long gone.
+        delegate.telemetryUploaded(name, ok);
+    }
+
+    // Returns false if nothing is being recorded; otherwise the arguments follow, then record.
+    private boolean begin(int type) {
+        if (recorder == null) {
+            return false;
+        }
+        message.clear();
+        ControlProtocol.writeHeader(message, type, 0);
+        return true;
+    }
+
+    private void record() {
+        message.flip();
+        recorder.recordCommand(message);
+    }
+}
@@ -0,0 +1,56 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What the simulated-session checks share: key=value arguments, one way to report what is wrong,
+ * and an exit status that fails the Gradle task running the check, and with it {@code check}.
+ * <p>
+ * A failed {@link #check} is counted and the run goes on, so one run reports everything wrong.
+ */
+abstract class Check {
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Take the argument key=value; false if there is no argument by that name.
+     */
+    abstract boolean set(String key, long value);
+
+    abstract void run() throws Exception;
+
+    /**
+     * Set args on check, run it with logging swallowed, and exit 1 if anything failed.
+     */
+    static void main(Check check, String[] args) throws Exception {
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            String key = arg.substring(0, split);
+            if (!check.set(key, Long.parseLong(arg.substring(split + 1)))) {
+                throw new IllegalArgumentException("Unknown argument " + key);
+            }
+        }
+        NullPrinter.install();
+        check.run();
+        int failed = check.failures.get();
+        if (failed > 0) {
+            System.out.printf("%s: %d failed%n", check.getClass().getSimpleName(), failed);
+        }
+        // Stand-in threads and executors of the check may still be alive.
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Report message unless ok, from any thread. Returns ok, for checks that only make sense if
+     * this one passed.
+     */
+    final boolean check(boolean ok, String message) {
+        if (!ok) {
+            failures.incrementAndGet();
+            System.out.println("FAILED: " + message);
+        }
+        return ok;
+    }
+}
@@ -0,0 +1,207 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding the commands ArController receives, binary control messages against the method
+ * names of the older messages channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandParsingBenchmark {
+    private final RecordingCommands commands = new RecordingCommands();
+    private final Map<String, Integer> arguments = new HashMap<>();
+    private ByteBuffer connect;
+    private ByteBuffer startPoseStream;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        connect = ControlProtocol.allocate(256);
+        ControlProtocol.writeHeader(connect, ControlProtocol.CMD_CONNECT, 0);
+        putString(connect, "192.168.0.10");
+        putString(connect, "ua-4f1c2b9e0d");
+        putString(connect, "192.168.0.11");
+        putString(connect, "room-7");
+        connect.put((byte) 1);
+        connect.put((byte) 0);
+        connect.flip();
+
+        startPoseStream = ControlProtocol.allocate(16);
+        ControlProtocol.writeHeader(startPoseStream, ControlProtocol.CMD_START_POSE_STREAM, 0);
+        startPoseStream.putInt(30);
+        startPoseStream.put((byte) 1);
+        startPoseStream.flip();
+
+        arguments.put("maxFps", 15);
+        arguments.put("downscale", 2);
+        arguments.put("queueDepth", 2);
+    }
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    @Benchmark
+    public int binaryConnect() {
+        connect.rewind();
+        return ControlProtocol.dispatch(connect, commands) + commands.calls;
+    }
+
+    @Benchmark
+    public int binaryStartPoseStream() {
+        startPoseStream.rewind();
+        return ControlProtocol.dispatch(startPoseStream, commands) + commands.calls;
+    }
+
+    @Benchmark
+    public boolean methodCallConnect() {
+        return ControlProtocol.dispatchMethodCall("connect_to_cloudxr192.168.0.10",
+                arguments::get, commands);
+    }
+
+    @Benchmark
+    public boolean methodCallSubscribeCameraFrames() {
+        return ControlProtocol.dispatchMethodCall("subscribe_camera_frames", arguments::get,
+                commands);
+    }
+
+    /**
+     * Keeps what it was given so decoding is not optimized away.
+     */
+    private static class RecordingCommands implements ControlProtocol.Commands {
+        int calls;
+        String cloudIp;
+
+        @Override
+        public void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                            boolean hostCloudAnchor, boolean mediaPipe) {
+            this.cloudIp = cloudIp;
+            calls++;
+        }
+
+        @Override
+        public void disconnect() {
+            calls++;
+        }
+
+        @Override
+        public void stop() {
+            calls++;
+        }
+
+        @Override
+        public void startConnectionStats(int intervalMs, int windowSize) {
+            calls += intervalMs;
+        }
+
+        @Override
+        public void stopConnectionStats() {
+            calls++;
+        }
+
+        @Override
+        public void subscribeCameraFrames(int maxFps, int downscale, int queueDepth,
+                                          int format) {
+            calls += maxFps + downscale + queueDepth + format;
+        }
+
+        @Override
+        public void unsubscribeCameraFrames() {
+            calls++;
+        }
+
+        @Override
+        public void startPoseStream(int rateHz, boolean batch) {
+            calls += rateHz;
+        }
+
+        @Override
+        public void stopPoseStream() {
+            calls++;
+        }
+
+        @Override
+        public void startTrace(int capacityKb) {
+            calls++;
+        }
+
+        @Override
+        public void stopTrace() {
+            calls++;
+        }
+
+        @Override
+        public void replayTrace(String name, int speedPercent) {
+            calls++;
+        }
+
+        @Override
+        public void setLogLevel(int level) {
+            calls += level;
+        }
+
+        @Override
+        public void setTargetFrameRate(int frameRate) {
+            calls += frameRate;
+        }
+
+        @Override
+        public void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                                String roomId, boolean hostCloudAnchor, boolean mediaPipe) {
+            this.cloudIp = candidates.get(0);
+            calls++;
+        }
+
+        @Override
+        public void telemetryUploaded(String name, boolean ok) {
+            calls++;
+        }
+
+        @Override
+        public void switchServer(String server) {
+            this.cloudIp = server;
+            calls++;
+        }
+
+        @Override
+        public void listProfiles() {
+            calls++;
+        }
+
+        @Override
+        public void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                                String roomId, boolean mediaPipe) {
+            this.cloudIp = cloudIp;
+            calls++;
+        }
+
+        @Override
+        public void useProfile(String name) {
+            calls++;
+        }
+
+        @Override
+        public void removeProfile(String name) {
+            calls++;
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFrameExporter;
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EdgeSelector;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameConverter;
+import com.compal.cloudxr_flutter.FrameHistogram;
+import com.compal.cloudxr_flutter.FrameLoop;
+import com.compal.cloudxr_flutter.NativeHandle;
+import com.compal.cloudxr_flutter.QualityGovernor;
+import com.compal.cloudxr_flutter.RenderScheduler;
+import com.compal.cloudxr_flutter.Scheduler;
+import com.compal.cloudxr_flutter.SessionRecovery;
+import com.compal.cloudxr_flutter.SessionWarmup;
+import com.compal.cloudxr_flutter.SimulatedNativeBridge;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Soak test of the frame loop against {@link SimulatedNativeBridge}, for CI boxes without a
+ * device.
+ * <p>
+ * Each native application is created by {@link SessionWarmup} on its own thread after the GL
+ * surface exists, and attached on the main thread, as in ArController.
+ * <p>
+ * The calling thread plays the GL thread and a single thread executor the main thread. Each
+ * cycle connects through a binary control command, draws a number of frames (optionally paced
+ * to a frame rate) with camera frames subscribed, and disconnects; every few cycles the native
+ * application is destroyed from the main thread while frames keep coming, as when the activity
+ * goes away. Draw errors go through {@link SessionRecovery}, with its delays shortened a
+ * thousandfold and reconnects queued to the GL thread like GLSurfaceView.queueEvent. The
+ * thermal status ramps up and down across cycles, driving the {@link QualityGovernor} with its
+ * hold shortened the same way. Fails if a lifecycle invariant breaks: calls after destroy, leaked
+ * camera images, native applications left alive, tracking transitions that never reached Dart,
+ * errors that were never recovered from, or quality levels that never reached native code.
+ * <p>
+ * Arguments are key=value: cycles, frames (per cycle), hz (0 = unpaced), draw_us (simulated
+ * draw latency), error_every (frames between injected draw errors, 0 = none),
+ * reconnect_error_every (reconnects between injected reconnect errors, 0 = none),
+ * recreate_every (cycles between destroys), thermal_every (cycles between thermal status
+ * changes, 0 = none).
+ */
+public class ControllerSoak extends Check {
+    private int cycles = 2000;
+    private int framesPerCycle = 120;
+    private int frameRateHz = 0;
+    private long drawLatencyNanos = 0;
+    private int errorEveryFrames = 0;
+    private int reconnectErrorEvery = 0;
+    private int recreateEveryCycles = 100;
+    private int thermalEveryCycles = 10;
+
+    // PowerManager thermal statuses the soak ramps through.
+    private static final int[] THERMAL_RAMP = {0, 2, 3, 4, 3, 1, 0};
+
+    private final SimulatedNativeBridge bridge = new SimulatedNativeBridge(42);
+    private final ScheduledExecutorService mainThread =
+            Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "main"));
+    // Delayed tasks on the main thread, shared like ArController's; delays are taken as
+    // microseconds so backoffs pass quickly.
+    private final Scheduler mainScheduler = new Scheduler() {
+        private final Map<Runnable, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+
+        @Override
+        public void schedule(Runnable task, long delayMs) {
+            pending.put(task, mainThread.schedule(() -> {
+                pending.remove(task);
+                task.run();
+            }, delayMs, TimeUnit.MICROSECONDS));
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            ScheduledFuture<?> scheduled = pending.remove(task);
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    };
+    // Runs on the GL thread before each frame, like GLSurfaceView.queueEvent.
+    private final ConcurrentLinkedQueue<Runnable> glQueue = new ConcurrentLinkedQueue<>();
+    private final FrameHistogram drawHistogram = new FrameHistogram();
+    private final ByteBuffer events = ControlProtocol.allocate(4096);
+    private final ByteBuffer connect = ControlProtocol.allocate(256);
+    private final ByteBuffer disconnect = ControlProtocol.allocate(ControlProtocol.HEADER_SIZE);
+    private final ByteBuffer subscribe = ControlProtocol.allocate(20);
+
+    private final AtomicLong deliveredEvents = new AtomicLong();
+    private final AtomicLong deliveredBatches = new AtomicLong();
+    private final AtomicLong anchorStarts = new AtomicLong();
+    private final AtomicLong warmups = new AtomicLong();
+    private final AtomicLong sentCameraFrames = new AtomicLong();
+    private final AtomicLong planesDetected = new AtomicLong();
+    private final AtomicLong frameErrors = new AtomicLong();
+    private final AtomicLong unrecoverable = new AtomicLong();
+    // Times each render mode was entered, main thread only.
+    private final int[] renderModes = new int[3];
+    private final RenderScheduler renderScheduler = new RenderScheduler(
+            new RenderScheduler.Surface() {
+                @Override
+                public void setContinuous(boolean continuous) {
+                }
+
+                @Override
+                public void requestRender() {
+                }
+            },
+            new RenderScheduler.Vsync() {
+                @Override
+                public void postFrameCallback() {
+                }
+
+                @Override
+                public void removeFrameCallback() {
+                }
+            },
+            (mode, frameRate) -> renderModes[mode]++);
+    // Quality decisions that reached the listener, main thread only.
+    private int qualityStepsDown = 0;
+    private int qualityStepsUp = 0;
+    private int qualityMaxLevel = 0;
+
+    // One native application lifetime, like one ArController.
+    private NativeHandle nativeHandle;
+    private CameraFrameExporter exporter;
+    private FrameLoop frameLoop;
+    private EventBus eventBus;
+    private SessionRecovery sessionRecovery;
+    private QualityGovernor qualityGovernor;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new ControllerSoak(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "cycles":
+                cycles = (int) value;
+                return true;
+            case "frames":
+                framesPerCycle = (int) value;
+                return true;
+            case "hz":
+                frameRateHz = (int) value;
+                return true;
+            case "draw_us":
+                drawLatencyNanos = value * 1000;
+                return true;
+            case "error_every":
+                errorEveryFrames = (int) value;
+                return true;
+            case "reconnect_error_every":
+                reconnectErrorEvery = (int) value;
+                return true;
+            case "recreate_every":
+                recreateEveryCycles = (int) Math.max(1, value);
+                return true;
+            case "thermal_every":
+                thermalEveryCycles = (int) value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws Exception {
+        bridge.setLatencyNanos(SimulatedNativeBridge.Call.DRAW_FRAME, drawLatencyNanos);
+        bridge.setDrawError(-1, errorEveryFrames);
+        bridge.setReconnectError(-2, reconnectErrorEvery);
+        // Anchor flaps during longer cycles, so transitions keep flowing.
+        bridge.setTrackingTimeline(1, framesPerCycle / 4, framesPerCycle / 2);
+        bridge.setAnchorLoss(Math.max(2, framesPerCycle / 4), Math.max(1, framesPerCycle / 16));
+        buildCommands();
+
+        long frameNanos = frameRateHz > 0 ? 1_000_000_000L / frameRateHz : 0;
+        long start = System.nanoTime();
+        long nextFrame = start;
+        long frames = 0;
+        create();
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            if (thermalEveryCycles > 0) {
+                int status = THERMAL_RAMP[cycle / thermalEveryCycles % THERMAL_RAMP.length];
+                onMain(() -> qualityGovernor.setThermalStatus(status));
+            }
+            onMain(() -> dispatch(connect));
+            onMain(() -> dispatch(subscribe));
+            for (int i = 0; i < framesPerCycle; i++) {
+                if (frameNanos > 0) {
+                    nextFrame += frameNanos;
+                    while (System.nanoTime() < nextFrame) {
+                        Thread.yield();
+                    }
+                }
+                long frameStart = System.nanoTime();
+                runGlQueue();
+                frameLoop.onDrawFrame();
+                drawHistogram.recordNanos(System.nanoTime() - frameStart);
+                frames++;
+            }
+            onMain(() -> dispatch(disconnect));
+            if ((cycle + 1) % recreateEveryCycles == 0 || cycle == cycles - 1) {
+                destroyWhileDrawing();
+                if (cycle != cycles - 1) {
+                    create();
+                }
+            }
+        }
+        // Let the last drains and frame sends run.
+        onMain(() -> { });
+        onMain(() -> { });
+        mainThread.shutdown();
+        mainThread.awaitTermination(10, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        report(frames, seconds);
+    }
+
+    private void buildCommands() {
+        ControlProtocol.writeHeader(connect, ControlProtocol.CMD_CONNECT, 0);
+        for (String value : new String[]{"10.0.0.2", "", "10.0.0.2", ""}) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            connect.putShort((short) bytes.length);
+            connect.put(bytes);
+        }
+        connect.put((byte) 0);
+        connect.put((byte) 0);
+        connect.flip();
+        ControlProtocol.writeHeader(disconnect, ControlProtocol.CMD_DISCONNECT, 0);
+        disconnect.flip();
+        ControlProtocol.writeHeader(subscribe, ControlProtocol.CMD_SUBSCRIBE_CAMERA_FRAMES, 0);
+        subscribe.putInt(Integer.MAX_VALUE);
+        subscribe.putInt(4);
+        subscribe.putInt(2);
+        // Converted, so the conversion runs through every lifecycle transition too.
+        subscribe.putInt(FrameConverter.FORMAT_RGBA);
+        subscribe.flip();
+    }
+
+    private void create() {
+        exporter = new CameraFrameExporter(bridge, mainThread);
+        exporter.setChannel((frame, onDelivered) -> {
+            sentCameraFrames.incrementAndGet();
+            onDelivered.run();
+        });
+        NativeHandle handle = new NativeHandle(bridge, exporter::shutdown);
+        nativeHandle = handle;
+        eventBus = new EventBus(mainThread::execute, this::deliver);
+        FrameLoop loop = new FrameLoop(bridge, nativeHandle, eventBus, exporter, host);
+        frameLoop = loop;
+        // The surface comes first, its GL content is set up on the first frame after attach.
+        frameLoop.onSurfaceCreated();
+        frameLoop.onSurfaceChanged(1080, 2340, frameRateHz > 0 ? frameRateHz : 60);
+        CountDownLatch attached = new CountDownLatch(1);
+        new SessionWarmup(bridge, EdgeSelector.TCP_PROBER, eventBus).start(null, "", nativeApplication ->
+                mainThread.execute(() -> {
+                    handle.attach(nativeApplication);
+                    attached.countDown();
+                }));
+        try {
+            if (!attached.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("warm-up never created the native application");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        SessionRecovery[] recovery = new SessionRecovery[1];
+        recovery[0] = new SessionRecovery(mainScheduler, new SessionRecovery.Host() {
+            @Override
+            public void reconnect() {
+                glQueue.add(() -> {
+                    int status = loop.reconnect();
+                    boolean recoverable = loop.isSessionRecoverable();
+                    mainThread.execute(() -> recovery[0].onReconnectResult(status, recoverable));
+                });
+            }
+
+            @Override
+            public void onUnrecoverable(int status) {
+                unrecoverable.incrementAndGet();
+            }
+        }, eventBus);
+        sessionRecovery = recovery[0];
+        qualityGovernor = new QualityGovernor(mainScheduler, level -> {
+            renderScheduler.setMaxFrameRate(level.frameRate);
+            String args = level.toArgs();
+            glQueue.add(() -> loop.setArgs(args));
+        }, eventBus);
+    }
+
+    // Like ArController.onDestroy: never waits for the GL thread, which keeps drawing.
+    private void destroyWhileDrawing() throws Exception {
+        mainThread.execute(() -> {
+            sessionRecovery.reset();
+            qualityGovernor.stop();
+            exporter.unsubscribe();
+            nativeHandle.destroy();
+        });
+        for (int i = 0; i < 8; i++) {
+            runGlQueue();
+            frameLoop.onDrawFrame();
+        }
+        onMain(() -> { });
+        // Whichever thread dropped the last reference has deleted it by now.
+        if (nativeHandle.acquire() != 0) {
+            throw new IllegalStateException("native application still acquirable after destroy");
+        }
+    }
+
+    private void runGlQueue() {
+        Runnable task;
+        while ((task = glQueue.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void dispatch(ByteBuffer command) {
+        command.rewind();
+        int status = ControlProtocol.dispatch(command, commands);
+        if (status != ControlProtocol.STATUS_OK) {
+            throw new IllegalStateException("command failed with status " + status);
+        }
+    }
+
+    private void onMain(Runnable task) throws Exception {
+        mainThread.submit(task).get(10, TimeUnit.SECONDS);
+    }
+
+    // Runs on the main thread.
+    private void deliver(List<Object> batch) {
+        deliveredBatches.incrementAndGet();
+        deliveredEvents.addAndGet(batch.size());
+        for (Object event : batch) {
+            if ("start_cloudxr".equals(event)) {
+                anchorStarts.incrementAndGet();
+            } else if (event instanceof Map
+                    && SessionWarmup.EVENT_TYPE.equals(((Map<?, ?>) event).get("type"))) {
+                warmups.incrementAndGet();
+            } else if (event instanceof Map
+                    && QualityGovernor.EVENT_TYPE.equals(((Map<?, ?>) event).get("type"))) {
+                Map<?, ?> quality = (Map<?, ?>) event;
+                int level = (Integer) quality.get("level");
+                if (level > (Integer) quality.get("previous")) {
+                    qualityStepsDown++;
+                } else {
+                    qualityStepsUp++;
+                }
+                qualityMaxLevel = Math.max(qualityMaxLevel, level);
+            }
+        }
+        events.clear();
+        ControlProtocol.writeBatch(events, batch);
+    }
+
+    private final FrameLoop.Host host = new FrameLoop.Host() {
+        @Override
+        public int getDisplayRotation() {
+            return 0;
+        }
+
+        @Override
+        public void onPlanesDetected() {
+            planesDetected.incrementAndGet();
+        }
+
+        @Override
+        public void onTrackingStateChanged(int state) {
+            mainThread.execute(() -> renderScheduler.setTrackingState(state));
+        }
+
+        @Override
+        public void onFrameError(int status, boolean recoverable) {
+            frameErrors.incrementAndGet();
+            SessionRecovery recovery = sessionRecovery;
+            mainThread.execute(() -> recovery.onFrameError(status, recoverable));
+        }
+    };
+
+    // The native side of what ArController does for each command; runs on the main thread.
+    private final ControlProtocol.Commands commands = new ControlProtocol.Commands() {
+        @Override
+        public void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                            boolean hostCloudAnchor, boolean mediaPipe) {
+            long nativeApplication = nativeHandle.acquire();
+            if (nativeApplication == 0) {
+                return;
+            }
+            sessionRecovery.reset();
+            qualityGovernor.start();
+            bridge.onResume(nativeApplication, null, null);
+            nativeHandle.release();
+            frameLoop.setWaitingForPlanes(true);
+            nativeHandle.markResumed();
+            renderScheduler.setActive(true);
+        }
+
+        @Override
+        public void disconnect() {
+            sessionRecovery.reset();
+            qualityGovernor.onDisconnected();
+            renderScheduler.setActive(false);
+            long nativeApplication = nativeHandle.acquire();
+            if (nativeApplication != 0) {
+                bridge.onPause(nativeApplication);
+                nativeHandle.release();
+            }
+            frameLoop.setWaitingForPlanes(false);
+            nativeHandle.markPaused();
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void startConnectionStats(int intervalMs, int windowSize) {
+        }
+
+        @Override
+        public void stopConnectionStats() {
+        }
+
+        @Override
+        public void subscribeCameraFrames(int maxFps, int downscale, int queueDepth,
+                                          int format) {
+            if (!exporter.hasSubscribers()) {
+                exporter.subscribe(maxFps, downscale, queueDepth, format);
+            }
+        }
+
+        @Override
+        public void unsubscribeCameraFrames() {
+            exporter.unsubscribe();
+        }
+
+        @Override
+        public void startPoseStream(int rateHz, boolean batch) {
+        }
+
+        @Override
+        public void stopPoseStream() {
+        }
+
+        @Override
+        public void startTrace(int capacityKb) {
+        }
+
+        @Override
+        public void stopTrace() {
+        }
+
+        @Override
+        public void replayTrace(String name, int speedPercent) {
+        }
+
+        @Override
+        public void setLogLevel(int level) {
+        }
+
+        @Override
+        public void setTargetFrameRate(int frameRate) {
+            renderScheduler.setTargetFrameRate(frameRate);
+        }
+
+        @Override
+        public void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                                String roomId, boolean hostCloudAnchor, boolean mediaPipe) {
+        }
+
+        @Override
+        public void telemetryUploaded(String name, boolean ok) {
+        }
+
+        @Override
+        public void switchServer(String server) {
+        }
+
+        @Override
+        public void listProfiles() {
+        }
+
+        @Override
+        public void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                                String roomId, boolean mediaPipe) {
+        }
+
+        @Override
+        public void useProfile(String name) {
+        }
+
+        @Override
+        public void removeProfile(String name) {
+        }
+    };
+
+    private void report(long frames, double seconds) {
+        System.out.printf("cycles %d, frames %d in %.1f s (%.0f fps)%n", cycles, frames, seconds,
+                frames / seconds);
+        System.out.printf("draw us p50 %d p95 %d p99 %d max %d%n",
+                drawHistogram.getPercentile(50), drawHistogram.getPercentile(95),
+                drawHistogram.getPercentile(99), drawHistogram.getMax());
+        System.out.printf("events %d in %d batches, anchor starts %d, planes detected %d%n",
+                deliveredEvents.get(), deliveredBatches.get(), anchorStarts.get(),
+                planesDetected.get());
+        System.out.printf("camera frames sent %d, frame errors %d (injected %d)%n",
+                sentCameraFrames.get(), frameErrors.get(), bridge.getFailedFrames());
+        System.out.printf("reconnects %d (failed %d), unrecoverable %d%n",
+                bridge.getReconnects(), bridge.getFailedReconnects(), unrecoverable.get());
+        System.out.printf("render modes on demand %d, paced %d, continuous %d%n",
+                renderModes[RenderScheduler.MODE_ON_DEMAND],
+                renderModes[RenderScheduler.MODE_PACED],
+                renderModes[RenderScheduler.MODE_CONTINUOUS]);
+        System.out.printf("quality steps down %d, up %d, max level %d, args \"%s\"%n",
+                qualityStepsDown, qualityStepsUp, qualityMaxLevel, bridge.getArgs());
+        System.out.printf("native applications created %d, destroyed %d, alive %d%n",
+                bridge.getCreatedApps(), bridge.getDestroyedApps(), bridge.getLiveApps());
+
+        check(bridge.getLiveApps() == 0, "native applications left alive");
+        check(bridge.getCreatedApps() == bridge.getDestroyedApps(),
+                "created and destroyed native applications differ");
+        check(frameErrors.get() == bridge.getFailedFrames(),
+                "frame errors not reported to the host");
+        check(errorEveryFrames == 0 || bridge.getReconnects() > 0,
+                "draw errors never led to a reconnect");
+        check(unrecoverable.get() == 0, "recoverable errors given up on");
+        check(planesDetected.get() == cycles, "plane detection not reported once per connect");
+        check(warmups.get() == bridge.getCreatedApps(),
+                "warm-up timings not reported once per native application");
+        check(anchorStarts.get() > 0, "no CloudXR anchor start reached the listener");
+        check(renderScheduler.getMode() == RenderScheduler.MODE_ON_DEMAND,
+                "still rendering after the last disconnect");
+        check(renderModes[RenderScheduler.MODE_CONTINUOUS] > 0,
+                "never rendered continuously while streaming");
+        if (thermalEveryCycles > 0 && cycles >= thermalEveryCycles * THERMAL_RAMP.length) {
+            check(qualityMaxLevel == QualityGovernor.LEVEL_COUNT - 1,
+                    "critical thermal status never reached the lowest quality level");
+            check(qualityStepsUp > 0, "quality never stepped back up");
+            check(!bridge.getArgs().isEmpty(), "quality levels never reached native");
+        }
+    }
+}
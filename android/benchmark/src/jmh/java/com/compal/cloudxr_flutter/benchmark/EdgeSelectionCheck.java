@@ -0,0 +1,193 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EdgeSelector;
+import com.compal.cloudxr_flutter.EventBus;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link EdgeSelector} against stand-in edge servers on the loopback interface and fails
+ * unless it ranks them as their distance says, within the probe timeout, from the cache the
+ * second time, and falls back along the ranking.
+ * <p>
+ * Each stand-in is a ServerSocket accepting connections. Loopback round trips are all alike, so
+ * the distance is simulated by delaying the real TCP probe per port: near, far, jittery (near and
+ * far in turn), one that answers only after the timeout, plus a port nobody listens on.
+ * <p>
+ * Arguments are key=value: samples (round trips per server), timeout_ms, scale (multiplies the
+ * simulated delays).
+ */
+public class EdgeSelectionCheck extends Check {
+    private int samples = EdgeSelector.DEFAULT_SAMPLES;
+    private int timeoutMs = 400;
+    private int scale = 1;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new EdgeSelectionCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "samples":
+                samples = (int) Math.max(2, value);
+                return true;
+            case "timeout_ms":
+                timeoutMs = (int) Math.max(50, value);
+                return true;
+            case "scale":
+                scale = (int) Math.max(1, value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws IOException {
+        List<StandIn> standIns = new ArrayList<>();
+        try {
+            StandIn near = new StandIn(new int[]{5});
+            StandIn far = new StandIn(new int[]{30});
+            StandIn jittery = new StandIn(new int[]{0, 25});
+            StandIn slow = new StandIn(new int[]{timeoutMs * 2 / scale});
+            standIns.addAll(Arrays.asList(near, far, jittery, slow));
+            // Bound and closed again, so connecting is refused.
+            ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            String refused = "127.0.0.1:" + closed.getLocalPort();
+            closed.close();
+
+            Map<Integer, StandIn> byPort = new HashMap<>();
+            for (StandIn standIn : standIns) {
+                byPort.put(standIn.socket.getLocalPort(), standIn);
+            }
+            EdgeSelector.Prober prober = (host, port, timeout) -> {
+                StandIn standIn = byPort.get(port);
+                long delayMs = standIn != null ? standIn.nextDelayMs() : 0;
+                if (delayMs >= timeout) {
+                    sleep(timeout);
+                    return -1;
+                }
+                sleep(delayMs);
+                long rtt = EdgeSelector.TCP_PROBER.measure(host, port, (int) (timeout - delayMs));
+                return rtt < 0 ? -1 : rtt + delayMs * 1_000_000L;
+            };
+
+            int[] events = new int[2];
+            EventBus eventBus = new EventBus(Runnable::run, batch -> {
+                ByteBuffer out = ControlProtocol.allocate(64 * 1024);
+                events[0] += batch.size();
+                events[1] += ControlProtocol.writeBatch(out, batch);
+            });
+            EdgeSelector selector = new EdgeSelector(prober, eventBus);
+            selector.setProbe(samples, timeoutMs);
+
+            // Given worst first, so the ranking has to reorder them.
+            List<String> candidates = Arrays.asList(slow.name(), refused, jittery.name(),
+                    far.name(), near.name());
+            long start = System.nanoTime();
+            List<EdgeSelector.Result> ranked = selector.rank(candidates);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            for (EdgeSelector.Result result : ranked) {
+                System.out.printf("%-16s rtt %6.1f ms jitter %5.1f ms lost %d%n",
+                        result.server, result.rttMs, result.jitterMs, result.lost);
+            }
+            System.out.printf("ranked %d servers in %d ms, timeout %d ms%n", ranked.size(),
+                    elapsedMs, timeoutMs);
+            check(servers(ranked).equals(Arrays.asList(near.name(), far.name(),
+                    jittery.name(), slow.name(), refused)), "wrong order " + servers(ranked));
+            check(elapsedMs < timeoutMs * 2, "probes did not run concurrently");
+            check(ranked.get(2).jitterMs > ranked.get(0).jitterMs, "jitter not measured");
+
+            int probes = selector.getProbes();
+            selector.rank(candidates);
+            check(selector.getProbes() == probes, "cached results probed again");
+
+            EdgeSelector.Selection selection = selector.select(candidates);
+            List<String> tried = new ArrayList<>();
+            for (String server = selection.getServer(); server != null;
+                 server = selection.fallBack()) {
+                tried.add(server);
+            }
+            check(tried.equals(Arrays.asList(near.name(), far.name(), jittery.name())),
+                    "wrong fall back order " + tried);
+            check(!selector.rank(candidates).get(0).isReachable(),
+                    "failed servers still ranked reachable");
+
+            selector.setTtl(0);
+            selector.rank(candidates);
+            check(selector.getProbes() == probes + candidates.size(),
+                    "expired results not probed again");
+            check(events[0] > 0 && events[1] == events[0], "events not encoded");
+            selector.shutdown();
+        } finally {
+            for (StandIn standIn : standIns) {
+                standIn.close();
+            }
+        }
+    }
+
+    private static List<String> servers(List<EdgeSelector.Result> ranked) {
+        List<String> servers = new ArrayList<>();
+        for (EdgeSelector.Result result : ranked) {
+            servers.add(result.server);
+        }
+        return servers;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // An edge server on the loopback interface, accepting and closing connections.
+    private class StandIn {
+        final ServerSocket socket;
+        final int[] delaysMs;
+        final AtomicInteger probes = new AtomicInteger();
+
+        StandIn(int[] delaysMs) throws IOException {
+            this.delaysMs = delaysMs;
+            socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this::accept, "StandIn");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String name() {
+            return "127.0.0.1:" + socket.getLocalPort();
+        }
+
+        long nextDelayMs() {
+            return (long) delaysMs[probes.getAndIncrement() % delaysMs.length] * scale;
+        }
+
+        private void accept() {
+            while (!socket.isClosed()) {
+                try {
+                    // Connected is all a probe needs.
+                    socket.accept().close();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
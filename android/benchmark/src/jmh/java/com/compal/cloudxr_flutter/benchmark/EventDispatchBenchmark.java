@@ -0,0 +1,139 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ConnectionStatsMonitor;
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventBus posting and draining, from the producers (GL thread, stats monitor, gestures) to the
+ * encoded message ArController hands to the control channel.
+ * <p>
+ * dispatch: one 60 Hz vsync drain after the GL thread produced cadenceHz / 60 frames of state,
+ * single threaded. contended: producers posting from several threads while another drains,
+ * to see what the lock-free queue costs under contention.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventDispatchBenchmark {
+    private static final int DISPLAY_HZ = 60;
+
+    @Param({"60", "90", "120"})
+    public int cadenceHz;
+
+    private EventBus eventBus;
+    private volatile Runnable pendingDrain;
+    private final ByteBuffer events = ControlProtocol.allocate(4096);
+    private Map<String, Object> frameStats;
+    private Map<String, Object> connectionStats;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        eventBus = new EventBus(drain -> pendingDrain = drain, this::encode);
+        frameStats = frameStats();
+        connectionStats = connectionStats();
+    }
+
+    private void encode(List<Object> batch) {
+        events.clear();
+        ControlProtocol.writeBatch(events, batch);
+    }
+
+    // A group of its own: the state is shared per group, which only @Group methods can use.
+    @Benchmark
+    @Group("dispatch")
+    @GroupThreads(1)
+    public int dispatch() {
+        int producedFrames = Math.max(1, cadenceHz / DISPLAY_HZ);
+        for (int i = 0; i < producedFrames; i++) {
+            eventBus.postState(EventBus.STATE_FRAME_STATS, frameStats);
+            eventBus.postState(EventBus.STATE_CLOUDXR,
+                    (i & 1) == 0 ? "start_cloudxr" : "stop_cloudxr");
+        }
+        eventBus.postState(EventBus.STATE_CONNECTION_STATS, connectionStats);
+        eventBus.post("touch");
+        return drain();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void post() {
+        eventBus.post("touch");
+        eventBus.postState(EventBus.STATE_FRAME_STATS, frameStats);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void drainContended(Blackhole blackhole) {
+        blackhole.consume(drain());
+    }
+
+    private int drain() {
+        Runnable drain = pendingDrain;
+        if (drain == null) {
+            return 0;
+        }
+        pendingDrain = null;
+        drain.run();
+        return events.position();
+    }
+
+    private static Map<String, Object> frameStats() {
+        Map<String, Object> stages = new HashMap<>();
+        String[] names = {"anchor", "geometry", "draw", "camera", "total", "interval"};
+        for (String stage : names) {
+            stages.put(stage, new long[]{120, 800, 1600, 2400, 5000});
+        }
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("type", FrameMetrics.EVENT_TYPE);
+        snapshot.put("period_ms", 2000L);
+        snapshot.put("frames", 120L);
+        snapshot.put("dropped", 1L);
+        snapshot.put("errors", 0L);
+        snapshot.put("camera_dropped", 0L);
+        snapshot.put("stages", stages);
+        return snapshot;
+    }
+
+    private static Map<String, Object> connectionStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("type", ConnectionStatsMonitor.EVENT_TYPE);
+        stats.put("samples", 10);
+        stats.put("window_ms", 5000L);
+        stats.put("fps", 59.5);
+        stats.put("bitrate_kbps", 24000.0);
+        stats.put("bandwidth_min_kbps", 30000.0);
+        stats.put("rtt_ms", 18.0);
+        stats.put("rtt_min_ms", 12.0);
+        stats.put("rtt_max_ms", 31.0);
+        stats.put("jitter_ms", 2.5);
+        stats.put("packet_loss_percent", 0.1);
+        stats.put("quality", 4);
+        stats.put("quality_min", 3);
+        stats.put("quality_reasons", 0);
+        stats.put("degrading", false);
+        return stats;
+    }
+}
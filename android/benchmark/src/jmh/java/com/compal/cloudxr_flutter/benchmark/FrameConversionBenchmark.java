@@ -0,0 +1,67 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.FrameConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting a 1280x720 camera frame (interleaved chroma, padded rows) as the exporter worker
+ * does, per output format and downscale, on a pool of the given parallelism; 1 is the single
+ * threaded baseline the stripes are measured against. Allocation per op should be 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameConversionBenchmark {
+    @Param({"1", "2", "3"})
+    public int format;
+
+    @Param({"1", "2", "4"})
+    public int downscale;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private ForkJoinPool pool;
+    private FrameConverter converter;
+    private ByteBuffer frame;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        pool = new ForkJoinPool(parallelism);
+        converter = new FrameConverter(pool);
+        frame = FrameConversionCheck.yuvFrame(1280, 720, 64, 2, new Random(1));
+        out = ControlProtocol.allocate(FrameConverter.frameSize(format, 1280, 720));
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public int convert() {
+        return converter.convert(frame, 0, 0, 0, 0, downscale, format, out);
+    }
+
+    @Benchmark
+    public int convertCenterCrop() {
+        return converter.convert(frame, 320, 180, 640, 360, downscale, format, out);
+    }
+}
@@ -0,0 +1,258 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFramePool;
+import com.compal.cloudxr_flutter.FrameConverter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks {@link FrameConverter} against a plain per-pixel reference and fails on any difference.
+ * <p>
+ * Frames are random YUV_420_888 images with padded rows, planar (UV pixel stride 1) and
+ * interleaved (2) chroma. Each is converted to every format at several scales and crops, on a
+ * pool of the given parallelism and on a single thread; both must match each other byte for byte
+ * and the floating point reference within one step of rounding. Known colors, header fields and
+ * the buffer size and empty crop results are checked too.
+ * <p>
+ * Arguments are key=value: parallelism (of the converter's pool), seed.
+ */
+public class FrameConversionCheck extends Check {
+    private static final int[][] SIZES = {{640, 480}, {1280, 720}, {36, 18}};
+    private static final int[] SCALES = {1, 2, 3, 4};
+    private static final int[] FORMATS =
+            {FrameConverter.FORMAT_RGBA, FrameConverter.FORMAT_RGB, FrameConverter.FORMAT_GRAY};
+    // Rounding in 16.16 fixed point against double, per channel.
+    private static final int TOLERANCE = 2;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long seed = 42;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new FrameConversionCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "parallelism":
+                parallelism = (int) Math.max(1, value);
+                return true;
+            case "seed":
+                seed = value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        ForkJoinPool single = new ForkJoinPool(1);
+        FrameConverter converter = new FrameConverter(pool);
+        FrameConverter sequential = new FrameConverter(single);
+        Random random = new Random(seed);
+        int conversions = 0;
+        try {
+            for (int[] size : SIZES) {
+                for (int uvPixelStride = 1; uvPixelStride <= 2; uvPixelStride++) {
+                    ByteBuffer frame = yuvFrame(size[0], size[1], 24, uvPixelStride, random);
+                    int[][] crops = {
+                            {0, 0, 0, 0},
+                            {size[0] / 4 + 1, size[1] / 3 + 1, size[0] / 2, size[1] / 2},
+                            // Clamped to the frame.
+                            {size[0] - 20, size[1] - 12, 100, 100},
+                    };
+                    for (int format : FORMATS) {
+                        for (int scale : SCALES) {
+                            for (int[] crop : crops) {
+                                compare(converter, sequential, frame, crop, scale, format);
+                                conversions++;
+                            }
+                        }
+                    }
+                }
+            }
+            checkColors(converter);
+            checkEdges(converter, random);
+        } finally {
+            pool.shutdown();
+            single.shutdown();
+        }
+        System.out.printf("%d conversions on %d threads checked%n", conversions, parallelism);
+    }
+
+    private boolean compare(FrameConverter converter, FrameConverter sequential,
+                            ByteBuffer frame, int[] crop, int scale, int format) {
+        String name = String.format("%dx%d pixel stride %d format %d scale %d crop %d,%d %dx%d",
+                frame.getInt(CameraFramePool.WIDTH_OFFSET),
+                frame.getInt(CameraFramePool.HEIGHT_OFFSET),
+                frame.getInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET), format, scale, crop[0],
+                crop[1], crop[2], crop[3]);
+        ByteBuffer parallel = allocate(frame.capacity() * 4);
+        ByteBuffer single = allocate(frame.capacity() * 4);
+        int written = converter.convert(frame, crop[0], crop[1], crop[2], crop[3], scale, format,
+                parallel);
+        int singleWritten = sequential.convert(frame, crop[0], crop[1], crop[2], crop[3], scale,
+                format, single);
+        if (!check(written > 0 && written == singleWritten, name + ": sizes " + written + " and "
+                + singleWritten)) {
+            return false;
+        }
+        for (int i = 0; i < written; i++) {
+            if (parallel.get(i) != single.get(i)) {
+                return check(false, name + ": parallel and sequential differ at " + i);
+            }
+        }
+
+        int outWidth = parallel.getInt(CameraFramePool.WIDTH_OFFSET);
+        int outHeight = parallel.getInt(CameraFramePool.HEIGHT_OFFSET);
+        int bytesPerPixel = FrameConverter.bytesPerPixel(format);
+        boolean ok = check(parallel.getInt(CameraFramePool.Y_STRIDE_OFFSET)
+                == outWidth * bytesPerPixel, name + ": row stride")
+                && check(parallel.getInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET) == 0
+                && parallel.getInt(CameraFramePool.U_LENGTH_OFFSET) == 0, name + ": planes")
+                && check(parallel.getLong(CameraFramePool.TIMESTAMP_OFFSET)
+                == frame.getLong(CameraFramePool.TIMESTAMP_OFFSET), name + ": timestamp")
+                && check(written == FrameConverter.frameSize(format, outWidth, outHeight),
+                name + ": frame size");
+        if (!ok) {
+            return false;
+        }
+
+        int width = frame.getInt(CameraFramePool.WIDTH_OFFSET);
+        int height = frame.getInt(CameraFramePool.HEIGHT_OFFSET);
+        int cropX = Math.min(crop[0], width);
+        int cropY = Math.min(crop[1], height);
+        for (int row = 0; row < outHeight; row++) {
+            for (int col = 0; col < outWidth; col++) {
+                int[] expected = reference(frame, cropX + col * scale, cropY + row * scale,
+                        scale, format);
+                int offset = CameraFramePool.HEADER_SIZE + (row * outWidth + col) * bytesPerPixel;
+                for (int c = 0; c < bytesPerPixel; c++) {
+                    int actual = parallel.get(offset + c) & 0xFF;
+                    if (Math.abs(actual - expected[c]) > TOLERANCE) {
+                        return check(false, name + ": pixel " + col + "," + row + " channel " + c
+                                + " is " + actual + ", expected " + expected[c]);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // The output pixel of the scale x scale block at (left, top), straight from the definition.
+    private static int[] reference(ByteBuffer frame, int left, int top, int scale, int format) {
+        int yStride = frame.getInt(CameraFramePool.Y_STRIDE_OFFSET);
+        int uvStride = frame.getInt(CameraFramePool.UV_STRIDE_OFFSET);
+        int uvPixelStride = frame.getInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET);
+        int yLength = frame.getInt(CameraFramePool.Y_LENGTH_OFFSET);
+        int uLength = frame.getInt(CameraFramePool.U_LENGTH_OFFSET);
+        double luma = 0;
+        for (int y = top; y < top + scale; y++) {
+            for (int x = left; x < left + scale; x++) {
+                luma += frame.get(CameraFramePool.HEADER_SIZE + y * yStride + x) & 0xFF;
+            }
+        }
+        luma = Math.floor(luma / (scale * scale));
+        if (format == FrameConverter.FORMAT_GRAY) {
+            return new int[]{(int) luma};
+        }
+        int centerX = (left + scale / 2) / 2;
+        int centerY = (top + scale / 2) / 2;
+        int uv = CameraFramePool.HEADER_SIZE + yLength + centerY * uvStride
+                + centerX * uvPixelStride;
+        double u = (frame.get(uv) & 0xFF) - 128;
+        double v = (frame.get(uv + uLength) & 0xFF) - 128;
+        return new int[]{
+                clamp(luma + 1.402 * v),
+                clamp(luma - 0.344136 * u - 0.714136 * v),
+                clamp(luma + 1.772 * u),
+                255,
+        };
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private void checkColors(FrameConverter converter) {
+        // Full range BT.601 red, green, blue, white and black.
+        int[][] colors = {
+                {76, 85, 255, 255, 0, 0},
+                {150, 44, 21, 0, 255, 0},
+                {29, 255, 107, 0, 0, 255},
+                {255, 128, 128, 255, 255, 255},
+                {0, 128, 128, 0, 0, 0},
+        };
+        ByteBuffer out = allocate(1024);
+        for (int[] color : colors) {
+            ByteBuffer frame = solidFrame(8, 8, color[0], color[1], color[2]);
+            converter.convert(frame, 0, 0, 0, 0, 2, FrameConverter.FORMAT_RGB, out);
+            for (int c = 0; c < 3; c++) {
+                int actual = out.get(CameraFramePool.HEADER_SIZE + c) & 0xFF;
+                check(Math.abs(actual - color[3 + c]) <= TOLERANCE, "YUV " + color[0] + ","
+                        + color[1] + "," + color[2] + " channel " + c + " is " + actual);
+            }
+        }
+    }
+
+    private void checkEdges(FrameConverter converter, Random random) {
+        ByteBuffer frame = yuvFrame(64, 32, 0, 1, random);
+        int size = FrameConverter.frameSize(FrameConverter.FORMAT_RGBA, 32, 16);
+        check(converter.convert(frame, 0, 0, 0, 0, 2, FrameConverter.FORMAT_RGBA,
+                allocate(size - 1)) == -size, "too small a buffer not reported");
+        check(converter.convert(frame, 64, 0, 0, 0, 1, FrameConverter.FORMAT_RGBA,
+                allocate(size)) == 0, "crop outside the frame not empty");
+        check(converter.convert(frame, 0, 0, 3, 3, 4, FrameConverter.FORMAT_GRAY,
+                allocate(size)) == 0, "crop smaller than the scale not empty");
+    }
+
+    /**
+     * A random camera frame as CameraFramePool fills it, rows padded by yPadding bytes; with a
+     * UV pixel stride of 2 the chroma samples are spread out like interleaved NV21 planes.
+     */
+    static ByteBuffer yuvFrame(int width, int height, int yPadding, int uvPixelStride,
+                               Random random) {
+        int yStride = width + yPadding;
+        int uvStride = width / 2 * uvPixelStride + yPadding / 2;
+        int yLength = yStride * height;
+        // The last row of an image plane ends with its last sample, not its stride.
+        int uvLength = uvStride * (height / 2 - 1) + (width / 2 - 1) * uvPixelStride + 1;
+        ByteBuffer frame = allocate(CameraFramePool.HEADER_SIZE + yLength + 2 * uvLength);
+        frame.putInt(CameraFramePool.WIDTH_OFFSET, width);
+        frame.putInt(CameraFramePool.HEIGHT_OFFSET, height);
+        frame.putInt(CameraFramePool.Y_STRIDE_OFFSET, yStride);
+        frame.putInt(CameraFramePool.UV_STRIDE_OFFSET, uvStride);
+        frame.putInt(CameraFramePool.UV_PIXEL_STRIDE_OFFSET, uvPixelStride);
+        frame.putInt(CameraFramePool.Y_LENGTH_OFFSET, yLength);
+        frame.putInt(CameraFramePool.U_LENGTH_OFFSET, uvLength);
+        frame.putInt(CameraFramePool.V_LENGTH_OFFSET, uvLength);
+        frame.putLong(CameraFramePool.TIMESTAMP_OFFSET, random.nextLong());
+        for (int i = CameraFramePool.HEADER_SIZE; i < frame.capacity(); i++) {
+            frame.put(i, (byte) random.nextInt(256));
+        }
+        return frame;
+    }
+
+    private static ByteBuffer solidFrame(int width, int height, int y, int u, int v) {
+        ByteBuffer frame = yuvFrame(width, height, 0, 1, new Random(0));
+        int yLength = width * height;
+        int uvLength = yLength / 4;
+        for (int i = 0; i < yLength; i++) {
+            frame.put(CameraFramePool.HEADER_SIZE + i, (byte) y);
+        }
+        for (int i = 0; i < uvLength; i++) {
+            frame.put(CameraFramePool.HEADER_SIZE + yLength + i, (byte) u);
+            frame.put(CameraFramePool.HEADER_SIZE + yLength + uvLength + i, (byte) v);
+        }
+        return frame;
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+}
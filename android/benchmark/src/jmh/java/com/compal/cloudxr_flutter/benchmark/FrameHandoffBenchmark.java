@@ -0,0 +1,90 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFrameExporter;
+import com.compal.cloudxr_flutter.CameraFramePool;
+import com.compal.cloudxr_flutter.SimulatedNativeBridge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Camera frame handoff from the GL thread to the channel.
+ * <p>
+ * poolCopy: borrowing a pooled buffer, the copy and giving it back, on one thread.
+ * exporterRoundTrip: CameraFrameExporter.onFrame on the calling (GL) thread until the frame has
+ * been copied, and converted unless format is 0, on the worker and sent, with the main thread
+ * replaced by a direct executor.
+ * Copies are synthetic, so the numbers are the Java overhead plus a memory pass over the frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameHandoffBenchmark {
+    @Param({"1", "2", "4"})
+    public int downscale;
+
+    // FrameConverter.FORMAT_*: as copied, RGBA or grayscale.
+    @Param({"0", "1", "3"})
+    public int format;
+
+    private SimulatedNativeBridge bridge;
+    private long nativeApplication;
+    private CameraFramePool pool;
+    private CameraFrameExporter exporter;
+    private final AtomicLong sentFrames = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        bridge = new SimulatedNativeBridge();
+        nativeApplication = bridge.createNativeApplication(null);
+        bridge.onResume(nativeApplication, null, null);
+        pool = new CameraFramePool(bridge, 4, CameraFramePool.HEADER_SIZE);
+        exporter = new CameraFrameExporter(bridge, Runnable::run);
+        exporter.setChannel((frame, onDelivered) -> {
+            sentFrames.incrementAndGet();
+            onDelivered.run();
+        });
+        // No rate limit: every onFrame hands over an image.
+        exporter.subscribe(Integer.MAX_VALUE, downscale, 2, format);
+    }
+
+    @TearDown
+    public void tearDown() {
+        exporter.unsubscribe();
+        exporter.shutdown();
+        // Throws if the exporter leaked camera images.
+        bridge.destroyNativeApplication(nativeApplication);
+    }
+
+    @Benchmark
+    public int poolCopy() {
+        ByteBuffer buffer = pool.borrow();
+        ByteBuffer frame = pool.copy(nativeApplication, 1, buffer, downscale);
+        int length = frame.limit();
+        pool.giveBack(frame);
+        return length;
+    }
+
+    @Benchmark
+    public long exporterRoundTrip() {
+        long sent = sentFrames.get();
+        long dropped = exporter.getDroppedFrames();
+        exporter.onFrame(nativeApplication);
+        while (sentFrames.get() == sent && exporter.getDroppedFrames() == dropped) {
+            Thread.yield();
+        }
+        return sentFrames.get();
+    }
+}
@@ -0,0 +1,81 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Java work ArController.onDrawFrame does around the native draw: stage timings, the
+ * periodic frame stats snapshot and the EventBus post, plus the vsync drain into the binary
+ * control channel encoding.
+ * <p>
+ * Frame timestamps advance at cadenceHz, so snapshots and drains happen as often per frame as
+ * they would on a display at that rate; allocation per op (gc profiler) is the number to watch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameLoopBenchmark {
+    @Param({"60", "90", "120"})
+    public int cadenceHz;
+
+    private FrameMetrics frameMetrics;
+    private EventBus eventBus;
+    private Runnable pendingDrain;
+    private final ByteBuffer events = ControlProtocol.allocate(4096);
+    private long frameNanos;
+    private long frameTime;
+    private boolean cloudXrStarted;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        frameMetrics = new FrameMetrics();
+        frameMetrics.setRefreshRate(cadenceHz);
+        eventBus = new EventBus(drain -> pendingDrain = drain, batch -> {
+            events.clear();
+            ControlProtocol.writeBatch(events, batch);
+        });
+        frameNanos = 1_000_000_000L / cadenceHz;
+        frameTime = System.nanoTime();
+    }
+
+    @Benchmark
+    public long frame() {
+        frameTime += frameNanos;
+        long start = System.nanoTime();
+        frameMetrics.beginFrame(frameTime);
+        long stageStart = frameMetrics.record(FrameMetrics.STAGE_ANCHOR, start);
+        stageStart = frameMetrics.record(FrameMetrics.STAGE_GEOMETRY, stageStart);
+        frameMetrics.record(FrameMetrics.STAGE_DRAW, stageStart);
+        frameMetrics.endFrame(start, false);
+        Map<String, Object> snapshot = frameMetrics.snapshotIfDue(frameTime, 0);
+        if (snapshot != null) {
+            eventBus.postState(EventBus.STATE_FRAME_STATS, snapshot);
+            // Roughly every publish period the anchor state flips too.
+            cloudXrStarted = !cloudXrStarted;
+            eventBus.postState(EventBus.STATE_CLOUDXR,
+                    cloudXrStarted ? "start_cloudxr" : "stop_cloudxr");
+        }
+        // One vsync per frame.
+        Runnable drain = pendingDrain;
+        if (drain != null) {
+            pendingDrain = null;
+            drain.run();
+        }
+        return events.position();
+    }
+}
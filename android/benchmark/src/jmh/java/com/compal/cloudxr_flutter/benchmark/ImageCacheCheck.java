@@ -0,0 +1,186 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ImageCache;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link ImageCache} with a decoder standing in for BitmapFactory and fails unless it hits
+ * and evicts as an LRU cache should, decodes into dropped images instead of allocating, leaves
+ * the image being uploaded alone, and decodes an image asked for by several threads once.
+ * <p>
+ * Images are named after their size in bytes, e.g. "a100", and decoding one takes decode_ms.
+ * <p>
+ * Arguments are key=value: threads (asking for the same image at once), decode_ms.
+ */
+public class ImageCacheCheck extends Check {
+    private int threads = 8;
+    private int decodeMs = 20;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new ImageCacheCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "threads":
+                threads = (int) Math.max(2, value);
+                return true;
+            case "decode_ms":
+                decodeMs = (int) Math.max(0, value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws InterruptedException {
+        FakeDecoder decoder = new FakeDecoder(decodeMs);
+        ImageCache<Image> cache = new ImageCache<>(decoder, 300, 200);
+
+        Image a = cache.acquire("a100", "ARGB_8888");
+        cache.release(a);
+        check(a != null && cache.acquire("a100", "ARGB_8888") == a
+                && cache.getHits() == 1 && cache.getMisses() == 1, "not cached");
+        cache.release(a);
+        check(cache.acquire("a100", "RGB_565") != a, "config not part of the key");
+        cache.release(a);
+
+        // a100 RGB_565 went in last; the ARGB_8888 one is the least recent.
+        cache.acquire("b100", "ARGB_8888");
+        cache.acquire("c100", "ARGB_8888");
+        check(cache.getEvictions() == 1 && cache.getBytes() == 300,
+                "evicted " + cache.getEvictions() + ", " + cache.getBytes() + " bytes cached");
+        int decodes = decoder.decodes.get();
+        check(cache.acquire("b100", "ARGB_8888") != null
+                && decoder.decodes.get() == decodes, "recently used image evicted");
+
+        // The evicted a100 is pooled; a smaller image is decoded into it.
+        Image d = cache.acquire("d80", "ARGB_8888");
+        check(d == a && cache.getReuses() == 1 && d.name.equals("d80"),
+                "dropped image not decoded into");
+
+        // The image being uploaded is evicted by a prefetch, but must not be decoded into before
+        // release.
+        Image lent = cache.acquire("e100", "ARGB_8888");
+        cache.prefetch(Arrays.asList("f100", "g100", "h100", "i100", "j100"), "ARGB_8888",
+                Runnable::run);
+        check(lent.name.equals("e100"), "image being uploaded decoded into, now " + lent.name);
+        cache.release(lent);
+
+        // Larger than the whole cache, so dropped as soon as it is stored, but lent first.
+        Image large = cache.acquire("z400", "ARGB_8888");
+        check(large != null && "z400".equals(large.name), "oversized image discarded "
+                + "before it was lent");
+        cache.release(large);
+
+        // 300 bytes dropped into a pool of 200.
+        cache.trimAll();
+        check(cache.getBytes() == 0 && decoder.discarded.get() > 0, "pool not bounded");
+
+        check(cache.acquire("missing", "ARGB_8888") == null
+                && cache.acquire("missing", "ARGB_8888") == null, "failed decode not null");
+
+        cache.prefetch(Arrays.asList("k50", "l50"), "ARGB_8888", Runnable::run);
+        decodes = decoder.decodes.get();
+        cache.acquire("k50", "ARGB_8888");
+        cache.acquire("l50", "ARGB_8888");
+        check(decoder.decodes.get() == decodes, "prefetched images decoded again");
+
+        concurrentAcquire(cache, decoder);
+        System.out.printf("hits %d, misses %d, evictions %d, reuses %d, decodes %d%n",
+                cache.getHits(), cache.getMisses(), cache.getEvictions(), cache.getReuses(),
+                decoder.decodes.get());
+    }
+
+    private void concurrentAcquire(ImageCache<Image> cache, FakeDecoder decoder)
+            throws InterruptedException {
+        int decodes = decoder.decodes.get();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Image> images = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                images.add(cache.acquire("m60", "ARGB_8888"));
+            }, "Acquire");
+            thread.start();
+            workers.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : workers) {
+            thread.join();
+        }
+        check(decoder.decodes.get() == decodes + 1, "decoded "
+                + (decoder.decodes.get() - decodes) + " times at once");
+        check(images.size() == threads && images.get(0) != null
+                && Collections.frequency(images, images.get(0)) == threads, "different images");
+    }
+
+    // A decoded image: the name it was last decoded from, in an allocation of capacity bytes.
+    private static class Image {
+        final int capacity;
+        String name;
+
+        Image(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static class FakeDecoder implements ImageCache.Decoder<Image> {
+        final AtomicInteger decodes = new AtomicInteger();
+        final AtomicInteger discarded = new AtomicInteger();
+        private final int decodeMs;
+
+        FakeDecoder(int decodeMs) {
+            this.decodeMs = decodeMs;
+        }
+
+        @Override
+        public int measure(String name, String config) throws IOException {
+            try {
+                return Integer.parseInt(name.substring(1));
+            } catch (NumberFormatException e) {
+                throw new FileNotFoundException(name);
+            }
+        }
+
+        @Override
+        public Image decode(String name, String config, Image reuse) throws IOException {
+            int size = measure(name, config);
+            decodes.incrementAndGet();
+            try {
+                Thread.sleep(decodeMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Image image = reuse != null && reuse.capacity >= size ? reuse : new Image(size);
+            image.name = name;
+            return image;
+        }
+
+        @Override
+        public int sizeOf(Image image) {
+            return image.capacity;
+        }
+
+        @Override
+        public void discard(Image image) {
+            discarded.incrementAndGet();
+            image.name = null;
+        }
+    }
+}
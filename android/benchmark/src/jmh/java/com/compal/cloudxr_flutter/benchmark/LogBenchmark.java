@@ -0,0 +1,67 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.LogUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a LogUtils call costs the logging thread, with the level off (8) and on (3), for the
+ * message shapes used in the app. concatenated is the old call site style, which builds the
+ * string before the level check; with the gc profiler the templated calls should show no
+ * allocation when off. When on, the writer cannot keep up with a benchmark loop, so most records
+ * are dropped at the full ring; that is the cost being measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LogBenchmark {
+    private static final String TAG = "ArController";
+
+    @Param({"8", "3"})
+    public int level;
+
+    private String ip = "192.168.0.10";
+    private int status = -3;
+    private long count = 12345;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        LogUtils.setLevel(level);
+    }
+
+    @TearDown
+    public void tearDown() {
+        LogUtils.setLevel(LogUtils.OFF);
+    }
+
+    @Benchmark
+    public void constantMessage() {
+        LogUtils.d(TAG, "onPause");
+    }
+
+    @Benchmark
+    public void concatenated() {
+        LogUtils.d(TAG, "edge ip = " + ip);
+    }
+
+    @Benchmark
+    public void objectArgument() {
+        LogUtils.d(TAG, "edge ip = {}", ip);
+    }
+
+    @Benchmark
+    public void primitiveArguments() {
+        LogUtils.d(TAG, "onGlSurfaceDrawFrame failed with {} after {} frames", status, count);
+    }
+}
@@ -0,0 +1,57 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.Scheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs delayed tasks on the calling thread as simulated time advances, in place of the main
+ * thread's Handler.
+ */
+class ManualScheduler implements Scheduler {
+    private static class Task {
+        final long at;
+        final Runnable runnable;
+
+        Task(long at, Runnable runnable) {
+            this.at = at;
+            this.runnable = runnable;
+        }
+    }
+
+    private final List<Task> tasks = new ArrayList<>();
+    private long now = 0;
+
+    @Override
+    public void schedule(Runnable task, long delayMs) {
+        tasks.add(new Task(now + delayMs, task));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        tasks.removeIf(scheduled -> scheduled.runnable == task);
+    }
+
+    /**
+     * Move time on by ms, running what comes due in order.
+     */
+    void advance(long ms) {
+        long until = now + ms;
+        while (true) {
+            Task next = null;
+            for (Task task : tasks) {
+                if (task.at <= until && (next == null || task.at < next.at)) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            now = next.at;
+            next.runnable.run();
+        }
+        now = until;
+    }
+}
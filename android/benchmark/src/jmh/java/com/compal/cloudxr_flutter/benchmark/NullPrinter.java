@@ -0,0 +1,22 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.LogUtils;
+
+/**
+ * Swallows log lines on the log writer thread so benchmarks measure what LogUtils costs the
+ * logging thread, not logcat. Keeps a running length so the formatting cannot be optimized away.
+ */
+class NullPrinter implements LogUtils.Printer {
+    static final NullPrinter INSTANCE = new NullPrinter();
+
+    long characters;
+
+    static void install() {
+        LogUtils.setPrinter(INSTANCE);
+    }
+
+    @Override
+    public void println(int priority, String tag, String message, Throwable tr) {
+        characters += tag.length() + message.length();
+    }
+}
@@ -0,0 +1,220 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.ProfileStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ProfileStore} over an in-memory stand-in for SharedPreferences and fails unless it
+ * moves the settings saved before profiles existed over, keeps profiles most recently used first,
+ * writes only what changed, once per burst of changes, reads back what it wrote, and sends the
+ * profiles as a control channel event.
+ * <p>
+ * Readers on other threads check every snapshot they see while profiles are saved, for torn or
+ * out of order state.
+ * <p>
+ * Arguments are key=value: saves (profiles saved while the readers run), readers.
+ */
+public class ProfileStoreCheck extends Check {
+    private int saves = 200_000;
+    private int readers = 2;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new ProfileStoreCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "saves":
+                saves = (int) Math.max(1, value);
+                return true;
+            case "readers":
+                readers = (int) Math.max(1, value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws InterruptedException {
+        MemoryStorage storage = new MemoryStorage();
+        // As ArModel left them before profiles.
+        storage.values.put("cxr_last_server_ip_addr", "10.0.0.1");
+        storage.values.put("cxr_last_cloud_anchor", "anchor-1");
+        storage.values.put("webrtc_last_server_ip_addr", "10.0.0.9");
+        storage.values.put("webrtc_last_room_id", "room-1");
+        storage.values.put("mediapipe_last_enable", true);
+        storage.values.put("unrelated", "kept");
+        Queue<Runnable> writer = new ArrayDeque<>();
+
+        ProfileStore store = new ProfileStore(storage, writer::add);
+        ProfileStore.Profile first = store.getSnapshot().current();
+        check(first.equals(new ProfileStore.Profile("10.0.0.1", "10.0.0.1",
+                "anchor-1", "10.0.0.9", "room-1", true)), "last connection not moved over");
+        runAll(writer);
+        check(storage.writes == 1
+                        && !storage.lastValues.containsKey("cxr_last_cloud_anchor"),
+                "moving over rewrote " + storage.lastValues.keySet());
+        check(storage.reads == 1, "storage read " + storage.reads + " times");
+
+        // A burst of changes, then the same ones again.
+        ProfileStore.Profile lab = new ProfileStore.Profile("lab", "10.0.0.2", "", "", "", false);
+        ProfileStore.Profile home = new ProfileStore.Profile("home", "10.0.0.3", "a", "", "",
+                true);
+        store.save(lab);
+        store.save(home);
+        store.setServerCandidates(Arrays.asList("10.0.0.2", "10.0.0.3"));
+        store.use("lab");
+        check(writer.size() == 1, writer.size() + " writes scheduled for a burst");
+        runAll(writer);
+        store.save(lab);
+        store.setServerCandidates(Arrays.asList("10.0.0.2", "10.0.0.3"));
+        check(writer.isEmpty() && storage.writes == 2, "unchanged profile written");
+        check(names(store).equals(Arrays.asList("lab", "home", "10.0.0.1")),
+                "not most recent first " + names(store));
+
+        // Only the changed field, and the same field of the most recent profile.
+        store.save(new ProfileStore.Profile("lab", "10.0.0.2", "anchor-2", "", "", false));
+        runAll(writer);
+        check(storage.lastValues.keySet().equals(new HashSet<>(Arrays.asList(
+                "cxr_profile/lab/anchor", "cxr_last_cloud_anchor"))),
+                "wrote " + storage.lastValues.keySet());
+
+        store.remove("home");
+        runAll(writer);
+        check(!storage.values.containsKey("cxr_profile/home/cloud_ip")
+                && storage.lastRemoved.size() == 5, "removed profile left " + storage.lastRemoved);
+
+        for (int i = 0; i < ProfileStore.MAX_PROFILES + 4; i++) {
+            store.save(new ProfileStore.Profile("p" + i, "10.1.0." + i, "", "", "", false));
+        }
+        runAll(writer);
+        check(store.getSnapshot().profiles.size() == ProfileStore.MAX_PROFILES,
+                "kept " + store.getSnapshot().profiles.size() + " profiles");
+
+        ProfileStore reloaded = new ProfileStore(storage, writer::add);
+        check(reloaded.getSnapshot().profiles.equals(store.getSnapshot().profiles)
+                && reloaded.getSnapshot().serverCandidates.equals(
+                store.getSnapshot().serverCandidates), "reloaded profiles differ");
+        check(writer.isEmpty(), "reloading wrote");
+        check("kept".equals(storage.values.get("unrelated")), "unrelated key touched");
+
+        // As the control channel sends them to Dart.
+        ByteBuffer out = ControlProtocol.allocate(4096);
+        check(ControlProtocol.writeEvent(out,
+                ProfileStore.toEvent(store.getSnapshot().profiles)), "profiles not encoded");
+        out.flip();
+        check(out.get() == (byte) ControlProtocol.EVT_PROFILES
+                && out.get(ControlProtocol.EVENT_HEADER_SIZE) == ProfileStore.MAX_PROFILES,
+                "profiles event malformed");
+        // A batch stops at an event that does not fit, for the channel to send it on its own.
+        List<Object> batch = Arrays.asList("touch",
+                ProfileStore.toEvent(store.getSnapshot().profiles), "touch");
+        ByteBuffer small = ControlProtocol.allocate(64);
+        int next = ControlProtocol.writeBatch(small, batch, 0);
+        check(next == 1 && small.position() == ControlProtocol.HEADER_SIZE
+                + ControlProtocol.EVENT_HEADER_SIZE, "small batch stopped at " + next);
+        check(ControlProtocol.writeBatch(small, batch, next) == next,
+                "profiles written to a full buffer");
+        out.clear();
+        check(ControlProtocol.writeBatch(out, batch, next) == batch.size(),
+                "rest of the batch not written");
+
+        concurrentReads(store);
+        System.out.printf("%d storage writes, %d saves read concurrently%n", storage.writes,
+                saves);
+    }
+
+    // Saves profiles s0, s1, ... on this thread while readers check that every current profile
+    // is whole and none is older than one seen before.
+    private void concurrentReads(ProfileStore store) throws InterruptedException {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicLong reads = new AtomicLong();
+        List<String> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            Thread thread = new Thread(() -> {
+                long last = -1;
+                while (!done.get()) {
+                    ProfileStore.Profile profile = store.getSnapshot().current();
+                    reads.incrementAndGet();
+                    if (!profile.name.startsWith("s")) {
+                        continue;
+                    }
+                    long n = Long.parseLong(profile.name.substring(1));
+                    if (!profile.cloudIp.equals("ip" + n) || !profile.roomId.equals("room" + n)
+                            || n < last) {
+                        synchronized (failures) {
+                            failures.add(profile.name + " after s" + last);
+                        }
+                        return;
+                    }
+                    last = n;
+                }
+            }, "Reader");
+            thread.start();
+            threads.add(thread);
+        }
+        for (int i = 0; i < saves; i++) {
+            store.save(new ProfileStore.Profile("s" + i, "ip" + i, "", "", "room" + i, false));
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        check(failures.isEmpty(), "readers saw " + failures);
+        check(reads.get() > 0, "nothing read");
+    }
+
+    private static List<String> names(ProfileStore store) {
+        List<String> names = new ArrayList<>();
+        for (ProfileStore.Profile profile : store.getSnapshot().profiles) {
+            names.add(profile.name);
+        }
+        return names;
+    }
+
+    private static void runAll(Queue<Runnable> tasks) {
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+            task.run();
+        }
+    }
+
+    // SharedPreferences as far as ProfileStore sees them.
+    private static class MemoryStorage implements ProfileStore.Storage {
+        final Map<String, Object> values = new HashMap<>();
+        Map<String, Object> lastValues = new HashMap<>();
+        Set<String> lastRemoved;
+        int reads = 0;
+        int writes = 0;
+
+        @Override
+        public Map<String, ?> read() {
+            reads++;
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public void write(Map<String, Object> values, Set<String> removed) {
+            writes++;
+            lastValues = values;
+            lastRemoved = removed;
+            this.values.putAll(values);
+            this.values.keySet().removeAll(removed);
+        }
+    }
+}
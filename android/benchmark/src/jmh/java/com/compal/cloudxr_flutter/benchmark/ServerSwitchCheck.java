@@ -0,0 +1,412 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFrameExporter;
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EdgeSelector;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameLoop;
+import com.compal.cloudxr_flutter.NativeBridge;
+import com.compal.cloudxr_flutter.NativeHandle;
+import com.compal.cloudxr_flutter.ServerSwitcher;
+import com.compal.cloudxr_flutter.SimulatedNativeBridge;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Switches a session running on the simulated native bridge between edge servers with
+ * {@link ServerSwitcher} and fails unless the session is never resumed (ARCore tracking and the
+ * anchor stay on every frame), frames keep being drawn while the new server is pre-connected,
+ * only the receiver reconnects with the new server's arguments, an unreachable or silent server
+ * is never switched to, a failed switch goes back to the previous server, and switches asked for
+ * in between are replaced or queued. Last, the switch is pre-connected through a real
+ * {@link EdgeSelector} against a loopback stand-in, as ArController wires it, and fails unless a
+ * server that failed a moment ago is probed again rather than taken as unreachable from the
+ * cache, and after a disconnect nothing is switched at all.
+ * <p>
+ * The main thread and the GL thread are simulated on the calling thread: every frame runs the GL
+ * events queued as ArController does with queueEvent, draws, then runs the main thread's tasks.
+ * <p>
+ * Arguments are key=value: preconnect_frames (frames the pre-connect takes), timeout_ms,
+ * reconnect_ms (how long the simulated reconnect takes).
+ */
+public class ServerSwitchCheck extends Check {
+    private static final String FIRST = "10.0.0.1";
+    private static final int RECONNECT_ERROR = 0x30;
+
+    private int preconnectFrames = 10;
+    private int timeoutMs = 500;
+    private int reconnectMs = 5;
+
+    private final SimulatedNativeBridge bridge = new SimulatedNativeBridge(7);
+    private final Queue<Runnable> glEvents = new ArrayDeque<>();
+    // Also added to by pre-connect threads.
+    private final Queue<Runnable> mainTasks = new ConcurrentLinkedQueue<>();
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final Set<String> reachable = new HashSet<>();
+    // Pre-connects that have not answered: server, frames left.
+    private final List<Object[]> preconnects = new ArrayList<>();
+    private final List<Integer> states = new ArrayList<>();
+    private final List<String> switched = new ArrayList<>();
+    private final List<Integer> failures = new ArrayList<>();
+    private EventBus eventBus;
+    private FrameLoop frameLoop;
+    private ServerSwitcher switcher;
+    // Pre-connects probe through this once set, instead of answering from reachable.
+    private EdgeSelector edgeSelector;
+    private String current = FIRST;
+    private long frames = 0;
+    private long anchorLostFrames = 0;
+    private long lastGapMs = 0;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new ServerSwitchCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "preconnect_frames":
+                preconnectFrames = (int) Math.max(1, value);
+                return true;
+            case "timeout_ms":
+                timeoutMs = (int) Math.max(1, value);
+                return true;
+            case "reconnect_ms":
+                reconnectMs = (int) Math.max(0, value);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws IOException, InterruptedException {
+        NativeHandle nativeHandle = setUp();
+        try {
+            run(nativeHandle);
+        } finally {
+            nativeHandle.destroy();
+        }
+    }
+
+    private void run(NativeHandle nativeHandle) throws IOException, InterruptedException {
+        reachable.addAll(Arrays.asList("10.0.0.2", "10.0.0.3", "10.0.0.4", "10.0.0.5",
+                "10.0.0.6"));
+        drawUntil(() -> (frameLoop.getTrackingState() & NativeBridge.TRACKING_CLOUDXR_ANCHOR) != 0,
+                200);
+        check((frameLoop.getTrackingState() & NativeBridge.TRACKING_CLOUDXR_ANCHOR)
+                != 0, "anchor never established");
+        anchorLostFrames = 0;
+
+        // A switch: the old stream goes on while pre-connecting, then only the receiver
+        // reconnects.
+        long reconnects = bridge.getReconnects();
+        states.clear();
+        switcher.switchServer(current, "10.0.0.2");
+        long before = frames;
+        drawUntil(() -> switcher.getState() == ServerSwitcher.STATE_SWITCHING, 1000);
+        check(frames - before >= preconnectFrames && bridge.getReconnects() == reconnects,
+                "stream stopped or receiver replaced while pre-connecting");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switcher.getState() == ServerSwitcher.STATE_SWITCHED
+                && current.equals("10.0.0.2") && bridge.getArgs().equals("-s 10.0.0.2")
+                && bridge.getReconnects() == reconnects + 1, "not switched: state "
+                + switcher.getState() + ", args " + bridge.getArgs());
+        check(states.equals(Arrays.asList(ServerSwitcher.STATE_PRECONNECTING,
+                ServerSwitcher.STATE_SWITCHING, ServerSwitcher.STATE_SWITCHED)),
+                "events " + states);
+        check(lastGapMs >= reconnectMs, "gap " + lastGapMs + " ms, reconnect takes " + reconnectMs);
+
+        // A server that does not answer is never switched to.
+        reconnects = bridge.getReconnects();
+        switcher.switchServer(current, "10.0.9.9");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switcher.getState() == ServerSwitcher.STATE_FAILED
+                && bridge.getReconnects() == reconnects && current.equals("10.0.0.2")
+                && bridge.getArgs().equals("-s 10.0.0.2"), "switched to an unreachable server");
+
+        // Nor is one that does not answer in time; its late answer is ignored.
+        preconnectFrames += 1_000_000;
+        switcher.switchServer(current, "10.0.0.3");
+        draw(5);
+        scheduler.advance(timeoutMs);
+        check(switcher.getState() == ServerSwitcher.STATE_FAILED, "pre-connect never timed out");
+        switcher.onPreconnected("10.0.0.3", true);
+        preconnectFrames -= 1_000_000;
+        preconnects.clear();
+        draw(5);
+        check(bridge.getReconnects() == reconnects && current.equals("10.0.0.2"),
+                "switched after the pre-connect timed out");
+
+        // The new server fails: back to the previous one, without bothering recovery.
+        bridge.setReconnectError(RECONNECT_ERROR, (int) bridge.getReconnects() + 1);
+        switcher.switchServer(current, "10.0.0.4");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switcher.getReverts() == 1 && bridge.getArgs().equals("-s 10.0.0.2")
+                && bridge.getReconnects() == reconnects + 2 && current.equals("10.0.0.2")
+                && failures.isEmpty(), "not back on the previous server: args "
+                + bridge.getArgs() + ", failures " + failures);
+
+        // Both fail: left to recovery.
+        bridge.setReconnectError(RECONNECT_ERROR, 1);
+        switcher.switchServer(current, "10.0.0.4");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(failures.equals(Arrays.asList(RECONNECT_ERROR))
+                && switcher.getState() == ServerSwitcher.STATE_FAILED,
+                "failure not reported: " + failures);
+        bridge.setReconnectError(0, 0);
+        glEvents.add(frameLoop::reconnect);
+        draw(1);
+
+        // Asked for again while pre-connecting: the latest wins, even if the first answers
+        // before it.
+        long switches = switcher.getSwitches();
+        reconnects = bridge.getReconnects();
+        switched.clear();
+        switcher.switchServer(current, "10.0.0.3");
+        draw(2);
+        switcher.switchServer(current, "10.0.9.9");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switched.isEmpty() && bridge.getReconnects() == reconnects
+                && switcher.getState() == ServerSwitcher.STATE_FAILED,
+                "replaced switch ran: " + switched);
+
+        // Asked for while the receiver reconnects: runs afterwards, from the new server, so
+        // going back to where it came from is a switch too.
+        switcher.switchServer(current, "10.0.0.6");
+        drawUntil(() -> switcher.getState() == ServerSwitcher.STATE_SWITCHING, 1000);
+        switcher.switchServer(current, "10.0.0.2");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switched.equals(Arrays.asList("10.0.0.6", "10.0.0.2"))
+                && bridge.getArgs().equals("-s 10.0.0.2")
+                && switcher.getSwitches() == switches + 2, "queued switch: " + switched);
+
+        // A reset drops the switch; the pre-connect answering afterwards changes nothing.
+        reconnects = bridge.getReconnects();
+        switcher.switchServer(current, "10.0.0.3");
+        switcher.reset();
+        drawUntil(() -> preconnects.isEmpty(), 1000);
+        draw(5);
+        check(bridge.getReconnects() == reconnects && current.equals("10.0.0.2"),
+                "switched after reset");
+
+        // A reset also drops the switch queued behind one already on the GL thread.
+        switched.clear();
+        switcher.switchServer(current, "10.0.0.3");
+        drawUntil(() -> switcher.getState() == ServerSwitcher.STATE_SWITCHING, 1000);
+        switcher.switchServer(current, "10.0.0.4");
+        switcher.reset();
+        draw(5);
+        switcher.switchServer(current, "10.0.0.5");
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switched.equals(Arrays.asList("10.0.0.5")), "queued switch ran after reset: "
+                + switched);
+
+        // Through EdgeSelector: connecting to the stand-in failed a moment ago, so its cached
+        // result is unreachable, but it answers now.
+        edgeSelector = new EdgeSelector(EdgeSelector.TCP_PROBER, eventBus);
+        edgeSelector.setProbe(2, timeoutMs);
+        ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            String standIn = "127.0.0.1:" + socket.getLocalPort();
+            edgeSelector.invalidate(standIn);
+            switched.clear();
+            switcher.switchServer(current, standIn);
+            awaitPreconnect();
+            drawUntil(() -> !switcher.isBusy(), 1000);
+            check(switched.equals(Arrays.asList(standIn)) && edgeSelector.getProbes() == 1,
+                    "not switched to a server answering again: state " + switcher.getState()
+                            + ", probes " + edgeSelector.getProbes());
+        } finally {
+            socket.close();
+        }
+        // One that refuses is still never switched to. Bound and closed again, so connecting is
+        // refused.
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        String refused = "127.0.0.1:" + closed.getLocalPort();
+        closed.close();
+        reconnects = bridge.getReconnects();
+        switcher.switchServer(current, refused);
+        awaitPreconnect();
+        drawUntil(() -> !switcher.isBusy(), 1000);
+        check(switcher.getState() == ServerSwitcher.STATE_FAILED
+                && bridge.getReconnects() == reconnects, "switched to a server refusing");
+        edgeSelector.shutdown();
+
+        check(anchorLostFrames == 0, "anchor lost on " + anchorLostFrames
+                + " frames, the session was resumed");
+        check(nativeHandle.isResumed(), "session paused");
+
+        // Disconnected as ArController does: a switch asked for afterwards is left to connect,
+        // not hot-reconnecting the session torn down.
+        nativeHandle.markPaused();
+        switcher.reset();
+        long nativeApplication = nativeHandle.acquire();
+        bridge.onPause(nativeApplication);
+        nativeHandle.release();
+        reconnects = bridge.getReconnects();
+        check(!switcher.switchServer(current, "10.0.0.3") && !switcher.isBusy()
+                && preconnects.isEmpty() && mainTasks.isEmpty() && glEvents.isEmpty()
+                && bridge.getReconnects() == reconnects, "switched after disconnecting");
+        System.out.printf("frames %d, switches %d, reverts %d, reconnects %d (%d failed)%n",
+                frames, switcher.getSwitches(), switcher.getReverts(), bridge.getReconnects(),
+                bridge.getFailedReconnects());
+    }
+
+    private NativeHandle setUp() {
+        bridge.setTrackingTimeline(1, 30, 60);
+        bridge.setLatencyNanos(SimulatedNativeBridge.Call.RECONNECT, reconnectMs * 1_000_000L);
+        CameraFrameExporter exporter = new CameraFrameExporter(bridge, Runnable::run);
+        NativeHandle nativeHandle = new NativeHandle(bridge, bridge.createNativeApplication(null),
+                exporter::shutdown);
+        ByteBuffer out = ControlProtocol.allocate(64 * 1024);
+        eventBus = new EventBus(Runnable::run, batch -> {
+            for (Object event : batch) {
+                if (event instanceof Map
+                        && ServerSwitcher.EVENT_TYPE.equals(((Map<?, ?>) event).get("type"))) {
+                    states.add((Integer) ((Map<?, ?>) event).get("state"));
+                }
+            }
+            out.clear();
+            ControlProtocol.writeBatch(out, batch);
+        });
+        frameLoop = new FrameLoop(bridge, nativeHandle, eventBus, exporter,
+                new FrameLoop.Host() {
+                    @Override
+                    public int getDisplayRotation() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void onPlanesDetected() {
+                    }
+
+                    @Override
+                    public void onTrackingStateChanged(int state) {
+                    }
+
+                    @Override
+                    public void onFrameError(int status, boolean recoverable) {
+                    }
+                });
+        switcher = new ServerSwitcher(scheduler, new ServerSwitcher.Host() {
+            @Override
+            public boolean isSessionRunning() {
+                return nativeHandle.isResumed();
+            }
+
+            @Override
+            public void preconnect(String server) {
+                if (edgeSelector == null) {
+                    preconnects.add(new Object[]{server, preconnectFrames});
+                    return;
+                }
+                // As ArController does.
+                new Thread(() -> {
+                    boolean reachable = edgeSelector.probeNow(server);
+                    mainTasks.add(() -> switcher.onPreconnected(server, reachable));
+                }, "ServerSwitch").start();
+            }
+
+            @Override
+            public void switchTo(String server) {
+                // As ArController does, on the GL thread between frames.
+                glEvents.add(() -> {
+                    frameLoop.setArgs("-s " + server);
+                    long start = System.nanoTime();
+                    int status = frameLoop.reconnect();
+                    long gapMs = (System.nanoTime() - start) / 1_000_000;
+                    boolean recoverable = frameLoop.isSessionRecoverable();
+                    mainTasks.add(() -> {
+                        lastGapMs = gapMs;
+                        switcher.onSwitchResult(status, recoverable, gapMs);
+                    });
+                });
+            }
+
+            @Override
+            public void onSwitched(String server) {
+                current = server;
+                switched.add(server);
+            }
+
+            @Override
+            public void onFailed(int status, boolean recoverable) {
+                failures.add(status);
+            }
+        }, eventBus);
+        switcher.setPreconnectTimeout(timeoutMs);
+
+        long nativeApplication = nativeHandle.acquire();
+        bridge.onResume(nativeApplication, null, null);
+        nativeHandle.release();
+        nativeHandle.markResumed();
+        frameLoop.onSurfaceCreated();
+        frameLoop.onSurfaceChanged(1080, 2340, 60);
+        return nativeHandle;
+    }
+
+    // Waits in real time for a pre-connect thread to answer, frames would run out the timeout.
+    private void awaitPreconnect() throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 4 * 1_000_000L;
+        while (mainTasks.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    private void drawUntil(Condition condition, int maxFrames) {
+        for (int i = 0; i < maxFrames && !condition.holds(); i++) {
+            draw(1);
+        }
+    }
+
+    private void draw(int count) {
+        for (int i = 0; i < count; i++) {
+            Runnable event;
+            while ((event = glEvents.poll()) != null) {
+                event.run();
+            }
+            frameLoop.onDrawFrame();
+            frames++;
+            if ((frameLoop.getTrackingState() & NativeBridge.TRACKING_CLOUDXR_ANCHOR) == 0) {
+                anchorLostFrames++;
+            }
+            answerPreconnects();
+            Runnable task;
+            while ((task = mainTasks.poll()) != null) {
+                task.run();
+            }
+            scheduler.advance(16);
+        }
+    }
+
+    // Counts the pre-connects down by a frame each and answers the ones that are done.
+    private void answerPreconnects() {
+        for (int i = 0; i < preconnects.size(); i++) {
+            Object[] preconnect = preconnects.get(i);
+            int left = (Integer) preconnect[1] - 1;
+            preconnect[1] = left;
+            if (left <= 0) {
+                preconnects.remove(i--);
+                String server = (String) preconnect[0];
+                mainTasks.add(() -> switcher.onPreconnected(server, reachable.contains(server)));
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+}
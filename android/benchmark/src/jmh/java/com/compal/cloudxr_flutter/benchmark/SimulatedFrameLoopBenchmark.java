@@ -0,0 +1,96 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFrameExporter;
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameLoop;
+import com.compal.cloudxr_flutter.NativeHandle;
+import com.compal.cloudxr_flutter.SimulatedNativeBridge;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FrameLoop.onDrawFrame against the simulated native bridge with the anchor flapping, i.e. the
+ * whole Java side of ArController's frame with native time taken out (or replaced by
+ * drawLatencyUs). EventBus drains run inline once per frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimulatedFrameLoopBenchmark {
+    @Param({"0", "500"})
+    public int drawLatencyUs;
+
+    private final SimulatedNativeBridge bridge = new SimulatedNativeBridge(42);
+    private final ByteBuffer events = ControlProtocol.allocate(4096);
+    private NativeHandle nativeHandle;
+    private FrameLoop frameLoop;
+    private Runnable pendingDrain;
+
+    @Setup
+    public void setUp() {
+        NullPrinter.install();
+        bridge.setLatencyNanos(SimulatedNativeBridge.Call.DRAW_FRAME, drawLatencyUs * 1000L);
+        bridge.setTrackingTimeline(1, 30, 60);
+        bridge.setAnchorLoss(120, 10);
+        CameraFrameExporter exporter = new CameraFrameExporter(bridge, Runnable::run);
+        nativeHandle = new NativeHandle(bridge, bridge.createNativeApplication(null),
+                exporter::shutdown);
+        EventBus eventBus = new EventBus(drain -> pendingDrain = drain, batch -> {
+            events.clear();
+            ControlProtocol.writeBatch(events, batch);
+        });
+        frameLoop = new FrameLoop(bridge, nativeHandle, eventBus, exporter,
+                new FrameLoop.Host() {
+                    @Override
+                    public int getDisplayRotation() {
+                        return 0;
+                    }
+
+                    @Override
+                    public void onPlanesDetected() {
+                    }
+
+                    @Override
+                    public void onTrackingStateChanged(int state) {
+                    }
+
+                    @Override
+                    public void onFrameError(int status, boolean recoverable) {
+                    }
+                });
+        long nativeApplication = nativeHandle.acquire();
+        bridge.onResume(nativeApplication, null, null);
+        nativeHandle.release();
+        nativeHandle.markResumed();
+        frameLoop.onSurfaceCreated();
+        frameLoop.onSurfaceChanged(1080, 2340, 60);
+    }
+
+    @TearDown
+    public void tearDown() {
+        nativeHandle.destroy();
+    }
+
+    @Benchmark
+    public int frame() {
+        int status = frameLoop.onDrawFrame();
+        Runnable drain = pendingDrain;
+        if (drain != null) {
+            pendingDrain = null;
+            drain.run();
+        }
+        return status + frameLoop.getTrackingState();
+    }
+}
@@ -0,0 +1,383 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.QualityGovernor;
+import com.compal.cloudxr_flutter.SessionRecovery;
+import com.compal.cloudxr_flutter.SessionWarmup;
+import com.compal.cloudxr_flutter.TelemetrySpool;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs {@link TelemetrySpool} against a stand-in for the central server's telemetry endpoint and
+ * fails unless nothing is uploaded while streaming or busy, what the endpoint receives is exactly
+ * what was appended, failed or unanswered uploads are retried with backoff, and the spool stays
+ * under its cap.
+ * <p>
+ * The endpoint is an HttpServer on the loopback interface; the uploader posts batches to it as
+ * lib/telemetry.dart does. Time is simulated, the spool's delayed tasks run as it advances.
+ * <p>
+ * Arguments are key=value: events (appended before the first upload), segment_kb, max_kb, seed.
+ */
+public class TelemetrySpoolCheck extends Check {
+    private static final long IDLE_DELAY_MS = 1_000;
+    private static final long ACK_TIMEOUT_MS = 5_000;
+
+    private int events = 2_000;
+    private int segmentKb = 4;
+    private int maxKb = 64;
+    private int seed = 1;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new TelemetrySpoolCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "events":
+                events = (int) Math.max(1, value);
+                return true;
+            case "segment_kb":
+                segmentKb = (int) Math.max(1, value);
+                return true;
+            case "max_kb":
+                maxKb = (int) Math.max(1, value);
+                return true;
+            case "seed":
+                seed = (int) value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws IOException {
+        File directory = Files.createTempDirectory("telemetry").toFile();
+        Endpoint endpoint = new Endpoint();
+        try {
+            run(directory, endpoint);
+        } finally {
+            endpoint.server.stop(0);
+            deleteAll(directory);
+        }
+    }
+
+    private void run(File directory, Endpoint endpoint) throws IOException {
+        Random random = new Random(seed);
+        ManualScheduler scheduler = new ManualScheduler();
+        boolean[] idle = {true};
+        HttpUploader uploader = new HttpUploader(endpoint.url);
+        // Left over from an upload cut short; must go.
+        Files.write(new File(directory, "batch-00000001.gz").toPath(), new byte[]{1, 2, 3});
+        TelemetrySpool spool = newSpool(directory, scheduler, () -> idle[0], uploader);
+        int maxBytes = Math.max(maxKb, 4 * segmentKb) * 1024;
+        uploader.spool = spool;
+
+        // Streaming: spooled, not uploaded.
+        spool.setStreaming(true);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        int appended = appendEvents(spool, random, Math.min(events, maxBytes / 64), expected);
+        spool.flush();
+        scheduler.advance(10 * IDLE_DELAY_MS);
+        check(endpoint.bodies.isEmpty(), "uploaded while streaming");
+        check(!new File(directory, "batch-00000001.gz").exists(), "stale batch kept");
+        check(spool.getRecords() == appended, spool.getRecords() + " records of " + appended);
+        check(segments(directory).size() > 1, "segments not rotated");
+
+        // Streaming ends while the host is busy, then it goes idle.
+        idle[0] = false;
+        spool.setStreaming(false);
+        scheduler.advance(3 * IDLE_DELAY_MS);
+        check(endpoint.bodies.isEmpty(), "uploaded while busy");
+        idle[0] = true;
+        scheduler.advance(IDLE_DELAY_MS);
+        check(!endpoint.bodies.isEmpty() && spool.getUploads() == endpoint.bodies.size(),
+                spool.getUploads() + " uploads acknowledged of " + endpoint.bodies.size());
+        check(segments(directory).isEmpty() && batches(directory).isEmpty(),
+                "uploaded files left " + Arrays.toString(directory.list()));
+        check(Arrays.equals(records(endpoint.bodies), expected.toByteArray()),
+                "uploaded records differ from the appended ones");
+
+        // The endpoint fails: kept and retried, backing off.
+        endpoint.status.set(503);
+        endpoint.bodies.clear();
+        appendEvents(spool, random, 100, new ByteArrayOutputStream());
+        spool.flush();
+        spool.setStreaming(true);
+        spool.setStreaming(false);
+        scheduler.advance(IDLE_DELAY_MS);
+        check(spool.getFailures() == 1 && endpoint.bodies.size() == 1, "failed upload not counted");
+        scheduler.advance(TelemetrySpool.MIN_RETRY_MS - 1);
+        check(endpoint.bodies.size() == 1, "retried before the backoff");
+        scheduler.advance(1);
+        check(endpoint.bodies.size() == 2, "not retried after the backoff");
+        scheduler.advance(2 * TelemetrySpool.MIN_RETRY_MS - 1);
+        check(endpoint.bodies.size() == 2, "not backing off further");
+        endpoint.status.set(200);
+        scheduler.advance(1);
+        check(endpoint.bodies.size() == 3 && segments(directory).isEmpty(),
+                "not uploaded once the endpoint works again");
+
+        // No answer at all counts as a failure.
+        uploader.answer = false;
+        appendEvents(spool, random, 100, new ByteArrayOutputStream());
+        spool.flush();
+        spool.setStreaming(true);
+        spool.setStreaming(false);
+        long failures = spool.getFailures();
+        scheduler.advance(IDLE_DELAY_MS + ACK_TIMEOUT_MS);
+        check(spool.getFailures() == failures + 1, "unanswered upload not retried");
+        uploader.answer = true;
+
+        // Spooled far beyond the cap while streaming.
+        spool.setStreaming(true);
+        appendEvents(spool, random, maxBytes / 8, new ByteArrayOutputStream());
+        spool.flush();
+        long spooled = 0;
+        for (File file : directory.listFiles()) {
+            spooled += file.length();
+        }
+        check(spooled <= maxBytes && spool.getDroppedSegments() > 0,
+                "spooled " + spooled + " bytes, cap " + maxBytes);
+
+        // What is left is picked up by the next instance.
+        spool.close();
+        int left = segments(directory).size();
+        TelemetrySpool next = newSpool(directory, scheduler, () -> true, uploader);
+        uploader.spool = next;
+        endpoint.bodies.clear();
+        next.setStreaming(false);
+        scheduler.advance(IDLE_DELAY_MS);
+        check(left > 0 && segments(directory).isEmpty() && !endpoint.bodies.isEmpty(),
+                left + " segments left, not uploaded by the next instance");
+
+        System.out.printf("records %d, uploads %d, failures %d, dropped segments %d%n",
+                spool.getRecords(), spool.getUploads(), spool.getFailures(),
+                spool.getDroppedSegments());
+    }
+
+    private TelemetrySpool newSpool(File directory, ManualScheduler scheduler,
+                                    TelemetrySpool.Host host, TelemetrySpool.Uploader uploader) {
+        // Files are written on the calling thread, so everything is in place once a call returns.
+        TelemetrySpool spool = new TelemetrySpool(directory, scheduler, host, uploader,
+                Runnable::run);
+        spool.setLimits(segmentKb * 1024, Math.max(maxKb, 4 * segmentKb) * 1024L,
+                4 * segmentKb * 1024);
+        spool.setTimeouts(IDLE_DELAY_MS, ACK_TIMEOUT_MS);
+        return spool;
+    }
+
+    // Appends count events in vsync sized batches, mixed with events that are not spooled, and
+    // the binary form of those that are to expected. Returns how many are spooled.
+    private static int appendEvents(TelemetrySpool spool, Random random, int count,
+                                    ByteArrayOutputStream expected) {
+        ByteBuffer encoded = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        int spooled = 0;
+        List<Object> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Object event = randomEvent(random);
+            batch.add(event);
+            encoded.clear();
+            if (!"touch".equals(event) && !isUpload(event)
+                    && ControlProtocol.writeEvent(encoded, event)) {
+                expected.write(encoded.array(), 0, encoded.position());
+                spooled++;
+            }
+            if (batch.size() == 8 || i == count - 1) {
+                spool.append(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        return spooled;
+    }
+
+    private static boolean isUpload(Object event) {
+        return event instanceof Map
+                && TelemetrySpool.EVENT_TYPE.equals(((Map<?, ?>) event).get("type"));
+    }
+
+    private static Object randomEvent(Random random) {
+        Map<String, Object> event = new HashMap<>();
+        switch (random.nextInt(6)) {
+            case 0:
+                event.put("type", SessionRecovery.EVENT_TYPE);
+                event.put("state", random.nextInt(5));
+                event.put("attempt", random.nextInt(10));
+                event.put("delay_ms", random.nextInt(30_000));
+                event.put("status", random.nextInt());
+                return event;
+            case 1:
+                event.put("type", QualityGovernor.EVENT_TYPE);
+                event.put("level", random.nextInt(4));
+                event.put("previous", random.nextInt(4));
+                event.put("res_factor", random.nextFloat());
+                event.put("fps", 30 + random.nextInt(60));
+                event.put("bitrate_mbps", random.nextInt(100));
+                return event;
+            case 2:
+                event.put("type", SessionWarmup.EVENT_TYPE);
+                event.put("native_ms", random.nextInt(2_000));
+                event.put("resolve_ms", random.nextInt(200));
+                event.put("probe_ms", random.nextInt(200));
+                event.put("reachable", random.nextBoolean());
+                return event;
+            case 3:
+                return random.nextBoolean() ? "start_cloudxr" : "stop_cloudxr";
+            case 4:
+                return "touch";
+            default:
+                // A spool's own upload event, never spooled.
+                event.put("type", TelemetrySpool.EVENT_TYPE);
+                event.put("name", "batch");
+                return event;
+        }
+    }
+
+    // The records of every uploaded batch in order, without their timestamps.
+    private static byte[] records(List<byte[]> bodies) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] body : bodies) {
+            ByteBuffer batch = ByteBuffer.wrap(gunzip(body)).order(ByteOrder.LITTLE_ENDIAN);
+            while (batch.hasRemaining()) {
+                int length = batch.getInt();
+                ByteBuffer segment = batch.slice().order(ByteOrder.LITTLE_ENDIAN);
+                segment.limit(length);
+                batch.position(batch.position() + length);
+                if (segment.getInt() != TelemetrySpool.MAGIC
+                        || segment.getShort() != TelemetrySpool.VERSION) {
+                    throw new IOException("Not a segment");
+                }
+                segment.position(TelemetrySpool.SEGMENT_HEADER_SIZE);
+                while (segment.hasRemaining()) {
+                    segment.getLong();
+                    int start = segment.position();
+                    int payload = segment.getShort(start + 2) & 0xFFFF;
+                    int end = start + ControlProtocol.EVENT_HEADER_SIZE + payload;
+                    out.write(segment.array(), segment.arrayOffset() + start, end - start);
+                    segment.position(end);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] body) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<File> segments(File directory) {
+        return files(directory, ".bin");
+    }
+
+    private static List<File> batches(File directory) {
+        return files(directory, ".gz");
+    }
+
+    private static List<File> files(File directory, String suffix) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(suffix));
+        return files != null ? Arrays.asList(files) : Collections.emptyList();
+    }
+
+    private static void deleteAll(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // The central server's telemetry endpoint: keeps every body posted and answers with status.
+    private static class Endpoint {
+        final HttpServer server;
+        final URL url;
+        final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger status = new AtomicInteger(200);
+
+        Endpoint() throws IOException {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                    0);
+            server.createContext("/devices/telemetry", exchange -> {
+                try (InputStream in = exchange.getRequestBody()) {
+                    bodies.add(readAll(in));
+                }
+                exchange.sendResponseHeaders(status.get(), -1);
+                exchange.close();
+            });
+            server.start();
+            url = new URL("http://127.0.0.1:" + server.getAddress().getPort()
+                    + "/devices/telemetry");
+        }
+    }
+
+    // Posts a batch as lib/telemetry.dart does and answers the spool, unless told not to.
+    private static class HttpUploader implements TelemetrySpool.Uploader {
+        private final URL url;
+        TelemetrySpool spool;
+        boolean answer = true;
+
+        HttpUploader(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public void upload(TelemetrySpool.Batch batch) {
+            boolean ok;
+            try {
+                byte[] body = Files.readAllBytes(batch.file.toPath());
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/octet-stream");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+                ok = connection.getResponseCode() / 100 == 2;
+                connection.disconnect();
+            } catch (IOException e) {
+                ok = false;
+            }
+            if (answer) {
+                spool.onUploaded(batch.name, ok);
+            }
+        }
+    }
+}
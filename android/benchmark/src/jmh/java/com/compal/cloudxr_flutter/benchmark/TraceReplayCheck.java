@@ -0,0 +1,397 @@
+package com.compal.cloudxr_flutter.benchmark;
+
+import com.compal.cloudxr_flutter.CameraFrameExporter;
+import com.compal.cloudxr_flutter.ControlProtocol;
+import com.compal.cloudxr_flutter.EventBus;
+import com.compal.cloudxr_flutter.FrameLoop;
+import com.compal.cloudxr_flutter.NativeHandle;
+import com.compal.cloudxr_flutter.SimulatedNativeBridge;
+import com.compal.cloudxr_flutter.TouchQueue;
+import com.compal.cloudxr_flutter.TraceRecorder;
+import com.compal.cloudxr_flutter.TraceReplayer;
+import com.compal.cloudxr_flutter.TracingCommands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Records a simulated session with {@link TraceRecorder}, replays the trace into a fresh one and
+ * fails unless the replay produced the same records: same commands, touches and geometry, and
+ * the same tracking transitions and frame statuses from the frame loop.
+ * <p>
+ * Everything runs on the calling thread, standing in for both the main and the GL thread, so
+ * the only input is the trace. Also prints the recording cost per frame, against the same
+ * session drawn without a recorder, and how long the replay took.
+ * <p>
+ * Arguments are key=value: frames, cycle_frames (frames between connect and disconnect),
+ * touch_every (frames between touches), error_every (frames between injected draw errors, 0 =
+ * none), hz (recording pace, 0 = unpaced), speed_percent (replay pace relative to the
+ * recording, 0 = unpaced).
+ */
+public class TraceReplayCheck extends Check {
+    private int frames = 20_000;
+    private int cycleFrames = 600;
+    private int touchEvery = 30;
+    private int errorEvery = 997;
+    private int frameRateHz = 0;
+    private int speedPercent = 0;
+
+    public static void main(String[] args) throws Exception {
+        Check.main(new TraceReplayCheck(), args);
+    }
+
+    @Override
+    boolean set(String key, long value) {
+        switch (key) {
+            case "frames":
+                frames = (int) value;
+                return true;
+            case "cycle_frames":
+                cycleFrames = (int) Math.max(2, value);
+                return true;
+            case "touch_every":
+                touchEvery = (int) Math.max(1, value);
+                return true;
+            case "error_every":
+                errorEvery = (int) value;
+                return true;
+            case "hz":
+                frameRateHz = (int) value;
+                return true;
+            case "speed_percent":
+                speedPercent = (int) value;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    void run() throws IOException {
+        File recorded = File.createTempFile("session", TraceRecorder.FILE_SUFFIX);
+        File replayed = File.createTempFile("replay", TraceRecorder.FILE_SUFFIX);
+        try {
+            long plainNanos = drive(null);
+            TraceRecorder recorder = new TraceRecorder(recorded, capacity());
+            long recordedNanos = drive(recorder);
+            recorder.close();
+            System.out.printf("recorded %d records, %d bytes, dropped %d%n",
+                    recorder.getRecords(), recorder.getSize(), recorder.getDropped());
+            System.out.printf("frame ns without recorder %.0f, with %.0f%n",
+                    (double) plainNanos / frames, (double) recordedNanos / frames);
+
+            long replayNanos = replay(recorded, replayed);
+            System.out.printf("replayed at %d%% in %.2f s (recorded in %.2f s)%n", speedPercent,
+                    replayNanos / 1e9, recordedNanos / 1e9);
+            compare(recorded, replayed);
+            check(recorder.getDropped() == 0, "records dropped, trace too small");
+        } finally {
+            recorded.delete();
+            replayed.delete();
+        }
+    }
+
+    private int capacity() {
+        // Touch and geometry records come with some frames, commands with few.
+        return TraceRecorder.FILE_HEADER_SIZE + frames * 64 + (1 << 16);
+    }
+
+    // Draws the scripted session, recording it if recorder is set. Returns the elapsed ns.
+    private long drive(TraceRecorder recorder) {
+        Session session = new Session(recorder);
+        ByteBuffer connect = ControlProtocol.allocate(256);
+        ControlProtocol.writeHeader(connect, ControlProtocol.CMD_CONNECT, 0);
+        for (String value : new String[]{"10.0.0.2", "", "10.0.0.2", ""}) {
+            ControlProtocol.writeString(connect, value);
+        }
+        ControlProtocol.writeBoolean(connect, false);
+        ControlProtocol.writeBoolean(connect, false);
+        connect.flip();
+        long frameNanos = frameRateHz > 0 ? 1_000_000_000L / frameRateHz : 0;
+        long start = System.nanoTime();
+        long nextFrame = start;
+        for (int i = 0; i < frames; i++) {
+            if (i % cycleFrames == 0) {
+                connect.rewind();
+                ControlProtocol.dispatch(connect, session.commands);
+            } else if (i % cycleFrames == cycleFrames - 1) {
+                session.commands.disconnect();
+            }
+            if (i % touchEvery == 0) {
+                int action = i % (touchEvery * 4) == 0
+                        ? TouchQueue.ACTION_LONG_PRESS : TouchQueue.ACTION_TAP;
+                session.loop.postTouch(i % 1080, i % 2340, action, System.nanoTime());
+            }
+            if (i % 1000 == 500) {
+                // Rotate between portrait and landscape.
+                session.rotation ^= 1;
+                boolean portrait = session.rotation == 0;
+                session.loop.onSurfaceChanged(portrait ? 1080 : 2340, portrait ? 2340 : 1080, 60);
+            }
+            if (frameNanos > 0) {
+                nextFrame += frameNanos;
+                while (System.nanoTime() < nextFrame) {
+                    Thread.yield();
+                }
+            }
+            session.loop.onDrawFrame();
+        }
+        session.destroy();
+        return System.nanoTime() - start;
+    }
+
+    // Feeds the recorded trace into a fresh session while recording that one to replayed.
+    private long replay(File recorded, File replayed) throws IOException {
+        TraceRecorder recorder = new TraceRecorder(replayed, capacity());
+        Session session = new Session(recorder);
+        long start = System.nanoTime();
+        try (TraceReplayer replayer = new TraceReplayer(recorded)) {
+            replayer.replay(new TraceReplayer.Target() {
+                @Override
+                public void onGeometry(int rotation, int width, int height) {
+                    session.rotation = rotation;
+                    session.loop.onSurfaceChanged(width, height, 60);
+                }
+
+                @Override
+                public void onTouch(float x, float y, int action) {
+                    session.loop.postTouch(x, y, action, System.nanoTime());
+                }
+
+                @Override
+                public void onCommand(ByteBuffer message) {
+                    ControlProtocol.dispatch(message, session.commands);
+                }
+
+                @Override
+                public void onTracking(int state) {
+                    // An output, compared afterwards.
+                }
+
+                @Override
+                public void onFrame(int status) {
+                    session.loop.onDrawFrame();
+                }
+            }, speedPercent / 100.0);
+        }
+        long elapsed = System.nanoTime() - start;
+        session.destroy();
+        recorder.close();
+        return elapsed;
+    }
+
+    // Same records in the same order, timestamps aside.
+    private void compare(File expected, File actual) throws IOException {
+        ByteBuffer a = map(expected);
+        ByteBuffer b = map(actual);
+        int atA = TraceRecorder.FILE_HEADER_SIZE;
+        int atB = TraceRecorder.FILE_HEADER_SIZE;
+        long index = 0;
+        while (true) {
+            boolean endA = atA + TraceRecorder.RECORD_HEADER_SIZE > a.limit() || a.get(atA) == 0;
+            boolean endB = atB + TraceRecorder.RECORD_HEADER_SIZE > b.limit() || b.get(atB) == 0;
+            if (endA || endB) {
+                check(endA == endB, "replay has a different number of records, first "
+                        + "difference at record " + index);
+                return;
+            }
+            int lengthA = a.getShort(atA + 2) & 0xFFFF;
+            int lengthB = b.getShort(atB + 2) & 0xFFFF;
+            boolean same = a.get(atA) == b.get(atB) && lengthA == lengthB;
+            for (int i = 0; same && i < lengthA; i++) {
+                same = a.get(atA + TraceRecorder.RECORD_HEADER_SIZE + i)
+                        == b.get(atB + TraceRecorder.RECORD_HEADER_SIZE + i);
+            }
+            if (!same) {
+                check(false, "record " + index + " differs, type " + a.get(atA)
+                        + " replayed as " + b.get(atB));
+                return;
+            }
+            atA += TraceRecorder.RECORD_HEADER_SIZE + lengthA;
+            atB += TraceRecorder.RECORD_HEADER_SIZE + lengthB;
+            index++;
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    in.length());
+            return mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    // One native application with a frame loop, every callback run inline.
+    private class Session {
+        final SimulatedNativeBridge bridge = new SimulatedNativeBridge(42);
+        final NativeHandle nativeHandle;
+        final CameraFrameExporter exporter;
+        final FrameLoop loop;
+        final TracingCommands commands;
+        int rotation = 0;
+
+        Session(TraceRecorder recorder) {
+            bridge.setDrawError(-1, errorEvery);
+            bridge.setTrackingTimeline(1, cycleFrames / 4, cycleFrames / 2);
+            bridge.setAnchorLoss(Math.max(2, cycleFrames / 4), Math.max(1, cycleFrames / 16));
+            exporter = new CameraFrameExporter(bridge, Runnable::run);
+            nativeHandle = new NativeHandle(bridge, bridge.createNativeApplication(null),
+                    exporter::shutdown);
+            EventBus eventBus = new EventBus(Runnable::run, batch -> { });
+            loop = new FrameLoop(bridge, nativeHandle, eventBus, exporter, new FrameLoop.Host() {
+                @Override
+                public int getDisplayRotation() {
+                    return rotation;
+                }
+
+                @Override
+                public void onPlanesDetected() {
+                }
+
+                @Override
+                public void onTrackingStateChanged(int state) {
+                }
+
+                @Override
+                public void onFrameError(int status, boolean recoverable) {
+                    // No recovery: the next connect resumes the simulated application.
+                }
+            });
+            loop.onSurfaceCreated();
+            loop.onSurfaceChanged(1080, 2340, 60);
+            loop.setTraceRecorder(recorder);
+            commands = new TracingCommands(new SessionCommands(this));
+            commands.setRecorder(recorder);
+        }
+
+        void destroy() {
+            loop.setTraceRecorder(null);
+            commands.setRecorder(null);
+            nativeHandle.destroy();
+        }
+    }
+
+    // What ArController does for the commands the script sends.
+    private static class SessionCommands implements ControlProtocol.Commands {
+        private final Session session;
+
+        SessionCommands(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        public void connect(String cloudIp, String anchorId, String webRtcIp, String roomId,
+                            boolean hostCloudAnchor, boolean mediaPipe) {
+            long nativeApplication = session.nativeHandle.acquire();
+            if (nativeApplication == 0) {
+                return;
+            }
+            session.bridge.onResume(nativeApplication, null, null);
+            session.nativeHandle.release();
+            session.nativeHandle.markResumed();
+        }
+
+        @Override
+        public void disconnect() {
+            long nativeApplication = session.nativeHandle.acquire();
+            if (nativeApplication != 0) {
+                session.bridge.onPause(nativeApplication);
+                session.nativeHandle.release();
+            }
+            session.nativeHandle.markPaused();
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void startConnectionStats(int intervalMs, int windowSize) {
+        }
+
+        @Override
+        public void stopConnectionStats() {
+        }
+
+        @Override
+        public void subscribeCameraFrames(int maxFps, int downscale, int queueDepth,
+                                          int format) {
+        }
+
+        @Override
+        public void unsubscribeCameraFrames() {
+        }
+
+        @Override
+        public void startPoseStream(int rateHz, boolean batch) {
+        }
+
+        @Override
+        public void stopPoseStream() {
+        }
+
+        @Override
+        public void startTrace(int capacityKb) {
+        }
+
+        @Override
+        public void stopTrace() {
+        }
+
+        @Override
+        public void replayTrace(String name, int speedPercent) {
+        }
+
+        @Override
+        public void setLogLevel(int level) {
+        }
+
+        @Override
+        public void setTargetFrameRate(int frameRate) {
+        }
+
+        @Override
+        public void connectBest(List<String> candidates, String anchorId, String webRtcIp,
+                                String roomId, boolean hostCloudAnchor, boolean mediaPipe) {
+            connect(candidates.get(0), anchorId, webRtcIp, roomId, hostCloudAnchor, mediaPipe);
+        }
+
+        @Override
+        public void telemetryUploaded(String name, boolean ok) {
+        }
+
+        @Override
+        public void switchServer(String server) {
+            long nativeApplication = session.nativeHandle.acquire();
+            if (nativeApplication == 0) {
+                return;
+            }
+            session.bridge.setArgs(nativeApplication, "-s " + server);
+            session.bridge.reconnect(nativeApplication);
+            session.nativeHandle.release();
+        }
+
+        @Override
+        public void listProfiles() {
+        }
+
+        @Override
+        public void saveProfile(String name, String cloudIp, String anchorId, String webRtcIp,
+                                String roomId, boolean mediaPipe) {
+        }
+
+        @Override
+        public void useProfile(String name) {
+        }
+
+        @Override
+        public void removeProfile(String name) {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+import 'controlProtocol.dart';
+
+const _cameraFrames =
+    BasicMessageChannel<ByteData?>('com.compal.cloudxr/camera_frames', BinaryCodec());
+
+// Header layout written by CameraFramePool.java (native byte order).
+const _widthOffset = 0;
+const _heightOffset = 4;
+const _yStrideOffset = 8;
+const _uvStrideOffset = 12;
+const _uvPixelStrideOffset = 16;
+const _yLengthOffset = 20;
+const _uLengthOffset = 24;
+const _vLengthOffset = 28;
+const _timestampOffset = 32;
+const _headerSize = 40;
+
+/// Pixel formats frames can be subscribed in. Anything but [yuv] is converted
+/// on the native side, downscaling in the same pass.
+class CameraFrameFormat {
+  /// The YUV_420_888 planes as the camera delivers them.
+  static const yuv = 0;
+  static const rgba = 1;
+  static const rgb = 2;
+  static const gray = 3;
+}
+
+/// A YUV frame has its planes in [y], [u] and [v]. A converted frame has its
+/// pixels in [y], [yStride] bytes per row, with [u] and [v] empty and an
+/// [uvPixelStride] of 0.
+class CameraFrame {
+  final int width;
+  final int height;
+  final int yStride;
+  final int uvStride;
+  final int uvPixelStride;
+  final int timestampNs;
+  final Uint8List y;
+  final Uint8List u;
+  final Uint8List v;
+
+  CameraFrame._(this.width, this.height, this.yStride, this.uvStride,
+      this.uvPixelStride, this.timestampNs, this.y, this.u, this.v);
+
+  bool get isYuv => uvPixelStride != 0;
+
+  /// Bytes per pixel of a converted frame, 1 for a YUV frame's [y] plane.
+  int get bytesPerPixel => isYuv || width == 0 ? 1 : yStride ~/ width;
+
+  factory CameraFrame.fromByteData(ByteData data) {
+    int yLength = data.getInt32(_yLengthOffset, Endian.host);
+    int uLength = data.getInt32(_uLengthOffset, Endian.host);
+    int vLength = data.getInt32(_vLengthOffset, Endian.host);
+    ByteBuffer buffer = data.buffer;
+    int offset = data.offsetInBytes + _headerSize;
+    return CameraFrame._(
+        data.getInt32(_widthOffset, Endian.host),
+        data.getInt32(_heightOffset, Endian.host),
+        data.getInt32(_yStrideOffset, Endian.host),
+        data.getInt32(_uvStrideOffset, Endian.host),
+        data.getInt32(_uvPixelStrideOffset, Endian.host),
+        data.getInt64(_timestampOffset, Endian.host),
+        buffer.asUint8List(offset, yLength),
+        buffer.asUint8List(offset + yLength, uLength),
+        buffer.asUint8List(offset + yLength + uLength, vLength));
+  }
+}
+
+/// Receives camera frames from ArController. Frames are only captured on the
+/// native side while at least one subscription is active, and the next frame
+/// is not sent until [onFrame] has completed.
+class CameraFrames {
+  /// private constructor
+  CameraFrames._();
+
+  /// the one and only instance of this singleton
+  static final instance = CameraFrames._();
+
+  Future<void> Function(CameraFrame frame)? _onFrame;
+
+  Future<void> subscribe(Future<void> Function(CameraFrame frame) onFrame,
+      {int maxFps = 15,
+      int downscale = 2,
+      int queueDepth = 2,
+      int format = CameraFrameFormat.yuv}) async {
+    _onFrame = onFrame;
+    _cameraFrames.setMessageHandler(_handleFrame);
+    await CloudXrControl.instance.subscribeCameraFrames(
+        maxFps: maxFps,
+        downscale: downscale,
+        queueDepth: queueDepth,
+        format: format);
+  }
+
+  Future<void> unsubscribe() async {
+    await CloudXrControl.instance.unsubscribeCameraFrames();
+    _cameraFrames.setMessageHandler(null);
+    _onFrame = null;
+  }
+
+  Future<ByteData?> _handleFrame(ByteData? data) async {
+    var onFrame = _onFrame;
+    if (null != data && null != onFrame) {
+      await onFrame(CameraFrame.fromByteData(data));
+    }
+    return null;
+  }
+}
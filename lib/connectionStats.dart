@@ -0,0 +1,89 @@
+import 'dart:typed_data';
+
+/// Sliding-window CloudXR connection stats published by
+/// ConnectionStatsMonitor.java over the events channel, or in binary over the
+/// control channel.
+class ConnectionStats {
+  static const String eventType = 'connection_stats';
+
+  // cxrConnectionQuality values.
+  static const int qualityBad = 1;
+  static const int qualityPoor = 2;
+  static const int qualityFair = 3;
+  static const int qualityGood = 4;
+  static const int qualityExcellent = 5;
+
+  // cxrConnectionQualityReason bits.
+  static const int reasonHighLatency = 0x1;
+  static const int reasonLowBandwidth = 0x2;
+  static const int reasonHighPacketLoss = 0x4;
+
+  final int samples;
+  final int windowMs;
+  final double fps;
+  final double bitrateKbps;
+  final double bandwidthMinKbps;
+  final double rttMs;
+  final double rttMinMs;
+  final double rttMaxMs;
+  final double jitterMs;
+  final double packetLossPercent;
+  final int quality;
+  final int qualityMin;
+  final int qualityReasons;
+  final bool degrading;
+
+  ConnectionStats.fromMap(Map<dynamic, dynamic> map)
+      : samples = map['samples'] as int,
+        windowMs = map['window_ms'] as int,
+        fps = (map['fps'] as num).toDouble(),
+        bitrateKbps = (map['bitrate_kbps'] as num).toDouble(),
+        bandwidthMinKbps = (map['bandwidth_min_kbps'] as num).toDouble(),
+        rttMs = (map['rtt_ms'] as num).toDouble(),
+        rttMinMs = (map['rtt_min_ms'] as num).toDouble(),
+        rttMaxMs = (map['rtt_max_ms'] as num).toDouble(),
+        jitterMs = (map['jitter_ms'] as num).toDouble(),
+        packetLossPercent = (map['packet_loss_percent'] as num).toDouble(),
+        quality = map['quality'] as int,
+        qualityMin = map['quality_min'] as int,
+        qualityReasons = map['quality_reasons'] as int,
+        degrading = map['degrading'] as bool;
+
+  /// Decodes an EVT_CONNECTION_STATS payload starting at [offset].
+  ConnectionStats.fromBytes(ByteData data, int offset)
+      : samples = data.getInt32(offset, Endian.little),
+        windowMs = data.getInt32(offset + 4, Endian.little),
+        fps = data.getFloat32(offset + 8, Endian.little),
+        bitrateKbps = data.getFloat32(offset + 12, Endian.little),
+        bandwidthMinKbps = data.getFloat32(offset + 16, Endian.little),
+        rttMs = data.getFloat32(offset + 20, Endian.little),
+        rttMinMs = data.getFloat32(offset + 24, Endian.little),
+        rttMaxMs = data.getFloat32(offset + 28, Endian.little),
+        jitterMs = data.getFloat32(offset + 32, Endian.little),
+        packetLossPercent = data.getFloat32(offset + 36, Endian.little),
+        quality = data.getUint8(offset + 40),
+        qualityMin = data.getUint8(offset + 41),
+        qualityReasons = data.getUint8(offset + 42),
+        degrading = data.getUint8(offset + 43) != 0;
+
+  static bool isConnectionStats(dynamic message) =>
+      message is Map && eventType == message['type'];
+
+  String reason() {
+    if (qualityReasons & reasonHighLatency != 0) {
+      return 'high latency';
+    } else if (qualityReasons & reasonLowBandwidth != 0) {
+      return 'low bandwidth';
+    } else if (qualityReasons & reasonHighPacketLoss != 0) {
+      return 'packet loss';
+    }
+    return '';
+  }
+
+  String summary() =>
+      "quality $quality/$qualityExcellent ${reason()}\n"
+      "rtt ${rttMs.toStringAsFixed(0)} ms (${rttMinMs.toStringAsFixed(0)}-${rttMaxMs.toStringAsFixed(0)}), "
+      "jitter ${jitterMs.toStringAsFixed(1)} ms\n"
+      "${(bitrateKbps / 1000).toStringAsFixed(1)} Mbps, loss ${packetLossPercent.toStringAsFixed(1)}%, "
+      "${fps.toStringAsFixed(0)} fps";
+}
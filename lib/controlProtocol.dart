@@ -0,0 +1,627 @@
+import 'dart:async';
+import 'dart:convert';
+import 'dart:typed_data';
+
+import 'package:flutter/services.dart';
+
+import 'connectionStats.dart';
+import 'frameStats.dart';
+import 'log.dart';
+
+const _tag = "CloudXrControl";
+const _controlChannel =
+    BasicMessageChannel<ByteData?>('com.compal.cloudxr/control', BinaryCodec());
+
+// Wire format shared with ControlProtocol.java: a 4 byte header (version,
+// type, 16 bit argument), little endian fields, strings as a 16 bit length
+// followed by UTF-8.
+const protocolVersion = 2;
+const _headerSize = 4;
+const _eventHeaderSize = 4;
+
+const _cmdHello = 0x00;
+const _cmdConnect = 0x01;
+const _cmdDisconnect = 0x02;
+const _cmdStop = 0x03;
+const _cmdStartConnectionStats = 0x04;
+const _cmdStopConnectionStats = 0x05;
+const _cmdSubscribeCameraFrames = 0x06;
+const _cmdUnsubscribeCameraFrames = 0x07;
+const _cmdStartPoseStream = 0x08;
+const _cmdStopPoseStream = 0x09;
+const _cmdSetLogLevel = 0x0A;
+const _cmdStartTrace = 0x0B;
+const _cmdStopTrace = 0x0C;
+const _cmdReplayTrace = 0x0D;
+const _cmdSetTargetFrameRate = 0x0E;
+const _cmdConnectBest = 0x0F;
+const _cmdTelemetryUploaded = 0x10;
+const _cmdSwitchServer = 0x11;
+const _cmdListProfiles = 0x12;
+const _cmdSaveProfile = 0x13;
+const _cmdUseProfile = 0x14;
+const _cmdRemoveProfile = 0x15;
+
+const _msgAck = 0x7F;
+const _msgEventBatch = 0x80;
+const _evtCloudXrState = 0x81;
+const _evtTouch = 0x82;
+const _evtFrameStats = 0x83;
+const _evtConnectionStats = 0x84;
+const _evtPose = 0x85;
+const _evtSessionRecovery = 0x86;
+const _evtQuality = 0x87;
+const _evtWarmup = 0x88;
+const _evtEdgeSelection = 0x89;
+const _evtTelemetryUpload = 0x8A;
+const _evtServerSwitch = 0x8B;
+const _evtProfiles = 0x8C;
+
+const _statusOk = 1;
+
+/// Same values as LogUtils.java and android.util.Log.
+class LogLevel {
+  static const verbose = 2;
+  static const debug = 3;
+  static const info = 4;
+  static const warn = 5;
+  static const error = 6;
+  static const off = 8;
+}
+
+abstract class ControlEvent {}
+
+class CloudXrStateEvent extends ControlEvent {
+  final bool started;
+
+  CloudXrStateEvent(this.started);
+}
+
+class TouchEvent extends ControlEvent {}
+
+class FrameStatsEvent extends ControlEvent {
+  final FrameStats stats;
+
+  FrameStatsEvent(this.stats);
+}
+
+class ConnectionStatsEvent extends ControlEvent {
+  final ConnectionStats stats;
+
+  ConnectionStatsEvent(this.stats);
+}
+
+class PoseEvent extends ControlEvent {
+  final int timestampNs;
+  final Float32List position; // x, y, z
+  final Float32List orientation; // quaternion x, y, z, w
+
+  PoseEvent(this.timestampNs, this.position, this.orientation);
+}
+
+/// State of SessionRecovery.java after a CloudXR connection error.
+class SessionRecoveryEvent extends ControlEvent {
+  static const stateConnected = 0;
+  static const stateBackoff = 1;
+  static const stateReconnecting = 2;
+  static const stateCircuitOpen = 3;
+  static const stateFailed = 4;
+
+  final int state;
+  final int attempt;
+  final int delayMs;
+  final int status;
+
+  SessionRecoveryEvent(this.state, this.attempt, this.delayMs, this.status);
+}
+
+/// Decision of QualityGovernor.java, sent whenever the stream quality level
+/// changes. Level 0 is full quality; the settings apply from the next connect.
+class QualityEvent extends ControlEvent {
+  static const causeRecovered = 0;
+  static const causeThermal = 1;
+  static const causeBattery = 2;
+  static const causeConnection = 3;
+
+  final int level;
+  final int previous;
+  final int cause;
+  final int thermalStatus;
+  final int batteryPercent;
+  final bool charging;
+  final int qualityReasons;
+  final double resFactor;
+  final int fps;
+  final int bitrateMbps;
+
+  QualityEvent(
+      this.level,
+      this.previous,
+      this.cause,
+      this.thermalStatus,
+      this.batteryPercent,
+      this.charging,
+      this.qualityReasons,
+      this.resFactor,
+      this.fps,
+      this.bitrateMbps);
+}
+
+/// Timings of SessionWarmup.java, sent once after the app starts. Times are
+/// in ms, -1 if the step was skipped or failed; the server probe is a TCP
+/// connect to the server used last time.
+class WarmupEvent extends ControlEvent {
+  final int nativeMs;
+  final int resolveMs;
+  final int probeMs;
+  final bool reachable;
+
+  WarmupEvent(this.nativeMs, this.resolveMs, this.probeMs, this.reachable);
+}
+
+/// What EdgeSelector.java found probing one edge server; times are -1 when
+/// it did not answer.
+class EdgeProbe {
+  final String server;
+  final double rttMs;
+  final double jitterMs;
+  final int lost;
+  final bool reachable;
+
+  EdgeProbe(this.server, this.rttMs, this.jitterMs, this.lost, this.reachable);
+}
+
+/// Ranking of the candidate edge servers, best first, sent when they are
+/// ranked and again with [fallback] set when connecting to [selected]'s
+/// predecessor failed. [selected] is empty if no server is left.
+class EdgeSelectionEvent extends ControlEvent {
+  final String selected;
+  final bool fallback;
+  final List<EdgeProbe> servers;
+
+  EdgeSelectionEvent(this.selected, this.fallback, this.servers);
+}
+
+/// A gzipped batch of spooled telemetry at [path] on the device, see
+/// TelemetrySpool.java, to upload and then answer with
+/// [CloudXrControl.telemetryUploaded].
+class TelemetryUploadEvent extends ControlEvent {
+  final String name;
+  final String path;
+  final int segments;
+  final int rawBytes;
+  final int compressedBytes;
+
+  TelemetryUploadEvent(this.name, this.path, this.segments, this.rawBytes,
+      this.compressedBytes);
+}
+
+/// Progress of a [CloudXrControl.switchServer], see ServerSwitcher.java.
+/// [gapMs] is how long the stream stood still while the receiver reconnected;
+/// [status] is the CloudXR error, or [statusUnreachable] or [statusTimeout]
+/// if the new server did not answer and the session stayed where it was.
+class ServerSwitchEvent extends ControlEvent {
+  static const stateIdle = 0;
+  static const statePreconnecting = 1;
+  static const stateSwitching = 2;
+  static const stateSwitched = 3;
+  static const stateReverting = 4;
+  static const stateFailed = 5;
+
+  static const statusUnreachable = -1;
+  static const statusTimeout = -2;
+
+  final int state;
+  final String server;
+  final String previous;
+  final int preconnectMs;
+  final int gapMs;
+  final int status;
+
+  ServerSwitchEvent(this.state, this.server, this.previous, this.preconnectMs,
+      this.gapMs, this.status);
+}
+
+/// Connection settings saved on the device under [name], see ProfileStore.java.
+class Profile {
+  final String name;
+  final String cloudIp;
+  final String anchorId;
+  final String webRtcIp;
+  final String roomId;
+  final bool mediaPipe;
+
+  Profile(this.name, this.cloudIp, this.anchorId, this.webRtcIp, this.roomId,
+      this.mediaPipe);
+}
+
+/// Every saved profile, most recently used first, sent on
+/// [CloudXrControl.listProfiles] and whenever the profiles change.
+class ProfilesEvent extends ControlEvent {
+  final List<Profile> profiles;
+
+  ProfilesEvent(this.profiles);
+}
+
+class _CommandWriter {
+  final BytesBuilder _builder = BytesBuilder(copy: false);
+
+  _CommandWriter(int type) {
+    _builder.add([protocolVersion, type, 0, 0]);
+  }
+
+  void int32(int value) {
+    _builder.add(
+        Uint8List(4)..buffer.asByteData().setInt32(0, value, Endian.little));
+  }
+
+  void boolean(bool value) {
+    _builder.addByte(value ? 1 : 0);
+  }
+
+  void string(String value) {
+    List<int> bytes = utf8.encode(value);
+    _builder.add(Uint8List(2)
+      ..buffer.asByteData().setUint16(0, _count(bytes.length), Endian.little));
+    _builder.add(bytes);
+  }
+
+  void strings(List<String> values) {
+    _builder.add(Uint8List(2)
+      ..buffer.asByteData().setUint16(0, _count(values.length), Endian.little));
+    values.forEach(string);
+  }
+
+  // Lengths and counts are 16 bit; a longer list is refused, not cut short.
+  static int _count(int count) {
+    if (count > 0xFFFF) {
+      throw ArgumentError.value(count, 'count', 'does not fit 16 bits');
+    }
+    return count;
+  }
+
+  ByteData toByteData() => _builder.toBytes().buffer.asByteData();
+}
+
+/// Binary command and event channel to ArController, replacing the string
+/// commands on com.compal.cloudxr/messages and the string events on
+/// com.compal.cloudxr/events.
+class CloudXrControl {
+  /// private constructor
+  CloudXrControl._();
+
+  /// the one and only instance of this singleton
+  static final instance = CloudXrControl._();
+
+  final StreamController<ControlEvent> _events =
+      StreamController<ControlEvent>.broadcast();
+
+  Stream<ControlEvent> get events => _events.stream;
+
+  /// Starts receiving events; until then ArController keeps sending them on
+  /// the events channel.
+  Future<bool> open() async {
+    _controlChannel.setMessageHandler(_handleMessage);
+    return _send(_CommandWriter(_cmdHello));
+  }
+
+  void close() {
+    _controlChannel.setMessageHandler(null);
+  }
+
+  /// Same parameters as ArModel.setParams.
+  Future<bool> connect(String cloudIp,
+      {String anchorId = '',
+      String? webRtcIp,
+      String roomId = '',
+      bool hostCloudAnchor = false,
+      bool mediaPipe = false}) {
+    return _send(_CommandWriter(_cmdConnect)
+      ..string(cloudIp)
+      ..string(anchorId)
+      ..string(webRtcIp ?? cloudIp)
+      ..string(roomId)
+      ..boolean(hostCloudAnchor)
+      ..boolean(mediaPipe));
+  }
+
+  /// Like [connect], to whichever of [candidates] answers fastest, falling
+  /// back to the next one if connecting fails. A candidate is an IP or host,
+  /// optionally with a port to probe; [webRtcIp] defaults to the chosen one.
+  Future<bool> connectBest(List<String> candidates,
+      {String anchorId = '',
+      String webRtcIp = '',
+      String roomId = '',
+      bool hostCloudAnchor = false,
+      bool mediaPipe = false}) {
+    return _send(_CommandWriter(_cmdConnectBest)
+      ..strings(candidates)
+      ..string(anchorId)
+      ..string(webRtcIp)
+      ..string(roomId)
+      ..boolean(hostCloudAnchor)
+      ..boolean(mediaPipe));
+  }
+
+  Future<bool> disconnect() => _send(_CommandWriter(_cmdDisconnect));
+
+  Future<bool> stop() => _send(_CommandWriter(_cmdStop));
+
+  Future<bool> startConnectionStats(
+          {int intervalMs = 500, int windowSize = 10}) =>
+      _send(_CommandWriter(_cmdStartConnectionStats)
+        ..int32(intervalMs)
+        ..int32(windowSize));
+
+  Future<bool> stopConnectionStats() =>
+      _send(_CommandWriter(_cmdStopConnectionStats));
+
+  /// [format] is one of the CameraFrameFormat constants; anything but yuv is
+  /// converted on the native side.
+  Future<bool> subscribeCameraFrames(
+          {int maxFps = 15,
+          int downscale = 2,
+          int queueDepth = 2,
+          int format = 0}) =>
+      _send(_CommandWriter(_cmdSubscribeCameraFrames)
+        ..int32(maxFps)
+        ..int32(downscale)
+        ..int32(queueDepth)
+        ..int32(format));
+
+  Future<bool> unsubscribeCameraFrames() =>
+      _send(_CommandWriter(_cmdUnsubscribeCameraFrames));
+
+  /// Streams head poses as [PoseEvent]s at [rateHz]. With [batch], every
+  /// pose since the previous tick is sent instead of only the newest one.
+  Future<bool> startPoseStream({int rateHz = 30, bool batch = false}) =>
+      _send(_CommandWriter(_cmdStartPoseStream)
+        ..int32(rateHz)
+        ..boolean(batch));
+
+  Future<bool> stopPoseStream() => _send(_CommandWriter(_cmdStopPoseStream));
+
+  /// Lowest level the native side logs, see [LogLevel].
+  Future<bool> setLogLevel(int level) =>
+      _send(_CommandWriter(_cmdSetLogLevel)..int32(level));
+
+  /// Caps the render rate while streaming at [frameRate]; 0 follows the
+  /// stream's frame rate as measured by the connection stats.
+  Future<bool> setTargetFrameRate(int frameRate) =>
+      _send(_CommandWriter(_cmdSetTargetFrameRate)..int32(frameRate));
+
+  /// Records commands, touches, geometry changes and per-frame statuses to a
+  /// new trace file of at most [capacityKb] on the device.
+  Future<bool> startTrace({int capacityKb = 16 * 1024}) =>
+      _send(_CommandWriter(_cmdStartTrace)..int32(capacityKb));
+
+  /// Stops recording and any replay in progress.
+  Future<bool> stopTrace() => _send(_CommandWriter(_cmdStopTrace));
+
+  /// Replays the trace [name], the latest one if empty, at [speedPercent] of
+  /// the recorded pace; 0 replays as fast as possible.
+  Future<bool> replayTrace({String name = "", int speedPercent = 100}) =>
+      _send(_CommandWriter(_cmdReplayTrace)
+        ..string(name)
+        ..int32(speedPercent));
+
+  /// Done uploading the batch of a [TelemetryUploadEvent]; it is deleted if
+  /// [ok], otherwise uploaded again later.
+  Future<bool> telemetryUploaded(String name, bool ok) =>
+      _send(_CommandWriter(_cmdTelemetryUploaded)
+        ..string(name)
+        ..boolean(ok));
+
+  /// Moves a connected session to [server] without pausing ARCore, so the
+  /// anchor and tracking stay; only the CloudXR receiver reconnects. Connects
+  /// as usual if nothing is connected. Progress comes as [ServerSwitchEvent]s.
+  Future<bool> switchServer(String server) =>
+      _send(_CommandWriter(_cmdSwitchServer)..string(server));
+
+  /// Asks for the saved profiles as a [ProfilesEvent].
+  Future<bool> listProfiles() => _send(_CommandWriter(_cmdListProfiles));
+
+  /// Saves [profile] as the most recently used, replacing the one of the same
+  /// name, without connecting.
+  Future<bool> saveProfile(Profile profile) =>
+      _send(_CommandWriter(_cmdSaveProfile)
+        ..string(profile.name)
+        ..string(profile.cloudIp)
+        ..string(profile.anchorId)
+        ..string(profile.webRtcIp)
+        ..string(profile.roomId)
+        ..boolean(profile.mediaPipe));
+
+  /// Makes the profile [name] the most recently used; connecting to its server
+  /// next saves to it rather than to a profile named after the server.
+  Future<bool> useProfile(String name) =>
+      _send(_CommandWriter(_cmdUseProfile)..string(name));
+
+  Future<bool> removeProfile(String name) =>
+      _send(_CommandWriter(_cmdRemoveProfile)..string(name));
+
+  Future<bool> _send(_CommandWriter command) async {
+    try {
+      ByteData? reply = await _controlChannel.send(command.toByteData());
+      if (null == reply ||
+          reply.lengthInBytes < _headerSize ||
+          _msgAck != reply.getUint8(1)) {
+        return false;
+      }
+      int status = reply.getUint16(2, Endian.little);
+      if (_statusOk != status) {
+        Log.e(_tag, "command ${command.toByteData().getUint8(1)} status $status");
+      }
+      return _statusOk == status;
+    } on PlatformException catch (e) {
+      Log.e(_tag, "send ${e.message}");
+      return false;
+    }
+  }
+
+  Future<ByteData?> _handleMessage(ByteData? message) async {
+    if (null == message ||
+        message.lengthInBytes < _headerSize ||
+        protocolVersion != message.getUint8(0) ||
+        _msgEventBatch != message.getUint8(1)) {
+      return null;
+    }
+    int count = message.getUint16(2, Endian.little);
+    int position = _headerSize;
+    for (int i = 0;
+        i < count && position + _eventHeaderSize <= message.lengthInBytes;
+        i++) {
+      int type = message.getUint8(position);
+      int length = message.getUint16(position + 2, Endian.little);
+      int payload = position + _eventHeaderSize;
+      position = payload + length;
+      if (position > message.lengthInBytes) {
+        Log.e(_tag, "truncated event $type");
+        break;
+      }
+      ControlEvent? event = _decodeEvent(type, message, payload);
+      if (null != event) {
+        _events.add(event);
+      }
+    }
+    return null;
+  }
+
+  ControlEvent? _decodeEvent(int type, ByteData data, int offset) {
+    switch (type) {
+      case _evtCloudXrState:
+        return CloudXrStateEvent(data.getUint8(offset) != 0);
+      case _evtTouch:
+        return TouchEvent();
+      case _evtFrameStats:
+        return FrameStatsEvent(FrameStats.fromBytes(data, offset));
+      case _evtConnectionStats:
+        return ConnectionStatsEvent(ConnectionStats.fromBytes(data, offset));
+      case _evtPose:
+        int timestamp = data.getInt64(offset, Endian.little);
+        Float32List values = Float32List.fromList(List.generate(
+            7, (i) => data.getFloat32(offset + 8 + i * 4, Endian.little)));
+        return PoseEvent(timestamp, Float32List.sublistView(values, 0, 3),
+            Float32List.sublistView(values, 3, 7));
+      case _evtSessionRecovery:
+        return SessionRecoveryEvent(
+            data.getUint8(offset),
+            data.getInt32(offset + 1, Endian.little),
+            data.getInt32(offset + 5, Endian.little),
+            data.getInt32(offset + 9, Endian.little));
+      case _evtQuality:
+        return QualityEvent(
+            data.getUint8(offset),
+            data.getUint8(offset + 1),
+            data.getUint8(offset + 2),
+            data.getUint8(offset + 3),
+            data.getUint8(offset + 4),
+            data.getUint8(offset + 5) != 0,
+            data.getUint8(offset + 6),
+            data.getFloat32(offset + 7, Endian.little),
+            data.getInt32(offset + 11, Endian.little),
+            data.getInt32(offset + 15, Endian.little));
+      case _evtWarmup:
+        return WarmupEvent(
+            data.getInt32(offset, Endian.little),
+            data.getInt32(offset + 4, Endian.little),
+            data.getInt32(offset + 8, Endian.little),
+            data.getUint8(offset + 12) != 0);
+      case _evtEdgeSelection:
+        return _decodeEdgeSelection(data, offset);
+      case _evtTelemetryUpload:
+        return _decodeTelemetryUpload(data, offset);
+      case _evtServerSwitch:
+        return _decodeServerSwitch(data, offset);
+      case _evtProfiles:
+        return _decodeProfiles(data, offset);
+      default:
+        // Newer event this client does not know about.
+        return null;
+    }
+  }
+
+  EdgeSelectionEvent _decodeEdgeSelection(ByteData data, int offset) {
+    _Cursor cursor = _Cursor(offset);
+    String selected = _readString(data, cursor);
+    bool fallback = data.getUint8(cursor.offset) != 0;
+    int count = data.getUint16(cursor.offset + 1, Endian.little);
+    cursor.offset += 3;
+    List<EdgeProbe> servers = [];
+    for (int i = 0; i < count; i++) {
+      String server = _readString(data, cursor);
+      int at = cursor.offset;
+      servers.add(EdgeProbe(
+          server,
+          data.getFloat32(at, Endian.little),
+          data.getFloat32(at + 4, Endian.little),
+          data.getUint8(at + 8),
+          data.getUint8(at + 9) != 0));
+      cursor.offset += 10;
+    }
+    return EdgeSelectionEvent(selected, fallback, servers);
+  }
+
+  TelemetryUploadEvent _decodeTelemetryUpload(ByteData data, int offset) {
+    _Cursor cursor = _Cursor(offset);
+    String name = _readString(data, cursor);
+    String path = _readString(data, cursor);
+    int at = cursor.offset;
+    return TelemetryUploadEvent(
+        name,
+        path,
+        data.getUint16(at, Endian.little),
+        data.getUint32(at + 2, Endian.little),
+        data.getUint32(at + 6, Endian.little));
+  }
+
+  ServerSwitchEvent _decodeServerSwitch(ByteData data, int offset) {
+    int state = data.getUint8(offset);
+    _Cursor cursor = _Cursor(offset + 1);
+    String server = _readString(data, cursor);
+    String previous = _readString(data, cursor);
+    int at = cursor.offset;
+    return ServerSwitchEvent(
+        state,
+        server,
+        previous,
+        data.getInt32(at, Endian.little),
+        data.getInt32(at + 4, Endian.little),
+        data.getInt32(at + 8, Endian.little));
+  }
+
+  ProfilesEvent _decodeProfiles(ByteData data, int offset) {
+    int count = data.getUint16(offset, Endian.little);
+    _Cursor cursor = _Cursor(offset + 2);
+    List<Profile> profiles = [];
+    for (int i = 0; i < count; i++) {
+      String name = _readString(data, cursor);
+      String cloudIp = _readString(data, cursor);
+      String anchorId = _readString(data, cursor);
+      String webRtcIp = _readString(data, cursor);
+      String roomId = _readString(data, cursor);
+      bool mediaPipe = data.getUint8(cursor.offset) != 0;
+      cursor.offset += 1;
+      profiles.add(
+          Profile(name, cloudIp, anchorId, webRtcIp, roomId, mediaPipe));
+    }
+    return ProfilesEvent(profiles);
+  }
+
+  /// The UTF-8 string at [cursor], after its 16 bit length; moves [cursor]
+  /// past it.
+  String _readString(ByteData data, _Cursor cursor) {
+    int length = data.getUint16(cursor.offset, Endian.little);
+    String value = utf8.decode(data.buffer
+        .asUint8List(data.offsetInBytes + cursor.offset + 2, length));
+    cursor.offset += 2 + length;
+    return value;
+  }
+}
+
+/// Read position in an event payload that has variable length strings.
+class _Cursor {
+  int offset;
+
+  _Cursor(this.offset);
+}
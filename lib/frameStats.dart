@@ -0,0 +1,96 @@
+import 'dart:typed_data';
+
+/// Frame timing snapshot published by FrameMetrics.java over the events
+/// channel, or in binary over the control channel. Durations are in
+/// microseconds.
+class StageStats {
+  final int count;
+  final int p50;
+  final int p95;
+  final int p99;
+  final int max;
+
+  StageStats(this.count, this.p50, this.p95, this.p99, this.max);
+
+  factory StageStats.fromList(List<dynamic> values) => StageStats(
+      values[0] as int,
+      values[1] as int,
+      values[2] as int,
+      values[3] as int,
+      values[4] as int);
+
+  String _ms(int micros) => (micros / 1000).toStringAsFixed(1);
+
+  @override
+  String toString() =>
+      "${_ms(p50)}/${_ms(p95)}/${_ms(p99)}/${_ms(max)} ms (n=$count)";
+}
+
+class FrameStats {
+  static const String eventType = 'frame_stats';
+
+  final int periodMs;
+  final int frames;
+  final int dropped;
+  final int errors;
+  final int cameraDropped;
+  final Map<String, StageStats> stages;
+
+  FrameStats(this.periodMs, this.frames, this.dropped, this.errors,
+      this.cameraDropped, this.stages);
+
+  // Stage order of the binary payload, see ControlProtocol.java.
+  static const List<String> stageNames = [
+    'anchor',
+    'geometry',
+    'draw',
+    'camera',
+    'total',
+    'interval'
+  ];
+
+  /// Decodes an EVT_FRAME_STATS payload starting at [offset].
+  factory FrameStats.fromBytes(ByteData data, int offset) {
+    int field(int index) => data.getInt32(offset + index * 4, Endian.little);
+    Map<String, StageStats> stages = {};
+    int stageCount = data.getUint8(offset + 20);
+    int position = offset + 21;
+    for (int i = 0; i < stageCount; i++) {
+      List<int> values = List.generate(
+          5, (j) => data.getInt32(position + j * 4, Endian.little));
+      position += 20;
+      if (i < stageNames.length) {
+        stages[stageNames[i]] = StageStats.fromList(values);
+      }
+    }
+    return FrameStats(field(0), field(1), field(2), field(3), field(4), stages);
+  }
+
+  static bool isFrameStats(dynamic message) =>
+      message is Map && eventType == message['type'];
+
+  factory FrameStats.fromMap(Map<dynamic, dynamic> map) {
+    Map<String, StageStats> stages = {};
+    (map['stages'] as Map<dynamic, dynamic>).forEach((name, values) {
+      stages[name as String] = StageStats.fromList(values as List<dynamic>);
+    });
+    return FrameStats(map['period_ms'] as int, map['frames'] as int,
+        map['dropped'] as int, map['errors'] as int,
+        map['camera_dropped'] as int, stages);
+  }
+
+  double get fps => periodMs > 0 ? frames * 1000 / periodMs : 0;
+
+  /// Multi-line summary for the debug overlay, one line per stage as
+  /// p50/p95/p99/max.
+  String summary() {
+    StringBuffer buffer = StringBuffer(
+        "${fps.toStringAsFixed(1)} fps, dropped $dropped, errors $errors, camera dropped $cameraDropped");
+    stages.forEach((name, stats) {
+      if (stats.count > 0) {
+        buffer.write("\n$name ${stats.toString()}");
+      }
+    });
+    return buffer.toString();
+  }
+}
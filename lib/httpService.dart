@@ -64,6 +64,32 @@ class HttpService {
     return response;
   }
 
+  /// Posts [bytes] already gzipped, e.g. a telemetry batch.
+  Future<Response> postGzip(String path, List<int> bytes) async {
+    Response response;
+    try {
+      _dio.options.headers[TAG_AUTHORIZATION] =
+          Utils.instance.getSharePString(prefToken);
+      response = await _dio.post(
+        path,
+        data: Stream.fromIterable([bytes]),
+        options: Options(headers: {
+          HttpHeaders.contentTypeHeader: "application/octet-stream",
+          HttpHeaders.contentEncodingHeader: "gzip",
+          HttpHeaders.contentLengthHeader: bytes.length,
+        }),
+      );
+    } on DioError catch (e) {
+      if (null != e.response) {
+        Log.e(_tag, "postGzip ${e.message} ${e.response!.data}");
+      } else {
+        Log.e(_tag, e.message);
+      }
+      throw Exception(e.message);
+    }
+    return response;
+  }
+
   Future<Response> delete(String path) async {
     Response response;
     try {
@@ -158,6 +158,31 @@ class HttpUtils {
     return map;
   }
 
+  /// Posts gzipped [bytes]; true if the central server took them.
+  Future<bool> sendGzipRequest(String path, List<int> bytes) async {
+    String? centralServer = Utils.instance.getSharePString(prefCentralServer);
+    if (null != centralServer) {
+      baseUrl = centralServer;
+    }
+    if (Utils.instance.getSharePString(prefToken) == null) {
+      // Not logged in, nothing to upload as.
+      return false;
+    }
+
+    try {
+      HttpService httpService = HttpService();
+      final response = await httpService
+          .postGzip(path, bytes)
+          .timeout(const Duration(seconds: 30));
+      Log.d(_tag, "post path=$path, ${bytes.length} bytes, "
+          "status=${response.statusCode}");
+      return true;
+    } catch (e) {
+      Log.d(_tag, "post path=$path, ${bytes.length} bytes, error=$e");
+      return false;
+    }
+  }
+
   void handleResponseCode(Map<String, dynamic> map) {
     handleResponseCodeRetry(map, false);
   }
@@ -0,0 +1,49 @@
+import 'dart:async';
+import 'dart:io';
+
+import 'controlProtocol.dart';
+import 'httpUtils.dart';
+import 'log.dart';
+
+const _tag = "Telemetry";
+const _uploadPath = "devices/telemetry";
+
+/// Uploads the telemetry batches TelemetrySpool.java spools while nothing
+/// streams: reads the gzipped batch file, posts it to the central server and
+/// tells ArController whether that worked, so it deletes the batch or retries
+/// it later.
+class TelemetryUploader {
+  /// private constructor
+  TelemetryUploader._();
+
+  /// the one and only instance of this singleton
+  static final instance = TelemetryUploader._();
+
+  StreamSubscription? _subscription;
+
+  /// Starts answering upload requests; once is enough.
+  void start() {
+    _subscription ??= CloudXrControl.instance.events
+        .where((event) => event is TelemetryUploadEvent)
+        .listen((event) => _upload(event as TelemetryUploadEvent));
+  }
+
+  void stop() {
+    _subscription?.cancel();
+    _subscription = null;
+  }
+
+  void _upload(TelemetryUploadEvent event) async {
+    bool ok = false;
+    try {
+      List<int> bytes = await File(event.path).readAsBytes();
+      ok = await HttpUtils.instance.sendGzipRequest(_uploadPath, bytes);
+    } on FileSystemException catch (e) {
+      Log.e(_tag, "cannot read ${event.path}: ${e.message}");
+    }
+    Log.d(_tag,
+        "${event.name}: ${event.segments} segments, ${event.rawBytes} bytes, "
+        "${event.compressedBytes} compressed, ok=$ok");
+    await CloudXrControl.instance.telemetryUploaded(event.name, ok);
+  }
+}
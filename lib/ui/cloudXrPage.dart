@@ -1,18 +1,20 @@
 import 'dart:async';
+import 'dart:typed_data';
 
 import 'package:cloudxr_flutter/utils.dart';
 import 'package:flutter/material.dart';
-import 'package:flutter/services.dart';
 import 'package:udp/udp.dart';
 
+import '../connectionStats.dart';
 import '../constants.dart';
+import '../controlProtocol.dart';
+import '../frameStats.dart';
 import '../httpUtils.dart';
 import '../log.dart';
+import '../telemetry.dart';
 import 'appList.dart';
 
 const _tag = "cloudXrPage";
-const _platformMessages = MethodChannel('com.compal.cloudxr/messages');
-const _messageEvents = EventChannel('com.compal.cloudxr/events');
 
 class CloudXrPage extends StatefulWidget {
   static const String CloudXrPageRoute = 'CloudXrPage';
@@ -32,25 +34,17 @@ class _CloudXrPageState extends State<CloudXrPage> {
   late DateTime _lastTouchTime;
   StreamSubscription? _streamSubscription;
   UDP? _udpSender;
+  FrameStats? _frameStats;
+  ConnectionStats? _connectionStats;
 
   // Timer? _timer;
 
-  Future<bool> _sendMessage(String message) async {
-    String response = '';
-    try {
-      response = await _platformMessages.invokeMethod(message);
-    } on PlatformException catch (e) {
-      response = "${e.message}";
-    }
-    return response == '1';
-  }
-
   void _stopCloudXr() async {
-    await _sendMessage('stop_cloudxr');
+    await CloudXrControl.instance.stop();
   }
 
   void _releaseCloudXr() async {
-    await _sendMessage('disconnect_to_cloudxr');
+    await CloudXrControl.instance.disconnect();
   }
 
   void _startApp() async {
@@ -67,9 +61,31 @@ class _CloudXrPageState extends State<CloudXrPage> {
     }
   }
 
-  void _onEvent(message) {
+  void _onEvent(ControlEvent event) {
     if (mounted) {
-      if ('stop_cloudxr' == message) {
+      if (event is FrameStatsEvent) {
+        if (_isShowPanel) {
+          setState(() {
+            _frameStats = event.stats;
+          });
+        } else {
+          _frameStats = event.stats;
+        }
+      } else if (event is ConnectionStatsEvent) {
+        ConnectionStats stats = event.stats;
+        if (stats.degrading && !(_connectionStats?.degrading ?? false)) {
+          Log.d(_tag, "connection degrading ${stats.summary()}");
+          ScaffoldMessenger.of(context).showSnackBar(SnackBar(
+              content: Text("Connection is getting worse ${stats.reason()}")));
+        }
+        if (_isShowPanel) {
+          setState(() {
+            _connectionStats = stats;
+          });
+        } else {
+          _connectionStats = stats;
+        }
+      } else if (event is CloudXrStateEvent && !event.started) {
         if (mounted && (_isStart || _isShowMenu)) {
           setState(() {
             _isStart = false;
@@ -77,7 +93,7 @@ class _CloudXrPageState extends State<CloudXrPage> {
           });
         }
         HttpUtils.instance.localStatus = deviceCodeDisconnected;
-      } else if ('start_cloudxr' == message) {
+      } else if (event is CloudXrStateEvent && event.started) {
         if (mounted && !_isStart) {
           setState(() {
             _isStart = true;
@@ -85,9 +101,19 @@ class _CloudXrPageState extends State<CloudXrPage> {
         }
         HttpUtils.instance.localStatus = deviceCodeConnected;
         _startApp();
-      } else if (message.contains("Rot")) {
-        _sendUdpCmd(message);
-      } else if (message.contains("touch")) {
+      } else if (event is SessionRecoveryEvent) {
+        Log.d(_tag,
+            "recovery ${event.state} attempt ${event.attempt} [${event.status}]");
+        if (SessionRecoveryEvent.stateCircuitOpen == event.state) {
+          ScaffoldMessenger.of(context).showSnackBar(SnackBar(
+              content:
+                  Text("Connection lost, retrying in ${event.delayMs ~/ 1000} s")));
+        }
+      } else if (event is PoseEvent) {
+        // Same message the head pose forwarding used to send.
+        Float32List q = event.orientation;
+        _sendUdpCmd("Rot,${-q[3]},${q[0]},${q[1]},${q[2]}");
+      } else if (event is TouchEvent) {
         if (mounted && !_isShowPanel) {
           setState(() {
             _isShowPanel = true;
@@ -148,15 +174,31 @@ class _CloudXrPageState extends State<CloudXrPage> {
     // _timer = Timer(const Duration(seconds: 50), () {
     //   _onBackPressed();
     // });
-    _streamSubscription = _messageEvents
-        .receiveBroadcastStream()
-        .listen(_onEvent, onError: _onError);
-    String ip = widget.cloudXrIP;
-    _sendMessage('connect_to_cloudxr' + ip); //must not interpolation
+    _streamSubscription =
+        CloudXrControl.instance.events.listen(_onEvent, onError: _onError);
+    _connect();
     _initUdpClient();
     _sendHeadPos();
   }
 
+  void _connect() async {
+    CloudXrControl control = CloudXrControl.instance;
+    if (!await control.open()) {
+      Log.e(_tag, "control channel not available");
+    }
+    // Uploads what was spooled once the stream is over.
+    TelemetryUploader.instance.start();
+    // The reservation may offer several edge servers, comma separated.
+    List<String> candidates = widget.cloudXrIP.split(',');
+    if (candidates.length > 1) {
+      await control.connectBest(candidates);
+    } else {
+      await control.connect(widget.cloudXrIP);
+    }
+    await control.startConnectionStats();
+    await control.startPoseStream();
+  }
+
   void _closeGameServer() async {
     Log.d(_tag, "_closeGameServer");
     await HttpUtils.instance.sendPostRequest("devices/stop_app", {});
@@ -168,6 +210,8 @@ class _CloudXrPageState extends State<CloudXrPage> {
     if (_isStart) {
       _stopCloudXr();
     }
+    CloudXrControl.instance.stopConnectionStats();
+    CloudXrControl.instance.stopPoseStream();
     _releaseCloudXr();
     if (null != _streamSubscription) {
       _streamSubscription!.cancel();
@@ -314,6 +358,19 @@ class _CloudXrPageState extends State<CloudXrPage> {
                     ])
                   ])
                 : Container(width: 0),
+            _isShowPanel && (null != _frameStats || null != _connectionStats)
+                ? Align(
+                    alignment: Alignment.topRight,
+                    child: Container(
+                        color: const Color(0x66000000),
+                        padding: const EdgeInsets.all(4.0),
+                        child: Text(
+                            [_connectionStats?.summary(), _frameStats?.summary()]
+                                .whereType<String>()
+                                .join('\n'),
+                            style: const TextStyle(
+                                color: Colors.white, fontSize: 10))))
+                : Container(width: 0),
           ]),
         ));
   }